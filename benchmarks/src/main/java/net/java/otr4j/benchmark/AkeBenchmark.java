@@ -0,0 +1,46 @@
+/*
+ * otr4j, the open source java otr library.
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package net.java.otr4j.benchmark;
+
+import java.security.KeyPair;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** A full AKE between two fresh sessions, long-term keys are reused. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class AkeBenchmark {
+
+    private KeyPair aliceKeyPair;
+    private KeyPair bobKeyPair;
+
+    @Setup
+    public void setUp() throws Exception {
+        aliceKeyPair = SessionPair.generateDsaKeyPair();
+        bobKeyPair = SessionPair.generateDsaKeyPair();
+    }
+
+    @Benchmark
+    public SessionPair ake() throws Exception {
+        SessionPair pair = new SessionPair(aliceKeyPair, bobKeyPair);
+        pair.startSession();
+        return pair;
+    }
+}
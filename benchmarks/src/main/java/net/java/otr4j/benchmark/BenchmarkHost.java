@@ -0,0 +1,82 @@
+/*
+ * otr4j, the open source java otr library.
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package net.java.otr4j.benchmark;
+
+import java.security.KeyPair;
+import java.util.LinkedList;
+
+import net.java.otr4j.OtrPolicy;
+import net.java.otr4j.OtrPolicyImpl;
+import net.java.otr4j.session.OtrSm.OtrSmEngineHost;
+import net.java.otr4j.session.SessionID;
+
+/**
+ * Pure JVM engine host. Injected messages are queued for the peer instead of
+ * going over the network, errors abort the benchmark.
+ */
+public class BenchmarkHost implements OtrSmEngineHost {
+
+    private final KeyPair keyPair;
+    private final OtrPolicy policy = new OtrPolicyImpl(OtrPolicy.ALLOW_V2
+                                                       | OtrPolicy.ERROR_START_AKE);
+    private final LinkedList<String> outbox = new LinkedList<String>();
+    private int secretRequests;
+    private int maxFragmentSize;
+
+    public BenchmarkHost(KeyPair keyPair) {
+        this.keyPair = keyPair;
+    }
+
+    /** @return the oldest message injected for the peer, or null. */
+    public String poll() {
+        return outbox.poll();
+    }
+
+    public boolean hasOutgoing() {
+        return !outbox.isEmpty();
+    }
+
+    public int getSecretRequests() {
+        return secretRequests;
+    }
+
+    public void setMaxFragmentSize(int maxFragmentSize) {
+        this.maxFragmentSize = maxFragmentSize;
+    }
+
+    public void injectMessage(SessionID sessionID, String msg) {
+        outbox.add(msg);
+    }
+
+    public void showWarning(SessionID sessionID, String warning) {
+    }
+
+    public void showError(SessionID sessionID, String error) {
+        throw new IllegalStateException(sessionID + ": " + error);
+    }
+
+    public OtrPolicy getSessionPolicy(SessionID sessionID) {
+        return policy;
+    }
+
+    public KeyPair getKeyPair(SessionID sessionID) {
+        return keyPair;
+    }
+
+    public int getMaxFragmentSize(SessionID sessionID) {
+        return maxFragmentSize;
+    }
+
+    public void askForSecret(SessionID sessionID, String question) {
+        secretRequests++;
+    }
+
+    public void smpProgress(SessionID sessionID, int percent) {
+    }
+
+    public void smpFinished(SessionID sessionID, int result) {
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * otr4j, the open source java otr library.
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package net.java.otr4j.benchmark;
+
+import java.security.KeyPair;
+import java.security.PublicKey;
+
+import net.java.otr4j.OtrKeyManager;
+import net.java.otr4j.OtrKeyManagerListener;
+import net.java.otr4j.crypto.OtrCryptoEngineImpl;
+import net.java.otr4j.crypto.OtrCryptoException;
+import net.java.otr4j.session.SessionID;
+
+/** In memory key manager for one side of a {@link SessionPair}. */
+public class BenchmarkKeyManager implements OtrKeyManager {
+
+    private final KeyPair localKeyPair;
+    private final String localFingerprint;
+    private final String remoteFingerprint;
+    private PublicKey remotePublicKey;
+    private boolean verified;
+
+    public BenchmarkKeyManager(KeyPair localKeyPair, PublicKey remotePublicKey)
+            throws OtrCryptoException {
+        OtrCryptoEngineImpl cryptoEngine = new OtrCryptoEngineImpl();
+        this.localKeyPair = localKeyPair;
+        this.remotePublicKey = remotePublicKey;
+        this.localFingerprint = cryptoEngine.getFingerprint(localKeyPair.getPublic());
+        this.remoteFingerprint = cryptoEngine.getFingerprint(remotePublicKey);
+    }
+
+    public void addListener(OtrKeyManagerListener l) {
+    }
+
+    public void removeListener(OtrKeyManagerListener l) {
+    }
+
+    public void verify(SessionID sessionID) {
+        verified = true;
+    }
+
+    public void unverify(SessionID sessionID) {
+        verified = false;
+    }
+
+    public void remoteVerifiedUs(SessionID sessionID) {
+        verified = true;
+    }
+
+    public boolean isVerified(SessionID sessionID) {
+        return verified;
+    }
+
+    public String getRemoteFingerprint(SessionID sessionID) {
+        return remoteFingerprint;
+    }
+
+    public String getLocalFingerprint(SessionID sessionID) {
+        return localFingerprint;
+    }
+
+    public void savePublicKey(SessionID sessionID, PublicKey pubKey) {
+        remotePublicKey = pubKey;
+    }
+
+    public PublicKey loadRemotePublicKey(SessionID sessionID) {
+        return remotePublicKey;
+    }
+
+    public KeyPair loadLocalKeyPair(SessionID sessionID) {
+        return localKeyPair;
+    }
+
+    public void generateLocalKeyPair(SessionID sessionID) {
+        throw new UnsupportedOperationException();
+    }
+}
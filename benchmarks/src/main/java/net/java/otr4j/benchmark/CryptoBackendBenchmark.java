@@ -0,0 +1,72 @@
+/*
+ * otr4j, the open source java otr library.
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package net.java.otr4j.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import net.java.otr4j.crypto.CryptoBackend;
+import net.java.otr4j.crypto.CryptoBackends;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The per-message symmetric work of each backend, with keys set up once as
+ * in OtrCipherContext. Compare with what CryptoBackends picks at startup.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class CryptoBackendBenchmark {
+
+    @Param({ "bc", "jce" })
+    public String backend;
+
+    @Param({ "256", "4096" })
+    public int payloadSize;
+
+    private CryptoBackend.AesCtr aes;
+    private CryptoBackend.Hmac mac;
+    private byte[] ctr;
+    private byte[] buf;
+    private byte[] macOut;
+
+    @Setup
+    public void setUp() throws Exception {
+        CryptoBackend b = CryptoBackends.getBackend(backend);
+        aes = b.createAesCtr(new byte[16]);
+        mac = b.createHmac("HmacSHA1", new byte[20]);
+        ctr = new byte[16];
+        buf = new byte[payloadSize];
+        macOut = new byte[mac.getMacLength()];
+    }
+
+    @Benchmark
+    public byte[] aesCtr() throws Exception {
+        ctr[7]++;
+        aes.process(ctr, buf, 0, buf.length, buf, 0);
+        return buf;
+    }
+
+    @Benchmark
+    public byte[] hmacSha1() throws Exception {
+        mac.update(buf, 0, buf.length);
+        mac.doFinal(macOut, 0);
+        return macOut;
+    }
+}
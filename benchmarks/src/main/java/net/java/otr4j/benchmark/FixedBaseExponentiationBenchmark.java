@@ -0,0 +1,60 @@
+/*
+ * otr4j, the open source java otr library.
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package net.java.otr4j.benchmark;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import net.java.otr4j.crypto.FixedBaseExponentiator;
+import net.java.otr4j.crypto.OtrCryptoEngine;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * g^x mod p with the precomputed generator tables against plain modPow, for
+ * D-H sized (320 bit) and SMP sized (1536 bit) exponents.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class FixedBaseExponentiationBenchmark {
+
+    @Param({ "320", "1536" })
+    public int exponentBits;
+
+    private BigInteger exponent;
+    private FixedBaseExponentiator exponentiator;
+
+    @Setup
+    public void setUp() {
+        exponent = new BigInteger(exponentBits, new SecureRandom());
+        exponentiator = FixedBaseExponentiator.getGenerator();
+    }
+
+    @Benchmark
+    public BigInteger modPow() {
+        return OtrCryptoEngine.GENERATOR.modPow(exponent, OtrCryptoEngine.MODULUS);
+    }
+
+    @Benchmark
+    public BigInteger fixedBase() {
+        return exponentiator.pow(exponent);
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * otr4j, the open source java otr library.
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package net.java.otr4j.benchmark;
+
+import info.guardianproject.otr.KeyStoreCipher;
+import info.guardianproject.otr.KeyStoreJournal;
+
+import java.io.File;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The Android key store: opening it, which derives the key with PBKDF2, and
+ * the reads and writes after that, which must not.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class KeyStoreBenchmark {
+
+    private static final String PASSWORD = "x'00112233445566778899aabbccddeeff'";
+
+    @Param({ "64000" })
+    public int iterations;
+
+    private File dir;
+    private File snapshot;
+    private KeyStoreCipher cipher;
+    private KeyStoreJournal journal;
+    private byte[] record;
+    private byte[] encrypted;
+    private int puts;
+
+    @Setup
+    public void setUp() throws Exception {
+        dir = File.createTempFile("keystore", "");
+        dir.delete();
+        dir.mkdirs();
+        snapshot = new File(dir, "otr_keystore.ofc");
+
+        cipher = new KeyStoreCipher(PASSWORD.toCharArray(), iterations);
+        journal = new KeyStoreJournal(snapshot, cipher, new Properties());
+        journal.load();
+        for (int i = 0; i < 100; i++)
+            journal.put("bob@example.com/r" + i + ".fingerprint", "0123456789abcdef" + i);
+        journal.compact();
+
+        record = "alice@example.com/r.publicKey=0123456789abcdef0123456789abcdef".getBytes("UTF-8");
+        encrypted = cipher.encrypt(record);
+    }
+
+    @TearDown
+    public void tearDown() {
+        cipher.destroy();
+        for (File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+    }
+
+    /** What CacheWord unlocking costs: a fresh cipher reading the store. */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Properties unlock() throws Exception {
+        KeyStoreCipher fresh = new KeyStoreCipher(PASSWORD.toCharArray(), iterations);
+        Properties properties = new Properties();
+        new KeyStoreJournal(snapshot, fresh, properties).load();
+        fresh.destroy();
+        return properties;
+    }
+
+    /** One key or verification stored, journal write included. */
+    @Benchmark
+    public int put() throws Exception {
+        journal.put("carol@example.com/r" + (puts++ & 1023) + ".fingerprint", "fedcba9876543210");
+        return puts;
+    }
+
+    @Benchmark
+    public byte[] encryptRecord() throws Exception {
+        return cipher.encrypt(record);
+    }
+
+    @Benchmark
+    public byte[] decryptRecord() throws Exception {
+        return cipher.decrypt(encrypted);
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * otr4j, the open source java otr library.
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package net.java.otr4j.benchmark;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import net.java.otr4j.io.SerializationUtils;
+import net.java.otr4j.io.messages.AbstractMessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Parsing and encoding of a real data message, without any crypto. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class SerializationBenchmark {
+
+    @Param({ "16", "4096", "65536" })
+    public int payloadSize;
+
+    private String encoded;
+    private AbstractMessage message;
+
+    @Setup
+    public void setUp() throws Exception {
+        SessionPair pair = new SessionPair(SessionPair.generateDsaKeyPair(),
+                SessionPair.generateDsaKeyPair());
+        pair.startSession();
+
+        char[] chars = new char[payloadSize];
+        Arrays.fill(chars, 'x');
+        encoded = pair.alice.transformSending(new String(chars), null);
+        message = SerializationUtils.toMessage(encoded);
+    }
+
+    @Benchmark
+    public AbstractMessage toMessage() throws Exception {
+        return SerializationUtils.toMessage(encoded);
+    }
+
+    @Benchmark
+    public String toEncodedString() throws Exception {
+        return SerializationUtils.toString(message);
+    }
+}
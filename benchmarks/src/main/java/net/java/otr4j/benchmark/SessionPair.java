@@ -0,0 +1,77 @@
+/*
+ * otr4j, the open source java otr library.
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package net.java.otr4j.benchmark;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+import net.java.otr4j.OtrException;
+import net.java.otr4j.crypto.CryptoExecutor;
+import net.java.otr4j.session.Session;
+import net.java.otr4j.session.SessionID;
+import net.java.otr4j.session.SessionImpl;
+import net.java.otr4j.session.SessionStatus;
+import net.java.otr4j.session.TLV;
+
+/**
+ * Two sessions, alice and bob, talking to each other in memory through
+ * {@link BenchmarkHost}.
+ */
+public class SessionPair {
+
+    public static KeyPair generateDsaKeyPair() throws NoSuchAlgorithmException {
+        KeyPairGenerator kg = KeyPairGenerator.getInstance("DSA");
+        kg.initialize(1024);
+        return kg.genKeyPair();
+    }
+
+    public final BenchmarkHost aliceHost;
+    public final BenchmarkHost bobHost;
+    public final Session alice;
+    public final Session bob;
+
+    public SessionPair(KeyPair aliceKeyPair, KeyPair bobKeyPair) {
+        aliceHost = new BenchmarkHost(aliceKeyPair);
+        bobHost = new BenchmarkHost(bobKeyPair);
+        SessionImpl alice = new SessionImpl(new SessionID("alice@example.com",
+                "bob@example.com/bench", "xmpp"), aliceHost);
+        SessionImpl bob = new SessionImpl(new SessionID("bob@example.com",
+                "alice@example.com/bench", "xmpp"), bobHost);
+        // Run the AKE in the benchmark thread, so it is what gets measured.
+        alice.setAuthExecutor(CryptoExecutor.SAME_THREAD);
+        bob.setAuthExecutor(CryptoExecutor.SAME_THREAD);
+        this.alice = alice;
+        this.bob = bob;
+    }
+
+    /** Runs the AKE to completion, started by alice. */
+    public void startSession() throws OtrException {
+        alice.startSession();
+        pump();
+        if (alice.getSessionStatus() != SessionStatus.ENCRYPTED
+            || bob.getSessionStatus() != SessionStatus.ENCRYPTED)
+            throw new IllegalStateException("AKE did not complete.");
+    }
+
+    /** Delivers injected messages both ways until neither side has any left. */
+    public void pump() throws OtrException {
+        while (aliceHost.hasOutgoing() || bobHost.hasOutgoing()) {
+            String msg;
+            while ((msg = aliceHost.poll()) != null)
+                bob.transformReceiving(msg);
+            while ((msg = bobHost.poll()) != null)
+                alice.transformReceiving(msg);
+        }
+    }
+
+    /** Sends a message from one session to the other and returns the plaintext. */
+    public static String send(Session from, Session to, String content, List<TLV> tlvs,
+            List<TLV> receivedTlvs) throws OtrException {
+        return to.transformReceiving(from.transformSending(content, tlvs), receivedTlvs);
+    }
+}
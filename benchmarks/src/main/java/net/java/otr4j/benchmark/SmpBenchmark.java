@@ -0,0 +1,80 @@
+/*
+ * otr4j, the open source java otr library.
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package net.java.otr4j.benchmark;
+
+import java.security.KeyPair;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.java.otr4j.session.OtrSm;
+import net.java.otr4j.session.Session;
+import net.java.otr4j.session.TLV;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A full socialist millionaire exchange through {@link OtrSm}, with the SMP
+ * TLVs carried in data messages of an encrypted session.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class SmpBenchmark {
+
+    private static final String SECRET = "benchmark secret";
+
+    private SessionPair pair;
+    private OtrSm aliceSm;
+    private OtrSm bobSm;
+    private BenchmarkKeyManager aliceKeyManager;
+
+    @Setup
+    public void setUp() throws Exception {
+        KeyPair aliceKeyPair = SessionPair.generateDsaKeyPair();
+        KeyPair bobKeyPair = SessionPair.generateDsaKeyPair();
+        pair = new SessionPair(aliceKeyPair, bobKeyPair);
+        pair.startSession();
+
+        aliceKeyManager = new BenchmarkKeyManager(aliceKeyPair, bobKeyPair.getPublic());
+        BenchmarkKeyManager bobKeyManager = new BenchmarkKeyManager(bobKeyPair,
+                aliceKeyPair.getPublic());
+        aliceSm = new OtrSm(pair.alice, aliceKeyManager, pair.alice.getSessionID(),
+                pair.aliceHost);
+        bobSm = new OtrSm(pair.bob, bobKeyManager, pair.bob.getSessionID(), pair.bobHost);
+        pair.alice.addTlvHandler(aliceSm);
+        pair.bob.addTlvHandler(bobSm);
+    }
+
+    @Benchmark
+    public boolean smp() throws Exception {
+        aliceKeyManager.unverify(null);
+
+        deliver(pair.alice, pair.bob, aliceSm.initRespondSmp(null, SECRET, true));
+        deliver(pair.bob, pair.alice, bobSm.initRespondSmp(null, SECRET, false));
+        deliver(pair.alice, pair.bob, aliceSm.getPendingTlvs());
+        deliver(pair.bob, pair.alice, bobSm.getPendingTlvs());
+
+        if (!aliceKeyManager.isVerified(null))
+            throw new IllegalStateException("SMP did not succeed.");
+        return true;
+    }
+
+    private static void deliver(Session from, Session to, List<TLV> tlvs) throws Exception {
+        SessionPair.send(from, to, "", tlvs, null);
+    }
+}
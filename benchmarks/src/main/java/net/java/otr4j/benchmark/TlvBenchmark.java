@@ -0,0 +1,65 @@
+/*
+ * otr4j, the open source java otr library.
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package net.java.otr4j.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.java.otr4j.session.TLV;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Data messages carrying many TLVs, as used by SMP and the data channel. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class TlvBenchmark {
+
+    @Param({ "1", "16", "64" })
+    public int tlvCount;
+
+    @Param({ "32", "1024" })
+    public int tlvSize;
+
+    private SessionPair pair;
+    private List<TLV> tlvs;
+    private List<TLV> received;
+
+    @Setup
+    public void setUp() throws Exception {
+        pair = new SessionPair(SessionPair.generateDsaKeyPair(),
+                SessionPair.generateDsaKeyPair());
+        pair.startSession();
+
+        tlvs = new ArrayList<TLV>(tlvCount);
+        for (int i = 0; i < tlvCount; i++)
+            tlvs.add(new TLV(TLV.DATA_REQUEST, new byte[tlvSize]));
+        received = new ArrayList<TLV>(tlvCount);
+    }
+
+    @Benchmark
+    public List<TLV> tlvs() throws Exception {
+        received.clear();
+        SessionPair.send(pair.alice, pair.bob, "", tlvs, received);
+        if (received.size() != tlvCount)
+            throw new IllegalStateException("Lost TLVs.");
+        return received;
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * otr4j, the open source java otr library.
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package net.java.otr4j.benchmark;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Data messages between two encrypted sessions. oneWay keeps the same D-H keys,
+ * roundTrip makes both sides rotate keys on every exchange.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class TransformBenchmark {
+
+    @Param({ "16", "256", "4096", "65536" })
+    public int payloadSize;
+
+    private SessionPair pair;
+    private String payload;
+
+    @Setup
+    public void setUp() throws Exception {
+        pair = new SessionPair(SessionPair.generateDsaKeyPair(),
+                SessionPair.generateDsaKeyPair());
+        pair.startSession();
+
+        char[] chars = new char[payloadSize];
+        Arrays.fill(chars, 'x');
+        payload = new String(chars);
+    }
+
+    @Benchmark
+    public String oneWay() throws Exception {
+        return SessionPair.send(pair.alice, pair.bob, payload, null, null);
+    }
+
+    @Benchmark
+    public String roundTrip() throws Exception {
+        SessionPair.send(pair.alice, pair.bob, payload, null, null);
+        return SessionPair.send(pair.bob, pair.alice, payload, null, null);
+    }
+}
@@ -5,7 +5,6 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.security.KeyPair;
 import java.security.PublicKey;
-import java.util.List;
 
 import net.java.otr4j.OtrEngineImpl;
 import net.java.otr4j.OtrEngineListener;
@@ -18,7 +17,6 @@ import net.java.otr4j.session.OtrSm;
 import net.java.otr4j.session.OtrSm.OtrSmEngineHost;
 import net.java.otr4j.session.SessionID;
 import net.java.otr4j.session.SessionStatus;
-import net.java.otr4j.session.TLV;
 
 import org.jivesoftware.smack.PacketListener;
 import org.jivesoftware.smack.XMPPConnection;
@@ -45,10 +43,6 @@ public class SampleApp implements OtrSmEngineHost {
 				String from = smackMessage.getFrom();
 				try {
 					body = otrEngine.transformReceiving(sessionID, body);
-					List<TLV> tlvs = otrSm.getPendingTlvs();
-					if (tlvs != null) {
-						sendMessage(from, otrEngine.transformSending(sessionID, "", tlvs));
-					}
 				} catch (OtrException ex) {
 					ex.printStackTrace();
 				}
@@ -84,6 +78,7 @@ public class SampleApp implements OtrSmEngineHost {
 				
 				// SMP handler - make sure we only add this once per session!
 				otrSm = new OtrSm(otrEngine.getSession(sessionID), otrKeyManager, sessionID, SampleApp.this);
+				otrSm.setExecutor(OtrSm.getSharedExecutor());
 				otrEngine.getSession(sessionID).addTlvHandler(otrSm);
 			}
 		});
@@ -109,6 +104,16 @@ public class SampleApp implements OtrSmEngineHost {
 		System.out.println("enter /smpr SECRET");
 	}
 
+	@Override
+	public void smpProgress(SessionID sessionID, int percent) {
+		System.out.println(sessionID + ": verification " + percent + "%");
+	}
+
+	@Override
+	public void smpFinished(SessionID sessionID, int result) {
+		System.out.println(sessionID + ": verification finished, result=" + result);
+	}
+
 	@Override
 	public void showError(SessionID sessionID, String error) {
 		System.err.println(sessionID + ": error " + error);
@@ -146,6 +151,11 @@ public class SampleApp implements OtrSmEngineHost {
 		return kp;
 	}
 
+	@Override
+	public int getMaxFragmentSize(SessionID sessionID) {
+		return 0;
+	}
+
 	public static void main(String[] args) throws Exception {
 		if (args.length != 4) {
 			System.err.println("Usage: SampleApp DOMAIN USER PASS PEER_ADDRESS");
@@ -169,18 +179,14 @@ public class SampleApp implements OtrSmEngineHost {
 			}
 			else if (line.startsWith("/smpr")) {
 				String secret = line.substring("/smpr ".length());
-				List<TLV> tlvs = otrSm.initRespondSmp(null, secret, false);
-				String encrypted = otrEngine.transformSending(sessionID, "", tlvs);
-				sendMessage(peer, encrypted);
+				otrSm.respondSmp(secret);
 			}
 			else if (line.startsWith("/smpa")) {
 				if (otrEngine.getSessionStatus(sessionID) != SessionStatus.ENCRYPTED) {
 					System.err.println("Not currently encrypted - use /otr");
 					continue;
 				}
-				List<TLV> tlvs = otrSm.abortSmp();
-				String encrypted = otrEngine.transformSending(sessionID, "", tlvs);
-				sendMessage(peer, encrypted);
+				otrSm.abort();
 			}
 			else if (line.startsWith("/smp")) {
 				if (otrEngine.getSessionStatus(sessionID) != SessionStatus.ENCRYPTED) {
@@ -192,14 +198,11 @@ public class SampleApp implements OtrSmEngineHost {
 					System.err.println("missing arguments");
 					continue;
 				}
-				List<TLV> tlvs;
 				if (splits.length == 3) {
-					tlvs = otrSm.initRespondSmp(splits[1], splits[2], true);
+					otrSm.startSmp(splits[1], splits[2]);
 				} else {
-					tlvs = otrSm.initRespondSmp(null, splits[1], true);
+					otrSm.startSmp(null, splits[1]);
 				}
-				String encrypted = otrEngine.transformSending(sessionID, "", tlvs);
-				sendMessage(peer, encrypted);
 			}
 			else if ("/help".equals(line)) {
 				System.out.println("/quit");
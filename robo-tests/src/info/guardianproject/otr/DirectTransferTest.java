@@ -0,0 +1,162 @@
+package info.guardianproject.otr;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DirectTransferTest {
+    private static final String URL = "otr-in-band:/storage/test.bin";
+
+    private byte[] extraKey;
+    private byte[] nonce;
+    private byte[] content;
+    private File file;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        Random random = new Random(42);
+        extraKey = new byte[32];
+        random.nextBytes(extraKey);
+        nonce = new byte[DirectTransfer.NONCE_LENGTH];
+        random.nextBytes(nonce);
+        content = new byte[8 * 1024 * 1024 + 123];
+        random.nextBytes(content);
+
+        file = File.createTempFile("direct", ".bin");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(content);
+        out.close();
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        file.delete();
+    }
+
+    @Test
+    public void testTransfer() throws Exception {
+        DirectTransfer.Server server = new DirectTransfer.Server(InetAddress.getByName("127.0.0.1"),
+                file, URL, extraKey, nonce);
+        executor.execute(server);
+
+        ByteArrayOutputStream received = new ByteArrayOutputStream(content.length);
+        long length = DirectTransfer.fetch(server.getAddress(), URL, extraKey, nonce, received,
+                null);
+
+        assertEquals(content.length, length);
+        assertTrue(Arrays.equals(content, received.toByteArray()));
+        // The server serves one fetch, then stops
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertTrue(server.isDone());
+    }
+
+    @Test
+    public void testWrongKeyRefused() throws Exception {
+        DirectTransfer.Server server = new DirectTransfer.Server(InetAddress.getByName("127.0.0.1"),
+                file, URL, extraKey, nonce);
+        executor.execute(server);
+
+        byte[] wrongKey = extraKey.clone();
+        wrongKey[0] ^= 1;
+        try {
+            DirectTransfer.fetch(server.getAddress(), URL, wrongKey, nonce,
+                    new ByteArrayOutputStream(), null);
+            fail("Fetched with the wrong key");
+        } catch (IOException e) {
+        }
+
+        // The real peer still gets the file
+        ByteArrayOutputStream received = new ByteArrayOutputStream(content.length);
+        DirectTransfer.fetch(server.getAddress(), URL, extraKey, nonce, received, null);
+        assertTrue(Arrays.equals(content, received.toByteArray()));
+        server.close();
+    }
+
+    @Test
+    public void testOnlyLocalAddressesAccepted() throws Exception {
+        assertEquals(new InetSocketAddress(InetAddress.getByName("192.168.1.20"), 5000),
+                DirectTransfer.parseAddress("192.168.1.20:5000"));
+        DirectTransfer.parseAddress("10.0.0.1:1");
+        DirectTransfer.parseAddress("172.16.5.4:65535");
+        DirectTransfer.parseAddress("169.254.10.10:8000");
+
+        String[] refused = { "8.8.8.8:53", "127.0.0.1:5000", "0.0.0.0:5000",
+                "example.com:5000", "192.168.1.20", "192.168.1.20:0", "192.168.1.20:70000",
+                "192.168.1.20:port", "[fe80::1]:5000", "192.168.1.300:5000" };
+        for (String spec : refused) {
+            try {
+                DirectTransfer.parseAddress(spec);
+                fail("Accepted " + spec);
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    @Test
+    public void testTamperedFrameRejected() throws Exception {
+        byte[] stream = encode(content, 0, 100000);
+        stream[50000] ^= 1;
+        try {
+            decode(stream);
+            fail("Tampered frame accepted");
+        } catch (IOException e) {
+        }
+    }
+
+    @Test
+    public void testTruncatedStreamRejected() throws Exception {
+        byte[] stream = encode(content, 0, 100000);
+        // Cut at a frame boundary, before the end marker
+        byte[] cut = Arrays.copyOf(stream, 4 + DirectTransfer.MAX_FRAME + 32);
+        try {
+            decode(cut);
+            fail("Truncated stream accepted");
+        } catch (IOException e) {
+        }
+        assertTrue(Arrays.equals(Arrays.copyOf(content, 100000), decode(stream)));
+    }
+
+    private DirectTransfer.FrameCipher cipher() throws Exception {
+        DirectTransfer.Keys keys = new DirectTransfer.Keys(extraKey, nonce);
+        return keys.create((byte) 0x01, (byte) 0x02);
+    }
+
+    private byte[] encode(byte[] b, int off, int len) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DirectTransfer.FrameOutputStream frames = new DirectTransfer.FrameOutputStream(out,
+                cipher());
+        frames.write(b, off, len);
+        frames.close();
+        return out.toByteArray();
+    }
+
+    private byte[] decode(byte[] stream) throws Exception {
+        DirectTransfer.FrameInputStream in = new DirectTransfer.FrameInputStream(
+                new ByteArrayInputStream(stream), cipher());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int len;
+        while ((len = in.read(buffer)) != -1)
+            out.write(buffer, 0, len);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,217 @@
+package info.guardianproject.otr;
+
+import static org.junit.Assert.*;
+
+import info.guardianproject.bouncycastle.util.encoders.Hex;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class IncomingFileTest {
+    private static final int CHUNK = 1000;
+
+    private File dir;
+    private File target;
+    private byte[] data;
+    private String sum;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("incoming", "");
+        dir.delete();
+        target = new File(new File(dir, "peer"), "photo.jpg");
+        data = new byte[10 * CHUNK + 123];
+        new Random(1).nextBytes(data);
+        sum = new String(Hex.encode(MessageDigest.getInstance("SHA1").digest(data)));
+    }
+
+    @After
+    public void tearDown() {
+        delete(dir);
+    }
+
+    @Test
+    public void testOutOfOrderChunks() throws Exception {
+        IncomingFile file = new IncomingFile(target, data.length, sum);
+        int[] order = { 3, 1, 0, 2, 10, 5, 4, 9, 8, 7, 6 };
+        for (int i = 0; i < order.length; i++) {
+            assertFalse(file.isComplete());
+            write(file, order[i]);
+            // Duplicates change nothing
+            write(file, order[i]);
+        }
+        assertTrue(file.isComplete());
+        assertEquals(data.length, file.getReceived());
+        assertFalse(target.exists());
+
+        assertTrue(file.finish());
+        assertTrue(Arrays.equals(data, read(target)));
+        // Only the target is left behind
+        assertEquals(1, target.getParentFile().list().length);
+    }
+
+    @Test
+    public void testLargeChunksAhead() throws Exception {
+        // Chunks ahead are hashed back from disk, in pieces smaller than them
+        data = new byte[300 * 1024 + 7];
+        new Random(2).nextBytes(data);
+        sum = new String(Hex.encode(MessageDigest.getInstance("SHA1").digest(data)));
+        IncomingFile file = new IncomingFile(target, data.length, sum);
+        int half = data.length / 2;
+        file.write(half, data, half, data.length - half);
+        file.write(1, data, 1, half - 1);
+        assertFalse(file.isComplete());
+        file.write(0, data, 0, 1);
+        assertTrue(file.isComplete());
+
+        assertTrue(file.finish());
+        assertTrue(Arrays.equals(data, read(target)));
+    }
+
+    @Test
+    public void testWrongChecksum() throws Exception {
+        IncomingFile file = new IncomingFile(target, data.length, sum);
+        data[5] ^= 1;
+        for (int i = 0; i <= 10; i++)
+            write(file, i);
+        assertFalse(file.finish());
+        assertFalse(target.exists());
+        assertFalse(file.isComplete());
+
+        // Starting over with good data succeeds
+        data[5] ^= 1;
+        for (int i = 10; i >= 0; i--)
+            write(file, i);
+        assertTrue(file.finish());
+        assertTrue(Arrays.equals(data, read(target)));
+    }
+
+    @Test
+    public void testStreamAndReset() throws Exception {
+        IncomingFile file = new IncomingFile(target, data.length, sum);
+        OutputStream out = file.openStream();
+        out.write(data, 0, 2500);
+        // Cut off, fall back to chunks
+        file.reset();
+        assertEquals(0, file.getReceived());
+        for (int i = 0; i <= 10; i++)
+            write(file, i);
+        assertTrue(file.finish());
+        assertTrue(Arrays.equals(data, read(target)));
+
+        File other = new File(target.getParentFile(), "other.jpg");
+        IncomingFile streamed = new IncomingFile(other, data.length, sum);
+        out = streamed.openStream();
+        for (int i = 0; i < data.length; i += 4096)
+            out.write(data, i, Math.min(4096, data.length - i));
+        assertTrue(streamed.finish());
+        assertTrue(Arrays.equals(data, read(other)));
+    }
+
+    @Test
+    public void testAbortAndBounds() throws Exception {
+        IncomingFile file = new IncomingFile(target, data.length, sum);
+        try {
+            file.write(data.length - 10, data, 0, 11);
+            fail("Wrote past the end");
+        } catch (IOException e) {
+        }
+        write(file, 0);
+        file.abort();
+        assertEquals(0, target.getParentFile().list().length);
+        try {
+            write(file, 1);
+            fail("Wrote after abort");
+        } catch (IOException e) {
+        }
+    }
+
+    @Test
+    public void testResume() throws Exception {
+        int block = IncomingFile.BLOCK_SIZE;
+        data = new byte[10 * block + 100];
+        new Random(2).nextBytes(data);
+        sum = new String(Hex.encode(MessageDigest.getInstance("SHA1").digest(data)));
+
+        IncomingFile file = new IncomingFile(target, data.length, sum);
+        // Two blocks in order in smaller chunks, then a few ahead
+        for (int i = 0; i < 2 * block; i += CHUNK)
+            file.write(i, data, i, Math.min(CHUNK, 2 * block - i));
+        for (int i : new int[] { 4, 5, 8 })
+            file.write(i * block, data, i * block, block);
+        // Half a block is not enough to count
+        file.write(6 * block, data, 6 * block, block / 2);
+        BitSet blocks = IncomingFile.decodeBlocks(IncomingFile.encodeBlocks(file.sync()));
+        assertEquals("{0, 1, 4, 5, 8}", blocks.toString());
+        File partial = file.getPartial();
+        file.suspend();
+        assertTrue(partial.exists());
+
+        IncomingFile resumed = new IncomingFile(target, partial, data.length, sum, blocks);
+        assertEquals(5 * block, resumed.getReceived());
+        for (int i : new int[] { 9, 2, 4, 6, 3, 7, 5 })
+            resumed.write(i * block, data, i * block, block);
+        resumed.write(10 * block, data, 10 * block, 100);
+        assertEquals(data.length, resumed.getReceived());
+        assertTrue(resumed.finish());
+        assertTrue(Arrays.equals(data, read(target)));
+
+        // Without its partial file, the transfer starts over
+        target.delete();
+        IncomingFile lost = new IncomingFile(target, partial, data.length, sum, blocks);
+        assertEquals(0, lost.getReceived());
+        assertEquals(0, lost.sync().cardinality());
+        lost.abort();
+    }
+
+    @Test
+    public void testDeleteStalePartials() throws Exception {
+        IncomingFile kept = new IncomingFile(target, data.length, sum);
+        IncomingFile stale = new IncomingFile(new File(dir, "peer/old.jpg"), data.length, sum);
+        IncomingFile recent = new IncomingFile(new File(dir, "peer/new.jpg"), data.length, sum);
+        stale.suspend();
+        recent.suspend();
+        long before = System.currentTimeMillis() - 1000;
+        kept.getPartial().setLastModified(before - 1000);
+        stale.getPartial().setLastModified(before - 1000);
+
+        IncomingFile.deleteStalePartials(target.getParentFile(), before,
+                Collections.singleton(kept.getPartial()));
+        assertTrue(kept.getPartial().exists());
+        assertFalse(stale.getPartial().exists());
+        assertTrue(recent.getPartial().exists());
+        kept.abort();
+    }
+
+    private void write(IncomingFile file, int chunk) throws IOException {
+        int start = chunk * CHUNK;
+        file.write(start, data, start, Math.min(CHUNK, data.length - start));
+    }
+
+    private static byte[] read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        byte[] result = new byte[(int) raf.length()];
+        raf.readFully(result);
+        raf.close();
+        return result;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null)
+            for (File child : children)
+                delete(child);
+        file.delete();
+    }
+}
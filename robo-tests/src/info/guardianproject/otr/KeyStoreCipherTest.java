@@ -0,0 +1,157 @@
+package info.guardianproject.otr;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class KeyStoreCipherTest {
+    private static final String PASSWORD = "x'00112233445566778899aabbccddeeff'";
+
+    private File dir;
+    private File snapshot;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("keystore", "");
+        dir.delete();
+        dir.mkdirs();
+        snapshot = new File(dir, "otr_keystore.ofc");
+    }
+
+    @After
+    public void tearDown() {
+        for (File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        KeyStoreCipher cipher = new KeyStoreCipher(PASSWORD.toCharArray(), 1000);
+        byte[] plain = "alice.fingerprint=abcd".getBytes("UTF-8");
+        byte[] encrypted = cipher.encrypt(plain);
+        assertTrue(cipher.isCurrent(encrypted));
+        assertTrue(Arrays.equals(plain, cipher.decrypt(encrypted)));
+        assertTrue(Arrays.equals(plain,
+                new KeyStoreCipher(PASSWORD.toCharArray(), 1000).decrypt(encrypted)));
+        // Same plaintext, fresh nonce
+        assertFalse(Arrays.equals(encrypted, cipher.encrypt(plain)));
+    }
+
+    @Test
+    public void testTamperingDetected() throws Exception {
+        KeyStoreCipher cipher = new KeyStoreCipher(PASSWORD.toCharArray(), 1000);
+        byte[] encrypted = cipher.encrypt(new byte[100]);
+        // Ciphertext, and the salt in the header
+        for (int i : new int[] { encrypted.length - 1, 20 }) {
+            byte[] tampered = encrypted.clone();
+            tampered[i] ^= 1;
+            try {
+                new KeyStoreCipher(PASSWORD.toCharArray(), 1000).decrypt(tampered);
+                fail("Tampered blob accepted at " + i);
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    @Test
+    public void testWrongPassword() throws Exception {
+        byte[] encrypted = new KeyStoreCipher(PASSWORD.toCharArray(), 1000).encrypt(new byte[10]);
+        try {
+            new KeyStoreCipher("x'ff'".toCharArray(), 1000).decrypt(encrypted);
+            fail("Decrypted with the wrong password");
+        } catch (IOException e) {
+        }
+    }
+
+    @Test
+    public void testDestroy() throws Exception {
+        KeyStoreCipher cipher = new KeyStoreCipher(PASSWORD.toCharArray(), 1000);
+        byte[] encrypted = cipher.encrypt(new byte[10]);
+        cipher.destroy();
+        try {
+            cipher.decrypt(encrypted);
+            fail("Used after destroy");
+        } catch (IOException e) {
+        }
+    }
+
+    @Test
+    public void testIterationChangeRewrites() throws Exception {
+        KeyStoreCipher weak = new KeyStoreCipher(PASSWORD.toCharArray(), 1000);
+        KeyStoreJournal journal = new KeyStoreJournal(snapshot, weak, new Properties());
+        journal.load();
+        journal.put("a", "1");
+        journal.compact();
+
+        KeyStoreCipher strong = new KeyStoreCipher(PASSWORD.toCharArray(), 2000);
+        Properties properties = new Properties();
+        new KeyStoreJournal(snapshot, strong, properties).load();
+        assertEquals("1", properties.getProperty("a"));
+        assertTrue(strong.isCurrent(read(snapshot)));
+    }
+
+    /** The KDF runs when the store is opened, never again for reads and writes. */
+    @Test
+    public void testKeyDerivedOncePerUnlock() throws Exception {
+        int iterations = KeyStoreCipher.DEFAULT_ITERATIONS;
+        KeyStoreCipher cipher = new KeyStoreCipher(PASSWORD.toCharArray(), iterations);
+        KeyStoreJournal journal = new KeyStoreJournal(snapshot, cipher, new Properties());
+        journal.load();
+        journal.put("warmup", "0");
+        assertEquals(1, cipher.getDerivations());
+
+        int puts = 200;
+        for (int i = 0; i < puts; i++)
+            journal.put("bob@example.com/r" + i + ".fingerprint", "0123456789abcdef" + i);
+        journal.compact();
+        assertEquals(1, cipher.getDerivations());
+
+        // Reopening, as after the next unlock, derives once more
+        KeyStoreCipher next = new KeyStoreCipher(PASSWORD.toCharArray(), iterations);
+        Properties properties = new Properties();
+        KeyStoreJournal reopened = new KeyStoreJournal(snapshot, next, properties);
+        reopened.load();
+        reopened.put("more", "1");
+        assertEquals(puts + 2, properties.size());
+        assertEquals(1, next.getDerivations());
+    }
+
+    @Test
+    public void testDestroyWipesPassword() throws Exception {
+        char[] password = PASSWORD.toCharArray();
+        KeyStoreCipher cipher = new KeyStoreCipher(password, 1000);
+        cipher.encrypt(new byte[10]);
+        cipher.destroy();
+        assertTrue(Arrays.equals(new char[password.length], password));
+    }
+
+    @Test
+    public void testNonAsciiPassword() throws Exception {
+        String password = "p\u00e4ssw\u00f6rd \u20ac \ud83d\udd11";
+        byte[] plain = "alice.fingerprint=abcd".getBytes("UTF-8");
+        byte[] encrypted = new KeyStoreCipher(password.toCharArray(), 1000).encrypt(plain);
+        assertTrue(Arrays.equals(plain,
+                new KeyStoreCipher(password.toCharArray(), 1000).decrypt(encrypted)));
+        try {
+            new KeyStoreCipher("p\u00e4ssw\u00f6rd \u20ac".toCharArray(), 1000).decrypt(encrypted);
+            fail("Decrypted with another password");
+        } catch (IOException e) {
+        }
+    }
+
+    private static byte[] read(File file) throws IOException {
+        java.io.RandomAccessFile raf = new java.io.RandomAccessFile(file, "r");
+        byte[] data = new byte[(int) raf.length()];
+        raf.readFully(data);
+        raf.close();
+        return data;
+    }
+}
@@ -0,0 +1,260 @@
+package info.guardianproject.otr;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class KeyStoreJournalTest {
+    private File dir;
+    private File snapshot;
+    private KeyStoreJournal.Codec codec;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("keystore", "");
+        dir.delete();
+        dir.mkdirs();
+        snapshot = new File(dir, "otr_keystore.ofc");
+        codec = new AesCodec(new byte[16]);
+    }
+
+    @After
+    public void tearDown() {
+        for (File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        KeyStoreJournal journal = open(new Properties());
+        journal.put("alice.fingerprint", "abcd");
+        journal.put("bob.fingerprint", "ef01");
+        journal.put("alice.fingerprint", "2345");
+        journal.remove("bob.fingerprint");
+        assertEquals(4, journal.getRecordCount());
+        assertEquals(0, snapshot.length());
+
+        Properties reopened = new Properties();
+        open(reopened);
+        assertEquals("2345", reopened.getProperty("alice.fingerprint"));
+        assertFalse(reopened.containsKey("bob.fingerprint"));
+    }
+
+    @Test
+    public void testMigratesOldStore() throws Exception {
+        // A store as it was written before there was a journal
+        Properties old = new Properties();
+        old.setProperty("version", "1.0.0");
+        old.setProperty("alice.publicKey", "MIIB");
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        old.store(plain, null);
+        FileOutputStream out = new FileOutputStream(snapshot);
+        out.write(codec.encrypt(plain.toByteArray()));
+        out.close();
+
+        Properties properties = new Properties();
+        KeyStoreJournal journal = open(properties);
+        assertEquals(old, properties);
+        journal.put("version", "2.0.0");
+
+        Properties reopened = new Properties();
+        open(reopened);
+        assertEquals("2.0.0", reopened.getProperty("version"));
+        assertEquals("MIIB", reopened.getProperty("alice.publicKey"));
+    }
+
+    @Test
+    public void testIncompleteRecordCutOff() throws Exception {
+        KeyStoreJournal journal = open(new Properties());
+        journal.put("a", "1");
+        long good = journal.getJournalLength();
+        journal.put("b", "2");
+
+        // A crash half way through writing the second record
+        File file = journal.getJournalFile();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(file.length() - 5);
+        raf.close();
+
+        Properties reopened = new Properties();
+        KeyStoreJournal recovered = open(reopened);
+        assertEquals("1", reopened.getProperty("a"));
+        assertFalse(reopened.containsKey("b"));
+        assertEquals(good, file.length());
+
+        // Appending carries on from the last good record
+        recovered.put("c", "3");
+        Properties again = new Properties();
+        open(again);
+        assertEquals("3", again.getProperty("c"));
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        Properties properties = new Properties();
+        KeyStoreJournal journal = open(properties);
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 100; i++)
+            value.append("0123456789");
+        for (int i = 0; i < 200; i++)
+            journal.put("key" + (i % 10), value.toString() + i);
+
+        assertTrue(snapshot.length() > 0);
+        assertTrue(journal.getJournalLength()
+                   <= Math.max(KeyStoreJournal.MIN_COMPACT_LENGTH, snapshot.length()));
+
+        Properties reopened = new Properties();
+        open(reopened);
+        assertEquals(properties, reopened);
+        assertEquals(value.toString() + 199, reopened.getProperty("key9"));
+    }
+
+    @Test
+    public void testStaleJournalAfterCompaction() throws Exception {
+        KeyStoreJournal journal = open(new Properties());
+        journal.put("a", "1");
+        journal.put("a", "2");
+        byte[] stale = read(journal.getJournalFile());
+        journal.compact();
+        assertEquals(0, journal.getJournalFile().length());
+
+        // A crash after the snapshot was renamed but before the journal was emptied
+        FileOutputStream out = new FileOutputStream(journal.getJournalFile());
+        out.write(stale);
+        out.close();
+
+        Properties reopened = new Properties();
+        open(reopened);
+        assertEquals("2", reopened.getProperty("a"));
+    }
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        final Properties properties = new Properties();
+        final KeyStoreJournal journal = open(properties);
+        final int threads = 8;
+        final int puts = 50;
+        List<Thread> workers = new ArrayList<Thread>();
+        final List<Exception> errors = new ArrayList<Exception>();
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            Thread worker = new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < puts; i++)
+                            journal.put("t" + id + "." + i, "v" + i);
+                    } catch (IOException e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            };
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers)
+            worker.join();
+        assertTrue(errors.isEmpty());
+
+        Properties reopened = new Properties();
+        open(reopened);
+        assertEquals(threads * puts, reopened.size());
+        assertEquals(properties, reopened);
+    }
+
+    @Test
+    public void testReloadIgnoresOwnWrites() throws Exception {
+        Properties mine = new Properties();
+        KeyStoreJournal journal = open(mine);
+        journal.put("a", "1");
+        assertFalse(journal.reload());
+        journal.compact();
+        assertFalse(journal.reload());
+
+        // Someone else appends
+        KeyStoreJournal other = open(new Properties());
+        other.put("b", "2");
+        assertTrue(journal.reload());
+        assertEquals("2", mine.getProperty("b"));
+        assertFalse(journal.reload());
+
+        // and rewrites the snapshot
+        other.remove("a");
+        other.compact();
+        assertTrue(journal.reload());
+        assertFalse(mine.containsKey("a"));
+        assertEquals("2", mine.getProperty("b"));
+    }
+
+    private KeyStoreJournal open(Properties properties) throws IOException {
+        KeyStoreJournal journal = new KeyStoreJournal(snapshot, codec, properties);
+        journal.load();
+        return journal;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        byte[] data = new byte[(int) raf.length()];
+        raf.readFully(data);
+        raf.close();
+        return data;
+    }
+
+    private static class AesCodec implements KeyStoreJournal.Codec {
+        private final SecretKeySpec key;
+        private final SecureRandom random = new SecureRandom();
+
+        AesCodec(byte[] key) {
+            this.key = new SecretKeySpec(key, "AES");
+        }
+
+        public byte[] encrypt(byte[] plain) throws IOException {
+            try {
+                byte[] iv = new byte[16];
+                random.nextBytes(iv);
+                Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+                cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+                byte[] body = cipher.doFinal(plain);
+                byte[] result = new byte[16 + body.length];
+                System.arraycopy(iv, 0, result, 0, 16);
+                System.arraycopy(body, 0, result, 16, body.length);
+                return result;
+            } catch (GeneralSecurityException e) {
+                throw new IOException(e);
+            }
+        }
+
+        public byte[] decrypt(byte[] encrypted) throws IOException {
+            try {
+                Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+                cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(encrypted, 0, 16));
+                return cipher.doFinal(encrypted, 16, encrypted.length - 16);
+            } catch (GeneralSecurityException e) {
+                throw new IOException(e);
+            }
+        }
+
+        public boolean isCurrent(byte[] encrypted) {
+            return true;
+        }
+    }
+}
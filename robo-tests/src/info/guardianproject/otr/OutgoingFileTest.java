@@ -0,0 +1,113 @@
+package info.guardianproject.otr;
+
+import static org.junit.Assert.*;
+
+import info.guardianproject.bouncycastle.util.encoders.Hex;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class OutgoingFileTest {
+    private static final int CHUNK = 32768;
+
+    private File file;
+    private byte[] data;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("outgoing", ".bin");
+        data = new byte[3 * OutgoingFile.BUFFER_SIZE + 1234];
+        new Random(1).nextBytes(data);
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(data);
+        out.close();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testHashAndChunks() throws Exception {
+        OutgoingFile offer = new OutgoingFile(file);
+        assertEquals(data.length, offer.getLength());
+        assertEquals(new String(Hex.encode(MessageDigest.getInstance("SHA1").digest(data))),
+                offer.getSum());
+
+        // Out of order, as the peer may ask
+        for (int start : new int[] { 2 * CHUNK, 0, 3 * CHUNK, CHUNK }) {
+            int end = Math.min(start + CHUNK, data.length);
+            assertTrue(Arrays.equals(Arrays.copyOfRange(data, start, end),
+                    offer.read(start, CHUNK)));
+        }
+        assertEquals(0, offer.read(data.length, CHUNK).length);
+        assertTrue(OutgoingFile.getPooledBuffers() > 0);
+        offer.close();
+    }
+
+    @Test
+    public void testCloseWaitsForChunks() throws Exception {
+        OutgoingFile offer = new OutgoingFile(file);
+        // A chunk being served when the offer is withdrawn
+        assertTrue(offer.acquire());
+        offer.close();
+        offer.close();
+        assertFalse(offer.acquire());
+        try {
+            offer.read(0, CHUNK);
+            fail("Read from a withdrawn offer");
+        } catch (IOException e) {
+        }
+        offer.release();
+        try {
+            offer.release();
+            fail("Released more than acquired");
+        } catch (IllegalStateException e) {
+        }
+    }
+
+    /** Reading a chunk costs the same at the end of the file as at the start. */
+    @Test
+    public void testChunkCostIndependentOfOffset() throws Exception {
+        File large = File.createTempFile("outgoing", ".bin");
+        try {
+            FileOutputStream out = new FileOutputStream(large);
+            byte[] block = new byte[1024 * 1024];
+            for (int i = 0; i < 16; i++)
+                out.write(block);
+            out.close();
+
+            OutgoingFile offer = new OutgoingFile(large);
+            int rounds = 200;
+            long first = 0;
+            long last = 0;
+            for (int round = 0; round < 3; round++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < rounds; i++)
+                    offer.read(0, CHUNK);
+                first = (System.nanoTime() - start) / rounds;
+                start = System.nanoTime();
+                for (int i = 0; i < rounds; i++)
+                    offer.read(large.length() - CHUNK, CHUNK);
+                last = (System.nanoTime() - start) / rounds;
+            }
+            // Reading up to the offset would make the last chunk many times
+            // slower than the first; allow for noise
+            assertTrue("first " + first + " ns, last " + last + " ns",
+                    last < 4 * first + 1000 * 1000);
+            assertEquals(CHUNK, offer.read(large.length() - CHUNK, CHUNK).length);
+            offer.close();
+        } finally {
+            large.delete();
+        }
+    }
+}
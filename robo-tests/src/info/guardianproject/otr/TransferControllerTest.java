@@ -0,0 +1,317 @@
+package info.guardianproject.otr;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TransferControllerTest {
+    private static final int MAX_CHUNK = 32768;
+
+    @Test
+    public void testSlowStartThenHalving() throws Exception {
+        TransferController controller = new TransferController(100 * MAX_CHUNK, MAX_CHUNK);
+        assertEquals(TransferController.INITIAL_WINDOW, controller.getWindow());
+        TransferController.Chunk first = controller.next(0);
+        TransferController.Chunk second = controller.next(0);
+        TransferController.Chunk third = controller.next(0);
+        assertNull(controller.next(0));
+
+        assertTrue(controller.onReceived(first, 100));
+        assertTrue(controller.onReceived(second, 100));
+        assertEquals(5, controller.getWindow());
+        // Answered twice
+        assertFalse(controller.onReceived(second, 120));
+
+        // Fill the window, then lose two requests of it
+        TransferController.Chunk[] window = new TransferController.Chunk[4];
+        for (int i = 0; i < window.length; i++)
+            window[i] = controller.next(200);
+        assertNull(controller.next(200));
+        assertTrue(controller.onTimeout(window[0], window[0].sequence));
+        int halved = controller.getWindow();
+        assertEquals(2, halved);
+        assertEquals(MAX_CHUNK / 2, controller.getChunkLength());
+        assertTrue(controller.onTimeout(window[1], window[1].sequence));
+        assertEquals(halved, controller.getWindow());
+
+        // A late answer to a lost request still counts, once
+        assertTrue(controller.onReceived(window[0], 5000));
+        assertFalse(controller.onReceived(window[0], 5000));
+        assertTrue(controller.onReceived(third, 5000));
+
+        // The other lost chunk is asked for again before new ones
+        for (TransferController.Chunk chunk : new TransferController.Chunk[] { window[2], window[3] })
+            controller.onReceived(chunk, 5000);
+        assertSame(window[1], controller.next(5000));
+    }
+
+    @Test
+    public void testTimeoutFollowsRoundTrip() throws Exception {
+        TransferController controller = new TransferController(1000 * MAX_CHUNK, MAX_CHUNK);
+        assertEquals(TransferController.INITIAL_TIMEOUT, controller.getTimeout());
+        for (int i = 0; i < 50; i++)
+            controller.onReceived(controller.next(i * 1000), i * 1000 + 2000);
+        long timeout = controller.getTimeout();
+        assertTrue(timeout >= 2000 && timeout < 4000);
+
+        // Backs off on loss, and recovers on the next answer
+        TransferController.Chunk lost = controller.next(100000);
+        TransferController.Chunk answered = controller.next(100000);
+        controller.onTimeout(lost, lost.sequence);
+        assertEquals(2 * timeout, controller.getTimeout());
+        controller.onReceived(answered, 102000);
+        assertTrue(controller.getTimeout() <= timeout);
+    }
+
+    @Test
+    public void testGivesUp() throws Exception {
+        TransferController controller = new TransferController(MAX_CHUNK, MAX_CHUNK);
+        for (int i = 1; i <= TransferController.MAX_ATTEMPTS; i++) {
+            TransferController.Chunk chunk = controller.next(0);
+            assertEquals(i < TransferController.MAX_ATTEMPTS,
+                    controller.onTimeout(chunk, chunk.sequence));
+        }
+        assertTrue(controller.isFailed());
+        assertNull(controller.next(0));
+    }
+
+    @Test
+    public void testThrottlePauses() throws Exception {
+        TransferController controller = new TransferController(100 * MAX_CHUNK, MAX_CHUNK);
+        TransferController.Chunk refused = controller.next(0);
+        controller.next(0);
+        controller.onThrottled(refused, 100);
+        assertEquals(1, controller.getWindow());
+        long resume = controller.getResumeTime();
+        assertTrue(resume > 100);
+        assertNull(controller.next(resume - 1));
+    }
+
+    @Test
+    public void testSkipsReceivedBlocks() throws Exception {
+        int block = 4096;
+        long length = 10 * block + 100;
+        BitSet received = new BitSet();
+        received.set(0, 2);
+        received.set(4);
+        TransferController controller = new TransferController(length, MAX_CHUNK);
+        controller.skip(received, block);
+        assertEquals(3 * block, controller.getReceived());
+
+        // Only the gaps are asked for
+        TransferController.Chunk gap = controller.next(0);
+        assertEquals(2 * block, gap.start);
+        assertEquals(2 * block, gap.length);
+        TransferController.Chunk rest = controller.next(0);
+        assertEquals(5 * block, rest.start);
+        assertEquals(length, rest.start + rest.length);
+        assertNull(controller.next(0));
+        controller.onReceived(gap, 100);
+        controller.onReceived(rest, 100);
+        assertTrue(controller.isDone());
+    }
+
+        /* Simulated links: ms one-way latency, bytes per ms, loss, queue bytes, requests per second */
+
+    @Test
+    public void testLinkLocal() throws Exception {
+        compare("link-local", new Link(2, 5000, 0, 256 * 1024, 0), 1.0);
+    }
+
+    @Test
+    public void testServer() throws Exception {
+        compare("server", new Link(150, 1000, 0, 512 * 1024, 0), 1.5);
+    }
+
+    @Test
+    public void testTor() throws Exception {
+        compare("tor", new Link(400, 150, 0.01, 256 * 1024, 0), 1.0);
+    }
+
+    @Test
+    public void testLossy() throws Exception {
+        compare("lossy", new Link(100, 500, 0.05, 256 * 1024, 0), 1.0);
+    }
+
+    @Test
+    public void testThrottlingServer() throws Exception {
+        compare("throttled", new Link(100, 1000, 0, 512 * 1024, 20), 1.0);
+    }
+
+    /**
+     * Moves a file over the link with the old fixed window of three 32K
+     * chunks and with the adaptive controller.
+     *
+     * @param gain how much faster the adaptive controller must be, allowing
+     *            for a few percent of noise.
+     */
+    private static void compare(String name, Link link, double gain) {
+        long length = 4 * 1024 * 1024;
+        Result fixed = link.run(new TransferController(length, MAX_CHUNK, MAX_CHUNK, 3, 3), 1);
+        Result adaptive = link.run(new TransferController(length, MAX_CHUNK), 1);
+        assertTrue(name, fixed.done && adaptive.done);
+        assertTrue(name + ": fixed " + fixed + ", adaptive " + adaptive,
+                adaptive.throughput() >= gain * 0.95 * fixed.throughput());
+    }
+
+    static class Result {
+        boolean done;
+        long length;
+        long time;
+        int requests;
+
+        double throughput() {
+            return (double) length / time;
+        }
+
+        public String toString() {
+            return (int) throughput() + " KB/s in " + time / 1000 + " s, " + requests + " requests";
+        }
+    }
+
+    /**
+     * A discrete event simulation of a transfer over a link with a
+     * bottleneck: answers queue up at the given rate and are dropped when the
+     * queue is full, or at random. A rate limit of requests per second, if
+     * set, has excess requests refused as throttled.
+     */
+    static class Link {
+        private static final int OVERHEAD = 300;
+        private static final long TIME_LIMIT = 3600 * 1000;
+
+        final long latency;
+        final long rate;
+        final double loss;
+        final long queue;
+        final int requestsPerSecond;
+
+        private PriorityQueue<Event> events;
+        private long now;
+        private long linkFree;
+        private long eventCount;
+        private Random random;
+        private long[] recentRequests;
+        private int recentIndex;
+
+        Link(long latency, long rate, double loss, long queue, int requestsPerSecond) {
+            this.latency = latency;
+            this.rate = rate;
+            this.loss = loss;
+            this.queue = queue;
+            this.requestsPerSecond = requestsPerSecond;
+        }
+
+        Result run(final TransferController controller, long seed) {
+            events = new PriorityQueue<Event>();
+            now = 0;
+            linkFree = 0;
+            random = new Random(seed);
+            recentRequests = new long[Math.max(1, requestsPerSecond)];
+            Arrays.fill(recentRequests, -1000);
+            final Result result = new Result();
+
+            pump(controller, result);
+            while (!events.isEmpty() && !controller.isDone() && !controller.isFailed()) {
+                Event event = events.poll();
+                now = event.time;
+                if (now > TIME_LIMIT)
+                    break;
+                event.action.run();
+            }
+            result.done = controller.isDone();
+            result.length = controller.getReceived();
+            result.time = Math.max(1, now);
+            return result;
+        }
+
+        private void pump(final TransferController controller, final Result result) {
+            TransferController.Chunk chunk;
+            while ((chunk = controller.next(now)) != null) {
+                result.requests++;
+                send(controller, result, chunk);
+                final TransferController.Chunk sent = chunk;
+                final long sequence = chunk.sequence;
+                at(now + controller.getTimeout(), new Runnable() {
+                    public void run() {
+                        if (controller.onTimeout(sent, sequence))
+                            pump(controller, result);
+                    }
+                });
+            }
+            if (controller.getResumeTime() > now)
+                at(controller.getResumeTime(), new Runnable() {
+                    public void run() {
+                        pump(controller, result);
+                    }
+                });
+        }
+
+        private void send(final TransferController controller, final Result result,
+                final TransferController.Chunk chunk) {
+            if (random.nextDouble() < loss)
+                return;
+            // The request reaches the peer
+            at(now + latency, new Runnable() {
+                public void run() {
+                    if (throttled()) {
+                        at(now + latency, new Runnable() {
+                            public void run() {
+                                controller.onThrottled(chunk, now);
+                                pump(controller, result);
+                            }
+                        });
+                        return;
+                    }
+                    long size = chunk.length * 4 / 3 + OVERHEAD;
+                    long start = Math.max(now, linkFree);
+                    if ((start - now) * rate > queue || random.nextDouble() < loss)
+                        return;
+                    linkFree = start + size / rate;
+                    at(linkFree + latency, new Runnable() {
+                        public void run() {
+                            controller.onReceived(chunk, now);
+                            pump(controller, result);
+                        }
+                    });
+                }
+            });
+        }
+
+        private boolean throttled() {
+            if (requestsPerSecond == 0)
+                return false;
+            if (now - recentRequests[recentIndex] < 1000)
+                return true;
+            recentRequests[recentIndex] = now;
+            recentIndex = (recentIndex + 1) % recentRequests.length;
+            return false;
+        }
+
+        private void at(long time, Runnable action) {
+            events.add(new Event(time, eventCount++, action));
+        }
+    }
+
+    static class Event implements Comparable<Event> {
+        final long time;
+        final long order;
+        final Runnable action;
+
+        Event(long time, long order, Runnable action) {
+            this.time = time;
+            this.order = order;
+            this.action = action;
+        }
+
+        public int compareTo(Event other) {
+            if (time != other.time)
+                return time < other.time ? -1 : 1;
+            return order < other.order ? -1 : order > other.order ? 1 : 0;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package net.java.otr4j;
+
+import static org.junit.Assert.*;
+
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.java.otr4j.crypto.CryptoExecutor;
+import net.java.otr4j.session.Session;
+import net.java.otr4j.session.SessionID;
+import net.java.otr4j.session.SessionPair;
+import net.java.otr4j.session.SessionStatus;
+import net.java.otr4j.session.TestHost;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class OtrEngineImplTest {
+    private static final long HOUR = 60 * 60 * 1000;
+
+    private static final int POLICY = OtrPolicy.ALLOW_V2 | OtrPolicy.ERROR_START_AKE;
+
+    private TestHost aliceHost;
+    private TestHost bobHost;
+    private OtrEngineImpl alice;
+    private OtrEngineImpl bob;
+
+    @Before
+    public void setUp() throws Exception {
+        aliceHost = new TestHost(SessionPair.getAliceKeyPair(), POLICY);
+        bobHost = new TestHost(SessionPair.getBobKeyPair(), POLICY);
+        alice = new OtrEngineImpl(aliceHost);
+        bob = new OtrEngineImpl(bobHost);
+        // Keep the AKE in step with pump().
+        alice.setAuthExecutor(CryptoExecutor.SAME_THREAD);
+        bob.setAuthExecutor(CryptoExecutor.SAME_THREAD);
+    }
+
+    @Test
+    public void testConcurrentGetSessionCreatesOne() throws Exception {
+        final SessionID id = sessionID("carol");
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            LinkedList<Future<Session>> futures = new LinkedList<Future<Session>>();
+            for (int i = 0; i < 64; i++) {
+                futures.add(pool.submit(new Callable<Session>() {
+                    public Session call() {
+                        return alice.getSession(id);
+                    }
+                }));
+            }
+            Session first = futures.getFirst().get();
+            for (Future<Session> f : futures)
+                assertSame(first, f.get());
+            assertEquals(1, alice.getLiveSessionCount());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testIdleSessionsEvicted() throws Exception {
+        for (int i = 0; i < 10; i++)
+            alice.getSession(sessionID("user" + i));
+        assertEquals(10, alice.getLiveSessionCount());
+        assertTrue(alice.getResidentBytes() > 0);
+
+        long now = System.currentTimeMillis();
+        assertEquals(0, alice.evictIdleSessions(now, null));
+        assertEquals(10, alice.evictIdleSessions(now + OtrEngineImpl.DEFAULT_SESSION_IDLE_TIMEOUT + 1,
+                null));
+        assertEquals(0, alice.getLiveSessionCount());
+        assertEquals(10, alice.getEvictedSessionCount());
+        assertEquals(0, alice.getResidentBytes());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvictedAboveLimit() throws Exception {
+        alice.setSessionIdleTimeout(0);
+        alice.setMaxSessions(3);
+        Session oldest = alice.getSession(sessionID("user0"));
+        Thread.sleep(5);
+        for (int i = 1; i < 3; i++)
+            alice.getSession(sessionID("user" + i));
+        Thread.sleep(5);
+        oldest.transformReceiving("touch");
+
+        Session newest = alice.getSession(sessionID("user3"));
+        assertEquals(3, alice.getLiveSessionCount());
+        assertEquals(1, alice.getEvictedSessionCount());
+        assertSame(oldest, alice.getSession(sessionID("user0")));
+        assertSame(newest, alice.getSession(sessionID("user3")));
+    }
+
+    @Test
+    public void testSessionsMidAkeSurviveLimit() throws Exception {
+        SessionID aliceToBob = SessionPair.ALICE_TO_BOB;
+        SessionID bobToAlice = SessionPair.BOB_TO_ALICE;
+        alice.setSessionIdleTimeout(0);
+        alice.setMaxSessions(2);
+        alice.startSession(aliceToBob);
+        // Query, then D-H commit; alice now waits for the reveal signature
+        bob.transformReceiving(bobToAlice, aliceHost.outbox.poll());
+        alice.transformReceiving(aliceToBob, bobHost.outbox.poll());
+        Session midAke = alice.getSession(aliceToBob);
+        assertTrue(midAke.isAkeInProgress());
+        Thread.sleep(5);
+
+        alice.getSession(sessionID("user1"));
+        Thread.sleep(5);
+        alice.getSession(sessionID("user2"));
+        assertEquals(2, alice.getLiveSessionCount());
+        assertSame(midAke, alice.getSession(aliceToBob));
+    }
+
+    @Test
+    public void testEncryptedSessionsSurvive() throws Exception {
+        SessionID aliceToBob = SessionPair.ALICE_TO_BOB;
+        SessionID bobToAlice = SessionPair.BOB_TO_ALICE;
+        alice.startSession(aliceToBob);
+        pump(aliceToBob, bobToAlice);
+        assertEquals(SessionStatus.ENCRYPTED, alice.getSessionStatus(aliceToBob));
+
+        Session session = alice.getSession(aliceToBob);
+        long encryptedBytes = session.getResidentBytes();
+        assertEquals(0, alice.evictIdleSessions(System.currentTimeMillis() + 10 * HOUR, null));
+        assertSame(session, alice.getSession(aliceToBob));
+
+        alice.endSession(aliceToBob);
+        assertEquals(1, alice.evictIdleSessions(System.currentTimeMillis() + 10 * HOUR, null));
+        assertEquals(SessionStatus.PLAINTEXT, session.getSessionStatus());
+        assertTrue(session.getResidentBytes() < encryptedBytes);
+        assertNotSame(session, alice.getSession(aliceToBob));
+    }
+
+    private void pump(SessionID aliceToBob, SessionID bobToAlice) throws OtrException {
+        while (!aliceHost.outbox.isEmpty() || !bobHost.outbox.isEmpty()) {
+            while (!aliceHost.outbox.isEmpty())
+                bob.transformReceiving(bobToAlice, aliceHost.outbox.poll());
+            while (!bobHost.outbox.isEmpty())
+                alice.transformReceiving(aliceToBob, bobHost.outbox.poll());
+        }
+    }
+
+    private static SessionID sessionID(String user) {
+        return new SessionID("alice@example.com", user + "@example.com/r", "xmpp");
+    }
+}
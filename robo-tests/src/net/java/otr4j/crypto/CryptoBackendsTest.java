@@ -0,0 +1,165 @@
+package net.java.otr4j.crypto;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CryptoBackendsTest {
+    private final Random random = new Random(42);
+    private final CryptoBackend bc = CryptoBackends.getBackend(BouncyCastleBackend.NAME);
+    private final CryptoBackend jce = CryptoBackends.getBackend(JceBackend.NAME);
+
+    /** Remembers what it was given. */
+    private static class MemoryStore implements CryptoBackends.Store {
+        final Map<String, String> values = new HashMap<String, String>();
+
+        public String load(String key) {
+            return values.get(key);
+        }
+
+        public void save(String key, String value) {
+            values.put(key, value);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        // Earlier tests in the same process may have already chosen backends.
+        CryptoBackends.reset();
+    }
+
+    @After
+    public void tearDown() {
+        CryptoBackends.setOverride(CryptoBackends.AES, null);
+        CryptoBackends.setOverride(CryptoBackends.HMAC, null);
+        CryptoBackends.setStore(null);
+        CryptoBackends.reset();
+    }
+
+    @Test
+    public void testBackendsPassSelfTest() {
+        for (CryptoBackend b : CryptoBackends.getBackends()) {
+            assertTrue(b.getName(), CryptoBackends.selfTest(CryptoBackends.AES, b));
+            assertTrue(b.getName(), CryptoBackends.selfTest(CryptoBackends.HMAC, b));
+        }
+    }
+
+    @Test
+    public void testAesMatchesAcrossBackends() throws Exception {
+        byte[] key = randomBytes(OtrCryptoEngine.AES_KEY_BYTE_LENGTH);
+        CryptoBackend.AesCtr a = bc.createAesCtr(key);
+        CryptoBackend.AesCtr b = jce.createAesCtr(key);
+
+        for (int len : new int[] { 0, 1, 15, 16, 17, 100, 1000, 4099 }) {
+            // Top half random as for data messages, or all ones to force a
+            // carry out of the bottom half.
+            byte[] ctr = new byte[16];
+            System.arraycopy(randomBytes(8), 0, ctr, 0, 8);
+            if (len % 2 == 1)
+                for (int i = 8; i < 16; i++)
+                    ctr[i] = (byte) 0xff;
+
+            byte[] in = randomBytes(len);
+            byte[] outA = new byte[len];
+            byte[] outB = new byte[len];
+            a.process(ctr, in, 0, len, outA, 0);
+            b.process(ctr, in, 0, len, outB, 0);
+            assertArrayEquals("length " + len, outA, outB);
+
+            // In place, at an offset.
+            byte[] buf = new byte[len + 3];
+            System.arraycopy(in, 0, buf, 3, len);
+            b.process(ctr, buf, 3, len, buf, 3);
+            for (int i = 0; i < len; i++)
+                assertEquals(outA[i], buf[3 + i]);
+        }
+    }
+
+    @Test
+    public void testHmacMatchesAcrossBackends() throws Exception {
+        for (String algorithm : new String[] { "HmacSHA1", "HmacSHA256" }) {
+            byte[] key = randomBytes(32);
+            CryptoBackend.Hmac a = bc.createHmac(algorithm, key);
+            CryptoBackend.Hmac b = jce.createHmac(algorithm, key);
+            assertEquals(a.getMacLength(), b.getMacLength());
+
+            for (int len : new int[] { 0, 1, 64, 65, 1000 }) {
+                byte[] in = randomBytes(len + 2);
+                byte[] macA = new byte[a.getMacLength()];
+                byte[] macB = new byte[b.getMacLength()];
+                a.update(in, 1, len);
+                a.doFinal(macA, 0);
+                b.update(in, 1, len);
+                b.doFinal(macB, 0);
+                assertArrayEquals(algorithm + " length " + len, macA, macB);
+            }
+        }
+    }
+
+    @Test
+    public void testCipherContextsInteroperate() throws Exception {
+        byte[] aesKey = randomBytes(OtrCryptoEngine.AES_KEY_BYTE_LENGTH);
+        byte[] macKey = randomBytes(20);
+        byte[] ctr = new byte[16];
+        System.arraycopy(randomBytes(8), 0, ctr, 0, 8);
+        OtrCipherContext sender = new OtrCipherContext(aesKey, macKey, bc, jce);
+        OtrCipherContext receiver = new OtrCipherContext(aesKey, macKey, jce, bc);
+
+        byte[] msg = randomBytes(333);
+        byte[] encrypted = sender.aesEncrypt(ctr, msg);
+        assertArrayEquals(msg, receiver.aesDecrypt(ctr, encrypted));
+        assertArrayEquals(sender.sha1Hmac(encrypted, 0, encrypted.length),
+                receiver.sha1Hmac(encrypted, 0, encrypted.length));
+    }
+
+    @Test
+    public void testOverride() {
+        CryptoBackends.setOverride(CryptoBackends.AES, JceBackend.NAME);
+        CryptoBackends.setOverride(CryptoBackends.HMAC, BouncyCastleBackend.NAME);
+        assertSame(jce, CryptoBackends.getAes());
+        assertSame(bc, CryptoBackends.getHmac());
+
+        CryptoBackends.setOverride(CryptoBackends.AES, BouncyCastleBackend.NAME);
+        assertSame(bc, CryptoBackends.getAes());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownOverride() {
+        CryptoBackends.setOverride(CryptoBackends.AES, "rot13");
+    }
+
+    @Test
+    public void testChoicePersisted() {
+        MemoryStore store = new MemoryStore();
+        CryptoBackends.setStore(store);
+        CryptoBackend calibrated = CryptoBackends.getAes();
+        String saved = store.values.get("otr4j.crypto.backend.aes");
+        assertEquals(calibrated.getName() + "@" + CryptoBackends.getPlatform(), saved);
+
+        // A saved choice is taken as is on the same platform...
+        CryptoBackend other = calibrated == bc ? jce : bc;
+        store.values.put("otr4j.crypto.backend.aes", other.getName() + "@"
+                                                     + CryptoBackends.getPlatform());
+        CryptoBackends.reset();
+        assertSame(other, CryptoBackends.getAes());
+
+        // ...and measured again anywhere else.
+        store.values.put("otr4j.crypto.backend.aes", other.getName() + "@elsewhere");
+        CryptoBackends.reset();
+        CryptoBackends.getAes();
+        assertTrue(store.values.get("otr4j.crypto.backend.aes").endsWith(
+                "@" + CryptoBackends.getPlatform()));
+    }
+
+    private byte[] randomBytes(int len) {
+        byte[] b = new byte[len];
+        random.nextBytes(b);
+        return b;
+    }
+}
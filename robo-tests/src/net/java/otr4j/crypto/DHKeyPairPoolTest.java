@@ -0,0 +1,68 @@
+package net.java.otr4j.crypto;
+
+import static org.junit.Assert.*;
+
+import java.security.KeyPair;
+
+import javax.crypto.interfaces.DHPublicKey;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DHKeyPairPoolTest {
+    private DHKeyPairPool pool;
+
+    @Before
+    public void setUp() throws Exception {
+        pool = new DHKeyPairPool(2, 1);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pool.shutdown();
+    }
+
+    @Test
+    public void testMissThenHit() throws Exception {
+        KeyPair first = pool.take();
+        assertNotNull(first);
+        assertEquals(1, pool.getMisses());
+
+        waitForSize(2);
+        KeyPair second = pool.take();
+        assertEquals(1, pool.getHits());
+        assertFalse(((DHPublicKey) first.getPublic()).getY().equals(
+                ((DHPublicKey) second.getPublic()).getY()));
+    }
+
+    @Test
+    public void testShutdownFallsBackToSynchronous() throws Exception {
+        pool.prefill();
+        waitForSize(2);
+        pool.shutdown();
+        assertEquals(0, pool.size());
+
+        assertNotNull(pool.take());
+        assertEquals(1, pool.getMisses());
+        assertEquals(0, pool.size());
+    }
+
+    @Test
+    public void testPrefillAfterShutdown() throws Exception {
+        pool.shutdown();
+        // As when the service is created again
+        pool.prefill();
+        waitForSize(2);
+
+        pool.take();
+        assertEquals(1, pool.getHits());
+        waitForSize(2);
+    }
+
+    private void waitForSize(int size) throws InterruptedException {
+        for (int i = 0; i < 200 && pool.size() < size; i++)
+            Thread.sleep(50);
+        assertEquals(size, pool.size());
+    }
+}
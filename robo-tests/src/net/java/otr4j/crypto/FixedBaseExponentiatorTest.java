@@ -0,0 +1,63 @@
+package net.java.otr4j.crypto;
+
+import static org.junit.Assert.*;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.util.Random;
+
+import javax.crypto.interfaces.DHPrivateKey;
+import javax.crypto.interfaces.DHPublicKey;
+
+import org.junit.Test;
+
+public class FixedBaseExponentiatorTest {
+    private final Random random = new Random(1);
+
+    @Test
+    public void testMatchesModPow() throws Exception {
+        FixedBaseExponentiator exp = FixedBaseExponentiator.getGenerator();
+        for (int bits : new int[] { 1, 5, 64, 320, 1535, 1536 }) {
+            for (int i = 0; i < 5; i++) {
+                BigInteger e = new BigInteger(bits, random);
+                assertEquals(OtrCryptoEngine.GENERATOR.modPow(e, OtrCryptoEngine.MODULUS),
+                        exp.pow(e));
+            }
+        }
+        assertEquals(BigInteger.ONE, exp.pow(BigInteger.ZERO));
+        assertEquals(OtrCryptoEngine.GENERATOR, exp.pow(BigInteger.ONE));
+    }
+
+    @Test
+    public void testFallback() throws Exception {
+        BigInteger big = new BigInteger(2000, random);
+        assertEquals(OtrCryptoEngine.GENERATOR.modPow(big, OtrCryptoEngine.MODULUS),
+                FixedBaseExponentiator.modPow(OtrCryptoEngine.GENERATOR, big,
+                        OtrCryptoEngine.MODULUS));
+
+        BigInteger base = BigInteger.valueOf(3);
+        BigInteger e = new BigInteger(320, random);
+        assertEquals(base.modPow(e, SM.MODULUS_S),
+                FixedBaseExponentiator.modPow(base, e, SM.MODULUS_S));
+    }
+
+    @Test
+    public void testSmallModulus() throws Exception {
+        BigInteger modulus = BigInteger.valueOf(1000003);
+        FixedBaseExponentiator exp = new FixedBaseExponentiator(BigInteger.valueOf(5), modulus,
+                64);
+        for (int i = 0; i < 100; i++) {
+            BigInteger e = new BigInteger(64, random);
+            assertEquals(BigInteger.valueOf(5).modPow(e, modulus), exp.pow(e));
+        }
+    }
+
+    @Test
+    public void testDHKeyPair() throws Exception {
+        KeyPair pair = new OtrCryptoEngineImpl().generateDHKeyPair();
+        BigInteger x = ((DHPrivateKey) pair.getPrivate()).getX();
+        BigInteger y = ((DHPublicKey) pair.getPublic()).getY();
+        assertEquals(OtrCryptoEngine.DH_PRIVATE_KEY_MINIMUM_BIT_LENGTH, x.bitLength());
+        assertEquals(OtrCryptoEngine.GENERATOR.modPow(x, OtrCryptoEngine.MODULUS), y);
+    }
+}
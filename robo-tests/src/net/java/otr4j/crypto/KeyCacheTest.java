@@ -0,0 +1,102 @@
+package net.java.otr4j.crypto;
+
+import static org.junit.Assert.*;
+import info.guardianproject.bouncycastle.util.encoders.Hex;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+
+import net.java.otr4j.io.SerializationUtils;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class KeyCacheTest {
+    private static KeyPair keyPair;
+    private static KeyPair otherKeyPair;
+
+    private KeyCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        if (keyPair == null) {
+            KeyPairGenerator kpg = KeyPairGenerator.getInstance("DSA");
+            kpg.initialize(1024);
+            keyPair = kpg.genKeyPair();
+            otherKeyPair = kpg.genKeyPair();
+        }
+        cache = new KeyCache(2);
+    }
+
+    @Test
+    public void testFingerprintMatchesUncached() throws Exception {
+        byte[] serialized = SerializationUtils.writePublicKey(keyPair.getPublic());
+        byte[] trimmed = new byte[serialized.length - 2];
+        System.arraycopy(serialized, 2, trimmed, 0, trimmed.length);
+        byte[] expected = new OtrCryptoEngineImpl().sha1Hash(trimmed);
+
+        assertArrayEquals(expected, cache.getFingerprintRaw(keyPair.getPublic()));
+        String hex = cache.getFingerprint(keyPair.getPublic());
+        assertEquals(40, hex.length());
+        assertEquals(hex, hex.toUpperCase());
+        assertArrayEquals(expected, Hex.decode(hex));
+    }
+
+    @Test
+    public void testEqualKeysHit() throws Exception {
+        PublicKey decoded = cache.getPublicKey(keyPair.getPublic().getEncoded());
+        assertEquals(1, cache.getMisses());
+        assertEquals(keyPair.getPublic(), decoded);
+
+        assertSame(decoded, cache.getPublicKey(keyPair.getPublic().getEncoded()));
+        String fingerprint = cache.getFingerprint(decoded);
+        assertEquals(fingerprint, cache.getFingerprint(keyPair.getPublic()));
+        assertEquals(2, cache.getMisses());
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.size());
+
+        // Callers may scribble on the raw fingerprint.
+        cache.getFingerprintRaw(decoded)[0] ^= 1;
+        assertEquals(fingerprint, cache.getFingerprint(decoded));
+    }
+
+    @Test
+    public void testKeyPairRoundTrip() throws Exception {
+        byte[] priv = keyPair.getPrivate().getEncoded();
+        byte[] pub = keyPair.getPublic().getEncoded();
+        KeyPair decoded = cache.getKeyPair(priv, pub);
+        assertEquals(keyPair.getPublic(), decoded.getPublic());
+        assertEquals(keyPair.getPrivate(), decoded.getPrivate());
+        assertSame(decoded, cache.getKeyPair(priv, pub));
+
+        // Same private key with a different public half is a different pair.
+        assertNotSame(decoded, cache.getKeyPair(priv, otherKeyPair.getPublic().getEncoded()));
+
+        cache.invalidate(priv, pub);
+        assertNotSame(decoded, cache.getKeyPair(priv, pub));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() throws Exception {
+        PublicKey first = cache.getPublicKey(keyPair.getPublic().getEncoded());
+        cache.getPublicKey(otherKeyPair.getPublic().getEncoded());
+        cache.getPublicKey(keyPair.getPublic().getEncoded());
+        cache.getKeyPair(keyPair.getPrivate().getEncoded(), keyPair.getPublic().getEncoded());
+        assertEquals(2, cache.size());
+
+        long misses = cache.getMisses();
+        assertSame(first, cache.getPublicKey(keyPair.getPublic().getEncoded()));
+        cache.getPublicKey(otherKeyPair.getPublic().getEncoded());
+        assertEquals(misses + 1, cache.getMisses());
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        byte[] encoded = keyPair.getPublic().getEncoded();
+        PublicKey first = cache.getPublicKey(encoded);
+        cache.invalidate(encoded);
+        assertEquals(0, cache.size());
+        assertNotSame(first, cache.getPublicKey(encoded));
+    }
+}
@@ -0,0 +1,41 @@
+package net.java.otr4j.crypto;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class OtrCipherContextTest {
+    private final Random random = new Random(42);
+
+    @Test
+    public void testMatchesCryptoEngine() throws Exception {
+        byte[] aesKey = randomBytes(OtrCryptoEngine.AES_KEY_BYTE_LENGTH);
+        byte[] macKey = randomBytes(20);
+        byte[] ctr = new byte[16];
+        System.arraycopy(randomBytes(8), 0, ctr, 0, 8);
+        OtrCryptoEngine engine = new OtrCryptoEngineImpl();
+        OtrCipherContext context = new OtrCipherContext(aesKey, macKey);
+
+        for (int len : new int[] { 0, 1, 15, 16, 17, 1000 }) {
+            byte[] b = randomBytes(len);
+            assertArrayEquals(engine.aesEncrypt(aesKey, ctr, b), context.aesEncrypt(ctr, b));
+            assertArrayEquals(b, context.aesDecrypt(ctr, context.aesEncrypt(ctr, b)));
+            assertArrayEquals(engine.sha1Hmac(b, macKey, 0), context.sha1Hmac(b, 0, len));
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testDestroyed() throws Exception {
+        OtrCipherContext context = new OtrCipherContext(new byte[16], new byte[20]);
+        context.destroy();
+        context.aesEncrypt(null, new byte[16]);
+    }
+
+    private byte[] randomBytes(int len) {
+        byte[] b = new byte[len];
+        random.nextBytes(b);
+        return b;
+    }
+}
@@ -0,0 +1,141 @@
+package net.java.otr4j.crypto;
+
+import static org.junit.Assert.*;
+
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class OtrRandomTest {
+
+    @After
+    public void tearDown() {
+        OtrRandom.setSeedSource(new SecureRandom());
+    }
+
+    @Test
+    public void testKnownAnswer() {
+        for (CryptoBackend b : CryptoBackends.getBackends())
+            assertTrue(b.getName(), OtrRandom.selfTest(b));
+    }
+
+    @Test
+    public void testMonobit() {
+        // FIPS 140-2 monobit test on 20000 bits.
+        byte[] b = new byte[2500];
+        OtrRandom.getInstance().nextBytes(b);
+        int ones = 0;
+        for (byte x : b)
+            ones += Integer.bitCount(x & 0xff);
+        assertTrue("ones: " + ones, ones > 9725 && ones < 10275);
+    }
+
+    @Test
+    public void testSmallAndLargeRequests() {
+        OtrRandom random = OtrRandom.getInstance();
+        Set<String> seen = new HashSet<String>();
+        for (int len : new int[] { 1, 16, 40, 192, 255, 256, 1000, 5000 }) {
+            byte[] a = new byte[len];
+            byte[] b = new byte[len];
+            random.nextBytes(a);
+            random.nextBytes(b);
+            if (len >= 16) {
+                assertTrue(seen.add(new String(a)));
+                assertTrue(seen.add(new String(b)));
+            }
+        }
+    }
+
+    @Test
+    public void testReseedAll() {
+        OtrRandom random = OtrRandom.getInstance();
+        random.nextBytes(new byte[16]);
+        long reseeds = OtrRandom.getReseedCount();
+        OtrRandom.reseedAll();
+        random.nextBytes(new byte[16]);
+        assertEquals(reseeds + 1, OtrRandom.getReseedCount());
+        random.nextBytes(new byte[16]);
+        assertEquals(reseeds + 1, OtrRandom.getReseedCount());
+    }
+
+    @Test
+    public void testReseedAfterVolume() {
+        OtrRandom random = OtrRandom.getInstance();
+        OtrRandom.reseedAll();
+        random.nextBytes(new byte[16]);
+        long reseeds = OtrRandom.getReseedCount();
+        byte[] chunk = new byte[64 * 1024];
+        for (long done = 0; done <= OtrRandom.RESEED_BYTES; done += chunk.length)
+            random.nextBytes(chunk);
+        assertTrue(OtrRandom.getReseedCount() > reseeds);
+    }
+
+    @Test
+    public void testStuckSeedSourceDetected() {
+        SecureRandom stuck = new SecureRandom() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public void nextBytes(byte[] bytes) {
+                java.util.Arrays.fill(bytes, (byte) 0x42);
+            }
+        };
+        OtrRandom random = OtrRandom.getInstance();
+        OtrRandom.setSeedSource(stuck);
+        random.nextBytes(new byte[16]);
+        OtrRandom.reseedAll();
+        try {
+            random.nextBytes(new byte[16]);
+            fail("Repeated seed not noticed.");
+        } catch (IllegalStateException e) {
+        }
+    }
+
+    @Test
+    public void testThreadsGetDistinctOutput() throws Exception {
+        final Set<String> seen = Collections.synchronizedSet(new HashSet<String>());
+        final int perThread = 2000;
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            for (int t = 0; t < 8; t++) {
+                pool.execute(new Runnable() {
+                    public void run() {
+                        OtrRandom random = OtrRandom.getInstance();
+                        for (int i = 0; i < perThread; i++) {
+                            byte[] b = new byte[16];
+                            random.nextBytes(b);
+                            seen.add(new String(b));
+                        }
+                    }
+                });
+            }
+            pool.shutdown();
+            assertTrue(pool.awaitTermination(30, TimeUnit.SECONDS));
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals(8 * perThread, seen.size());
+    }
+
+    @Test
+    public void testThroughput() {
+        // Small requests, as for D-H exponents and AES keys, must be cheap.
+        OtrRandom random = OtrRandom.getInstance();
+        byte[] b = new byte[40];
+        for (int i = 0; i < 1000; i++)
+            random.nextBytes(b);
+        long start = System.nanoTime();
+        int n = 50000;
+        for (int i = 0; i < n; i++)
+            random.nextBytes(b);
+        long nanos = System.nanoTime() - start;
+        assertTrue(nanos / n < 1000 * 1000);
+    }
+}
@@ -0,0 +1,89 @@
+package net.java.otr4j.io;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class OtrFragmenterTest {
+    private static final String DATA_MESSAGE = "?OTR:AAIDAAAAAAEAAAABAAAAwCcGDemZNMCfOZl4ACf8L2G2G2qXDX6gJxKXBEgOjA7U/lgQJ+UklQzp0txnWqAhQ8HDfmGoMeo5Ez0N8X1xlXq8f3UL/fPrp7X2JW9JHr2fi541oPmtJpLtbSlIA+ri8Y1ptoxTriIyMWsngvSAkwFWb7lcDyJwXsc3ZUVi2xG/6ggdU+XxZe7ow5KfTK0usMIBnAGOfpygel6UBk7UPGRd9rWFaq1JOqkFopcKhar4IMydeaJa3AFbfrrmSYqqowAAAAAAAAABAAAABkOjnTF/CcaT9PEoW1n+hukkVE+RtvCNpSn4AAAAAA==.";
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        String[] fragments = OtrFragmenter.fragment(DATA_MESSAGE, 60);
+        assertTrue(fragments.length > 1);
+
+        OtrAssembler assembler = new OtrAssembler();
+        for (int i = 0; i < fragments.length; i++) {
+            assertTrue(fragments[i].length() <= 60);
+            assertTrue(OtrAssembler.isFragment(fragments[i]));
+            CharSequence complete = assembler.accumulate(fragments[i]);
+            if (i < fragments.length - 1) {
+                assertNull(complete);
+                assertTrue(assembler.isPending());
+            } else {
+                assertEquals(DATA_MESSAGE, complete.toString());
+                assertFalse(assembler.isPending());
+            }
+        }
+    }
+
+    @Test
+    public void testShortAndPlainMessagesAreNotSplit() {
+        assertArrayEquals(new String[] { DATA_MESSAGE }, OtrFragmenter.fragment(DATA_MESSAGE, 0));
+        assertArrayEquals(new String[] { DATA_MESSAGE },
+                OtrFragmenter.fragment(DATA_MESSAGE, DATA_MESSAGE.length()));
+
+        String plain = "hello world, this is not an encoded message";
+        assertArrayEquals(new String[] { plain }, OtrFragmenter.fragment(plain, 10));
+    }
+
+    @Test
+    public void testOutOfOrderDiscards() {
+        String[] fragments = OtrFragmenter.fragment(DATA_MESSAGE, 60);
+        OtrAssembler assembler = new OtrAssembler();
+        assertNull(assembler.accumulate(fragments[0]));
+        assertNull(assembler.accumulate(fragments[2]));
+        assertFalse(assembler.isPending());
+
+        // A later fragment without its predecessors is ignored too.
+        assertNull(assembler.accumulate(fragments[fragments.length - 1]));
+        assertFalse(assembler.isPending());
+    }
+
+    @Test
+    public void testStalePartialMessageExpires() {
+        String[] fragments = OtrFragmenter.fragment(DATA_MESSAGE, 60);
+        OtrAssembler assembler = new OtrAssembler(1024, 1000);
+        assertNull(assembler.accumulate(fragments[0], 0));
+        assertNull(assembler.accumulate(fragments[1], 500));
+        assertNull(assembler.accumulate(fragments[2], 5000));
+        assertFalse(assembler.isPending());
+    }
+
+    @Test
+    public void testOversizeMessageDiscarded() {
+        String[] fragments = OtrFragmenter.fragment(DATA_MESSAGE, 60);
+        OtrAssembler assembler = new OtrAssembler(100, OtrAssembler.DEFAULT_TIMEOUT);
+        for (String fragment : fragments)
+            assertNull(assembler.accumulate(fragment));
+        assertFalse(assembler.isPending());
+    }
+
+    @Test
+    public void testMalformedFragmentsIgnored() {
+        OtrAssembler assembler = new OtrAssembler();
+        assertNull(assembler.accumulate("?OTR,1,2,abc"));
+        assertNull(assembler.accumulate("?OTR,x,2,abc,"));
+        assertNull(assembler.accumulate("?OTR,3,2,abc,"));
+        assertFalse(assembler.isPending());
+    }
+
+    @Test
+    public void testAssembledMessageParses() throws Exception {
+        OtrAssembler assembler = new OtrAssembler();
+        CharSequence complete = null;
+        for (String fragment : OtrFragmenter.fragment(DATA_MESSAGE, 50))
+            complete = assembler.accumulate(fragment);
+        assertEquals(DATA_MESSAGE, SerializationUtils.toString(SerializationUtils.toMessage(complete)));
+    }
+}
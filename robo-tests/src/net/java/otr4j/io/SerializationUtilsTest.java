@@ -0,0 +1,90 @@
+package net.java.otr4j.io;
+
+import static org.junit.Assert.*;
+
+import info.guardianproject.bouncycastle.util.encoders.Base64;
+
+import java.io.IOException;
+import java.security.KeyPair;
+
+import javax.crypto.interfaces.DHPublicKey;
+
+import net.java.otr4j.crypto.OtrCryptoEngineImpl;
+import net.java.otr4j.io.messages.AbstractMessage;
+import net.java.otr4j.io.messages.DHCommitMessage;
+import net.java.otr4j.io.messages.DataMessage;
+import net.java.otr4j.io.messages.PlainTextMessage;
+import net.java.otr4j.io.messages.SignatureMessage;
+
+import org.junit.Test;
+
+public class SerializationUtilsTest {
+    private static final String DATA_MESSAGE = "?OTR:AAIDAAAAAAEAAAABAAAAwCcGDemZNMCfOZl4ACf8L2G2G2qXDX6gJxKXBEgOjA7U/lgQJ+UklQzp0txnWqAhQ8HDfmGoMeo5Ez0N8X1xlXq8f3UL/fPrp7X2JW9JHr2fi541oPmtJpLtbSlIA+ri8Y1ptoxTriIyMWsngvSAkwFWb7lcDyJwXsc3ZUVi2xG/6ggdU+XxZe7ow5KfTK0usMIBnAGOfpygel6UBk7UPGRd9rWFaq1JOqkFopcKhar4IMydeaJa3AFbfrrmSYqqowAAAAAAAAABAAAABkOjnTF/CcaT9PEoW1n+hukkVE+RtvCNpSn4AAAAAA==.";
+
+    @Test
+    public void testDataMessageSample() throws Exception {
+        AbstractMessage m = SerializationUtils.toMessage(DATA_MESSAGE);
+        assertTrue(m instanceof DataMessage);
+        assertEquals(0, ((DataMessage) m).oldMACKeys.length);
+        assertEquals(DATA_MESSAGE, SerializationUtils.toString(m));
+    }
+
+    @Test
+    public void testAuthenticatedRegion() throws Exception {
+        DataMessage m = (DataMessage) SerializationUtils.toMessage(DATA_MESSAGE);
+        byte[] t = SerializationUtils.toByteArray(m.getT());
+        assertEquals(t.length, m.authenticatedLength);
+        byte[] region = new byte[m.authenticatedLength];
+        System.arraycopy(m.authenticatedBuffer, m.authenticatedOffset, region, 0, region.length);
+        assertArrayEquals(t, region);
+    }
+
+    @Test
+    public void testDataMessageRoundTrip() throws Exception {
+        KeyPair pair = new OtrCryptoEngineImpl().generateDHKeyPair();
+        for (int len = 0; len < 8; len++) {
+            byte[] encrypted = new byte[len];
+            for (int i = 0; i < len; i++)
+                encrypted[i] = (byte) (i * 37);
+            DataMessage source = new DataMessage(2, 0, 1, 2, (DHPublicKey) pair.getPublic(),
+                    new byte[8], encrypted, new byte[20], new byte[len]);
+
+            String text = SerializationUtils.toString(source);
+            String base64 = text.substring(5, text.length() - 1);
+            assertEquals(new String(Base64.encode(Base64.decode(base64))), base64);
+            assertEquals(source, SerializationUtils.toMessage(text));
+        }
+    }
+
+    @Test
+    public void testOtherEncodedMessages() throws Exception {
+        DHCommitMessage commit = new DHCommitMessage(2, new byte[32], new byte[] { 1, 2, 3 });
+        assertEquals(commit, SerializationUtils.toMessage(SerializationUtils.toString(commit)));
+
+        SignatureMessage sig = new SignatureMessage(2, new byte[] { 4, 5 }, new byte[20]);
+        assertEquals(sig, SerializationUtils.toMessage(SerializationUtils.toString(sig)));
+    }
+
+    @Test
+    public void testWhitespaceEncodedMessage() throws Exception {
+        String text = DATA_MESSAGE.substring(0, 40) + "\n" + DATA_MESSAGE.substring(40);
+        assertEquals(SerializationUtils.toMessage(DATA_MESSAGE), SerializationUtils.toMessage(text));
+    }
+
+    @Test(expected = IOException.class)
+    public void testIllegalBase64() throws Exception {
+        SerializationUtils.toMessage("?OTR:AAID*AAA.");
+    }
+
+    @Test
+    public void testPlainText() throws Exception {
+        PlainTextMessage plain = (PlainTextMessage) SerializationUtils.toMessage("hello there");
+        assertNull(plain.versions);
+        assertEquals("hello there", plain.cleanText);
+
+        plain = (PlainTextMessage) SerializationUtils
+                .toMessage("hi \t  \t\t\t\t \t \t \t    \t\t  \t  \t \t  \t ");
+        assertEquals(2, plain.versions.size());
+        assertEquals("hi", plain.cleanText);
+    }
+}
@@ -0,0 +1,200 @@
+package net.java.otr4j.session;
+
+import static org.junit.Assert.*;
+
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import net.java.otr4j.OtrException;
+import net.java.otr4j.OtrPolicy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AsyncAuthTest {
+    private SessionPair pair;
+    private GatedHost aliceHost;
+    private TestHost bobHost;
+    private SessionImpl alice;
+    private SessionImpl bob;
+    private GatedExecutor aliceExecutor;
+    private ExecutorService pool;
+
+    @Before
+    public void setUp() throws Exception {
+        aliceHost = new GatedHost(SessionPair.getAliceKeyPair());
+        bobHost = new TestHost(SessionPair.getBobKeyPair(), OtrPolicy.ALLOW_V2
+                                                            | OtrPolicy.ERROR_START_AKE);
+        pair = new SessionPair(aliceHost, bobHost);
+        alice = pair.alice;
+        bob = pair.bob;
+
+        // Alice does her AKE on a pool, bob in the calling thread.
+        pool = Executors.newFixedThreadPool(2);
+        aliceExecutor = new GatedExecutor(pool);
+        alice.setAuthExecutor(aliceExecutor);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        aliceExecutor.open();
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void testAkeOnSharedPool() throws Exception {
+        alice.setAuthExecutor(null);
+        bob.setAuthExecutor(null);
+        alice.startSession();
+        pair.pumpUntilEncrypted();
+        assertTrue(aliceHost.injectedFrom("otr4j-crypto"));
+        assertTrue(bobHost.injectedFrom("otr4j-crypto"));
+    }
+
+    @Test
+    public void testMessagesWaitForEarlierAkeSteps() throws Exception {
+        bob.startSession();
+        alice.transformReceiving(bobHost.next()); // Query
+        bob.transformReceiving(aliceHost.next()); // D-H Commit
+        alice.transformReceiving(bobHost.next()); // D-H Key
+        bob.transformReceiving(aliceHost.next()); // Reveal Signature
+        assertEquals(SessionStatus.ENCRYPTED, bob.getSessionStatus());
+        final String signature = bobHost.next();
+        final String data = bob.transformSending("hello", null);
+
+        aliceExecutor.close();
+        assertNull(alice.transformReceiving(signature));
+        assertEquals(SessionStatus.PLAINTEXT, alice.getSessionStatus());
+
+        Future<String> received = pool.submit(new Callable<String>() {
+            public String call() throws Exception {
+                return alice.transformReceiving(data);
+            }
+        });
+        try {
+            received.get(200, TimeUnit.MILLISECONDS);
+            fail("Data message handled before the signature.");
+        } catch (TimeoutException e) {
+        }
+
+        aliceExecutor.open();
+        assertEquals("hello", received.get(10, TimeUnit.SECONDS));
+        assertEquals(SessionStatus.ENCRYPTED, alice.getSessionStatus());
+    }
+
+    @Test
+    public void testMessagesQueueBehindEarlierAkeSteps() throws Exception {
+        bob.startSession();
+        alice.transformReceiving(bobHost.next()); // Query
+        bob.transformReceiving(aliceHost.next()); // D-H Commit
+        alice.transformReceiving(bobHost.next()); // D-H Key
+        bob.transformReceiving(aliceHost.next()); // Reveal Signature
+        String signature = bobHost.next();
+        String first = bob.transformSending("hello", null);
+        String second = bob.transformSending("again", null);
+
+        final LinkedBlockingQueue<String> received = new LinkedBlockingQueue<String>();
+        ReceiveCallback callback = new ReceiveCallback() {
+            public void messageReceived(SessionID sessionID, String plaintext, List<TLV> tlvs) {
+                received.add(plaintext);
+            }
+
+            public void messageFailed(SessionID sessionID, OtrException e) {
+                received.add("failed: " + e);
+            }
+        };
+
+        aliceExecutor.close();
+        List<TLV> tlvs = new ArrayList<TLV>();
+        assertNull(alice.transformReceiving(signature, tlvs, callback));
+        // Neither waits for the signature.
+        assertNull(alice.transformReceiving(first, tlvs, callback));
+        assertNull(alice.transformReceiving(second, tlvs, callback));
+        assertNull(received.poll(200, TimeUnit.MILLISECONDS));
+
+        aliceExecutor.open();
+        assertEquals("hello", received.poll(10, TimeUnit.SECONDS));
+        assertEquals("again", received.poll(10, TimeUnit.SECONDS));
+        assertEquals(SessionStatus.ENCRYPTED, alice.getSessionStatus());
+        assertTrue(tlvs.isEmpty());
+
+        // Nothing pending once the last step has returned, so the next one
+        // is handled in place.
+        alice.transformReceiving("sync");
+        assertEquals("back", alice.transformReceiving(bob.transformSending("back", null), tlvs,
+                callback));
+    }
+
+    @Test
+    public void testRestartDropsQueuedSteps() throws Exception {
+        bob.startSession();
+        alice.transformReceiving(bobHost.next()); // Query
+        bob.transformReceiving(aliceHost.next()); // D-H Commit
+
+        aliceExecutor.close();
+        alice.transformReceiving(bobHost.next()); // D-H Key, queued
+        alice.endSession();
+        aliceExecutor.open();
+
+        alice.transformReceiving("sync");
+        assertNull(aliceHost.outbox.poll(200, TimeUnit.MILLISECONDS));
+
+        alice.startSession();
+        pair.pumpUntilEncrypted();
+    }
+
+    @Test
+    public void testRestartDiscardsRunningStep() throws Exception {
+        bob.startSession();
+        alice.transformReceiving(bobHost.next()); // Query
+        bob.transformReceiving(aliceHost.next()); // D-H Commit
+
+        // Building the reveal signature needs alice's long-term key pair.
+        aliceHost.keyPairGate = new CountDownLatch(1);
+        alice.transformReceiving(bobHost.next()); // D-H Key
+        assertTrue(aliceHost.keyPairRequested.await(10, TimeUnit.SECONDS));
+        alice.endSession();
+        aliceHost.keyPairGate.countDown();
+
+        alice.transformReceiving("sync");
+        assertNull(aliceHost.outbox.poll(200, TimeUnit.MILLISECONDS));
+        assertEquals(SessionStatus.PLAINTEXT, alice.getSessionStatus());
+
+        aliceHost.keyPairGate = null;
+        alice.startSession();
+        pair.pumpUntilEncrypted();
+    }
+
+    /** Can hold back alice's long-term key pair, which the AKE needs halfway. */
+    private static class GatedHost extends TestHost {
+        volatile CountDownLatch keyPairGate;
+        final CountDownLatch keyPairRequested = new CountDownLatch(1);
+
+        GatedHost(KeyPair keyPair) {
+            super(keyPair, OtrPolicy.ALLOW_V2 | OtrPolicy.ERROR_START_AKE);
+        }
+
+        @Override
+        public KeyPair getKeyPair(SessionID sessionID) {
+            CountDownLatch gate = keyPairGate;
+            if (gate != null) {
+                keyPairRequested.countDown();
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                }
+            }
+            return super.getKeyPair(sessionID);
+        }
+    }
+}
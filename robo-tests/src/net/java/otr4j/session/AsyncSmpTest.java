@@ -0,0 +1,217 @@
+package net.java.otr4j.session;
+
+import static org.junit.Assert.*;
+
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import net.java.otr4j.OtrKeyManager;
+import net.java.otr4j.OtrKeyManagerListener;
+import net.java.otr4j.OtrPolicy;
+import net.java.otr4j.crypto.OtrCryptoEngineImpl;
+import net.java.otr4j.crypto.SM;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AsyncSmpTest {
+    private SessionPair pair;
+    private TestHost aliceHost;
+    private TestHost bobHost;
+    private SessionImpl alice;
+    private SessionImpl bob;
+    private KeyManager aliceKeys;
+    private KeyManager bobKeys;
+    private OtrSm aliceSm;
+    private OtrSm bobSm;
+    private ExecutorService pool;
+    private GatedExecutor bobGate;
+
+    @Before
+    public void setUp() throws Exception {
+        pair = new SessionPair(OtrPolicy.ALLOW_V2 | OtrPolicy.ERROR_START_AKE);
+        aliceHost = pair.aliceHost;
+        bobHost = pair.bobHost;
+        alice = pair.alice;
+        bob = pair.bob;
+
+        alice.startSession();
+        pair.pump();
+        assertEquals(SessionStatus.ENCRYPTED, alice.getSessionStatus());
+        assertEquals(SessionStatus.ENCRYPTED, bob.getSessionStatus());
+
+        KeyPair aliceKeyPair = SessionPair.getAliceKeyPair();
+        KeyPair bobKeyPair = SessionPair.getBobKeyPair();
+        aliceKeys = new KeyManager(aliceKeyPair.getPublic(), bobKeyPair.getPublic());
+        bobKeys = new KeyManager(bobKeyPair.getPublic(), aliceKeyPair.getPublic());
+        aliceSm = new OtrSm(alice, aliceKeys, SessionPair.ALICE_TO_BOB, aliceHost);
+        bobSm = new OtrSm(bob, bobKeys, SessionPair.BOB_TO_ALICE, bobHost);
+        alice.addTlvHandler(aliceSm);
+        bob.addTlvHandler(bobSm);
+
+        pool = Executors.newFixedThreadPool(2);
+        bobGate = new GatedExecutor(pool);
+        aliceSm.setExecutor(OtrSm.getSharedExecutor());
+        bobSm.setExecutor(new SerialSessionExecutor(bobGate));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        bobGate.open();
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void testSmpInBackground() throws Exception {
+        aliceSm.startSmp("colour?", "blue");
+        assertEquals("", bob.transformReceiving(aliceHost.next())); // SMP1Q
+        assertEquals("colour?", bobHost.questions.poll(10, TimeUnit.SECONDS));
+
+        bobSm.respondSmp("blue");
+        alice.transformReceiving(bobHost.next()); // SMP2
+        bob.transformReceiving(aliceHost.next()); // SMP3
+        alice.transformReceiving(bobHost.next()); // SMP4
+
+        assertEquals(OtrSm.RESULT_SUCCEEDED, aliceHost.nextResult());
+        assertEquals(OtrSm.RESULT_SUCCEEDED, bobHost.nextResult());
+        assertTrue(aliceKeys.verified);
+        assertTrue(bobKeys.remoteVerifiedUs);
+        assertTrue(aliceHost.injectedFrom("otr4j-smp"));
+        assertEquals(Integer.valueOf(20), aliceHost.progress.poll());
+        assertEquals(Integer.valueOf(60), aliceHost.progress.poll());
+        assertEquals(Integer.valueOf(100), aliceHost.progress.poll());
+    }
+
+    @Test
+    public void testWrongSecretFails() throws Exception {
+        aliceSm.startSmp(null, "blue");
+        bob.transformReceiving(aliceHost.next());
+        bobHost.questions.poll(10, TimeUnit.SECONDS);
+        bobSm.respondSmp("green");
+        alice.transformReceiving(bobHost.next());
+        bob.transformReceiving(aliceHost.next());
+        alice.transformReceiving(bobHost.next());
+
+        assertEquals(OtrSm.RESULT_FAILED, aliceHost.nextResult());
+        assertEquals(OtrSm.RESULT_FAILED, bobHost.nextResult());
+        assertFalse(aliceKeys.verified);
+    }
+
+    @Test
+    public void testChatNotHeldBehindSmp() throws Exception {
+        bobGate.close();
+        aliceSm.startSmp(null, "blue");
+        assertEquals("", bob.transformReceiving(aliceHost.next()));
+
+        // Bob's SMP step is stuck, his messages are not.
+        assertEquals("hello", bob.transformReceiving(alice.transformSending("hello", null)));
+        assertTrue(bobHost.questions.isEmpty());
+
+        bobGate.open();
+        assertNotNull(bobHost.questions.poll(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testAbortDiscardsQueuedStep() throws Exception {
+        bobGate.close();
+        aliceSm.startSmp(null, "blue");
+        bob.transformReceiving(aliceHost.next());
+        bobSm.abort();
+        bobGate.open();
+
+        alice.transformReceiving(bobHost.next()); // SMP abort
+        assertEquals(OtrSm.RESULT_ABORTED, aliceHost.nextResult());
+        assertTrue(bobHost.questions.isEmpty());
+        assertEquals(SM.EXPECT1, aliceSm.smstate.nextExpected);
+    }
+
+    @Test
+    public void testPeerAbortDiscardsPendingAnswer() throws Exception {
+        aliceSm.startSmp(null, "blue");
+        bob.transformReceiving(aliceHost.next());
+        bobHost.questions.poll(10, TimeUnit.SECONDS);
+
+        // Alice gives up while bob is still working out his answer.
+        bobGate.close();
+        bobSm.respondSmp("blue");
+        aliceSm.abort();
+        bob.transformReceiving(aliceHost.next());
+        bobGate.open();
+
+        assertEquals(OtrSm.RESULT_ABORTED, aliceHost.nextResult());
+        assertNull(bobHost.outbox.poll(200, TimeUnit.MILLISECONDS));
+        assertEquals(SM.EXPECT1, bobSm.smstate.nextExpected);
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        aliceSm.setTimeout(100);
+        aliceSm.startSmp(null, "blue");
+        aliceHost.next(); // SMP1, never delivered
+
+        assertEquals(OtrSm.RESULT_TIMED_OUT, aliceHost.nextResult());
+        bob.transformReceiving(aliceHost.next()); // SMP abort
+        assertEquals(SM.EXPECT1, aliceSm.smstate.nextExpected);
+        assertTrue(bobHost.questions.isEmpty());
+    }
+
+    private static class KeyManager implements OtrKeyManager {
+        private final String localFingerprint;
+        private final String remoteFingerprint;
+        volatile boolean verified;
+        volatile boolean remoteVerifiedUs;
+
+        KeyManager(PublicKey local, PublicKey remote) throws Exception {
+            localFingerprint = new OtrCryptoEngineImpl().getFingerprint(local);
+            remoteFingerprint = new OtrCryptoEngineImpl().getFingerprint(remote);
+        }
+
+        public void addListener(OtrKeyManagerListener l) {
+        }
+
+        public void removeListener(OtrKeyManagerListener l) {
+        }
+
+        public void verify(SessionID sessionID) {
+            verified = true;
+        }
+
+        public void unverify(SessionID sessionID) {
+            verified = false;
+        }
+
+        public void remoteVerifiedUs(SessionID sessionID) {
+            remoteVerifiedUs = true;
+        }
+
+        public boolean isVerified(SessionID sessionID) {
+            return verified;
+        }
+
+        public String getRemoteFingerprint(SessionID sessionID) {
+            return remoteFingerprint;
+        }
+
+        public String getLocalFingerprint(SessionID sessionID) {
+            return localFingerprint;
+        }
+
+        public void savePublicKey(SessionID sessionID, PublicKey pubKey) {
+        }
+
+        public PublicKey loadRemotePublicKey(SessionID sessionID) {
+            return null;
+        }
+
+        public KeyPair loadLocalKeyPair(SessionID sessionID) {
+            return null;
+        }
+
+        public void generateLocalKeyPair(SessionID sessionID) {
+        }
+    }
+}
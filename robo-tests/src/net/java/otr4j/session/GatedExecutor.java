@@ -0,0 +1,38 @@
+package net.java.otr4j.session;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+/** Holds tasks back while closed, for tests to catch work in progress. */
+public class GatedExecutor implements Executor {
+    private final Executor pool;
+    private volatile CountDownLatch gate;
+
+    public GatedExecutor(Executor pool) {
+        this.pool = pool;
+    }
+
+    public void close() {
+        gate = new CountDownLatch(1);
+    }
+
+    public void open() {
+        if (gate != null)
+            gate.countDown();
+    }
+
+    public void execute(final Runnable command) {
+        final CountDownLatch gate = this.gate;
+        pool.execute(new Runnable() {
+            public void run() {
+                try {
+                    if (gate != null)
+                        gate.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                command.run();
+            }
+        });
+    }
+}
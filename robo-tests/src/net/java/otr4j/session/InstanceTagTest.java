@@ -0,0 +1,130 @@
+package net.java.otr4j.session;
+
+import static org.junit.Assert.*;
+
+import net.java.otr4j.OtrPolicy;
+import net.java.otr4j.crypto.CryptoExecutor;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class InstanceTagTest {
+    private static final int POLICY = OtrPolicy.ALLOW_V2 | OtrPolicy.ALLOW_V3
+                                      | OtrPolicy.ERROR_START_AKE;
+
+    private TestHost aliceHost;
+    private TestHost bobHost;
+    private TestHost bob2Host;
+    private SessionImpl alice;
+    private SessionImpl bob;
+    private SessionImpl bob2;
+
+    @Before
+    public void setUp() throws Exception {
+        SessionPair pair = new SessionPair(POLICY);
+        aliceHost = pair.aliceHost;
+        bobHost = pair.bobHost;
+        alice = pair.alice;
+        bob = pair.bob;
+        // Bob again, on another device
+        bob2Host = new TestHost(SessionPair.getBobKeyPair(), POLICY);
+        bob2 = new SessionImpl(SessionPair.BOB_TO_ALICE, bob2Host);
+        bob2.setAuthExecutor(CryptoExecutor.SAME_THREAD);
+    }
+
+    @Test
+    public void testValidTags() {
+        assertTrue(InstanceTag.isValidInstanceTag(0));
+        assertFalse(InstanceTag.isValidInstanceTag(0xff));
+        assertTrue(InstanceTag.isValidInstanceTag(InstanceTag.SMALLEST_VALUE));
+        assertTrue(InstanceTag.isValidInstanceTag(0xffffffff));
+        for (int i = 0; i < 100; i++)
+            assertTrue(new InstanceTag().getValue() != InstanceTag.ZERO_VALUE);
+        try {
+            new InstanceTag(0x42);
+            fail("Reserved tag accepted.");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    @Test
+    public void testVersion3Ake() throws Exception {
+        bob.startSession();
+        pumpUntilEncrypted(bob, bobHost);
+
+        Session outgoing = alice.getOutgoingInstance();
+        assertNotSame(alice, outgoing);
+        assertEquals(3, outgoing.getProtocolVersion());
+        assertEquals(bob.getSenderInstanceTag(), outgoing.getReceiverInstanceTag());
+        assertEquals(alice.getSenderInstanceTag(),
+                bob.getOutgoingInstance().getReceiverInstanceTag());
+
+        assertNotNull(alice.getExtraKey());
+        assertArrayEquals(alice.getExtraKey(), bob.getExtraKey());
+
+        assertEquals("hello", bob.transformReceiving(alice.transformSending("hello", null)));
+        assertEquals("hi", alice.transformReceiving(bob.transformSending("hi", null)));
+    }
+
+    @Test
+    public void testSecondInstanceKeepsFirst() throws Exception {
+        bob.startSession();
+        pumpUntilEncrypted(bob, bobHost);
+        bob2.startSession();
+        pumpUntilEncrypted(bob2, bob2Host);
+        assertEquals(2, alice.getInstances().size());
+
+        // The first device talks again without a new key exchange
+        assertEquals("still here", alice.transformReceiving(bob.transformSending("still here",
+                null)));
+        assertEquals(bob.getSenderInstanceTag(), alice.getOutgoingInstance()
+                .getReceiverInstanceTag());
+        assertEquals("back", bob.transformReceiving(alice.transformSending("back", null)));
+        assertTrue(aliceHost.outbox.isEmpty());
+        assertTrue(bobHost.outbox.isEmpty());
+    }
+
+    @Test
+    public void testMessageForOtherInstanceIgnored() throws Exception {
+        bob.startSession();
+        pumpUntilEncrypted(bob, bobHost);
+
+        String data = alice.transformSending("not for you", null);
+        assertNull(bob2.transformReceiving(data));
+        assertEquals(SessionStatus.PLAINTEXT, bob2.getSessionStatus());
+        assertTrue(bob2Host.outbox.isEmpty());
+        assertEquals("not for you", bob.transformReceiving(data));
+    }
+
+    @Test
+    public void testFragments() throws Exception {
+        aliceHost.setMaxFragmentSize(120);
+        bobHost.setMaxFragmentSize(120);
+        bob.startSession();
+        pumpUntilEncrypted(bob, bobHost);
+
+        String last = alice.transformSending("a message that has to be fragmented", null);
+        assertTrue(last.startsWith("?OTR|"));
+        while (!aliceHost.outbox.isEmpty())
+            assertNull(bob.transformReceiving(aliceHost.outbox.poll()));
+        assertEquals("a message that has to be fragmented", bob.transformReceiving(last));
+    }
+
+    /** Alice answers whichever of bob's devices is talking to her, as a reply to its resource would. */
+    private void pumpUntilEncrypted(SessionImpl peer, TestHost peerHost) throws Exception {
+        for (int i = 0; i < 100; i++) {
+            if (alice.getSessionStatus() == SessionStatus.ENCRYPTED
+                && peer.getSessionStatus() == SessionStatus.ENCRYPTED
+                && alice.getOutgoingInstance().getReceiverInstanceTag()
+                        .equals(peer.getSenderInstanceTag()))
+                return;
+            String msg = aliceHost.outbox.poll();
+            if (msg != null)
+                peer.transformReceiving(msg);
+            msg = peerHost.outbox.poll();
+            if (msg != null)
+                alice.transformReceiving(msg);
+        }
+        fail("AKE did not complete.");
+    }
+}
@@ -0,0 +1,161 @@
+package net.java.otr4j.session;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.java.otr4j.OtrPolicy;
+import net.java.otr4j.PendingMessageListener;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class OutgoingQueueTest {
+    private TestHost aliceHost;
+    private TestHost bobHost;
+    private SessionImpl alice;
+    private SessionImpl bob;
+    private Recorder recorder;
+
+    @Before
+    public void setUp() throws Exception {
+        SessionPair pair = new SessionPair(OtrPolicy.OTRL_POLICY_MANUAL
+                                           | OtrPolicy.REQUIRE_ENCRYPTION);
+        aliceHost = pair.aliceHost;
+        bobHost = pair.bobHost;
+        alice = pair.alice;
+        bob = pair.bob;
+        recorder = new Recorder(0);
+        alice.setPendingMessageListener(recorder);
+    }
+
+    @Test
+    public void testQueuedInOrder() throws Exception {
+        for (int i = 0; i < 5; i++)
+            assertNull(alice.transformSending("m" + i, null, "tag" + i));
+        assertEquals(5, alice.getPendingCount());
+        // A single query, more would restart the AKE
+        assertEquals(1, aliceHost.outbox.size());
+
+        assertEquals(list("m0", "m1", "m2", "m3", "m4"), pump());
+        assertEquals(0, alice.getPendingCount());
+        assertEquals(list("tag0", "tag1", "tag2", "tag3", "tag4"), recorder.sent);
+        assertTrue(recorder.dropped.isEmpty());
+
+        // Sent straight away now
+        assertEquals("m5", bob.transformReceiving(alice.transformSending("m5", null)));
+    }
+
+    @Test
+    public void testOverflowDropsOldest() throws Exception {
+        alice.setPendingLimits(3, 0, true);
+        for (int i = 0; i < 5; i++)
+            alice.transformSending("m" + i, null, "tag" + i);
+        assertEquals(list("tag0", "tag1"), recorder.dropped);
+        assertEquals(PendingMessageListener.DROPPED_OVERFLOW, recorder.reason);
+
+        assertEquals(list("m2", "m3", "m4"), pump());
+    }
+
+    @Test
+    public void testOverflowRejectsNewest() throws Exception {
+        alice.setPendingLimits(2, 0, false);
+        for (int i = 0; i < 3; i++)
+            alice.transformSending("m" + i, null, "tag" + i);
+        assertEquals(list("tag2"), recorder.dropped);
+
+        assertEquals(list("m0", "m1"), pump());
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        recorder = new Recorder(2);
+        alice.setPendingMessageListener(recorder);
+        alice.setPendingLimits(10, 50, true);
+        alice.transformSending("m0", null, "tag0");
+        alice.transformSending("m1", null, "tag1");
+
+        assertTrue(recorder.done.await(5, TimeUnit.SECONDS));
+        assertEquals(list("tag0", "tag1"), recorder.dropped);
+        assertEquals(PendingMessageListener.DROPPED_TIMEOUT, recorder.reason);
+        assertEquals(0, alice.getPendingCount());
+    }
+
+    @Test
+    public void testEndSessionDrops() throws Exception {
+        alice.transformSending("m0", null, "tag0");
+        alice.endSession();
+        assertEquals(list("tag0"), recorder.dropped);
+        assertEquals(PendingMessageListener.DROPPED_SESSION_ENDED, recorder.reason);
+
+        assertTrue(pump().isEmpty());
+    }
+
+    @Test
+    public void testMergeKeepsQueuedOrder() throws Exception {
+        List<PendingMessage> master = new ArrayList<PendingMessage>();
+        master.add(new PendingMessage("m0", null, null, 10));
+        master.add(new PendingMessage("m2", null, null, 30));
+        master.add(new PendingMessage("m4", null, null, 50));
+        List<PendingMessage> instance = new ArrayList<PendingMessage>();
+        instance.add(new PendingMessage("m1", null, null, 20));
+        instance.add(new PendingMessage("m3", null, null, 30));
+
+        List<String> texts = new ArrayList<String>();
+        for (PendingMessage message : OutgoingQueue.merge(master, instance))
+            texts.add(message.getText());
+        assertEquals(list("m0", "m1", "m2", "m3", "m4"), texts);
+    }
+
+    private static List<String> list(String... items) {
+        List<String> result = new ArrayList<String>();
+        for (String item : items)
+            result.add(item);
+        return result;
+    }
+
+    /** Carries messages both ways until there are none left. @return what bob read. */
+    private List<String> pump() throws Exception {
+        List<String> received = new ArrayList<String>();
+        for (int i = 0; i < 100; i++) {
+            String msg = aliceHost.outbox.poll();
+            if (msg != null) {
+                String plain = bob.transformReceiving(msg);
+                if (plain != null)
+                    received.add(plain);
+            }
+            String reply = bobHost.outbox.poll();
+            if (reply != null)
+                alice.transformReceiving(reply);
+            if (msg == null && reply == null)
+                return received;
+        }
+        fail("Messages kept coming.");
+        return null;
+    }
+
+    private static class Recorder implements PendingMessageListener {
+        final List<Object> sent = new ArrayList<Object>();
+        final List<Object> dropped = new ArrayList<Object>();
+        final CountDownLatch done;
+        volatile int reason;
+
+        Recorder(int drops) {
+            done = new CountDownLatch(drops);
+        }
+
+        public synchronized void pendingMessageSent(SessionID sessionID, PendingMessage message) {
+            sent.add(message.getTag());
+        }
+
+        public synchronized void pendingMessageDropped(SessionID sessionID,
+                PendingMessage message, int reason) {
+            dropped.add(message.getTag());
+            this.reason = reason;
+            done.countDown();
+        }
+    }
+}
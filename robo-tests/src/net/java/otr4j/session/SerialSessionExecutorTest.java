@@ -0,0 +1,179 @@
+package net.java.otr4j.session;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SerialSessionExecutorTest {
+    private static final SessionID ALICE = new SessionID("me@example.com", "alice@example.com/a", "xmpp");
+    private static final SessionID BOB = new SessionID("me@example.com", "bob@example.com/b", "xmpp");
+
+    private ExecutorService pool;
+    private SerialSessionExecutor executor;
+
+    @Before
+    public void setUp() throws Exception {
+        pool = Executors.newFixedThreadPool(4);
+        executor = new SerialSessionExecutor(pool);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void testOrderWithinSession() throws Exception {
+        final List<Integer> seen = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch done = new CountDownLatch(1000);
+        for (int i = 0; i < 1000; i++) {
+            final int n = i;
+            executor.execute(ALICE, new Runnable() {
+                public void run() {
+                    seen.add(n);
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < 1000; i++)
+            assertEquals(i, seen.get(i).intValue());
+    }
+
+    @Test
+    public void testSessionsRunInParallel() throws Exception {
+        final CountDownLatch aliceStarted = new CountDownLatch(1);
+        final CountDownLatch bobDone = new CountDownLatch(1);
+        executor.execute(ALICE, new Runnable() {
+            public void run() {
+                aliceStarted.countDown();
+                try {
+                    // Only finishes if bob's task can run meanwhile.
+                    bobDone.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                }
+            }
+        });
+        assertTrue(aliceStarted.await(10, TimeUnit.SECONDS));
+        executor.execute(BOB, new Runnable() {
+            public void run() {
+                bobDone.countDown();
+            }
+        });
+        assertTrue(bobDone.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testInvokeFromOwnSessionRunsInline() throws Exception {
+        final List<String> seen = Collections.synchronizedList(new ArrayList<String>());
+        String result = executor.submit(ALICE, new Callable<String>() {
+            public String call() throws Exception {
+                seen.add("outer");
+                return executor.invoke(ALICE, new Callable<String>() {
+                    public String call() {
+                        seen.add("inner");
+                        return "done";
+                    }
+                });
+            }
+        }).get(10, TimeUnit.SECONDS);
+        assertEquals("done", result);
+        assertEquals(2, seen.size());
+    }
+
+    @Test
+    public void testDrainedQueuesAreRemoved() throws Exception {
+        executor.submit(ALICE, new Callable<Void>() {
+            public Void call() {
+                return null;
+            }
+        }).get(10, TimeUnit.SECONDS);
+        for (int i = 0; i < 200 && executor.getActiveSessionCount() > 0; i++)
+            Thread.sleep(10);
+        assertEquals(0, executor.getActiveSessionCount());
+
+        // A new task after retirement still runs.
+        assertEquals(Integer.valueOf(1), executor.invoke(ALICE, new Callable<Integer>() {
+            public Integer call() {
+                return 1;
+            }
+        }));
+    }
+
+    @Test
+    public void testFailingTaskDoesNotStallSession() throws Exception {
+        executor.execute(ALICE, new Runnable() {
+            public void run() {
+                throw new IllegalStateException("expected");
+            }
+        });
+        assertEquals("next", executor.invoke(ALICE, new Callable<String>() {
+            public String call() {
+                return "next";
+            }
+        }));
+    }
+
+    @Test
+    public void testRejectedTasksFail() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        executor.execute(ALICE, new Runnable() {
+            public void run() {
+                started.countDown();
+                try {
+                    Thread.sleep(10000);
+                } catch (InterruptedException e) {
+                }
+            }
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        // Queued behind the running task when the pool goes away
+        Future<String> queued = executor.submit(ALICE, new Callable<String>() {
+            public String call() {
+                return "queued";
+            }
+        });
+        pool.shutdownNow();
+        assertRejected(queued);
+
+        assertRejected(executor.submit(BOB, new Callable<String>() {
+            public String call() {
+                return "late";
+            }
+        }));
+    }
+
+    private static void assertRejected(Future<?> future) throws Exception {
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            fail("Ran without a pool");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+    }
+
+    @Test
+    public void testSessionIdEquality() {
+        SessionID copy = new SessionID("me@example.com", "alice@example.com/a", "xmpp");
+        assertEquals(ALICE, copy);
+        assertEquals(ALICE.hashCode(), copy.hashCode());
+        assertFalse(ALICE.equals(BOB));
+        // Another resource of the same contact is the same conversation
+        assertEquals(ALICE, new SessionID("me@example.com", "alice@example.com/other", "xmpp"));
+        assertFalse(ALICE.equals(new SessionID("you@example.com", "alice@example.com/a", "xmpp")));
+    }
+}
@@ -0,0 +1,114 @@
+package net.java.otr4j.session;
+
+import static org.junit.Assert.*;
+
+import java.security.KeyPair;
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+
+import javax.crypto.interfaces.DHPublicKey;
+
+import net.java.otr4j.crypto.OtrCryptoEngineImpl;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class SessionKeysImplTest {
+    private KeyPair local;
+    private KeyPair remote;
+    private KeyPair other;
+
+    /** Holds tasks until told to run them. */
+    private static class DeferredExecutor implements Executor {
+        final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            while (!tasks.isEmpty())
+                tasks.removeFirst().run();
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        OtrCryptoEngineImpl engine = new OtrCryptoEngineImpl();
+        local = engine.generateDHKeyPair();
+        remote = engine.generateDHKeyPair();
+        other = engine.generateDHKeyPair();
+    }
+
+    private SessionKeysImpl keys(KeyPair localPair, KeyPair remotePair) {
+        SessionKeysImpl keys = new SessionKeysImpl(0, 1);
+        keys.setLocalPair(localPair, 1);
+        keys.setRemoteDHPublicKey((DHPublicKey) remotePair.getPublic(), 1);
+        return keys;
+    }
+
+    @Test
+    public void testPrecomputedKeysMatchLazyKeys() throws Exception {
+        SessionKeysImpl lazy = keys(local, remote);
+        SessionKeysImpl eager = keys(local, remote);
+        DeferredExecutor executor = new DeferredExecutor();
+        eager.precompute(executor);
+        assertEquals(1, executor.tasks.size());
+        executor.runAll();
+
+        assertArrayEquals(lazy.getSendingAESKey(), eager.getSendingAESKey());
+        assertArrayEquals(lazy.getReceivingAESKey(), eager.getReceivingAESKey());
+        assertArrayEquals(lazy.getSendingMACKey(), eager.getSendingMACKey());
+        assertArrayEquals(lazy.getReceivingMACKey(), eager.getReceivingMACKey());
+
+        // Already known, nothing more to do.
+        eager.precompute(executor);
+        assertTrue(executor.tasks.isEmpty());
+    }
+
+    @Test
+    public void testUnstartedPrecomputationRunsOnFirstUse() throws Exception {
+        SessionKeysImpl lazy = keys(local, remote);
+        SessionKeysImpl eager = keys(local, remote);
+        DeferredExecutor executor = new DeferredExecutor();
+        eager.precompute(executor);
+
+        assertArrayEquals(lazy.getSendingAESKey(), eager.getSendingAESKey());
+        // The worker finds the task already done.
+        executor.runAll();
+        assertArrayEquals(lazy.getReceivingMACKey(), eager.getReceivingMACKey());
+    }
+
+    @Test
+    public void testRotationDiscardsPrecomputedKeys() throws Exception {
+        SessionKeysImpl eager = keys(local, remote);
+        DeferredExecutor executor = new DeferredExecutor();
+        eager.precompute(executor);
+        executor.runAll();
+
+        eager.setRemoteDHPublicKey((DHPublicKey) other.getPublic(), 2);
+        assertArrayEquals(keys(local, other).getSendingAESKey(), eager.getSendingAESKey());
+    }
+
+    @Test
+    public void testRotationDuringPrecomputation() throws Exception {
+        SessionKeysImpl eager = keys(local, remote);
+        DeferredExecutor executor = new DeferredExecutor();
+        eager.precompute(executor);
+
+        eager.setLocalPair(other, 2);
+        executor.runAll();
+        assertArrayEquals(keys(other, remote).getSendingAESKey(), eager.getSendingAESKey());
+    }
+
+    @Test
+    public void testRejectedPrecomputationFallsBack() throws Exception {
+        SessionKeysImpl eager = keys(local, remote);
+        eager.precompute(new Executor() {
+            public void execute(Runnable command) {
+                throw new java.util.concurrent.RejectedExecutionException();
+            }
+        });
+        assertArrayEquals(keys(local, remote).getSendingAESKey(), eager.getSendingAESKey());
+    }
+}
@@ -0,0 +1,90 @@
+package net.java.otr4j.session;
+
+import static org.junit.Assert.*;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+import net.java.otr4j.crypto.CryptoExecutor;
+
+/**
+ * Two sessions, alice and bob, talking to each other in memory through
+ * {@link TestHost}. Both run the AKE in the calling thread until a test
+ * gives them another executor.
+ */
+public class SessionPair {
+    public static final SessionID ALICE_TO_BOB = new SessionID("alice@example.com",
+            "bob@example.com/r", "xmpp");
+    public static final SessionID BOB_TO_ALICE = new SessionID("bob@example.com",
+            "alice@example.com/r", "xmpp");
+
+    private static KeyPair aliceKeyPair;
+    private static KeyPair bobKeyPair;
+
+    /** @return alice's long-term key pair, the same for all tests. */
+    public static synchronized KeyPair getAliceKeyPair() throws NoSuchAlgorithmException {
+        if (aliceKeyPair == null)
+            aliceKeyPair = generateDsaKeyPair();
+        return aliceKeyPair;
+    }
+
+    /** @return bob's long-term key pair, the same for all tests. */
+    public static synchronized KeyPair getBobKeyPair() throws NoSuchAlgorithmException {
+        if (bobKeyPair == null)
+            bobKeyPair = generateDsaKeyPair();
+        return bobKeyPair;
+    }
+
+    private static KeyPair generateDsaKeyPair() throws NoSuchAlgorithmException {
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("DSA");
+        kpg.initialize(1024);
+        return kpg.genKeyPair();
+    }
+
+    public final TestHost aliceHost;
+    public final TestHost bobHost;
+    public final SessionImpl alice;
+    public final SessionImpl bob;
+
+    /** @param policy the OtrPolicy flags of both sides */
+    public SessionPair(int policy) throws NoSuchAlgorithmException {
+        this(new TestHost(getAliceKeyPair(), policy), new TestHost(getBobKeyPair(), policy));
+    }
+
+    public SessionPair(TestHost aliceHost, TestHost bobHost) {
+        this.aliceHost = aliceHost;
+        this.bobHost = bobHost;
+        alice = new SessionImpl(ALICE_TO_BOB, aliceHost);
+        bob = new SessionImpl(BOB_TO_ALICE, bobHost);
+        alice.setAuthExecutor(CryptoExecutor.SAME_THREAD);
+        bob.setAuthExecutor(CryptoExecutor.SAME_THREAD);
+    }
+
+    /** Delivers injected messages both ways until neither side has any left. */
+    public void pump() throws Exception {
+        while (!aliceHost.outbox.isEmpty() || !bobHost.outbox.isEmpty()) {
+            String msg;
+            while ((msg = aliceHost.outbox.poll()) != null)
+                bob.transformReceiving(msg);
+            while ((msg = bobHost.outbox.poll()) != null)
+                alice.transformReceiving(msg);
+        }
+    }
+
+    /** Delivers messages both ways until both sides are encrypted, the AKE may run anywhere. */
+    public void pumpUntilEncrypted() throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (alice.getSessionStatus() != SessionStatus.ENCRYPTED
+               || bob.getSessionStatus() != SessionStatus.ENCRYPTED) {
+            assertTrue("AKE did not complete.", System.currentTimeMillis() < deadline);
+            String msg = aliceHost.outbox.poll(10, TimeUnit.MILLISECONDS);
+            if (msg != null)
+                bob.transformReceiving(msg);
+            msg = bobHost.outbox.poll(10, TimeUnit.MILLISECONDS);
+            if (msg != null)
+                alice.transformReceiving(msg);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package net.java.otr4j.session;
+
+import static org.junit.Assert.*;
+
+import java.security.KeyPair;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import net.java.otr4j.OtrPolicy;
+import net.java.otr4j.OtrPolicyImpl;
+import net.java.otr4j.session.OtrSm.OtrSmEngineHost;
+
+/**
+ * Engine host for tests. Injected messages are queued for the peer, SMP
+ * questions, progress and results are queued for the test to check.
+ */
+public class TestHost implements OtrSmEngineHost {
+    public final LinkedBlockingQueue<String> outbox = new LinkedBlockingQueue<String>();
+    public final LinkedBlockingQueue<String> questions = new LinkedBlockingQueue<String>();
+    public final LinkedBlockingQueue<Integer> progress = new LinkedBlockingQueue<Integer>();
+    public final LinkedBlockingQueue<Integer> results = new LinkedBlockingQueue<Integer>();
+
+    private final KeyPair keyPair;
+    private final OtrPolicy policy;
+    private final Set<String> injectingThreads = new CopyOnWriteArraySet<String>();
+    private volatile int maxFragmentSize;
+
+    public TestHost(KeyPair keyPair, int policy) {
+        this.keyPair = keyPair;
+        this.policy = new OtrPolicyImpl(policy);
+    }
+
+    /** @return the oldest message injected for the peer, waiting for it if need be. */
+    public String next() throws InterruptedException {
+        String msg = outbox.poll(10, TimeUnit.SECONDS);
+        assertNotNull(msg);
+        return msg;
+    }
+
+    /** @return the oldest SMP result, waiting for it if need be. */
+    public int nextResult() throws InterruptedException {
+        Integer result = results.poll(10, TimeUnit.SECONDS);
+        assertNotNull(result);
+        return result;
+    }
+
+    /** @return whether a message was injected from a thread with this name prefix. */
+    public boolean injectedFrom(String threadPrefix) {
+        for (String name : injectingThreads)
+            if (name.startsWith(threadPrefix))
+                return true;
+        return false;
+    }
+
+    public void setMaxFragmentSize(int maxFragmentSize) {
+        this.maxFragmentSize = maxFragmentSize;
+    }
+
+    public void injectMessage(SessionID sessionID, String msg) {
+        injectingThreads.add(Thread.currentThread().getName());
+        outbox.add(msg);
+    }
+
+    public void showWarning(SessionID sessionID, String warning) {
+    }
+
+    public void showError(SessionID sessionID, String error) {
+    }
+
+    public OtrPolicy getSessionPolicy(SessionID sessionID) {
+        return policy;
+    }
+
+    public KeyPair getKeyPair(SessionID sessionID) {
+        return keyPair;
+    }
+
+    public int getMaxFragmentSize(SessionID sessionID) {
+        return maxFragmentSize;
+    }
+
+    public void askForSecret(SessionID sessionID, String question) {
+        questions.add(question == null ? "" : question);
+    }
+
+    public void smpProgress(SessionID sessionID, int percent) {
+        progress.add(percent);
+    }
+
+    public void smpFinished(SessionID sessionID, int result) {
+        results.add(result);
+    }
+}
@@ -0,0 +1,517 @@
+package info.guardianproject.otr;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.regex.Pattern;
+
+import net.java.otr4j.crypto.CryptoBackend;
+import net.java.otr4j.crypto.CryptoBackends;
+import net.java.otr4j.crypto.OtrCryptoException;
+
+/**
+ * Moves an offered file straight from the sender to the receiver over TCP,
+ * bypassing the XMPP server and the per-chunk OTR encryption of the in-band
+ * transfer. The stream is encrypted and authenticated with keys derived from
+ * the OTR extra symmetric key and a per-offer nonce, both of which only the
+ * two OTR peers know.
+ * <p>
+ * The receiver connects and sends the URL of the offer, the sender answers
+ * with the file. Both directions are sent as frames of AES-128-CTR ciphertext
+ * followed by an HMAC-SHA256 over the frame number, length and ciphertext,
+ * and end with an empty frame so a cut stream is noticed.
+ */
+public class DirectTransfer {
+
+    public static final int NONCE_LENGTH = 16;
+
+    static final int MAX_FRAME = 64 * 1024;
+    private static final int MAC_LENGTH = 32;
+    private static final int AES_KEY_LENGTH = 16;
+    private static final int MAX_URL_LENGTH = 4096;
+
+    private static final int CONNECT_TIMEOUT = 5000;
+    private static final int ACCEPT_TIMEOUT = 60000;
+    private static final int READ_TIMEOUT = 30000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final Pattern ADDRESS_PATTERN = Pattern
+            .compile("\\d{1,3}\\.\\d{1,3}\\.\\d{1,3}\\.\\d{1,3}");
+
+    /* Key derivation bytes, as in the OTR AKE */
+    private static final byte SENDER_ENCRYPTION = 0x01;
+    private static final byte SENDER_MAC = 0x02;
+    private static final byte RECEIVER_ENCRYPTION = 0x03;
+    private static final byte RECEIVER_MAC = 0x04;
+
+    /** Progress of a fetch, in bytes received. */
+    public interface Progress {
+        void onProgress(long bytes);
+    }
+
+    /**
+     * @return an address on the local network the peer may be able to reach,
+     *         or null if there is none.
+     */
+    public static InetAddress getLocalAddress() {
+        try {
+            Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+            while (interfaces != null && interfaces.hasMoreElements()) {
+                NetworkInterface nif = interfaces.nextElement();
+                if (!nif.isUp() || nif.isLoopback())
+                    continue;
+                Enumeration<InetAddress> addresses = nif.getInetAddresses();
+                while (addresses.hasMoreElements()) {
+                    InetAddress address = addresses.nextElement();
+                    if (address instanceof Inet4Address && isLocal(address))
+                        return address;
+                }
+            }
+        } catch (SocketException e) {
+            OtrDebugLogger.log("no network interfaces", e);
+        }
+        return null;
+    }
+
+    /**
+     * Parses the address a peer offered a file at. Only literal IPv4
+     * addresses on the local network are taken, so that following an offer
+     * neither looks a name up nor connects anywhere beyond the local link.
+     *
+     * @param spec address and port, as in "192.168.1.2:5000"
+     * @throws IOException if spec is malformed or not a local address.
+     */
+    public static InetSocketAddress parseAddress(String spec) throws IOException {
+        int colon = spec.lastIndexOf(':');
+        if (colon < 0 || !ADDRESS_PATTERN.matcher(spec.substring(0, colon)).matches())
+            throw new IOException("Not an IPv4 address: " + spec);
+        int port;
+        try {
+            port = Integer.parseInt(spec.substring(colon + 1));
+        } catch (NumberFormatException e) {
+            throw new IOException("Bad port: " + spec);
+        }
+        if (port < 1 || port > 65535)
+            throw new IOException("Bad port: " + spec);
+        // A literal, so there is no lookup
+        InetAddress address = InetAddress.getByName(spec.substring(0, colon));
+        if (!isLocal(address))
+            throw new IOException("Not a local address: " + spec);
+        return new InetSocketAddress(address, port);
+    }
+
+    /** @return true for private and link-local addresses. */
+    static boolean isLocal(InetAddress address) {
+        return address.isSiteLocalAddress() || address.isLinkLocalAddress();
+    }
+
+    /**
+     * Serves one file to the first peer that proves it holds the keys, for up
+     * to a minute after it starts running. Strangers connecting in the
+     * meantime are dropped. Run it on an executor; it closes itself.
+     */
+    public static class Server implements Runnable {
+        private final ServerSocket serverSocket;
+        private final File file;
+        private final String url;
+        private final Keys keys;
+        private volatile boolean done;
+
+        public Server(InetAddress bindAddress, File file, String url, byte[] extraKey, byte[] nonce)
+                throws IOException {
+            this.file = file;
+            this.url = url;
+            this.keys = new Keys(extraKey, nonce);
+            serverSocket = new ServerSocket(0, 1, bindAddress);
+            serverSocket.setSoTimeout(ACCEPT_TIMEOUT);
+        }
+
+        /** @return the address to hand to the peer. */
+        public InetSocketAddress getAddress() {
+            return new InetSocketAddress(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+        }
+
+        /** @return true once the file was sent in full. */
+        public boolean isDone() {
+            return done;
+        }
+
+        public void close() {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                // Closing anyway.
+            }
+        }
+
+        public void run() {
+            long deadline = System.currentTimeMillis() + ACCEPT_TIMEOUT;
+            try {
+                while (!done && System.currentTimeMillis() < deadline) {
+                    Socket socket;
+                    try {
+                        socket = serverSocket.accept();
+                    } catch (SocketTimeoutException e) {
+                        break;
+                    }
+                    try {
+                        serve(socket);
+                        done = true;
+                    } catch (IOException e) {
+                        OtrDebugLogger.log("direct transfer to " + socket.getInetAddress()
+                                           + " failed", e);
+                    } finally {
+                        socket.close();
+                    }
+                }
+            } catch (IOException e) {
+                // Closed.
+            } finally {
+                close();
+                keys.wipe();
+            }
+        }
+
+        private void serve(Socket socket) throws IOException {
+            socket.setSoTimeout(READ_TIMEOUT);
+            socket.setTcpNoDelay(true);
+
+            FrameInputStream request = new FrameInputStream(socket.getInputStream(),
+                    keys.create(RECEIVER_ENCRYPTION, RECEIVER_MAC));
+            byte[] requested = readFully(request, MAX_URL_LENGTH);
+            if (!url.equals(new String(requested, "UTF-8")))
+                throw new IOException("Request for another offer");
+
+            FrameOutputStream out = new FrameOutputStream(socket.getOutputStream(),
+                    keys.create(SENDER_ENCRYPTION, SENDER_MAC));
+            InputStream in = new FileInputStream(file);
+            try {
+                copy(in, out, null);
+            } finally {
+                in.close();
+            }
+            out.finish();
+        }
+    }
+
+    /**
+     * Fetches an offer from the sender's {@link Server}.
+     *
+     * @param out receives the plain text; only trust it once this returns.
+     * @param progress may be null
+     * @return the number of bytes received
+     * @throws IOException if the peer cannot be reached or the stream is
+     *             forged or cut short.
+     */
+    public static long fetch(InetSocketAddress address, String url, byte[] extraKey, byte[] nonce,
+            OutputStream out, Progress progress) throws IOException {
+        Keys keys = new Keys(extraKey, nonce);
+        Socket socket = new Socket();
+        try {
+            socket.connect(address, CONNECT_TIMEOUT);
+            socket.setSoTimeout(READ_TIMEOUT);
+            socket.setTcpNoDelay(true);
+
+            FrameOutputStream request = new FrameOutputStream(socket.getOutputStream(),
+                    keys.create(RECEIVER_ENCRYPTION, RECEIVER_MAC));
+            request.write(url.getBytes("UTF-8"));
+            request.finish();
+
+            FrameInputStream in = new FrameInputStream(socket.getInputStream(),
+                    keys.create(SENDER_ENCRYPTION, SENDER_MAC));
+            return copy(in, out, progress);
+        } finally {
+            keys.wipe();
+            socket.close();
+        }
+    }
+
+    private static long copy(InputStream in, OutputStream out, Progress progress)
+            throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long total = 0;
+        int len;
+        while ((len = in.read(buffer)) != -1) {
+            out.write(buffer, 0, len);
+            total += len;
+            if (progress != null)
+                progress.onProgress(total);
+        }
+        return total;
+    }
+
+    private static byte[] readFully(InputStream in, int max) throws IOException {
+        byte[] buffer = new byte[max];
+        int count = 0;
+        int len;
+        while ((len = in.read(buffer, count, max - count)) > 0)
+            count += len;
+        if (count == max && in.read() != -1)
+            throw new IOException("Request too long");
+        return Arrays.copyOf(buffer, count);
+    }
+
+    /** The key material of one offer. */
+    static class Keys {
+        private final byte[] secret;
+
+        Keys(byte[] extraKey, byte[] nonce) {
+            if (extraKey == null || nonce == null || nonce.length != NONCE_LENGTH)
+                throw new IllegalArgumentException("Need the extra key and a nonce");
+            secret = new byte[nonce.length + extraKey.length];
+            System.arraycopy(nonce, 0, secret, 0, nonce.length);
+            System.arraycopy(extraKey, 0, secret, nonce.length, extraKey.length);
+        }
+
+        /** @return the cipher of one direction. */
+        FrameCipher create(byte encryption, byte mac) throws IOException {
+            byte[] aesKey = Arrays.copyOf(derive(encryption), AES_KEY_LENGTH);
+            byte[] macKey = derive(mac);
+            try {
+                return new FrameCipher(CryptoBackends.getAes().createAesCtr(aesKey),
+                        CryptoBackends.getHmac().createHmac("HmacSHA256", macKey));
+            } catch (OtrCryptoException e) {
+                throw new IOException(e);
+            } finally {
+                Arrays.fill(aesKey, (byte) 0x00);
+                Arrays.fill(macKey, (byte) 0x00);
+            }
+        }
+
+        /** SHA256(b || nonce || extra key) */
+        private byte[] derive(byte b) {
+            MessageDigest sha256;
+            try {
+                sha256 = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+            sha256.update(b);
+            sha256.update(secret);
+            return sha256.digest();
+        }
+
+        void wipe() {
+            Arrays.fill(secret, (byte) 0x00);
+        }
+    }
+
+    /** AES-CTR and HMAC of one direction, and its frame counter. */
+    static class FrameCipher {
+        private final CryptoBackend.AesCtr aes;
+        private final CryptoBackend.Hmac mac;
+        private final byte[] ctr = new byte[16];
+        private final byte[] header = new byte[12];
+        private long frame;
+
+        FrameCipher(CryptoBackend.AesCtr aes, CryptoBackend.Hmac mac) {
+            this.aes = aes;
+            this.mac = mac;
+        }
+
+        /** Encrypts or decrypts in place; frames are numbered in the top half of the counter. */
+        void process(byte[] buffer, int len) throws IOException {
+            for (int i = 0; i < 8; i++)
+                ctr[i] = (byte) (frame >>> (56 - 8 * i));
+            try {
+                aes.process(ctr, buffer, 0, len, buffer, 0);
+            } catch (OtrCryptoException e) {
+                throw new IOException(e);
+            }
+        }
+
+        /** MAC over the frame number, length and ciphertext. */
+        void mac(byte[] buffer, int len, byte[] out) throws IOException {
+            for (int i = 0; i < 8; i++)
+                header[i] = (byte) (frame >>> (56 - 8 * i));
+            for (int i = 0; i < 4; i++)
+                header[8 + i] = (byte) (len >>> (24 - 8 * i));
+            mac.update(header, 0, header.length);
+            mac.update(buffer, 0, len);
+            try {
+                mac.doFinal(out, 0);
+            } catch (OtrCryptoException e) {
+                throw new IOException(e);
+            }
+        }
+
+        void next() {
+            frame++;
+        }
+
+        void destroy() {
+            aes.destroy();
+            mac.destroy();
+        }
+    }
+
+    /** Writes frames; {@link #finish()} writes the end marker. */
+    static class FrameOutputStream extends OutputStream {
+        private final DataOutputStream out;
+        private final FrameCipher cipher;
+        private final byte[] buffer = new byte[MAX_FRAME];
+        private final byte[] tag = new byte[MAC_LENGTH];
+        private int count;
+        private boolean finished;
+
+        FrameOutputStream(OutputStream out, FrameCipher cipher) {
+            this.out = new DataOutputStream(out);
+            this.cipher = cipher;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == MAX_FRAME)
+                writeFrame();
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == MAX_FRAME)
+                    writeFrame();
+                int n = Math.min(len, MAX_FRAME - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (count > 0)
+                writeFrame();
+            out.flush();
+        }
+
+        /** Ends the stream without closing the underlying one. */
+        void finish() throws IOException {
+            if (finished)
+                return;
+            if (count > 0)
+                writeFrame();
+            writeFrame();
+            out.flush();
+            finished = true;
+            cipher.destroy();
+            Arrays.fill(buffer, (byte) 0x00);
+        }
+
+        @Override
+        public void close() throws IOException {
+            finish();
+            out.close();
+        }
+
+        private void writeFrame() throws IOException {
+            if (finished)
+                throw new IOException("Stream finished");
+            cipher.process(buffer, count);
+            cipher.mac(buffer, count, tag);
+            cipher.next();
+            out.writeInt(count);
+            out.write(buffer, 0, count);
+            out.write(tag);
+            count = 0;
+        }
+    }
+
+    /** Reads frames, failing on a forged, reordered or cut stream. */
+    static class FrameInputStream extends InputStream {
+        private final DataInputStream in;
+        private final FrameCipher cipher;
+        private final byte[] buffer = new byte[MAX_FRAME];
+        private final byte[] tag = new byte[MAC_LENGTH];
+        private final byte[] expected = new byte[MAC_LENGTH];
+        private int pos;
+        private int count;
+        private boolean eof;
+
+        FrameInputStream(InputStream in, FrameCipher cipher) {
+            this.in = new DataInputStream(in);
+            this.cipher = cipher;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill())
+                return -1;
+            return buffer[pos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (!fill())
+                return -1;
+            int n = Math.min(len, count - pos);
+            System.arraycopy(buffer, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return count - pos;
+        }
+
+        @Override
+        public void close() throws IOException {
+            cipher.destroy();
+            in.close();
+        }
+
+        private boolean fill() throws IOException {
+            while (pos == count) {
+                if (eof)
+                    return false;
+                readFrame();
+            }
+            return true;
+        }
+
+        private void readFrame() throws IOException {
+            int len;
+            try {
+                len = in.readInt();
+                if (len < 0 || len > MAX_FRAME)
+                    throw new IOException("Bad frame length " + len);
+                in.readFully(buffer, 0, len);
+                in.readFully(tag);
+            } catch (EOFException e) {
+                throw new IOException("Stream cut short");
+            }
+            cipher.mac(buffer, len, expected);
+            if (!MessageDigest.isEqual(tag, expected))
+                throw new IOException("Frame failed authentication");
+            cipher.process(buffer, len);
+            cipher.next();
+            pos = 0;
+            count = len;
+            if (len == 0) {
+                eof = true;
+                cipher.destroy();
+            }
+        }
+    }
+}
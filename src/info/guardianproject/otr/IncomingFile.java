@@ -0,0 +1,402 @@
+package info.guardianproject.otr;
+
+import info.guardianproject.bouncycastle.util.encoders.Hex;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A file being received, written straight to disk as it arrives. Chunks go
+ * to their place in a sparse partial file next to the target, in whatever
+ * order they come, and the SHA1 is computed on the way in so the finished
+ * file is checked mostly without being read back. Chunks that arrive ahead
+ * of a missing one are only remembered by position, and read back from disk
+ * for the hash once the gap is filled, so memory use does not grow with the
+ * file size or with how far ahead the chunks are.
+ * <p>
+ * Once every byte is in and the hash matches, {@link #finish()} moves the
+ * partial file over the target in one rename.
+ * <p>
+ * What is on disk is tracked in blocks of {@link #BLOCK_SIZE}, so an
+ * interrupted transfer can be picked up again from the partial file and the
+ * bitmap returned by {@link #sync()}: only the missing blocks need to be
+ * requested, and the blocks already there are hashed from disk as the
+ * transfer reaches them.
+ */
+public class IncomingFile {
+    /** The unit in which received data is tracked, see {@link #sync()}. */
+    public static final int BLOCK_SIZE = 4096;
+    private static final String PARTIAL_SUFFIX = ".part";
+    /* How much is read back at a time to be hashed */
+    private static final int READ_BUFFER_SIZE = 16 * BLOCK_SIZE;
+
+    private final File mTarget;
+    private final File mPartial;
+    private final long mLength;
+    private final String mSum;
+
+    private RandomAccessFile mFile;
+    private FileChannel mChannel;
+    private MessageDigest mDigest;
+    /* Bytes fed to the digest, all of them from the start of the file */
+    private long mHashed;
+    private long mReceived;
+    /* Where chunks written past mHashed start and end */
+    private final TreeMap<Long, Long> mAhead = new TreeMap<Long, Long>();
+    /* Blocks wholly on disk */
+    private final BitSet mBlocks = new BitSet();
+    private long mStreamPosition;
+    private ByteBuffer mReadBuffer;
+
+    /**
+     * @param sha1 the expected hash, in hex
+     * @throws IOException if the partial file cannot be created
+     */
+    public IncomingFile(File target, long length, String sha1) throws IOException {
+        if (length < 0)
+            throw new IllegalArgumentException("Invalid length " + length);
+        mTarget = target;
+        mLength = length;
+        mSum = sha1;
+        File dir = target.getAbsoluteFile().getParentFile();
+        dir.mkdirs();
+        mPartial = File.createTempFile(target.getName(), PARTIAL_SUFFIX, dir);
+        mFile = new RandomAccessFile(mPartial, "rw");
+        mFile.setLength(length);
+        mChannel = mFile.getChannel();
+        mDigest = newDigest();
+    }
+
+    /**
+     * Picks up a transfer from its partial file. The blocks already there
+     * are taken as received; the leading run of them is hashed right away.
+     * If the partial file is gone or does not fit, the transfer starts over
+     * in a new one.
+     *
+     * @param blocks the bitmap last returned by {@link #sync()}
+     */
+    public IncomingFile(File target, File partial, long length, String sha1, BitSet blocks)
+            throws IOException {
+        if (length < 0)
+            throw new IllegalArgumentException("Invalid length " + length);
+        mTarget = target;
+        mLength = length;
+        mSum = sha1;
+        mDigest = newDigest();
+        if (partial.isFile() && partial.length() == length) {
+            mPartial = partial;
+            mFile = new RandomAccessFile(mPartial, "rw");
+            mChannel = mFile.getChannel();
+            int count = getBlockCount();
+            for (int i = blocks.nextSetBit(0); i >= 0 && i < count; i = blocks.nextSetBit(i + 1)) {
+                mBlocks.set(i);
+                mReceived += getBlockEnd(i) - (long) i * BLOCK_SIZE;
+            }
+            try {
+                catchUp(0);
+            } catch (IOException e) {
+                mFile.close();
+                throw e;
+            }
+        } else {
+            partial.delete();
+            File dir = target.getAbsoluteFile().getParentFile();
+            dir.mkdirs();
+            mPartial = File.createTempFile(target.getName(), PARTIAL_SUFFIX, dir);
+            mFile = new RandomAccessFile(mPartial, "rw");
+            mFile.setLength(length);
+            mChannel = mFile.getChannel();
+        }
+    }
+
+    public File getTarget() {
+        return mTarget;
+    }
+
+    public long getLength() {
+        return mLength;
+    }
+
+    /** @return the file the data goes to until it is finished. */
+    public File getPartial() {
+        return mPartial;
+    }
+
+    /** @return the number of distinct bytes received so far. */
+    public synchronized long getReceived() {
+        return mReceived;
+    }
+
+    /** @return true once every byte is in. */
+    public synchronized boolean isComplete() {
+        return mHashed == mLength;
+    }
+
+    /**
+     * Stores a chunk at its place in the file. Chunks already received are
+     * ignored.
+     */
+    public synchronized void write(long position, byte[] data, int offset, int len)
+            throws IOException {
+        checkOpen();
+        if (position < 0 || len < 0 || position + len > mLength)
+            throw new IOException("Chunk " + position + "+" + len + " outside of " + mLength);
+        if (position < mHashed) {
+            // Only the part past what we have counts
+            long skip = Math.min(len, mHashed - position);
+            position += skip;
+            offset += skip;
+            len -= skip;
+        }
+        if (len == 0 || mAhead.containsKey(position) || isOnDisk(position, len))
+            return;
+
+        ByteBuffer buffer = ByteBuffer.wrap(data, offset, len);
+        long at = position;
+        while (buffer.hasRemaining())
+            at += mChannel.write(buffer, at);
+        mReceived += len;
+        markBlocks(position, position + len);
+
+        if (position == mHashed) {
+            mDigest.update(data, offset, len);
+            mHashed += len;
+            catchUp(position);
+        } else {
+            mAhead.put(position, position + len);
+        }
+    }
+
+    /**
+     * Moves the hashed frontier over the chunks that were waiting for it,
+     * and over blocks found on disk when the transfer was resumed.
+     *
+     * @param start where the frontier was before the chunk just written
+     */
+    private void catchUp(long start) throws IOException {
+        while (mHashed < mLength) {
+            Map.Entry<Long, Long> next = mAhead.firstEntry();
+            if (next != null && next.getKey() <= mHashed) {
+                mAhead.remove(next.getKey());
+                long end = next.getValue();
+                if (end > mHashed) {
+                    hashFromDisk(mHashed, end);
+                    mHashed = end;
+                }
+                continue;
+            }
+            int block = (int) (mHashed / BLOCK_SIZE);
+            if (!mBlocks.get(block))
+                break;
+            long end = getBlockEnd(block);
+            hashFromDisk(mHashed, end);
+            mHashed = end;
+        }
+        // Everything before the frontier is on disk
+        markBlocks(start - start % BLOCK_SIZE, mHashed);
+    }
+
+    private void hashFromDisk(long start, long end) throws IOException {
+        if (mReadBuffer == null)
+            mReadBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        long at = start;
+        while (at < end) {
+            mReadBuffer.clear();
+            mReadBuffer.limit((int) Math.min(mReadBuffer.capacity(), end - at));
+            while (mReadBuffer.hasRemaining()) {
+                int count = mChannel.read(mReadBuffer, at + mReadBuffer.position());
+                if (count < 0)
+                    throw new IOException("Partial file of " + mTarget.getName() + " is truncated");
+            }
+            mDigest.update(mReadBuffer.array(), 0, mReadBuffer.limit());
+            at += mReadBuffer.limit();
+        }
+    }
+
+    /* Marks the blocks wholly inside start..end, or reaching the end of the file */
+    private void markBlocks(long start, long end) {
+        int first = (int) ((start + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        int last = end == mLength ? getBlockCount() : (int) (end / BLOCK_SIZE);
+        if (first < last)
+            mBlocks.set(first, last);
+    }
+
+    private boolean isOnDisk(long position, int len) {
+        int first = (int) (position / BLOCK_SIZE);
+        int last = (int) ((position + len - 1) / BLOCK_SIZE);
+        int missing = mBlocks.nextClearBit(first);
+        return missing > last;
+    }
+
+    private int getBlockCount() {
+        return (int) ((mLength + BLOCK_SIZE - 1) / BLOCK_SIZE);
+    }
+
+    private long getBlockEnd(int block) {
+        return Math.min(mLength, (long) (block + 1) * BLOCK_SIZE);
+    }
+
+    /**
+     * Flushes the partial file to disk.
+     *
+     * @return the blocks that are safely on disk, to resume from.
+     */
+    public synchronized BitSet sync() throws IOException {
+        checkOpen();
+        mChannel.force(false);
+        return (BitSet) mBlocks.clone();
+    }
+
+    /** @return a stream writing the file in order from its start. */
+    public OutputStream openStream() {
+        synchronized (this) {
+            mStreamPosition = 0;
+        }
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                synchronized (IncomingFile.this) {
+                    IncomingFile.this.write(mStreamPosition, b, off, len);
+                    mStreamPosition += len;
+                }
+            }
+        };
+    }
+
+    /** Forgets everything received, to start over from the beginning. */
+    public synchronized void reset() throws IOException {
+        checkOpen();
+        clear();
+    }
+
+    /**
+     * Checks the hash and, if it matches, renames the partial file to the
+     * target.
+     *
+     * @return false if the hash does not match; what was received is then
+     *         forgotten as by {@link #reset()}, and the partial file kept
+     *         until {@link #abort()}.
+     * @throws IOException if the file is incomplete or cannot be moved.
+     */
+    public synchronized boolean finish() throws IOException {
+        checkOpen();
+        if (mHashed != mLength)
+            throw new IOException("Incomplete, " + mHashed + " of " + mLength);
+        String sum = new String(Hex.encode(mDigest.digest()));
+        if (!sum.equalsIgnoreCase(mSum)) {
+            clear();
+            return false;
+        }
+        mChannel.force(true);
+        close();
+        if (!mPartial.renameTo(mTarget)) {
+            mPartial.delete();
+            throw new IOException("Cannot rename to " + mTarget);
+        }
+        return true;
+    }
+
+    /** Closes and deletes the partial file. */
+    public synchronized void abort() {
+        if (mFile == null)
+            return;
+        try {
+            close();
+        } catch (IOException e) {
+            // Deleting anyway
+        }
+        mPartial.delete();
+    }
+
+    private void clear() {
+        mDigest = newDigest();
+        mHashed = 0;
+        mReceived = 0;
+        mAhead.clear();
+        mBlocks.clear();
+        mStreamPosition = 0;
+    }
+
+    /** Closes the partial file but keeps it, for the transfer to be resumed. */
+    public synchronized void suspend() {
+        if (mFile == null)
+            return;
+        try {
+            mChannel.force(false);
+            close();
+        } catch (IOException e) {
+            // Blocks that did not make it to disk will be asked for again
+        }
+    }
+
+    private void close() throws IOException {
+        RandomAccessFile file = mFile;
+        mFile = null;
+        mChannel = null;
+        mAhead.clear();
+        file.close();
+    }
+
+    private void checkOpen() throws IOException {
+        if (mFile == null)
+            throw new IOException("Transfer of " + mTarget.getName() + " is closed");
+    }
+
+    /** @return the blocks in the bitmap, one bit each, lowest first. */
+    public static byte[] encodeBlocks(BitSet blocks) {
+        byte[] bytes = new byte[(blocks.length() + 7) / 8];
+        for (int i = blocks.nextSetBit(0); i >= 0; i = blocks.nextSetBit(i + 1))
+            bytes[i / 8] |= 1 << (i % 8);
+        return bytes;
+    }
+
+    /** @return the bitmap of {@link #encodeBlocks(BitSet)}. */
+    public static BitSet decodeBlocks(byte[] bytes) {
+        BitSet blocks = new BitSet();
+        if (bytes == null)
+            return blocks;
+        for (int i = 0; i < bytes.length * 8; i++)
+            if ((bytes[i / 8] & (1 << (i % 8))) != 0)
+                blocks.set(i);
+        return blocks;
+    }
+
+    /**
+     * Deletes partial files in dir last written before the given time,
+     * left behind by transfers that were never resumed.
+     *
+     * @param keep partial files of transfers still going on
+     */
+    public static void deleteStalePartials(File dir, long before, Collection<File> keep) {
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+        for (File file : files)
+            if (file.getName().endsWith(PARTIAL_SUFFIX) && file.lastModified() < before
+                && !keep.contains(file))
+                file.delete();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
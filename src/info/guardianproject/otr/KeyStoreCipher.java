@@ -0,0 +1,286 @@
+package info.guardianproject.otr;
+
+import info.guardianproject.bouncycastle.crypto.InvalidCipherTextException;
+import info.guardianproject.bouncycastle.crypto.engines.AESFastEngine;
+import info.guardianproject.bouncycastle.crypto.modes.GCMBlockCipher;
+import info.guardianproject.bouncycastle.crypto.params.AEADParameters;
+import info.guardianproject.bouncycastle.crypto.params.KeyParameter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+
+import net.java.otr4j.crypto.CryptoBackend;
+import net.java.otr4j.crypto.CryptoBackends;
+import net.java.otr4j.crypto.OtrCryptoException;
+import net.java.otr4j.crypto.OtrRandom;
+
+/**
+ * Encrypts the key store with AES-256-GCM under a key derived from the store
+ * password with PBKDF2-HMAC-SHA256. The derivation is the slow part, and it
+ * runs once per distinct salt, so once per unlock: the store is read and
+ * written with the salt of whatever it last wrote. The key is kept in one
+ * array, which {@link #destroy()} clears.
+ * <p>
+ * Each encrypted blob, the snapshot and every journal record alike, is
+ * {@link #MAGIC}, a format version, the iteration count, the salt and a
+ * random nonce, then the ciphertext and tag; everything before the nonce is
+ * authenticated too. Blobs in the older openssl format, starting with
+ * "Salted__", are still read, and reported as not current so the journal
+ * rewrites them.
+ */
+public class KeyStoreCipher implements KeyStoreJournal.Codec {
+
+    /** PBKDF2 iterations for newly written stores, unless set otherwise. */
+    public static final int DEFAULT_ITERATIONS = 64000;
+
+    static final byte[] MAGIC = { 'O', 'T', 'R', 'K' };
+    private static final byte VERSION = 1;
+    private static final int SALT_LENGTH = 16;
+    private static final int NONCE_LENGTH = 12;
+    private static final int KEY_LENGTH = 32;
+    private static final int TAG_BITS = 128;
+    private static final int HEADER_LENGTH = MAGIC.length + 1 + 4 + SALT_LENGTH;
+    private static final int MIN_ITERATIONS = 1000;
+    private static final int MAX_ITERATIONS = 10000000;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String LEGACY_ALGORITHM = "PBEWITHMD5AND256BITAES-CBC-OPENSSL";
+    private static final int LEGACY_HEADER_LENGTH = OpenSSLPBECommon.OPENSSL_HEADER_STRING.length()
+                                                    + OpenSSLPBECommon.SALT_SIZE_BYTES;
+
+    private final char[] mPassword;
+    private final int mIterations;
+
+    // The salt, iteration count and key blobs are written with, null until
+    // the first is read or written. Guarded by this.
+    private byte[] mSalt;
+    private int mKeyIterations;
+    private byte[] mKey;
+    private boolean mDestroyed;
+    private int mDerivations;
+
+    /**
+     * @param password taken over, not copied: the cipher needs it for every
+     *            new salt, and {@link #destroy()} wipes it.
+     */
+    public KeyStoreCipher(char[] password) {
+        this(password, DEFAULT_ITERATIONS);
+    }
+
+    /**
+     * @param password as for {@link #KeyStoreCipher(char[])}.
+     * @param iterations PBKDF2 iterations for blobs we write.
+     */
+    public KeyStoreCipher(char[] password, int iterations) {
+        if (iterations < MIN_ITERATIONS || iterations > MAX_ITERATIONS)
+            throw new IllegalArgumentException("Illegal iteration count " + iterations);
+        mPassword = password;
+        mIterations = iterations;
+    }
+
+    public byte[] encrypt(byte[] plain) throws IOException {
+        byte[] header = new byte[HEADER_LENGTH];
+        byte[] key;
+        synchronized (this) {
+            if (mKey == null || mKeyIterations != mIterations) {
+                byte[] salt = new byte[SALT_LENGTH];
+                OtrRandom.getInstance().nextBytes(salt);
+                useKey(salt, mIterations, derive(salt, mIterations));
+            }
+            writeHeader(header, mSalt, mKeyIterations);
+            key = mKey.clone();
+        }
+
+        byte[] nonce = new byte[NONCE_LENGTH];
+        OtrRandom.getInstance().nextBytes(nonce);
+        try {
+            GCMBlockCipher gcm = createGcm(true, key, nonce, header);
+            byte[] result = new byte[HEADER_LENGTH + NONCE_LENGTH + gcm.getOutputSize(plain.length)];
+            System.arraycopy(header, 0, result, 0, HEADER_LENGTH);
+            System.arraycopy(nonce, 0, result, HEADER_LENGTH, NONCE_LENGTH);
+            int offset = HEADER_LENGTH + NONCE_LENGTH;
+            int length = gcm.processBytes(plain, 0, plain.length, result, offset);
+            gcm.doFinal(result, offset + length);
+            return result;
+        } catch (InvalidCipherTextException e) {
+            throw new IOException(e);
+        } finally {
+            Arrays.fill(key, (byte) 0);
+        }
+    }
+
+    public byte[] decrypt(byte[] encrypted) throws IOException {
+        if (isLegacy(encrypted))
+            return decryptLegacy(encrypted);
+        if (!isVersion(encrypted))
+            throw new IOException("unknown key store format");
+
+        byte[] header = Arrays.copyOf(encrypted, HEADER_LENGTH);
+        int iterations = ByteBuffer.wrap(header, MAGIC.length + 1, 4).getInt();
+        byte[] salt = Arrays.copyOfRange(header, HEADER_LENGTH - SALT_LENGTH, HEADER_LENGTH);
+        if (iterations < MIN_ITERATIONS || iterations > MAX_ITERATIONS)
+            throw new IOException("bad key store iteration count " + iterations);
+
+        byte[] key;
+        synchronized (this) {
+            if (mKey != null && mKeyIterations == iterations && Arrays.equals(mSalt, salt)) {
+                key = mKey.clone();
+            } else {
+                key = derive(salt, iterations);
+                // Write with the salt we read, unless ours is already current
+                if (mKey == null || (mKeyIterations != mIterations && iterations == mIterations))
+                    useKey(salt, iterations, key.clone());
+            }
+        }
+
+        byte[] nonce = Arrays.copyOfRange(encrypted, HEADER_LENGTH, HEADER_LENGTH + NONCE_LENGTH);
+        int offset = HEADER_LENGTH + NONCE_LENGTH;
+        try {
+            GCMBlockCipher gcm = createGcm(false, key, nonce, header);
+            byte[] plain = new byte[gcm.getOutputSize(encrypted.length - offset)];
+            int length = gcm.processBytes(encrypted, offset, encrypted.length - offset, plain, 0);
+            length += gcm.doFinal(plain, length);
+            return length == plain.length ? plain : Arrays.copyOf(plain, length);
+        } catch (InvalidCipherTextException e) {
+            throw new IOException("key store failed authentication, wrong password?");
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage());
+        } finally {
+            Arrays.fill(key, (byte) 0);
+        }
+    }
+
+    /** @return true for blobs in this format, written with the configured iteration count. */
+    public boolean isCurrent(byte[] encrypted) {
+        return isVersion(encrypted)
+               && ByteBuffer.wrap(encrypted, MAGIC.length + 1, 4).getInt() == mIterations;
+    }
+
+    /** Forgets the key and password; the cipher cannot be used afterwards. */
+    public synchronized void destroy() {
+        if (mKey != null)
+            Arrays.fill(mKey, (byte) 0);
+        mKey = null;
+        mSalt = null;
+        Arrays.fill(mPassword, '\0');
+        mDestroyed = true;
+    }
+
+    /** @return how many times the key was derived, for tests and benchmarks. */
+    synchronized int getDerivations() {
+        return mDerivations;
+    }
+
+    private void useKey(byte[] salt, int iterations, byte[] key) {
+        if (mKey != null)
+            Arrays.fill(mKey, (byte) 0);
+        mSalt = salt;
+        mKeyIterations = iterations;
+        mKey = key;
+    }
+
+    private static void writeHeader(byte[] header, byte[] salt, int iterations) {
+        System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+        header[MAGIC.length] = VERSION;
+        ByteBuffer.wrap(header, MAGIC.length + 1, 4).putInt(iterations);
+        System.arraycopy(salt, 0, header, HEADER_LENGTH - SALT_LENGTH, SALT_LENGTH);
+    }
+
+    private static GCMBlockCipher createGcm(boolean encrypt, byte[] key, byte[] nonce,
+            byte[] header) {
+        GCMBlockCipher gcm = new GCMBlockCipher(new AESFastEngine());
+        gcm.init(encrypt, new AEADParameters(new KeyParameter(key), TAG_BITS, nonce, header));
+        return gcm;
+    }
+
+    /** PBKDF2 with HMAC-SHA256, for one 32 byte block. Called with this locked. */
+    private byte[] derive(byte[] salt, int iterations) throws IOException {
+        if (mDestroyed)
+            throw new IOException("key store is locked");
+        mDerivations++;
+
+        byte[] password = encodePassword();
+        CryptoBackend.Hmac hmac = null;
+        try {
+            hmac = CryptoBackends.getHmac().createHmac("HmacSHA256", password);
+            byte[] u = new byte[KEY_LENGTH];
+            byte[] result = new byte[KEY_LENGTH];
+            hmac.update(salt, 0, salt.length);
+            hmac.update(new byte[] { 0, 0, 0, 1 }, 0, 4);
+            hmac.doFinal(u, 0);
+            System.arraycopy(u, 0, result, 0, KEY_LENGTH);
+            for (int i = 1; i < iterations; i++) {
+                hmac.update(u, 0, KEY_LENGTH);
+                hmac.doFinal(u, 0);
+                for (int j = 0; j < KEY_LENGTH; j++)
+                    result[j] ^= u[j];
+            }
+            Arrays.fill(u, (byte) 0);
+            return result;
+        } catch (OtrCryptoException e) {
+            throw new IOException(e);
+        } finally {
+            if (hmac != null)
+                hmac.destroy();
+            Arrays.fill(password, (byte) 0);
+        }
+    }
+
+    /** @return the password in UTF-8, without it passing through a String. */
+    private byte[] encodePassword() {
+        ByteBuffer encoded = UTF_8.encode(CharBuffer.wrap(mPassword));
+        byte[] password = new byte[encoded.remaining()];
+        encoded.get(password);
+        // The encoder's buffer may be larger than what it holds
+        if (encoded.hasArray())
+            Arrays.fill(encoded.array(), (byte) 0);
+        return password;
+    }
+
+    private static boolean isVersion(byte[] encrypted) {
+        if (encrypted.length < HEADER_LENGTH + NONCE_LENGTH + TAG_BITS / 8)
+            return false;
+        for (int i = 0; i < MAGIC.length; i++)
+            if (encrypted[i] != MAGIC[i])
+                return false;
+        return encrypted[MAGIC.length] == VERSION;
+    }
+
+    private static boolean isLegacy(byte[] encrypted) {
+        byte[] header = OpenSSLPBECommon.OPENSSL_HEADER_STRING.getBytes();
+        if (encrypted.length < LEGACY_HEADER_LENGTH)
+            return false;
+        for (int i = 0; i < header.length; i++)
+            if (encrypted[i] != header[i])
+                return false;
+        return true;
+    }
+
+    /** Reads the openssl enc format the store had before, MD5 key derivation and all. */
+    private byte[] decryptLegacy(byte[] encrypted) throws IOException {
+        byte[] salt = Arrays.copyOfRange(encrypted, OpenSSLPBECommon.OPENSSL_HEADER_STRING.length(),
+                LEGACY_HEADER_LENGTH);
+        char[] password;
+        synchronized (this) {
+            if (mDestroyed)
+                throw new IOException("key store is locked");
+            password = mPassword.clone();
+        }
+        try {
+            Cipher cipher = OpenSSLPBECommon.initializeCipher(password, salt, Cipher.DECRYPT_MODE,
+                    LEGACY_ALGORITHM, 1);
+            return cipher.doFinal(encrypted, LEGACY_HEADER_LENGTH, encrypted.length
+                                                                   - LEGACY_HEADER_LENGTH);
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        } finally {
+            Arrays.fill(password, '\0');
+        }
+    }
+}
@@ -0,0 +1,474 @@
+package info.guardianproject.otr;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps an encrypted {@link Properties} store on disk as a snapshot plus an
+ * append-only journal of changes, so that a change costs the encryption and
+ * write of that change alone rather than of the whole store.
+ * <p>
+ * The snapshot is the whole store, encrypted as one blob, the format key
+ * stores have always had; an existing store is loaded as a snapshot with an
+ * empty journal. The journal, next to it with a ".journal" suffix, starts
+ * with {@link #MAGIC} and holds records of an int length, the CRC32 of the
+ * encrypted bytes and the encrypted bytes, each record being the changes of
+ * one commit. A record cut short or with a bad checksum is a write that did
+ * not complete and is cut off when loading. Once the journal outgrows the
+ * snapshot, the snapshot is rewritten, by renaming over the old one, and the
+ * journal emptied; replaying a journal left over by a crash in between
+ * changes nothing, as its changes are all in the new snapshot.
+ * <p>
+ * Threads changing the store at once share a commit: while one writes and
+ * syncs a record, the changes of the others gather for the next one.
+ */
+public class KeyStoreJournal {
+
+    /** Encrypts the snapshot and journal records. */
+    public interface Codec {
+        byte[] encrypt(byte[] plain) throws IOException;
+
+        byte[] decrypt(byte[] encrypted) throws IOException;
+
+        /** @return false if encrypted should be rewritten, in a newer format say. */
+        boolean isCurrent(byte[] encrypted);
+    }
+
+    static final byte[] MAGIC = { 'O', 'T', 'R', 'J', 1 };
+
+    /** The journal is not compacted below this length, in bytes. */
+    static final long MIN_COMPACT_LENGTH = 32 * 1024;
+
+    private static final int MAX_RECORD = 16 * 1024 * 1024;
+    private static final byte OP_SET = 1;
+    private static final byte OP_REMOVE = 2;
+
+    private final File mSnapshot;
+    private final File mJournal;
+    private final Codec mCodec;
+    private final Properties mProperties;
+
+    private final Object mCommitLock = new Object();
+
+    // Changes not yet in a record, guarded by this
+    private final List<String[]> mPending = new ArrayList<String[]>();
+    private long mQueued;
+
+    // What we last saw on disk, guarded by mCommitLock
+    private long mCommitted;
+    private long mSnapshotLength = -1;
+    private long mSnapshotModified;
+    private long mJournalLength;
+    private int mRecords;
+    private boolean mStale;
+    private FileOutputStream mJournalOut;
+
+    public KeyStoreJournal(File snapshot, Codec codec, Properties properties) {
+        mSnapshot = snapshot;
+        mJournal = new File(snapshot.getPath() + ".journal");
+        mCodec = codec;
+        mProperties = properties;
+    }
+
+    /** Loads the snapshot and replays the journal into the properties. */
+    public void load() throws IOException {
+        synchronized (mCommitLock) {
+            Properties loaded = new Properties();
+            mStale = false;
+            readSnapshot(loaded);
+            replay(loaded, 0);
+            replaceProperties(loaded);
+            // Anything not written by the current codec is rewritten by it
+            if (mStale || shouldCompact())
+                compactLocked();
+        }
+    }
+
+    /**
+     * Loads what changed on disk since we last read or wrote it: nothing if
+     * it is what we wrote ourselves, the new records if only the journal
+     * grew, everything otherwise.
+     *
+     * @return true if the properties may have changed.
+     */
+    public boolean reload() throws IOException {
+        synchronized (mCommitLock) {
+            boolean snapshotSame = mSnapshot.length() == mSnapshotLength
+                                   && mSnapshot.lastModified() == mSnapshotModified;
+            long journalLength = mJournal.length();
+            if (snapshotSame && journalLength == mJournalLength)
+                return false;
+
+            closeJournal();
+            if (snapshotSame && journalLength > mJournalLength) {
+                Properties changes = new Properties();
+                Set<String> removed = new HashSet<String>();
+                replay(changes, removed, mJournalLength);
+                synchronized (this) {
+                    for (String key : removed)
+                        mProperties.remove(key);
+                    mProperties.putAll(changes);
+                    applyPending();
+                }
+                return true;
+            }
+
+            Properties loaded = new Properties();
+            readSnapshot(loaded);
+            replay(loaded, 0);
+            replaceProperties(loaded);
+            return true;
+        }
+    }
+
+    public void put(String key, String value) throws IOException {
+        long seq;
+        synchronized (this) {
+            mProperties.setProperty(key, value);
+            mPending.add(new String[] { key, value });
+            seq = ++mQueued;
+        }
+        commit(seq);
+    }
+
+    public void remove(String key) throws IOException {
+        long seq;
+        synchronized (this) {
+            mProperties.remove(key);
+            mPending.add(new String[] { key, null });
+            seq = ++mQueued;
+        }
+        commit(seq);
+    }
+
+    /** Rewrites the snapshot with the current properties and empties the journal. */
+    public void compact() throws IOException {
+        synchronized (mCommitLock) {
+            compactLocked();
+        }
+    }
+
+    public File getJournalFile() {
+        return mJournal;
+    }
+
+    long getJournalLength() {
+        synchronized (mCommitLock) {
+            return mJournalLength;
+        }
+    }
+
+    int getRecordCount() {
+        synchronized (mCommitLock) {
+            return mRecords;
+        }
+    }
+
+    /** Returns once the change numbered seq is on disk, writing it and any others queued. */
+    private void commit(long seq) throws IOException {
+        synchronized (mCommitLock) {
+            if (mCommitted >= seq)
+                return;
+
+            List<String[]> changes;
+            long last;
+            synchronized (this) {
+                changes = new ArrayList<String[]>(mPending);
+                mPending.clear();
+                last = mQueued;
+            }
+            try {
+                appendRecord(changes);
+            } catch (IOException e) {
+                // Keep them for the next commit
+                synchronized (this) {
+                    mPending.addAll(0, changes);
+                }
+                throw e;
+            }
+            mCommitted = last;
+
+            if (shouldCompact())
+                compactLocked();
+        }
+    }
+
+    private boolean shouldCompact() {
+        return mJournalLength > Math.max(MIN_COMPACT_LENGTH, mSnapshotLength);
+    }
+
+    private void compactLocked() throws IOException {
+        Properties copy;
+        long last;
+        synchronized (this) {
+            copy = new Properties();
+            copy.putAll(mProperties);
+            // Queued changes are in the copy, their records are redundant
+            mPending.clear();
+            last = mQueued;
+        }
+        writeAtomically(mSnapshot, encodeSnapshot(copy));
+        mSnapshotLength = mSnapshot.length();
+        mSnapshotModified = mSnapshot.lastModified();
+        mCommitted = last;
+
+        closeJournal();
+        new FileOutputStream(mJournal).close();
+        mJournalLength = 0;
+        mRecords = 0;
+        OtrDebugLogger.log("compacted key store journal");
+    }
+
+    private void appendRecord(List<String[]> changes) throws IOException {
+        if (changes.isEmpty())
+            return;
+
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(plain);
+        out.writeInt(changes.size());
+        for (String[] change : changes) {
+            out.writeByte(change[1] != null ? OP_SET : OP_REMOVE);
+            writeString(out, change[0]);
+            if (change[1] != null)
+                writeString(out, change[1]);
+        }
+        out.flush();
+        byte[] encrypted = mCodec.encrypt(plain.toByteArray());
+
+        CRC32 crc = new CRC32();
+        crc.update(encrypted);
+        ByteArrayOutputStream record = new ByteArrayOutputStream(encrypted.length + 13);
+        DataOutputStream recordOut = new DataOutputStream(record);
+        if (mJournalLength == 0)
+            recordOut.write(MAGIC);
+        recordOut.writeInt(encrypted.length);
+        recordOut.writeInt((int) crc.getValue());
+        recordOut.write(encrypted);
+        recordOut.flush();
+
+        if (mJournalOut == null)
+            mJournalOut = new FileOutputStream(mJournal, true);
+        try {
+            mJournalOut.write(record.toByteArray());
+            mJournalOut.getFD().sync();
+        } catch (IOException e) {
+            // Cut off whatever part made it, so later records are not lost behind it
+            closeJournal();
+            truncateJournal(mJournalLength);
+            throw e;
+        }
+        mJournalLength += record.size();
+        mRecords++;
+    }
+
+    private void readSnapshot(Properties into) throws IOException {
+        if (!mSnapshot.exists() || mSnapshot.length() == 0) {
+            if (mSnapshot.getParentFile() != null)
+                mSnapshot.getParentFile().mkdirs();
+            mSnapshotLength = mSnapshot.length();
+            mSnapshotModified = mSnapshot.lastModified();
+            return;
+        }
+        byte[] encrypted = readFully(mSnapshot);
+        mSnapshotLength = encrypted.length;
+        mSnapshotModified = mSnapshot.lastModified();
+        mStale |= !mCodec.isCurrent(encrypted);
+        into.load(new ByteArrayInputStream(mCodec.decrypt(encrypted)));
+    }
+
+    private void replay(Properties into, long offset) throws IOException {
+        replay(into, null, offset);
+    }
+
+    /**
+     * Applies the journal records from offset on to into, noting removed keys
+     * in removed if given, and cuts off a record that was not completely
+     * written.
+     */
+    private void replay(Properties into, Set<String> removed, long offset) throws IOException {
+        mRecords = offset == 0 ? 0 : mRecords;
+        mJournalLength = offset;
+        if (!mJournal.exists() || mJournal.length() <= offset)
+            return;
+
+        long good = offset;
+        DataInputStream in = new DataInputStream(new FileInputStream(mJournal));
+        try {
+            skipFully(in, offset);
+            if (offset == 0) {
+                byte[] magic = new byte[MAGIC.length];
+                in.readFully(magic);
+                if (!Arrays.equals(magic, MAGIC))
+                    throw new IOException("unknown key store journal format");
+                good = MAGIC.length;
+            }
+            while (true) {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if (length < 0 || length > MAX_RECORD)
+                    break;
+                byte[] encrypted = new byte[length];
+                in.readFully(encrypted);
+                CRC32 crc = new CRC32();
+                crc.update(encrypted);
+                if ((int) crc.getValue() != checksum)
+                    break;
+
+                mStale |= !mCodec.isCurrent(encrypted);
+                apply(new DataInputStream(new ByteArrayInputStream(mCodec.decrypt(encrypted))),
+                        into, removed);
+                good += 8 + length;
+                mRecords++;
+            }
+        } catch (EOFException e) {
+            // The end of the journal, or a record cut short
+        } finally {
+            in.close();
+        }
+
+        if (good < mJournal.length()) {
+            OtrDebugLogger.log("key store journal has an incomplete record, cutting it off");
+            truncateJournal(good);
+        }
+        mJournalLength = good;
+    }
+
+    private static void apply(DataInputStream in, Properties into, Set<String> removed)
+            throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            byte op = in.readByte();
+            String key = readString(in);
+            if (op == OP_SET) {
+                String value = readString(in);
+                into.setProperty(key, value);
+                if (removed != null)
+                    removed.remove(key);
+            } else if (op == OP_REMOVE) {
+                into.remove(key);
+                if (removed != null)
+                    removed.add(key);
+            } else {
+                throw new IOException("unknown key store journal operation " + op);
+            }
+        }
+    }
+
+    /** Makes the properties equal to loaded without emptying them on the way. */
+    private synchronized void replaceProperties(Properties loaded) {
+        for (Object key : new ArrayList<Object>(mProperties.keySet()))
+            if (!loaded.containsKey(key))
+                mProperties.remove(key);
+        for (Map.Entry<Object, Object> entry : loaded.entrySet())
+            mProperties.put(entry.getKey(), entry.getValue());
+        applyPending();
+    }
+
+    /** Changes not yet written are newer than anything read from disk. */
+    private void applyPending() {
+        for (String[] change : mPending) {
+            if (change[1] != null)
+                mProperties.setProperty(change[0], change[1]);
+            else
+                mProperties.remove(change[0]);
+        }
+    }
+
+    private byte[] encodeSnapshot(Properties properties) throws IOException {
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        properties.store(plain, null);
+        return mCodec.encrypt(plain.toByteArray());
+    }
+
+    private void closeJournal() {
+        if (mJournalOut != null) {
+            try {
+                mJournalOut.close();
+            } catch (IOException e) {
+                OtrDebugLogger.log("error closing key store journal", e);
+            }
+            mJournalOut = null;
+        }
+    }
+
+    private void truncateJournal(long length) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mJournal, "rw");
+        try {
+            file.setLength(length);
+            file.getFD().sync();
+        } finally {
+            file.close();
+        }
+    }
+
+    /** Writes data to a temporary file and renames it over file, so file is never half written. */
+    private static void writeAtomically(File file, byte[] data) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(data);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("could not replace " + file);
+        }
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        long length = file.length();
+        if (length > Integer.MAX_VALUE)
+            throw new IOException("key store too large");
+        byte[] data = new byte[(int) length];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(data);
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    private static void skipFully(InputStream in, long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0)
+                throw new EOFException();
+            n -= skipped;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes("UTF-8");
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_RECORD)
+            throw new IOException("bad key store journal string");
+        byte[] b = new byte[length];
+        in.readFully(b);
+        return new String(b, "UTF-8");
+    }
+}
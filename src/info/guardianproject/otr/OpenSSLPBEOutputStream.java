@@ -2,10 +2,11 @@ package info.guardianproject.otr;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.security.SecureRandom;
 
 import javax.crypto.Cipher;
 
+import net.java.otr4j.crypto.OtrRandom;
+
 public class OpenSSLPBEOutputStream extends OutputStream {
 
 private static final int BUFFER_SIZE = 5 * 1024 * 1024;
@@ -21,7 +22,7 @@ public OpenSSLPBEOutputStream(final OutputStream outputStream, String algIn, int
     try {
         /* Create and use a random SALT for each instance of this output stream. */
         byte[] salt = new byte[OpenSSLPBECommon.SALT_SIZE_BYTES];
-        new SecureRandom().nextBytes(salt);
+        OtrRandom.getInstance().nextBytes(salt);
         cipher = OpenSSLPBECommon.initializeCipher(password, salt, Cipher.ENCRYPT_MODE, algIn, iterationCount);
         /* Write header */
         writeHeader(salt);
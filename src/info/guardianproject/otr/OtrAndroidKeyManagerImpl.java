@@ -11,7 +11,6 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
@@ -32,12 +31,15 @@ import java.util.List;
 import java.util.Properties;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
 
 import net.java.otr4j.OtrKeyManager;
 import net.java.otr4j.OtrKeyManagerListener;
 import net.java.otr4j.OtrKeyManagerStore;
+import net.java.otr4j.crypto.KeyCache;
 import net.java.otr4j.crypto.OtrCryptoEngineImpl;
 import net.java.otr4j.crypto.OtrCryptoException;
+import net.java.otr4j.crypto.OtrRandom;
 import net.java.otr4j.session.SessionID;
 
 import org.jivesoftware.smack.util.Base64;
@@ -64,10 +66,22 @@ public class OtrAndroidKeyManagerImpl implements OtrKeyManager {
 
     private static final boolean REGENERATE_LOCAL_PUBLIC_KEY = false;
 
-    private SimplePropertiesStore store;
+    private final File mStoreFile;
+
+    // Replaced by a fresh one on every unlock, see lock()
+    private volatile SimplePropertiesStore store;
 
     private OtrCryptoEngineImpl cryptoEngine;
 
+    // Held so it is not collected, which would stop it watching
+    private FileObserver mObserver;
+
+    // Fingerprint and trust lookups happen for every message sent and
+    // received, so answer them from memory.  Decoded keys are cached by
+    // KeyCache.  Both are cleared whenever the store changes under us.
+    private final ConcurrentHashMap<String, String> mFingerprintCache = new ConcurrentHashMap<String, String>();
+    private final ConcurrentHashMap<String, Boolean> mVerifiedCache = new ConcurrentHashMap<String, Boolean>();
+
     private final static String KEY_ALG = "DSA";
     private final static int KEY_SIZE = 1024;
     private final static Version CURRENT_VERSION = new Version("2.0.0");
@@ -82,9 +96,18 @@ public class OtrAndroidKeyManagerImpl implements OtrKeyManager {
     
     private static String mKeyStorePassword = null;
     
-    public static void setKeyStorePassword (String keyStorePassword)
+    /** Sets the password of the key store, reopening it if it was locked. */
+    public static synchronized void setKeyStorePassword (String keyStorePassword)
     {
         mKeyStorePassword = keyStorePassword;
+
+        if (_instance != null && _instance.isLocked() && keyStorePassword != null) {
+            try {
+                _instance.reopen(keyStorePassword);
+            } catch (IOException e) {
+                LogCleaner.error(ImApp.LOG_TAG, "unable to reopen keystore", e);
+            }
+        }
     }
     
     public static synchronized OtrAndroidKeyManagerImpl getInstance(Context context)
@@ -93,34 +116,109 @@ public class OtrAndroidKeyManagerImpl implements OtrKeyManager {
         if (_instance == null && mKeyStorePassword != null) {
             File f = new File(context.getApplicationContext().getFilesDir(), FILE_KEYSTORE_ENCRYPTED);
             _instance = new OtrAndroidKeyManagerImpl(f,mKeyStorePassword);
+        } else if (_instance != null && _instance.isLocked() && mKeyStorePassword != null) {
+            _instance.reopen(mKeyStorePassword);
         }
 
         return _instance;
     }
 
+    /**
+     * Forgets the key store password, the key derived from it and everything
+     * decoded from the store, including the key pairs held by
+     * {@link KeyCache}. Called when CacheWord locks.
+     * <p>
+     * The instance itself stays, since the OTR engine holds on to it, but
+     * until the next unlock reopens the store, deriving the key anew, every
+     * read or write of it throws an {@link IllegalStateException}. In
+     * particular no key pair is loaded, so none is generated in its place.
+     */
+    public static synchronized void lock() {
+        mKeyStorePassword = null;
+        KeyCache.getInstance().clear();
+
+        if (_instance != null)
+            _instance.close();
+    }
+
+    /** @return true between {@link #lock()} and the next unlock. */
+    public boolean isLocked() {
+        return store.isDestroyed();
+    }
+
+    private synchronized void close() {
+        mObserver.stopWatching();
+        store.destroy();
+        invalidateTrustCache();
+    }
+
+    private synchronized void reopen(String password) throws IOException {
+        store = new SimplePropertiesStore(mStoreFile, password, false);
+        invalidateTrustCache();
+        mObserver.startWatching();
+        OtrDebugLogger.log("reopened key store after unlock");
+    }
+
     private OtrAndroidKeyManagerImpl(File filepath, String password) throws IOException {
+        this.mStoreFile = filepath;
         this.store = new SimplePropertiesStore(filepath, password, false);
         upgradeStore();
 
         cryptoEngine = new OtrCryptoEngineImpl();
         
-        FileObserver observer = new FileObserver(filepath.getCanonicalPath()) { // set up a file observer to watch this keystore
+        // Watch the directory, so the snapshot being renamed into place and
+        // the journal are both seen. Our own writes are ignored by reload().
+        mObserver = new FileObserver(filepath.getCanonicalFile().getParent(),
+                FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO | FileObserver.DELETE) {
             @Override
             public void onEvent(int event, String file) {
-                
+                if (!store.isStoreFile(file))
+                    return;
                 try
                 {
-                    OtrDebugLogger.log("reloading key store from disk b/c it changed");
-                    store.reload();
+                    if (store.reload()) {
+                        OtrDebugLogger.log("reloaded key store from disk b/c it changed");
+                        invalidateTrustCache();
+                    }
                 }
                 catch (Exception e){} 
                 
             }
         };
-        observer.startWatching(); // start the observer
+        mObserver.startWatching(); // start the observer
     
     }
     
+    private void invalidateTrustCache() {
+        mFingerprintCache.clear();
+        mVerifiedCache.clear();
+    }
+
+    private boolean getVerified(String pubKeyVerifiedToken) {
+        if (pubKeyVerifiedToken == null)
+            return false;
+
+        Boolean verified = mVerifiedCache.get(pubKeyVerifiedToken);
+        if (verified == null) {
+            verified = this.store.getPropertyBoolean(pubKeyVerifiedToken, false);
+            mVerifiedCache.put(pubKeyVerifiedToken, verified);
+        }
+        return verified;
+    }
+
+    private void setVerified(String pubKeyVerifiedToken, boolean verified) {
+        this.store.setProperty(pubKeyVerifiedToken, verified);
+        mVerifiedCache.put(pubKeyVerifiedToken, verified);
+    }
+
+    /** Drop the cached decoding of the account's current key pair, it is about to be replaced. */
+    private void forgetLocalKeyPair(String accountID) {
+        byte[] privKey = this.store.getPropertyBytes(accountID + ".privateKey");
+        byte[] pubKey = this.store.getPropertyBytes(accountID + ".publicKey");
+        if (privKey != null && pubKey != null)
+            KeyCache.getInstance().invalidate(privKey, pubKey);
+    }
+
     private void upgradeStore() {
         String version = store.getPropertyString("version");
 
@@ -155,6 +253,7 @@ public class OtrAndroidKeyManagerImpl implements OtrKeyManager {
                         
                     }
                     
+                    // One snapshot rather than a journal of the whole old store
                     store.save();
                     
                     fileOldKeystore.delete();
@@ -170,11 +269,18 @@ public class OtrAndroidKeyManagerImpl implements OtrKeyManager {
         }
     }
 
+    /**
+     * The key store. Our own store keeps its changes in a journal, see
+     * {@link KeyStoreJournal}, so that storing a key or a verification does
+     * not rewrite the whole store. Stores opened for import are only read.
+     */
     static class SimplePropertiesStore implements OtrKeyManagerStore {
         
         private Properties mProperties = new Properties();
         private File mStoreFile;
-        private String mPassword;
+        private KeyStoreCipher mCipher;
+        private KeyStoreJournal mJournal;
+        private volatile boolean mDestroyed;
 
         
         public SimplePropertiesStore(File storeFile) throws IOException {
@@ -194,17 +300,56 @@ public class OtrAndroidKeyManagerImpl implements OtrKeyManager {
             if (password == null)
                 throw new IOException ("invalid password");
              
-            mPassword = password;
-
-            if (isImportFromKeySync)
+            if (isImportFromKeySync) {
                 loadAES(password);
-            else
-                loadOpenSSL(password);
+            } else {
+                // CacheWord hands the password over as a String, the
+                // cipher's own copy at least is wiped on lock
+                mCipher = new KeyStoreCipher(password.toCharArray());
+                mJournal = new KeyStoreJournal(mStoreFile, mCipher, mProperties);
+                mJournal.load();
+            }
+        }
+
+        /**
+         * Picks up changes made on disk by someone else.
+         * 
+         * @return true if the store changed.
+         */
+        public boolean reload () throws IOException
+        {
+            return !mDestroyed && mJournal != null && mJournal.reload();
         }
 
-        public void reload () throws IOException
+        /**
+         * Wipes the key and forgets the properties. Reading or writing the
+         * store afterwards throws an {@link IllegalStateException}, rather
+         * than answering as if it were empty.
+         */
+        public void destroy ()
         {
-            loadOpenSSL(mPassword);
+            mDestroyed = true;
+            if (mCipher != null)
+                mCipher.destroy();
+            mProperties.clear();
+        }
+
+        public boolean isDestroyed ()
+        {
+            return mDestroyed;
+        }
+
+        private void checkOpen ()
+        {
+            if (mDestroyed)
+                throw new IllegalStateException("key store is locked");
+        }
+
+        /** @return true if name is that of one of the files of this store. */
+        public boolean isStoreFile (String name)
+        {
+            return name != null && mJournal != null
+                   && (name.equals(mStoreFile.getName()) || name.equals(mJournal.getJournalFile().getName()));
         }
         
         private void loadAES(final String password) throws IOException 
@@ -214,25 +359,36 @@ public class OtrAndroidKeyManagerImpl implements OtrKeyManager {
                 mProperties.load(new ByteArrayInputStream(decoded.getBytes()));
         }
 
+        private void store(String id, String value) {
+            checkOpen();
+            if (mJournal == null) {
+                mProperties.setProperty(id, value);
+                return;
+            }
+            try {
+                mJournal.put(id, value);
+            } catch (IOException e) {
+                LogCleaner.error(ImApp.LOG_TAG, "error saving keystore", e);
+            }
+        }
+
         public void setProperty(String id, String value) {
-            mProperties.setProperty(id, value);
-            
-            save();
+            store(id, value);
         }
         
 
         public void setProperty(String id, boolean value) {
-            mProperties.setProperty(id, Boolean.toString(value));
-            
-
-            save();
+            store(id, Boolean.toString(value));
         }
 
-        
+        /** Writes the whole store as a new snapshot and empties the journal. */
         public boolean save ()
         {
+            checkOpen();
+            if (mJournal == null)
+                return false;
             try {
-                saveOpenSSL (mPassword, mStoreFile);
+                mJournal.compact();
                 return true;
             } catch (IOException e) {
                 LogCleaner.error(ImApp.LOG_TAG, "error saving keystore", e);
@@ -242,6 +398,7 @@ public class OtrAndroidKeyManagerImpl implements OtrKeyManager {
         
         public boolean export (String password, File storeFile)
         {
+            checkOpen();
             try {
                 saveOpenSSL (password, storeFile);
                 return true;
@@ -266,59 +423,35 @@ public class OtrAndroidKeyManagerImpl implements OtrKeyManager {
 
         }
         
-        private void loadOpenSSL(String password) throws IOException
-        {
-            
-            if (!mStoreFile.exists())
-                return;
-            
-            if (mStoreFile.length() == 0)
-                return;
-            
-            FileInputStream fis = null;
-            
-            try {
-
-                fis = new FileInputStream(mStoreFile);
-
-                
-                // Decrypt the bytes
-                OpenSSLPBEInputStream encIS = new OpenSSLPBEInputStream(fis, STORE_ALGORITHM, 1, password.toCharArray());
-                
-                    mProperties.load(encIS);
-                
-            } catch (FileNotFoundException fnfe) {
-                OtrDebugLogger.log("Properties store file not found: First time?");
-                mStoreFile.getParentFile().mkdirs();
-
-
-            } 
-        }
-        
         public void setProperty(String id, byte[] value) {
-            mProperties.setProperty(id, new String(Base64.encodeBytes(value)));
-
-            save();
+            store(id, new String(Base64.encodeBytes(value)));
         }
 
         // Store as hex bytes
         public void setPropertyHex(String id, byte[] value) {
-            mProperties.setProperty(id, new String(Hex.encode(value)));
-
-
-            save();
+            store(id, new String(Hex.encode(value)));
         }
 
         public void removeProperty(String id) {
-            mProperties.remove(id);
-
+            checkOpen();
+            if (mJournal == null) {
+                mProperties.remove(id);
+                return;
+            }
+            try {
+                mJournal.remove(id);
+            } catch (IOException e) {
+                LogCleaner.error(ImApp.LOG_TAG, "error saving keystore", e);
+            }
         }
 
         public String getPropertyString(String id) {
+            checkOpen();
             return mProperties.getProperty(id);
         }
         
         public byte[] getPropertyBytes(String id) {
+            checkOpen();
             String value = mProperties.getProperty(id);
 
             if (value != null)
@@ -328,6 +461,7 @@ public class OtrAndroidKeyManagerImpl implements OtrKeyManager {
 
         // Load from hex bytes
         public byte[] getPropertyHexBytes(String id) {
+            checkOpen();
             String value = mProperties.getProperty(id);
 
             if (value != null)
@@ -336,6 +470,7 @@ public class OtrAndroidKeyManagerImpl implements OtrKeyManager {
         }
 
         public boolean getPropertyBoolean(String id, boolean defaultValue) {
+            checkOpen();
             try {
                 return Boolean.valueOf(mProperties.get(id).toString());
             } catch (Exception e) {
@@ -344,16 +479,19 @@ public class OtrAndroidKeyManagerImpl implements OtrKeyManager {
         }
 
         public boolean hasProperty(String id) {
+            checkOpen();
             return mProperties.containsKey(id);
         }
         
         public Enumeration<Object> getKeys ()
         {
+            checkOpen();
             return mProperties.keys();
         }
         
         public Set<Object> getKeySet ()
         {
+            checkOpen();
             return mProperties.keySet();
         }
     }
@@ -383,6 +521,8 @@ public class OtrAndroidKeyManagerImpl implements OtrKeyManager {
     }
 
     public void regenerateLocalPublicKey(KeyFactory factory, String accountID, DSAPrivateKey privKey) {
+        forgetLocalKeyPair(accountID);
+
         BigInteger x = privKey.getX();
         DSAParams params = privKey.getParams();
         BigInteger y = params.getG().modPow(x, params.getP());
@@ -404,7 +544,7 @@ public class OtrAndroidKeyManagerImpl implements OtrKeyManager {
         try {
 
             KeyPairGenerator kpg = KeyPairGenerator.getInstance(KEY_ALG);
-            kpg.initialize(KEY_SIZE);
+            kpg.initialize(KEY_SIZE, OtrRandom.getInstance());
 
             keyPair = kpg.genKeyPair();
         } catch (NoSuchAlgorithmException e) {
@@ -414,6 +554,8 @@ public class OtrAndroidKeyManagerImpl implements OtrKeyManager {
 
         OtrDebugLogger.log("SUCCESS! generating local key pair for: " + accountID);
 
+        forgetLocalKeyPair(accountID);
+
         // Store Private Key.
         PrivateKey privKey = keyPair.getPrivate();
         PKCS8EncodedKeySpec pkcs8EncodedKeySpec = new PKCS8EncodedKeySpec(privKey.getEncoded());
@@ -437,6 +579,7 @@ public class OtrAndroidKeyManagerImpl implements OtrKeyManager {
         } catch (OtrCryptoException e) {
             e.printStackTrace();
         }
+        mFingerprintCache.remove(accountID);
     }
     
     public void importKeyStore(File filePath, String password, boolean overWriteExisting, boolean deleteImportedFile) throws IOException
@@ -466,6 +609,8 @@ public class OtrAndroidKeyManagerImpl implements OtrKeyManager {
             
         }
 
+        invalidateTrustCache();
+
         if (deleteImportedFile)
             filePath.delete();
     }
@@ -502,10 +647,15 @@ public class OtrAndroidKeyManagerImpl implements OtrKeyManager {
     public String getRemoteFingerprint(String userId) {
         if (!Address.hasResource(userId))
             return null;
+        String cached = mFingerprintCache.get(userId);
+        if (cached != null)
+            return cached;
         byte[] fingerprint = this.store.getPropertyHexBytes(userId + ".fingerprint");
         if (fingerprint != null) {
             // If we have a fingerprint stashed, assume it is correct.
-            return new String(Hex.encode(fingerprint, 0, fingerprint.length));
+            String fingerprintString = new String(Hex.encode(fingerprint, 0, fingerprint.length));
+            mFingerprintCache.put(userId, fingerprintString);
+            return fingerprintString;
         }
         PublicKey remotePublicKey = loadRemotePublicKeyFromStore(userId);
         if (remotePublicKey == null)
@@ -514,6 +664,7 @@ public class OtrAndroidKeyManagerImpl implements OtrKeyManager {
             // Store the fingerprint, for posterity.
             String fingerprintString = new OtrCryptoEngineImpl().getFingerprint(remotePublicKey);
             this.store.setPropertyHex(userId + ".fingerprint", Hex.decode(fingerprintString));
+            mFingerprintCache.put(userId, fingerprintString.toLowerCase());
             return fingerprintString;
         } catch (OtrCryptoException e) {
             OtrDebugLogger.log("OtrCryptoException getting remote fingerprint",e);
@@ -539,7 +690,7 @@ public class OtrAndroidKeyManagerImpl implements OtrKeyManager {
         if (remoteFingerprint != null)
         {
             String pubKeyVerifiedToken = buildPublicKeyVerifiedId(userId, remoteFingerprint);
-            return this.store.getPropertyBoolean(pubKeyVerifiedToken, false);
+            return getVerified(pubKeyVerifiedToken);
         }
         else
         {
@@ -554,7 +705,7 @@ public class OtrAndroidKeyManagerImpl implements OtrKeyManager {
         String userId = Address.stripResource(fullUserId);
         String pubKeyVerifiedToken = buildPublicKeyVerifiedId(userId, getRemoteFingerprint(fullUserId));
 
-        return this.store.getPropertyBoolean(pubKeyVerifiedToken, false);
+        return getVerified(pubKeyVerifiedToken);
     }
 
     public KeyPair loadLocalKeyPair(SessionID sessionID) {
@@ -566,44 +717,37 @@ public class OtrAndroidKeyManagerImpl implements OtrKeyManager {
     }
 
     private KeyPair loadLocalKeyPair(String accountID) {
-        PublicKey publicKey;
-        PrivateKey privateKey;
-
-
-        try {
-            // Load Private Key.
-
-            byte[] b64PrivKey = this.store.getPropertyBytes(accountID + ".privateKey");
-            if (b64PrivKey == null)
-                return null;
-
-            PKCS8EncodedKeySpec privateKeySpec = new PKCS8EncodedKeySpec(b64PrivKey);
+        // Load Private Key.
 
-            // Generate KeyPair.
-            KeyFactory keyFactory;
-            keyFactory = KeyFactory.getInstance(KEY_ALG);
-            privateKey = keyFactory.generatePrivate(privateKeySpec);
+        byte[] b64PrivKey = this.store.getPropertyBytes(accountID + ".privateKey");
+        if (b64PrivKey == null)
+            return null;
 
-            if (REGENERATE_LOCAL_PUBLIC_KEY) {
+        if (REGENERATE_LOCAL_PUBLIC_KEY) {
+            try {
+                KeyFactory keyFactory = KeyFactory.getInstance(KEY_ALG);
+                PrivateKey privateKey = keyFactory.generatePrivate(new PKCS8EncodedKeySpec(b64PrivKey));
                 regenerateLocalPublicKey(keyFactory, accountID, (DSAPrivateKey)privateKey);
-            }
-            
-            // Load Public Key.
-            byte[] b64PubKey = this.store.getPropertyBytes(accountID + ".publicKey");
-            if (b64PubKey == null)
+            } catch (NoSuchAlgorithmException e) {
+                e.printStackTrace();
                 return null;
+            } catch (InvalidKeySpecException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
 
-            X509EncodedKeySpec publicKeySpec = new X509EncodedKeySpec(b64PubKey);
-            publicKey = keyFactory.generatePublic(publicKeySpec);
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
+        // Load Public Key.
+        byte[] b64PubKey = this.store.getPropertyBytes(accountID + ".publicKey");
+        if (b64PubKey == null)
             return null;
-        } catch (InvalidKeySpecException e) {
+
+        try {
+            return KeyCache.getInstance().getKeyPair(b64PrivKey, b64PubKey);
+        } catch (OtrCryptoException e) {
             e.printStackTrace();
             return null;
         }
-
-        return new KeyPair(publicKey, privateKey);
     }
 
     public PublicKey loadRemotePublicKey(SessionID sessionID) {
@@ -621,18 +765,9 @@ public class OtrAndroidKeyManagerImpl implements OtrKeyManager {
 
         }
 
-        X509EncodedKeySpec publicKeySpec = new X509EncodedKeySpec(b64PubKey);
-
-        // Generate KeyPair from spec
-        KeyFactory keyFactory;
         try {
-            keyFactory = KeyFactory.getInstance(KEY_ALG);
-
-            return keyFactory.generatePublic(publicKeySpec);
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-            return null;
-        } catch (InvalidKeySpecException e) {
+            return KeyCache.getInstance().getPublicKey(b64PubKey);
+        } catch (OtrCryptoException e) {
             e.printStackTrace();
             return null;
         }
@@ -655,9 +790,11 @@ public class OtrAndroidKeyManagerImpl implements OtrKeyManager {
             String fingerprintString = new OtrCryptoEngineImpl().getFingerprint(pubKey);
             String verifiedToken = buildPublicKeyVerifiedId(userId, fingerprintString.toLowerCase());
             if (!this.store.hasProperty(verifiedToken))
-                this.store.setProperty(verifiedToken, false);
+                setVerified(verifiedToken, false);
             this.store.setPropertyHex(userId + ".fingerprint", Hex.decode(fingerprintString));
+            mFingerprintCache.put(userId, fingerprintString.toLowerCase());
         } catch (OtrCryptoException e) {
+            mFingerprintCache.remove(userId);
             e.printStackTrace();
         }
     }
@@ -671,7 +808,7 @@ public class OtrAndroidKeyManagerImpl implements OtrKeyManager {
 
         String userId = sessionID.getUserID();
 
-        this.store.setProperty(buildPublicKeyVerifiedId(userId, getRemoteFingerprint(sessionID)), false);
+        setVerified(buildPublicKeyVerifiedId(userId, getRemoteFingerprint(sessionID)), false);
 
         for (OtrKeyManagerListener l : listeners)
             l.verificationStatusChanged(sessionID);
@@ -685,7 +822,7 @@ public class OtrAndroidKeyManagerImpl implements OtrKeyManager {
         if (!isVerifiedUser(userId))
             return;
 
-        this.store.setProperty(buildPublicKeyVerifiedId(userId, getRemoteFingerprint(userId)), false);
+        setVerified(buildPublicKeyVerifiedId(userId, getRemoteFingerprint(userId)), false);
 
         //	for (OtrKeyManagerListener l : listeners)
         //	l.verificationStatusChanged(sessionID);
@@ -701,8 +838,7 @@ public class OtrAndroidKeyManagerImpl implements OtrKeyManager {
 
         String userId = sessionID.getUserID();
 
-        this.store
-                .setProperty(buildPublicKeyVerifiedId(userId, getRemoteFingerprint(sessionID)), true);
+        setVerified(buildPublicKeyVerifiedId(userId, getRemoteFingerprint(sessionID)), true);
 
         for (OtrKeyManagerListener l : listeners)
             l.verificationStatusChanged(sessionID);
@@ -730,8 +866,7 @@ public class OtrAndroidKeyManagerImpl implements OtrKeyManager {
         if (this.isVerifiedUser(userId))
             return;
 
-        this.store
-                .setProperty(buildPublicKeyVerifiedId(userId, getRemoteFingerprint(userId)), true);
+        setVerified(buildPublicKeyVerifiedId(userId, getRemoteFingerprint(userId)), true);
 
         //for (OtrKeyManagerListener l : listeners)
         //l.verificationStatusChanged(userId);
@@ -8,16 +8,19 @@ import info.guardianproject.otr.app.im.engine.MessageListener;
 import java.util.ArrayList;
 import java.util.List;
 
+import net.java.otr4j.OtrEngineListener;
 import net.java.otr4j.OtrException;
-import net.java.otr4j.session.SessionStatus;
+import net.java.otr4j.session.ReceiveCallback;
+import net.java.otr4j.session.SessionID;
 import net.java.otr4j.session.TLV;
 
 public class OtrChatListener implements MessageListener {
 
-    public static final int TLV_DATA_REQUEST = 0x100;
-    public static final int TLV_DATA_RESPONSE = 0x101;
+    public static final int TLV_DATA_REQUEST = TLV.DATA_REQUEST;
+    public static final int TLV_DATA_RESPONSE = TLV.DATA_RESPONSE;
     private OtrChatManager mOtrChatManager;
     private MessageListener mMessageListener;
+    private OtrEngineListener mStatusListener;
 
     public OtrChatListener(OtrChatManager otrChatManager, MessageListener listener) {
         this.mOtrChatManager = otrChatManager;
@@ -25,38 +28,97 @@ public class OtrChatListener implements MessageListener {
     }
 
     @Override
-    public boolean onIncomingMessage(ChatSession session, Message msg) {
+    public boolean onIncomingMessage(final ChatSession session, final Message msg) {
 
         OtrDebugLogger.log("processing incoming message: " + msg.getID());
 
+        SessionID sessionId = session.getOtrSessionHandle(msg.getTo()).getSessionId();
+
+        listenForStatusChanges(session, sessionId);
+
+        // Decrypt on the conversation's own queue, so that other conversations
+        // are not held up behind this one and this one stays in order
+        mOtrChatManager.execute(sessionId, new Runnable() {
+            @Override
+            public void run() {
+                processIncomingMessage(session, msg);
+            }
+        });
+
+        return true;
+    }
+
+    /**
+     * The AKE finishes on the crypto pool after the message that completed
+     * it has been handled here, so status changes come from the engine.
+     */
+    private synchronized void listenForStatusChanges(final ChatSession session,
+            final SessionID sessionId) {
+        if (mStatusListener != null)
+            return;
+
+        mStatusListener = new OtrEngineListener() {
+            @Override
+            public void sessionStatusChanged(SessionID changed) {
+                // Any resource of the participant
+                if (changed.getAccountID().equals(sessionId.getAccountID())
+                        && changed.getUserID().equals(sessionId.getUserID()))
+                    mMessageListener.onStatusChanged(session);
+            }
+        };
+        mOtrChatManager.addOtrEngineListener(mStatusListener);
+    }
+
+    /** Stops following status changes, once the chat session is closed. */
+    public synchronized void dispose() {
+        if (mStatusListener != null) {
+            mOtrChatManager.removeOtrEngineListener(mStatusListener);
+            mStatusListener = null;
+        }
+    }
+
+    private void processIncomingMessage(final ChatSession session, final Message msg) {
         String body = msg.getBody();
         String from = msg.getFrom().getAddress();
-        String to = msg.getTo().getAddress();
-
-        SessionStatus otrStatus = mOtrChatManager.getSessionStatus(to, from);
+        OtrSessionHandle handle = session.getOtrSessionHandle(msg.getTo());
 
-        OtrDebugLogger.log("session status: " + otrStatus.name());
+        OtrDebugLogger.log("session status: " + handle.getStatus().name());
 
         List<TLV> tlvs = new ArrayList<TLV>();
 
         try {
             // No OTR for groups (yet)
             if (!session.getParticipant().isGroup()) {
-                body = mOtrChatManager.decryptMessage(to, from, body, tlvs);
+                // A message behind an AKE still being computed is delivered
+                // once it is done, this queue goes on to the next one
+                body = mOtrChatManager.decryptMessage(handle, from, body, tlvs,
+                        new ReceiveCallback() {
+                            public void messageReceived(SessionID sessionID, String plaintext,
+                                    List<TLV> received) {
+                                if (plaintext != null && plaintext.length() == 0)
+                                    plaintext = null;
+                                deliver(session, msg, plaintext, received);
+                            }
+
+                            public void messageFailed(SessionID sessionID, OtrException e) {
+                                deliverError(session, msg);
+                            }
+                        });
             }
-
-            if (body != null) {
-                msg.setBody(body);                 
-                mMessageListener.onIncomingMessage(session, msg);
-            }
-        
         } catch (OtrException e) {
-            
-            OtrDebugLogger.log("error decrypting message");                
-            msg.setBody("error decryption message body");
+            deliverError(session, msg);
+            return;
+        }
+
+        deliver(session, msg, body, tlvs);
+    }
+
+    private void deliver(ChatSession session, Message msg, String body, List<TLV> tlvs) {
+        if (body != null) {
+            msg.setBody(body);
             mMessageListener.onIncomingMessage(session, msg);
         }
-        
+
         for (TLV tlv : tlvs) {
             if (tlv.getType() == TLV_DATA_REQUEST) {
                 mMessageListener.onIncomingDataRequest(session, msg, tlv.getValue());
@@ -64,12 +126,12 @@ public class OtrChatListener implements MessageListener {
                 mMessageListener.onIncomingDataResponse(session, msg, tlv.getValue());
             }
         }
+    }
 
-        if (mOtrChatManager.getSessionStatus(to, from) != otrStatus) {
-            mMessageListener.onStatusChanged(session);
-        }
-        
-        return true;
+    private void deliverError(ChatSession session, Message msg) {
+        OtrDebugLogger.log("error decrypting message");
+        msg.setBody("error decryption message body");
+        mMessageListener.onIncomingMessage(session, msg);
     }
     
     @Override
@@ -89,6 +151,11 @@ public class OtrChatListener implements MessageListener {
         OtrDebugLogger.log("onSendMessageError: " + msg.toString());
     }
 
+    @Override
+    public void onMessageSent(ChatSession session, Message msg) {
+        mMessageListener.onMessageSent(session, msg);
+    }
+
     @Override
     public void onIncomingReceipt(ChatSession ses, String id) {
         mMessageListener.onIncomingReceipt(ses, id);
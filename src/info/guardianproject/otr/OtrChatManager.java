@@ -4,28 +4,42 @@ package info.guardianproject.otr;
 
 import info.guardianproject.otr.app.im.ImService;
 import info.guardianproject.otr.app.im.app.SmpResponseActivity;
+import info.guardianproject.otr.app.im.engine.ImErrorInfo;
 import info.guardianproject.otr.app.im.engine.Message;
+import info.guardianproject.otr.app.im.provider.Imps;
 import info.guardianproject.otr.app.im.service.ImConnectionAdapter;
 import info.guardianproject.otr.app.im.service.ImServiceConstants;
 
 import java.security.KeyPair;
 import java.security.PublicKey;
-import java.util.Hashtable;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 
 import net.java.otr4j.OtrEngineImpl;
 import net.java.otr4j.OtrEngineListener;
 import net.java.otr4j.OtrException;
 import net.java.otr4j.OtrKeyManager;
+import net.java.otr4j.OtrKeyManagerListener;
 import net.java.otr4j.OtrPolicy;
 import net.java.otr4j.OtrPolicyImpl;
+import net.java.otr4j.PendingMessageListener;
+import net.java.otr4j.crypto.CryptoBackends;
+import net.java.otr4j.crypto.DHKeyPairPool;
 import net.java.otr4j.session.OtrSm;
 import net.java.otr4j.session.OtrSm.OtrSmEngineHost;
+import net.java.otr4j.session.PendingMessage;
+import net.java.otr4j.session.ReceiveCallback;
+import net.java.otr4j.session.SerialSessionExecutor;
 import net.java.otr4j.session.Session;
 import net.java.otr4j.session.SessionID;
 import net.java.otr4j.session.SessionStatus;
 import net.java.otr4j.session.TLV;
 import android.content.Intent;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
 
 /*
  * OtrChatManager keeps track of the status of chats and their OTR stuff
@@ -37,8 +51,10 @@ public class OtrChatManager implements OtrEngineListener, OtrSmEngineHost {
 
     private OtrEngineHostImpl mOtrEngineHost;
     private OtrEngineImpl mOtrEngine;
-    private Hashtable<String, SessionID> mSessions;
-    private Hashtable<SessionID, OtrSm> mOtrSms;
+    private ConcurrentHashMap<String, SessionID> mSessions;
+    private ConcurrentHashMap<SessionID, OtrSm> mOtrSms;
+    private ConcurrentHashMap<String, OtrSessionHandle> mHandles;
+    private SerialSessionExecutor mExecutor;
 
     private ImService mContext;
 
@@ -50,10 +66,61 @@ public class OtrChatManager implements OtrEngineListener, OtrSmEngineHost {
         mOtrEngine = new OtrEngineImpl(mOtrEngineHost);
         mOtrEngine.addOtrEngineListener(this);
 
-        mSessions = new Hashtable<String, SessionID>();
-        mOtrSms = new Hashtable<SessionID, OtrSm>();
+        // Messages typed before the session went secure are queued by otr4j,
+        // tell the chat when each is sent encrypted or never makes it
+        mOtrEngine.setPendingMessageListener(new PendingMessageListener() {
+            public void pendingMessageSent(SessionID sessionID, PendingMessage message) {
+                if (!(message.getTag() instanceof Message))
+                    return;
+                Message sent = (Message) message.getTag();
+                sent.setType(getKeyManager().isVerified(sessionID)
+                        ? Imps.MessageType.OUTGOING_ENCRYPTED_VERIFIED
+                        : Imps.MessageType.OUTGOING_ENCRYPTED);
+                mOtrEngineHost.reportMessageSent(sessionID, sent);
+            }
+
+            public void pendingMessageDropped(SessionID sessionID, PendingMessage message,
+                    int reason) {
+                if (!(message.getTag() instanceof Message))
+                    return;
+                String error = reason == DROPPED_OVERFLOW
+                        ? "Too many messages waiting for encryption"
+                        : "Encryption could not be started";
+                mOtrEngineHost.reportSendError(sessionID, (Message) message.getTag(),
+                        new ImErrorInfo(ImErrorInfo.INVALID_SESSION_CONTEXT, error));
+            }
+        });
+
+        mSessions = new ConcurrentHashMap<String, SessionID>();
+        mOtrSms = new ConcurrentHashMap<SessionID, OtrSm>();
+        mHandles = new ConcurrentHashMap<String, OtrSessionHandle>();
+        mExecutor = SerialSessionExecutor.getInstance();
 
         mContext = context;
+
+        // Keep the verified flag of session handles current
+        otrKeyManager.addListener(new OtrKeyManagerListener() {
+            public void verificationStatusChanged(SessionID session) {
+                OtrSessionHandle handle = mHandles.get(getSessionKey(session));
+                if (handle != null)
+                    handle.setVerified(getKeyManager().isVerified(session));
+            }
+
+            public void remoteVerifiedUs(SessionID session) {
+            }
+        });
+
+        // Keep the calibrated AES and HMAC backends across restarts
+        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        CryptoBackends.setStore(new CryptoBackends.Store() {
+            public String load(String key) {
+                return prefs.getString(key, null);
+            }
+
+            public void save(String key, String value) {
+                prefs.edit().putString(key, value).commit();
+            }
+        });
     }
 
     public static synchronized OtrChatManager getInstance(int otrPolicy, ImService context, OtrKeyManager otrKeyManager)
@@ -62,6 +129,10 @@ public class OtrChatManager implements OtrEngineListener, OtrSmEngineHost {
             mInstance = new OtrChatManager(otrPolicy, context,otrKeyManager);
         }
 
+        // Start generating D-H key pairs before the first AKE needs one, also
+        // when the service comes back after shutting the pool down
+        DHKeyPairPool.getInstance().prefill();
+
         return mInstance;
     }
 
@@ -77,6 +148,10 @@ public class OtrChatManager implements OtrEngineListener, OtrSmEngineHost {
         mOtrEngine.addOtrEngineListener(oel);
     }
 
+    public void removeOtrEngineListener(OtrEngineListener oel) {
+        mOtrEngine.removeOtrEngineListener(oel);
+    }
+
     public void setPolicy(int otrPolicy) {
         mOtrEngineHost.setSessionPolicy(new OtrPolicyImpl(otrPolicy));
     }
@@ -103,17 +178,68 @@ public class OtrChatManager implements OtrEngineListener, OtrSmEngineHost {
     public SessionID getSessionId(String localUserId, String remoteUserId) {
         String sessionIdKey = processUserId(localUserId) + "+" + processUserId(remoteUserId);
 
-        SessionID sessionId = mSessions.get(sessionIdKey);
-        if (sessionId == null ||
-                (!sessionId.getFullUserID().equals(remoteUserId) &&
-                        remoteUserId.contains("/"))) {
+        while (true) {
+            SessionID sessionId = mSessions.get(sessionIdKey);
+            if (sessionId != null &&
+                    (sessionId.getFullUserID().equals(remoteUserId) ||
+                            !remoteUserId.contains("/")))
+                return sessionId;
+
             // Remote has changed (either different presence, or from generic JID to specific presence),
             // or we didn't have a session yet.
-            // Create or replace sessionId with one that is specific to the new presence.
-            sessionId = new SessionID(processUserId(localUserId), remoteUserId, "XMPP");
-            mSessions.put(sessionIdKey, sessionId);
+            // Create or replace sessionId with one that is specific to the new presence. Session IDs
+            // only differing in resource are equal, so the OTR session carries over and instance
+            // tags tell the presences apart.
+            SessionID newSessionId = new SessionID(processUserId(localUserId), remoteUserId, "XMPP");
+            if (sessionId == null) {
+                if (mSessions.putIfAbsent(sessionIdKey, newSessionId) == null)
+                    return newSessionId;
+            } else if (mSessions.replace(sessionIdKey, sessionId, newSessionId)) {
+                return newSessionId;
+            }
+            // Another thread got there first, look again
         }
-        return sessionId;
+    }
+
+    /**
+     * @return the handle a chat keeps for its OTR session, so that sending and
+     *         receiving need no lookups
+     */
+    public OtrSessionHandle getSessionHandle(String localUserId, String remoteUserId) {
+        String key = processUserId(localUserId) + "+" + processUserId(remoteUserId);
+        OtrSessionHandle handle = mHandles.get(key);
+        if (handle != null)
+            return handle;
+
+        SessionID sessionId = getSessionId(localUserId, remoteUserId);
+        if (remoteUserId.contains("/"))
+            mOtrEngineHost.putSessionResource(sessionId, processResource(remoteUserId));
+        OtrSessionHandle created = new OtrSessionHandle(sessionId, mOtrEngine.getSession(sessionId),
+                getKeyManager().isVerified(sessionId));
+        handle = mHandles.putIfAbsent(key, created);
+        return handle == null ? created : handle;
+    }
+
+    /** @return the session of a handle, looked up again if the engine evicted it */
+    public Session getSession(OtrSessionHandle handle) {
+        Session session = handle.getSession();
+        if (session.isDestroyed()) {
+            session = mOtrEngine.getSession(handle.getSessionId());
+            handle.setSession(session);
+        }
+        return session;
+    }
+
+    private static String getSessionKey(SessionID sessionId) {
+        return sessionId.getAccountID() + "+" + sessionId.getUserID();
+    }
+
+    /**
+     * Run a task after all tasks queued earlier for the same conversation.
+     * Tasks for different conversations run in parallel.
+     */
+    public void execute(SessionID sessionId, Runnable task) {
+        mExecutor.execute(sessionId, task);
     }
 
     /**
@@ -188,28 +314,36 @@ public class OtrChatManager implements OtrEngineListener, OtrSmEngineHost {
     }
 
     public String decryptMessage(String localUserId, String remoteUserId, String msg, List<TLV> tlvs) throws OtrException {
-        String plain = null;
+        return decryptMessage(getSessionHandle(localUserId, remoteUserId), remoteUserId, msg, tlvs);
+    }
 
-        SessionID sessionId = getSessionId(localUserId, remoteUserId);
-        OtrDebugLogger.log("session status: " + mOtrEngine.getSessionStatus(sessionId));
+    public String decryptMessage(OtrSessionHandle handle, String remoteUserId, String msg, List<TLV> tlvs) throws OtrException {
+        return decryptMessage(handle, remoteUserId, msg, tlvs, null);
+    }
 
-        if (mOtrEngine != null && sessionId != null) {
+    /**
+     * As {@link #decryptMessage(OtrSessionHandle, String, String, List)}, but
+     * a message that has to wait for the AKE is decrypted after it, and given
+     * to callback, instead of holding up the calling thread.
+     */
+    public String decryptMessage(OtrSessionHandle handle, String remoteUserId, String msg,
+            List<TLV> tlvs, ReceiveCallback callback) throws OtrException {
+        SessionID sessionId = handle.getSessionId();
+        if (remoteUserId.contains("/") && !remoteUserId.equals(sessionId.getFullUserID())) {
+            // The contact writes from another resource now
+            sessionId = getSessionId(sessionId.getAccountID(), remoteUserId);
+            handle.setSessionId(sessionId);
             mOtrEngineHost.putSessionResource(sessionId, processResource(remoteUserId));
-            plain = mOtrEngine.transformReceiving(sessionId, msg, tlvs);
-            OtrSm otrSm = mOtrSms.get(sessionId);
+        }
 
-            if (otrSm != null) {
-                List<TLV> smTlvs = otrSm.getPendingTlvs();
-                if (smTlvs != null) {
-                    String encrypted = mOtrEngine.transformSending(sessionId, "", smTlvs);
-                    mOtrEngineHost.injectMessage(sessionId, encrypted);
+        Session session = getSession(handle);
+        OtrDebugLogger.log("session status: " + session.getSessionStatus());
 
-                }
-            }
+        // SMP replies are computed and injected by OtrSm in the background
+        String plain = session.transformReceiving(msg, tlvs, callback);
 
-            if (plain != null && plain.length() == 0)
-                return null;
-        }
+        if (plain != null && plain.length() == 0)
+            return null;
         return plain;
     }
 
@@ -218,33 +352,75 @@ public class OtrChatManager implements OtrEngineListener, OtrSmEngineHost {
     }
     
     public void transformSending(Message message, boolean isResponse, byte[] data) {
-        String localUserId = message.getFrom().getAddress();
-        String remoteUserId = message.getTo().getAddress();
-        String body = message.getBody();
+        transformSending(getSessionHandle(message.getFrom().getAddress(), message.getTo().getAddress()),
+                message, isResponse, data);
+    }
 
-        SessionID sessionId = getSessionId(localUserId, remoteUserId);
+    public void transformSending(OtrSessionHandle handle, Message message) {
+        transformSending(handle, message, false, null);
+    }
+
+    public void transformSending(final OtrSessionHandle handle, final Message message,
+            final boolean isResponse, final byte[] data) {
+        if (mOtrEngine == null)
+            return;
+
+        final SessionID sessionId = handle.getSessionId();
+
+        // Wait our turn behind messages being decrypted for this conversation,
+        // so that sending and receiving never use the session keys at once
+        try {
+            mExecutor.invoke(sessionId, new Callable<Void>() {
+                @Override
+                public Void call() {
+                    transformSending(handle, sessionId, message, isResponse, data);
+                    return null;
+                }
+            });
+        } catch (ExecutionException e) {
+            OtrDebugLogger.log("error encrypting", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            OtrDebugLogger.log("interrupted while encrypting", e);
+        }
+    }
 
-        if (mOtrEngine != null && sessionId != null) {
-            SessionStatus sessionStatus = mOtrEngine.getSessionStatus(sessionId);
-            OtrDebugLogger.log("session status: " + sessionStatus);
+    private void transformSending(OtrSessionHandle handle, SessionID sessionId, Message message,
+            boolean isResponse, byte[] data) {
+        String body = message.getBody();
 
-            try {
-                OtrPolicy sessionPolicy = getSessionPolicy(sessionId);
+        Session session = getSession(handle);
+        SessionStatus sessionStatus = session.getSessionStatus();
+        OtrDebugLogger.log("session status: " + sessionStatus);
 
-                if (sessionStatus != SessionStatus.PLAINTEXT || sessionPolicy.getRequireEncryption()) {
-                    body = mOtrEngine.transformSending(sessionId, body, isResponse, data);
-                    message.setTo(mOtrEngineHost.appendSessionResource(sessionId, message.getTo()));
-                } else if (sessionStatus == SessionStatus.PLAINTEXT && sessionPolicy.getAllowV2()
-                           && sessionPolicy.getSendWhitespaceTag()) {
-                    // Work around asmack not sending whitespace tag for auto discovery
-                    body += " \t  \t\t\t\t \t \t \t   \t \t  \t   \t\t  \t ";
+        try {
+            OtrPolicy sessionPolicy = getSessionPolicy(sessionId);
 
+            if (sessionStatus != SessionStatus.PLAINTEXT || sessionPolicy.getRequireEncryption()) {
+                List<TLV> tlvs = null;
+                if (data != null) {
+                    tlvs = new ArrayList<TLV>(1);
+                    tlvs.add(new TLV(isResponse ? TLV.DATA_RESPONSE : TLV.DATA_REQUEST, data));
                 }
-            } catch (OtrException e) {
-                OtrDebugLogger.log("error encrypting", e);
+                // Null if the message waits for the AKE, the message is the tag
+                // that reports it should it be dropped
+                body = session.transformSending(body, tlvs, message);
+                message.setTo(mOtrEngineHost.appendSessionResource(sessionId, message.getTo()));
+            } else if (sessionStatus == SessionStatus.PLAINTEXT
+                       && (sessionPolicy.getAllowV2() || sessionPolicy.getAllowV3())
+                       && sessionPolicy.getSendWhitespaceTag()) {
+                // Work around asmack not sending whitespace tag for auto discovery
+                body += " \t  \t\t\t\t \t \t \t   \t \t  \t ";
+                if (sessionPolicy.getAllowV2())
+                    body += "  \t\t  \t ";
+                if (sessionPolicy.getAllowV3())
+                    body += "  \t\t  \t\t";
+
             }
+        } catch (OtrException e) {
+            OtrDebugLogger.log("error encrypting", e);
         }
-        
+
         message.setBody(body);
     }
 
@@ -260,6 +436,13 @@ public class OtrChatManager implements OtrEngineListener, OtrSmEngineHost {
         
         if (sStatus == SessionStatus.ENCRYPTED) {
 
+            // The session may have been started with an earlier resource of the
+            // contact, keys are stored against the current one
+            SessionID current = mSessions.get(getSessionKey(sessionID));
+            if (current != null && current.equals(sessionID))
+                sessionID = current;
+            mOtrEngineHost.putSessionResource(sessionID, processResource(sessionID.getFullUserID()));
+
             PublicKey remoteKey = mOtrEngine.getRemotePublicKey(sessionID);
             mOtrEngineHost.storeRemoteKey(sessionID, remoteKey);
 
@@ -267,22 +450,43 @@ public class OtrChatManager implements OtrEngineListener, OtrSmEngineHost {
                 // SMP handler - make sure we only add this once per session!
                 otrSm = new OtrSm(session, mOtrEngineHost.getKeyManager(),
                         sessionID, OtrChatManager.this);
-                session.addTlvHandler(otrSm);
-
-                mOtrSms.put(sessionID, otrSm);
+                otrSm.setExecutor(OtrSm.getSharedExecutor());
+                if (mOtrSms.putIfAbsent(sessionID, otrSm) == null)
+                    session.addTlvHandler(otrSm);
             }
         } else if (sStatus == SessionStatus.PLAINTEXT) {
-            if (otrSm != null) {
+            if (otrSm != null && mOtrSms.remove(sessionID, otrSm)) {
                 session.removeTlvHandler(otrSm);
-                mOtrSms.remove(sessionID);
+                otrSm.cancel();
             }
             mOtrEngineHost.removeSessionResource(sessionID);
         } else if (sStatus == SessionStatus.FINISHED) {
-            // Do nothing.  The user must take affirmative action to
-            // restart or end the session, so that they don't send
-            // plaintext by mistake.
+            // The user must take affirmative action to restart or end the
+            // session, so that they don't send plaintext by mistake.  SMP
+            // cannot continue though, and the handler would keep the session
+            // alive after the engine evicts it.
+            if (otrSm != null && mOtrSms.remove(sessionID, otrSm)) {
+                session.removeTlvHandler(otrSm);
+                otrSm.cancel();
+            }
+        }
+
+        OtrSessionHandle handle = mHandles.get(getSessionKey(sessionID));
+        if (handle != null) {
+            if (handle.getSession() != session)
+                handle.setSession(session);
+            handle.setStatus(sStatus);
+            handle.setVerified(getKeyManager().isVerified(sessionID));
         }
+    }
 
+    /**
+     * @return the OTR extra symmetric key of the conversation, or null if it
+     *         is not encrypted. The caller should wipe it after use.
+     */
+    public byte[] getExtraKey(String localUserId, String remoteUserId) {
+        Session session = mOtrEngine.getSession(getSessionId(localUserId, remoteUserId));
+        return session == null ? null : session.getExtraKey();
     }
 
     public String getLocalKeyFingerprint(String localUserId, String remoteUserId) {
@@ -319,6 +523,11 @@ public class OtrChatManager implements OtrEngineListener, OtrSmEngineHost {
         return mOtrEngineHost.getKeyPair(sessionID);
     }
 
+    @Override
+    public int getMaxFragmentSize(SessionID sessionID) {
+        return mOtrEngineHost.getMaxFragmentSize(sessionID);
+    }
+
     @Override
     public void askForSecret(SessionID sessionID, String question) {
 
@@ -338,34 +547,38 @@ public class OtrChatManager implements OtrEngineListener, OtrSmEngineHost {
 
     }
 
+    @Override
+    public void smpProgress(SessionID sessionID, int percent) {
+        OtrDebugLogger.log("verification of " + sessionID.getUserID() + ": " + percent + "%");
+    }
+
+    @Override
+    public void smpFinished(SessionID sessionID, int result) {
+        OtrDebugLogger.log("verification of " + sessionID.getUserID() + " finished: " + result);
+        if (result == OtrSm.RESULT_TIMED_OUT)
+            showWarning(sessionID, "Verification timed out");
+    }
+
     public void respondSmp(SessionID sessionID, String secret) throws OtrException {
         OtrSm otrSm = mOtrSms.get(sessionID);
 
-        List<TLV> tlvs;
-
         if (otrSm == null) {
             showError(sessionID, "Could not respond to verification because conversation is not encrypted");
             return;
         }
         
-        tlvs = otrSm.initRespondSmp(null, secret, false);
-        String encrypted = mOtrEngine.transformSending(sessionID, "", tlvs);
-        mOtrEngineHost.injectMessage(sessionID, encrypted);
+        otrSm.respondSmp(secret);
     }
 
     public void initSmp(SessionID sessionID, String question, String secret) throws OtrException {
         OtrSm otrSm = mOtrSms.get(sessionID);
 
-        List<TLV> tlvs;
-
         if (otrSm == null) {
             showError(sessionID, "Could not perform verification because conversation is not encrypted");
             return;
         }
         
-        tlvs = otrSm.initRespondSmp(question, secret, true);
-        String encrypted = mOtrEngine.transformSending(sessionID, "", tlvs);
-        mOtrEngineHost.injectMessage(sessionID, encrypted);
+        otrSm.startSmp(question, secret);
     }
 
     public void abortSmp(SessionID sessionID) throws OtrException {
@@ -374,9 +587,7 @@ public class OtrChatManager implements OtrEngineListener, OtrSmEngineHost {
         if (otrSm == null)
             return;
 
-        List<TLV> tlvs = otrSm.abortSmp();
-        String encrypted = mOtrEngine.transformSending(sessionID, "", tlvs);
-        mOtrEngineHost.injectMessage(sessionID, encrypted);
+        otrSm.abort();
     }
 
 }
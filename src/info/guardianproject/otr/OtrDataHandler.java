@@ -1,5 +1,6 @@
 package info.guardianproject.otr;
 
+import info.guardianproject.bouncycastle.util.encoders.Hex;
 import info.guardianproject.otr.app.im.app.ImApp;
 import info.guardianproject.otr.app.im.engine.Address;
 import info.guardianproject.otr.app.im.engine.ChatSession;
@@ -12,15 +13,29 @@ import info.guardianproject.util.SystemServices;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import net.java.otr4j.crypto.OtrRandom;
 
 import org.apache.http.HttpException;
 import org.apache.http.HttpMessage;
@@ -54,20 +69,39 @@ import android.util.Log;
 
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
 import com.google.common.collect.Maps;
-import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 
 public class OtrDataHandler implements DataHandler {
     public static final String URI_PREFIX_OTR_IN_BAND = "otr-in-band:/storage/";
-    private static final int MAX_OUTSTANDING = 3;
     private static final int MAX_CHUNK_LENGTH = 32768;
 
     private static final int MAX_TRANSFER_LENGTH = 1024*1024*64;
 
+    /* Where the sender serves the file directly, see DirectTransfer */
+    private static final String HEADER_DIRECT_ADDRESS = "Direct-Address";
+    private static final String HEADER_DIRECT_NONCE = "Direct-Nonce";
+
     private static final byte[] EMPTY_BODY = new byte[0];
 
+    /* How often the progress of a transfer is saved, and how long an interrupted one is kept */
+    private static final long SAVE_INTERVAL = 2000;
+    private static final long MAX_TRANSFER_AGE = 7 * 24 * 3600 * 1000L;
+
     private static final String TAG = "GB.OtrDataHandler";
     
+    private static ScheduledExecutorService sTimer;
+
+    /* Direct transfers block on sockets, so they get threads of their own.
+       Servers wait in accept() for the peer, so they have a pool apart from
+       our fetches, which would otherwise queue up behind them */
+    private static final int MAX_DIRECT_TRANSFERS = 4;
+    private static ExecutorService sServeExecutor;
+    private static ExecutorService sFetchExecutor;
+
     private static final ProtocolVersion PROTOCOL_VERSION = new ProtocolVersion("HTTP", 1, 1);
     private static HttpParams params = new BasicHttpParams();
     private static HttpRequestFactory requestFactory = new MyHttpRequestFactory();
@@ -78,10 +112,27 @@ public class OtrDataHandler implements DataHandler {
     private ChatSession mChatSession;
 
     private DataListener mDataListener;
+    private TransferStore mTransferStore;
+    private volatile boolean mDirectTransfer;
 
-    public OtrDataHandler(ChatSession chatSession, DataListener dataListener) {
+    /**
+     * @param transferStore where transfers are kept to be resumed, or null
+     *            to forget them when the session ends
+     */
+    public OtrDataHandler(ChatSession chatSession, DataListener dataListener,
+            TransferStore transferStore) {
         this.mChatSession = chatSession;
         this.mDataListener = dataListener;
+        this.mTransferStore = transferStore;
+    }
+
+    /**
+     * Allows files to be sent and fetched directly over the local network,
+     * see {@link DirectTransfer}. Off by default, since it tells the peer our
+     * local address and connects to theirs outside any proxy.
+     */
+    public void setDirectTransferEnabled(boolean enabled) {
+        mDirectTransfer = enabled;
     }
 
     public static class MyHttpRequestFactory implements HttpRequestFactory {
@@ -169,16 +220,48 @@ public class OtrDataHandler implements DataHandler {
                 type = req.getFirstHeader("Mime-Type").getValue();
             }
             debug("Incoming sha1sum " + sum);
-            Transfer transfer = new Transfer(url, type, length, us, sum);
+            Address from = mChatSession.getParticipant().getAddress();
+            // Offered again, as after a reconnect: go on from what we have
+            Transfer old = transferCache.getIfPresent(url);
+            if (old != null)
+                old.suspend();
+            TransferStore.Record record = null;
+            if (mTransferStore != null) {
+                record = mTransferStore.get(TransferStore.INCOMING, url);
+                if (record != null && (!sum.equalsIgnoreCase(record.sum) || record.length != length)) {
+                    discard(record);
+                    record = null;
+                }
+            }
+            Transfer transfer;
+            try {
+                if (record != null)
+                    transfer = new Transfer(record, us);
+                else
+                    transfer = new Transfer(url, type, length, us, sum,
+                            mDataListener.getTransferFile(from, url));
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot save " + url, e);
+                mDataListener.onTransferFailed(from, url, "cannot save");
+                return;
+            }
             transferCache.put(url, transfer);
+            transfer.save(true);
             // Handle offer
             // TODO ask user to confirm we want this
-            transfer.perform();
+            if (record != null)
+                start(transfer);
+            else if (mDirectTransfer && req.containsHeader(HEADER_DIRECT_ADDRESS)
+                     && req.containsHeader(HEADER_DIRECT_NONCE))
+                fetchDirect(us, transfer, req.getFirstHeader(HEADER_DIRECT_ADDRESS).getValue(),
+                        req.getFirstHeader(HEADER_DIRECT_NONCE).getValue());
+            else
+                transfer.perform();
         } else if (requestMethod.equals("GET") && url.startsWith(URI_PREFIX_OTR_IN_BAND)) {
             debug("incoming GET " + url);
-            ByteArrayOutputStream byteBuffer = new ByteArrayOutputStream();
+            byte[] body;
             try {
-                Offer offer = offerCache.getIfPresent(url);
+                Offer offer = getOffer(url);
                 if (offer == null) {
                     sendResponse(us, 400, "No such offer made", uid, EMPTY_BODY);
                     return;
@@ -205,22 +288,25 @@ public class OtrDataHandler implements DataHandler {
 
                 int start = Integer.parseInt(startEnd[0]);
                 int end = Integer.parseInt(startEnd[1]);
+                if (start < 0 || end < start) {
+                    sendResponse(us, 400, "Range must be START-END", uid, EMPTY_BODY);
+                    return;
+                }
                 if (end - start + 1 > MAX_CHUNK_LENGTH) {
                     sendResponse(us, 400, "Range must be at most " + MAX_CHUNK_LENGTH, uid, EMPTY_BODY);
                     return;
                 }
-                FileInputStream is = new FileInputStream(offer.getUri());
-                readIntoByteBuffer(byteBuffer, is, start, end);
-            } catch (UnsupportedEncodingException e) {
-                throw new RuntimeException(e);
+                body = offer.getFile().read(start, end - start + 1);
             } catch (IOException e) {
-                throw new RuntimeException(e);
+                debug("Cannot serve " + url + ": " + e);
+                sendResponse(us, 400, "No such offer made", uid, EMPTY_BODY);
+                return;
             } catch (NumberFormatException e) {
                 sendResponse(us, 400, "Range is not numeric", uid, EMPTY_BODY);
                 return;
             }
-            byte[] body = byteBuffer.toByteArray();
-            debug("Sent sha1 is " + sha1sum(body));
+            if (Debug.DEBUG_ENABLED)
+                debug("Sent sha1 is " + sha1sum(body));
             sendResponse(us, 200, "OK", uid, body);
         } else {
             debug("Unknown method / url " + requestMethod + " " + url);
@@ -228,25 +314,6 @@ public class OtrDataHandler implements DataHandler {
         }
     }
 
-    private void readIntoByteBuffer(ByteArrayOutputStream byteBuffer, FileInputStream is, int start, int end)
-            throws IOException {
-        if (start != is.skip(start)) {
-            return;
-        }
-        int size = end - start + 1;
-        int buffersize = 1024;
-        byte[] buffer = new byte[buffersize];
-
-        int len = 0;
-        while((len = is.read(buffer)) != -1){
-            if (len > size) {
-                len = size;
-            }
-            byteBuffer.write(buffer, 0, len);
-            size -= len;
-        }
-    }
-
     private void readIntoByteBuffer(ByteArrayOutputStream byteBuffer, SessionInputBuffer sib)
             throws IOException {
         int buffersize = 1024;
@@ -308,7 +375,15 @@ public class OtrDataHandler implements DataHandler {
         int statusCode = res.getStatusLine().getStatusCode();
         if (statusCode != 200) {
             debug("got status " + statusCode + ": " + res.getStatusLine().getReasonPhrase());
-            // TODO handle error
+            Transfer transfer = request.method.equals("GET") ? transferCache.getIfPresent(request.url) : null;
+            if (transfer == null) {
+                // TODO handle error
+                return;
+            }
+            if (statusCode == 429 || statusCode == 503)
+                transfer.chunkThrottled(request);
+            else
+                transfer.fail("error " + statusCode);
             return;
         }
 
@@ -316,44 +391,161 @@ public class OtrDataHandler implements DataHandler {
         try {
             ByteArrayOutputStream byteBuffer = new ByteArrayOutputStream();
             readIntoByteBuffer(byteBuffer, buffer);
-            debug("Received sha1 @" + request.start + " is " + sha1sum(byteBuffer.toByteArray()));
+            if (Debug.DEBUG_ENABLED)
+                debug("Received sha1 @" + request.start + " is " + sha1sum(byteBuffer.toByteArray()));
             if (request.method.equals("GET")) {
                 Transfer transfer = transferCache.getIfPresent(request.url);
                 if (transfer == null) {
                     debug("Transfer expired for url " + request.url);
                     return;
                 }
-                transfer.chunkReceived(request, byteBuffer.toByteArray());
+                if (!transfer.chunkReceived(request, byteBuffer.toByteArray())) {
+                    debug("Already received " + request.start + "-" + request.end);
+                    return;
+                }
                 if (transfer.isDone()) {
-                    byte[] data = transfer.getData();
-                    debug("Transfer complete for " + request.url);
-                    if (transfer.checkSum()) {
-                        debug("Received file len=" + data.length + " sha1=" + sha1sum(data));
-
-                        mDataListener.onTransferComplete(
-                                mChatSession.getParticipant().getAddress(),
-                                transfer.url,
-                                transfer.type,
-                                data);
-                    } else {
-                        mDataListener.onTransferFailed(
-                                mChatSession.getParticipant().getAddress(),
-                                transfer.url,
-                                "checksum");
-                        Log.e(TAG, "Wrong checksum for file len= " + data.length + " sha1=" + sha1sum(data));
-                    }
+                    complete(transfer);
                 } else {
-                    mDataListener.onTransferProgress(mChatSession.getParticipant().getAddress(), transfer.url, 
-                            ((float)transfer.chunksReceived) / transfer.chunks);
+                    int percent = transfer.updateProgress();
+                    if (percent >= 0)
+                        mDataListener.onTransferProgress(mChatSession.getParticipant().getAddress(), transfer.url, 
+                                percent / 100f);
+                    transfer.save(false);
                     transfer.perform();
-                    debug("Progress " + transfer.chunksReceived + " / " + transfer.chunks);
                 }
             }
         } catch (IOException e) {
-            debug("Could not read line from response");
+            debug("Could not save response to " + request.url + ": " + e);
+            Transfer transfer = transferCache.getIfPresent(request.url);
+            if (transfer != null)
+                transfer.fail("cannot save");
         }
     }
 
+    private void complete(Transfer transfer) throws IOException {
+        debug("Transfer complete for " + transfer.url);
+        boolean verified = transfer.file.finish();
+        transferCache.invalidate(transfer.url);
+        if (verified) {
+            debug("Received file len=" + transfer.length + " sha1=" + transfer.getSum());
+
+            mDataListener.onTransferComplete(
+                    mChatSession.getParticipant().getAddress(),
+                    transfer.url,
+                    transfer.type,
+                    transfer.file.getTarget());
+        } else {
+            mDataListener.onTransferFailed(
+                    mChatSession.getParticipant().getAddress(),
+                    transfer.url,
+                    "checksum");
+            Log.e(TAG, "Wrong checksum for file len= " + transfer.length);
+        }
+    }
+
+    /** Requests what is missing of a transfer, or finishes it if nothing is. */
+    private void start(Transfer transfer) {
+        if (!transfer.isDone()) {
+            transfer.perform();
+            return;
+        }
+        try {
+            complete(transfer);
+        } catch (IOException e) {
+            debug("Could not finish " + transfer.url + ": " + e);
+            transfer.fail("cannot save");
+        }
+    }
+
+    /**
+     * Picks up the transfers from the peer where they were interrupted, once
+     * a new OTR session is up. Requests made in the old session are taken as
+     * lost, and only the blocks not yet received are requested again.
+     * Transfers interrupted for too long are dropped, along with their
+     * partial files.
+     */
+    @Override
+    public void resumeTransfers(final Address us) {
+        if (mTransferStore == null)
+            return;
+        getTimer().execute(new Runnable() {
+            public void run() {
+                for (Transfer transfer : new ArrayList<Transfer>(transferCache.asMap().values()))
+                    transfer.suspend();
+
+                long now = System.currentTimeMillis();
+                List<File> partials = new ArrayList<File>();
+                for (TransferStore.Record record : mTransferStore.load()) {
+                    if (now - record.updated > MAX_TRANSFER_AGE) {
+                        discard(record);
+                        continue;
+                    }
+                    if (record.direction != TransferStore.INCOMING)
+                        continue;
+                    partials.add(new File(record.path));
+                    Transfer transfer;
+                    try {
+                        transfer = new Transfer(record, us);
+                    } catch (IOException e) {
+                        debug("Cannot resume " + record.url + ": " + e);
+                        discard(record);
+                        continue;
+                    }
+                    debug("Resuming " + record.url);
+                    transferCache.put(record.url, transfer);
+                    transfer.save(true);
+                    start(transfer);
+                }
+
+                // Partial files of transfers that were never saved or resumed
+                File dir = mDataListener.getTransferFile(mChatSession.getParticipant().getAddress(),
+                        URI_PREFIX_OTR_IN_BAND).getParentFile();
+                IncomingFile.deleteStalePartials(dir, now - MAX_TRANSFER_AGE, partials);
+            }
+        });
+    }
+
+    /** Forgets a stored transfer, deleting what was received of it. */
+    private void discard(TransferStore.Record record) {
+        if (record.direction == TransferStore.INCOMING && record.path != null)
+            new File(record.path).delete();
+        mTransferStore.delete(record.direction, record.url);
+    }
+
+    /** @return the offer of the url, reopened if it was made before a restart. */
+    private Offer getOffer(final String url) {
+        Offer offer = offerCache.getIfPresent(url);
+        if (offer != null || mTransferStore == null)
+            return offer;
+        try {
+            return offerCache.get(url, new Callable<Offer>() {
+                public Offer call() throws IOException {
+                    return reopenOffer(url);
+                }
+            });
+        } catch (ExecutionException e) {
+            debug("Cannot reopen offer " + url + ": " + e.getCause());
+        } catch (UncheckedExecutionException e) {
+            debug("Cannot reopen offer " + url + ": " + e.getCause());
+        }
+        return null;
+    }
+
+    private Offer reopenOffer(String url) throws IOException {
+        TransferStore.Record record = mTransferStore.get(TransferStore.OUTGOING, url);
+        if (record == null || System.currentTimeMillis() - record.updated > MAX_TRANSFER_AGE)
+            throw new IOException("No such offer made");
+        OutgoingFile file = new OutgoingFile(new File(record.path));
+        if (!file.getSum().equalsIgnoreCase(record.sum)) {
+            // Changed since it was offered, the peer would get a mix
+            file.close();
+            mTransferStore.delete(TransferStore.OUTGOING, url);
+            throw new IOException(record.path + " changed since offered");
+        }
+        debug("Reopened offer " + url);
+        return new Offer(file);
+    }
+
     /**
      * @param headers may be null 
      */
@@ -364,24 +556,131 @@ public class OtrDataHandler implements DataHandler {
         if (length > MAX_TRANSFER_LENGTH) {
             throw new RuntimeException("Length too large " + length);
         }
-        if (headers == null)
-            headers = Maps.newHashMap();
-        headers.put("File-Length", String.valueOf(length));
-        ByteArrayOutputStream byteBuffer = new ByteArrayOutputStream();
+        OutgoingFile file;
         try {
-            FileInputStream is = new FileInputStream(localUri);
-            readIntoByteBuffer(byteBuffer, is, 0, (int)(length - 1));
+            file = new OutgoingFile(new File(localUri));
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        headers.put("File-Hash-SHA1", sha1sum(byteBuffer.toByteArray()));
+        if (headers == null)
+            headers = Maps.newHashMap();
+        headers.put("File-Length", String.valueOf(file.getLength()));
+        headers.put("File-Hash-SHA1", file.getSum());
         String[] paths = localUri.split("/");
         String url = URI_PREFIX_OTR_IN_BAND + SystemServices.sanitize(paths[paths.length - 1]);
+        offerDirect(us, file.getFile(), url, headers);
         Request request = new Request("OFFER", url);
-        offerCache.put(url, new Offer(localUri));
+        offerCache.put(url, new Offer(file));
+        if (mTransferStore != null) {
+            // Kept so the peer can resume the transfer after we restart
+            TransferStore.Record record = new TransferStore.Record();
+            record.direction = TransferStore.OUTGOING;
+            record.url = url;
+            record.type = headers.get("Mime-Type");
+            record.sum = file.getSum();
+            record.length = file.getLength();
+            record.path = file.getFile().getPath();
+            record.updated = System.currentTimeMillis();
+            mTransferStore.save(record);
+        }
         sendRequest(us, "OFFER", url, headers, EMPTY_BODY, request);
     }
 
+    /**
+     * Serves the file on the local network as well, keyed by the OTR extra
+     * symmetric key. The peer falls back to GET requests if it cannot connect.
+     */
+    private void offerDirect(Address us, File file, String url, Map<String, String> headers) {
+        if (!mDirectTransfer)
+            return;
+        InetAddress local = DirectTransfer.getLocalAddress();
+        if (local == null)
+            return;
+        byte[] extraKey = getExtraKey(us);
+        if (extraKey == null)
+            return;
+        byte[] nonce = new byte[DirectTransfer.NONCE_LENGTH];
+        OtrRandom.getInstance().nextBytes(nonce);
+        try {
+            DirectTransfer.Server server = new DirectTransfer.Server(local, file, url, extraKey, nonce);
+            getServeExecutor().execute(server);
+            InetSocketAddress address = server.getAddress();
+            headers.put(HEADER_DIRECT_ADDRESS, address.getAddress().getHostAddress() + ":" + address.getPort());
+            headers.put(HEADER_DIRECT_NONCE, new String(Hex.encode(nonce)));
+        } catch (IOException e) {
+            debug("Cannot serve " + url + " directly: " + e);
+        } finally {
+            Arrays.fill(extraKey, (byte) 0x00);
+        }
+    }
+
+    /** Fetches an offer straight from the sender, falling back to GET requests. */
+    private void fetchDirect(Address us, final Transfer transfer, String addressSpec, String nonceSpec) {
+        final byte[] extraKey = getExtraKey(us);
+        final InetSocketAddress address;
+        final byte[] nonce;
+        try {
+            address = DirectTransfer.parseAddress(addressSpec);
+            nonce = Hex.decode(nonceSpec);
+        } catch (Exception e) {
+            debug("Bad direct transfer offer " + addressSpec + ": " + e);
+            transfer.perform();
+            return;
+        }
+        if (extraKey == null || nonce.length != DirectTransfer.NONCE_LENGTH) {
+            transfer.perform();
+            return;
+        }
+
+        getFetchExecutor().execute(new Runnable() {
+            public void run() {
+                final Address from = mChatSession.getParticipant().getAddress();
+                try {
+                    DirectTransfer.fetch(address, transfer.url, extraKey, nonce,
+                            transfer.file.openStream(),
+                            new DirectTransfer.Progress() {
+                                private int reported;
+
+                                public void onProgress(long bytes) {
+                                    int percent = (int) (bytes * 100 / transfer.length);
+                                    if (percent != reported) {
+                                        reported = percent;
+                                        mDataListener.onTransferProgress(from, transfer.url, percent / 100f);
+                                    }
+                                }
+                            });
+                    if (transfer.file.isComplete() && transfer.file.finish()) {
+                        debug("Direct transfer complete for " + transfer.url);
+                        transferCache.invalidate(transfer.url);
+                        mDataListener.onTransferComplete(from, transfer.url, transfer.type,
+                                transfer.file.getTarget());
+                        return;
+                    }
+                    debug("Direct transfer of " + transfer.url + " failed the checksum");
+                } catch (IOException e) {
+                    debug("Direct transfer of " + transfer.url + " failed: " + e);
+                } finally {
+                    Arrays.fill(extraKey, (byte) 0x00);
+                }
+                // The peer is out of reach, fetch the file through the server
+                try {
+                    transfer.file.reset();
+                } catch (IOException e) {
+                    mDataListener.onTransferFailed(from, transfer.url, "cannot save");
+                    return;
+                }
+                transfer.perform();
+            }
+        });
+    }
+
+    private byte[] getExtraKey(Address us) {
+        OtrChatManager manager = mChatSession.getOtrChatManager();
+        if (manager == null)
+            return null;
+        return manager.getExtraKey(us.getAddress(), mChatSession.getParticipant().getAddress().getAddress());
+    }
+
     public Request performGetData(Address us, String url, Map<String, String> headers, int start, int end) {
         String rangeSpec = "bytes=" + start + "-" + end;
         debug("Getting range " + rangeSpec);
@@ -393,14 +692,14 @@ public class OtrDataHandler implements DataHandler {
     }
 
     static class Offer {
-        private String mUri;
+        private OutgoingFile mFile;
 
-        public Offer(String uri) {
-            this.mUri = uri;
+        public Offer(OutgoingFile file) {
+            this.mFile = file;
         }
         
-        public String getUri() {
-            return mUri;
+        public OutgoingFile getFile() {
+            return mFile;
         }
     }
     
@@ -421,6 +720,7 @@ public class OtrDataHandler implements DataHandler {
         public int start;
         public int end;
         public byte[] data;
+        public TransferController.Chunk chunk;
         public boolean seen = false;
         
         public boolean isSeen() {
@@ -435,16 +735,18 @@ public class OtrDataHandler implements DataHandler {
     class Transfer {
         public String url;
         public String type;
-        public int chunks = 0;
-        public int chunksReceived = 0;
         private int length = 0;
-        private int current = 0;
         private Address us;
-        private Set<Request> outstanding; 
-        private byte[] buffer;
         private String sum;
+        private IncomingFile file;
+        private TransferController controller;
+        private boolean cancelled;
+        private boolean suspended;
+        private int reported;
+        private long saved;
         
-        public Transfer(String url, String type, int length, Address us, String sum) {
+        public Transfer(String url, String type, int length, Address us, String sum, File target)
+                throws IOException {
             this.url = url;
             this.type = type;
             this.length = length;
@@ -454,45 +756,156 @@ public class OtrDataHandler implements DataHandler {
             if (length > MAX_TRANSFER_LENGTH || length <= 0) {
                 throw new RuntimeException("Invalid transfer size " + length);
             }
-            chunks = ((length - 1) / MAX_CHUNK_LENGTH) + 1;
-            buffer = new byte[length];
-            outstanding = Sets.newHashSet();
+            file = new IncomingFile(target, length, sum);
+            controller = new TransferController(length, MAX_CHUNK_LENGTH);
         }
-        
-        public boolean checkSum() {
-            return sum.equals(sha1sum(buffer));
-        }
-
-        public boolean perform() {
-            // TODO global throttle rather than this local hack
-            while (outstanding.size() < MAX_OUTSTANDING) {
-                if (current >= length)
-                    return false;
-                int end = current + MAX_CHUNK_LENGTH - 1;
-                if (end >= length) {
-                    end = length - 1;
-                }
-                Map<String, String> headers = Maps.newHashMap();
-                Request request= performGetData(us, url, headers, current, end);
-                outstanding.add(request);
-                current = end + 1;
+
+        /** Resumes a stored transfer, skipping the blocks on disk already. */
+        public Transfer(TransferStore.Record record, Address us) throws IOException {
+            this.url = record.url;
+            this.type = record.type;
+            this.length = (int) record.length;
+            this.us = us;
+            this.sum = record.sum;
+
+            if (record.length > MAX_TRANSFER_LENGTH || record.length <= 0) {
+                throw new IOException("Invalid transfer size " + record.length);
             }
-            return true;
+            file = new IncomingFile(new File(record.target), new File(record.path), length, sum,
+                    IncomingFile.decodeBlocks(record.received));
+            controller = new TransferController(length, MAX_CHUNK_LENGTH);
+            // What survived of the partial file, if anything
+            controller.skip(file.sync(), IncomingFile.BLOCK_SIZE);
         }
-        
-        public byte[] getData() {
-            // TODO Auto-generated method stub
-            return buffer;
+
+        /** Requests as many chunks as the controller allows right now. */
+        public synchronized boolean perform() {
+            if (cancelled)
+                return false;
+            long now = now();
+            TransferController.Chunk chunk;
+            while ((chunk = controller.next(now)) != null) {
+                Map<String, String> headers = Maps.newHashMap();
+                Request request = performGetData(us, url, headers, (int) chunk.start, (int) chunk.getEnd());
+                request.chunk = chunk;
+                scheduleTimeout(chunk, chunk.sequence, controller.getTimeout());
+            }
+            long resume = controller.getResumeTime();
+            if (resume > now) {
+                getTimer().schedule(new Runnable() {
+                    public void run() {
+                        perform();
+                    }
+                }, resume - now, TimeUnit.MILLISECONDS);
+            }
+            return !controller.isDone();
         }
 
+        private void scheduleTimeout(final TransferController.Chunk chunk, final long sequence, long delay) {
+            getTimer().schedule(new Runnable() {
+                public void run() {
+                    if (controller.onTimeout(chunk, sequence))
+                        perform();
+                    else
+                        fail("timeout");
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+        
         public boolean isDone() {
-            return chunksReceived == chunks;
+            return controller.isDone();
         }
         
-        public void chunkReceived(Request request, byte[] bs) {
-            chunksReceived++;
-            System.arraycopy(bs, 0, buffer, request.start, bs.length);
-            outstanding.remove(request);
+        /** @return false if the chunk was received already. */
+        public synchronized boolean chunkReceived(Request request, byte[] bs) throws IOException {
+            TransferController.Chunk chunk = request.chunk;
+            if (bs.length != chunk.length)
+                throw new IOException("Got " + bs.length + " bytes for " + request.start + "-" + request.end);
+            if (!controller.onReceived(chunk, now()))
+                return false;
+            file.write(chunk.start, bs, 0, bs.length);
+            return true;
+        }
+
+        /** The peer refused the request as too many, ask again later. */
+        public void chunkThrottled(Request request) {
+            if (controller.onThrottled(request.chunk, now()))
+                perform();
+            else
+                fail("throttled");
+        }
+
+        /** @return the new percentage received, or -1 if it did not change. */
+        public synchronized int updateProgress() {
+            int percent = (int) (controller.getReceived() * 100 / length);
+            if (percent == reported)
+                return -1;
+            reported = percent;
+            return percent;
+        }
+
+        public void fail(String reason) {
+            synchronized (this) {
+                if (cancelled)
+                    return;
+                cancelled = true;
+            }
+            transferCache.invalidate(url);
+            mDataListener.onTransferFailed(mChatSession.getParticipant().getAddress(), url, reason);
+        }
+
+        /**
+         * Saves how far the transfer got, at most every SAVE_INTERVAL unless
+         * forced.
+         */
+        public synchronized void save(boolean force) {
+            if (mTransferStore == null || cancelled)
+                return;
+            long time = now();
+            if (!force && time - saved < SAVE_INTERVAL)
+                return;
+            saved = time;
+            TransferStore.Record record = new TransferStore.Record();
+            try {
+                // Only blocks that are safely on disk are claimed
+                record.received = IncomingFile.encodeBlocks(file.sync());
+            } catch (IOException e) {
+                debug("Cannot save progress of " + url + ": " + e);
+                return;
+            }
+            record.direction = TransferStore.INCOMING;
+            record.url = url;
+            record.type = type;
+            record.sum = sum;
+            record.length = length;
+            record.path = file.getPartial().getPath();
+            record.target = file.getTarget().getPath();
+            record.updated = System.currentTimeMillis();
+            mTransferStore.save(record);
+        }
+
+        /** Stops requesting, keeping what was received to resume from. */
+        public void suspend() {
+            save(true);
+            synchronized (this) {
+                suspended = true;
+            }
+            transferCache.invalidate(url);
+        }
+
+        /**
+         * Stops requesting and, unless suspended, deletes what was received
+         * and forgets the transfer.
+         */
+        public synchronized void cancel() {
+            cancelled = true;
+            if (suspended) {
+                file.suspend();
+                return;
+            }
+            file.abort();
+            if (mTransferStore != null)
+                mTransferStore.delete(TransferStore.INCOMING, url);
         }
 
         public String getSum() {
@@ -500,15 +913,72 @@ public class OtrDataHandler implements DataHandler {
         }
     }
     
-    Cache<String, Offer> offerCache = CacheBuilder.newBuilder().maximumSize(100).build();
-    Cache<String, Request> requestCache = CacheBuilder.newBuilder().maximumSize(100).build();
-    Cache<String, Transfer> transferCache = CacheBuilder.newBuilder().maximumSize(100).build();
+    Cache<String, Offer> offerCache = CacheBuilder.newBuilder().maximumSize(100)
+            .removalListener(new RemovalListener<String, Offer>() {
+                public void onRemoval(RemovalNotification<String, Offer> notification) {
+                    // Chunks being served keep the file open until they are out
+                    notification.getValue().getFile().close();
+                }
+            }).build();
+    Cache<String, Request> requestCache = CacheBuilder.newBuilder()
+            .maximumSize(100 + 4 * TransferController.MAX_WINDOW).build();
+    Cache<String, Transfer> transferCache = CacheBuilder.newBuilder().maximumSize(100)
+            .removalListener(new RemovalListener<String, Transfer>() {
+                public void onRemoval(RemovalNotification<String, Transfer> notification) {
+                    // Completed transfers have been renamed already
+                    notification.getValue().cancel();
+                }
+            }).build();
     
+    /** @return the timer for request timeouts, shared by all transfers */
+    private static synchronized ScheduledExecutorService getTimer() {
+        if (sTimer == null)
+            sTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                    .setDaemon(true).setNameFormat("OtrDataHandler-%d").build());
+        return sTimer;
+    }
+
+    /** @return the threads our direct transfer servers run on, shared by all sessions */
+    private static synchronized ExecutorService getServeExecutor() {
+        if (sServeExecutor == null)
+            sServeExecutor = newTransferExecutor("DirectServe-%d");
+        return sServeExecutor;
+    }
+
+    /** @return the threads direct fetches run on, shared by all sessions */
+    private static synchronized ExecutorService getFetchExecutor() {
+        if (sFetchExecutor == null)
+            sFetchExecutor = newTransferExecutor("DirectFetch-%d");
+        return sFetchExecutor;
+    }
+
+    private static ExecutorService newTransferExecutor(String nameFormat) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_DIRECT_TRANSFERS,
+                MAX_DIRECT_TRANSFERS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat(nameFormat).build());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /** @return a random (version 4) UUID, drawn from the OTR random source */
+    private static String newRequestId() {
+        byte[] b = new byte[16];
+        OtrRandom.getInstance().nextBytes(b);
+        b[6] = (byte) ((b[6] & 0x0f) | 0x40);
+        b[8] = (byte) ((b[8] & 0x3f) | 0x80);
+        ByteBuffer buf = ByteBuffer.wrap(b);
+        return new UUID(buf.getLong(), buf.getLong()).toString();
+    }
+
     private void sendRequest(Address us, String method, String url, Map<String, String> headers, byte[] body, Request requestMemo) {
         MemorySessionOutputBuffer outBuf = new MemorySessionOutputBuffer();
         HttpMessageWriter writer = new HttpRequestWriter(outBuf, lineFormatter, params);
         HttpMessage req = new BasicHttpRequest(method, url, PROTOCOL_VERSION);
-        String uid = UUID.randomUUID().toString();
+        String uid = newRequestId();
         req.addHeader("Request-Id", uid);
         if (headers != null) {
             for (Entry<String, String> entry : headers.entrySet()) {
@@ -5,6 +5,7 @@ import info.guardianproject.otr.app.im.R;
 import info.guardianproject.otr.app.im.engine.Address;
 import info.guardianproject.otr.app.im.engine.ChatSessionManager;
 import info.guardianproject.otr.app.im.engine.Contact;
+import info.guardianproject.otr.app.im.engine.ImErrorInfo;
 import info.guardianproject.otr.app.im.engine.Message;
 import info.guardianproject.otr.app.im.service.ChatSessionAdapter;
 import info.guardianproject.otr.app.im.service.ChatSessionManagerAdapter;
@@ -30,6 +31,10 @@ import net.java.otr4j.session.SessionID;
  */
 public class OtrEngineHostImpl implements OtrEngineHost {
 
+    // Encrypted messages longer than this are sent as OTR fragments, some
+    // servers throttle or drop large stanzas.
+    public static final int DEFAULT_MAX_FRAGMENT_SIZE = 16 * 1024;
+
     private List<ImConnectionAdapter> mConnections;
     private OtrPolicy mPolicy;
 
@@ -119,6 +124,11 @@ public class OtrEngineHostImpl implements OtrEngineHost {
         return mOtrKeyManager.getRemoteFingerprint(sessionID);
     }
 
+    public int getMaxFragmentSize(SessionID sessionID) {
+        // None of our transports reports a stanza limit of its own
+        return DEFAULT_MAX_FRAGMENT_SIZE;
+    }
+
     public KeyPair getKeyPair(SessionID sessionID) {
         KeyPair kp = null;
         kp = mOtrKeyManager.loadLocalKeyPair(sessionID);
@@ -157,6 +167,28 @@ public class OtrEngineHostImpl implements OtrEngineHost {
         
     }
 
+    /** Tells the chat of sessionID that one of our messages was not sent. */
+    public void reportSendError(SessionID sessionID, Message message, ImErrorInfo error) {
+        ImConnectionAdapter connection = findConnection(sessionID.getAccountID());
+        if (connection == null)
+            return;
+        ChatSessionAdapter chatSessionAdapter = (ChatSessionAdapter) connection
+                .getChatSessionManager().getChatSession(sessionID.getUserID());
+        if (chatSessionAdapter != null)
+            chatSessionAdapter.getAdaptee().onSendMessageError(message, error);
+    }
+
+    /** Tells the chat of sessionID that a message OTR held back was sent. */
+    public void reportMessageSent(SessionID sessionID, Message message) {
+        ImConnectionAdapter connection = findConnection(sessionID.getAccountID());
+        if (connection == null)
+            return;
+        ChatSessionAdapter chatSessionAdapter = (ChatSessionAdapter) connection
+                .getChatSessionManager().getChatSession(sessionID.getUserID());
+        if (chatSessionAdapter != null)
+            chatSessionAdapter.getAdaptee().onMessageSent(message);
+    }
+
     public void injectMessage(SessionID sessionID, String text) {
         OtrDebugLogger.log(sessionID.toString() + ": injecting message: " + text);
 
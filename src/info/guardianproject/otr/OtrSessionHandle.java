@@ -0,0 +1,61 @@
+package info.guardianproject.otr;
+
+import net.java.otr4j.session.Session;
+import net.java.otr4j.session.SessionID;
+import net.java.otr4j.session.SessionStatus;
+
+/**
+ * What a chat needs to know about its OTR session for every message, looked
+ * up once. {@link OtrChatManager} keeps the status and verified flag current
+ * from session status and key verification events, so reading them costs no
+ * map lookups or string building.
+ */
+public class OtrSessionHandle {
+
+    private volatile SessionID mSessionId;
+    private volatile Session mSession;
+    private volatile SessionStatus mStatus;
+    private volatile boolean mVerified;
+
+    OtrSessionHandle(SessionID sessionId, Session session, boolean verified) {
+        mSessionId = sessionId;
+        mSession = session;
+        mStatus = session.getSessionStatus();
+        mVerified = verified;
+    }
+
+    /** @return the session ID, with the resource the contact last wrote from. */
+    public SessionID getSessionId() {
+        return mSessionId;
+    }
+
+    /** @return the OTR session; use {@link OtrChatManager#getSession} to send or receive. */
+    public Session getSession() {
+        return mSession;
+    }
+
+    public SessionStatus getStatus() {
+        return mStatus;
+    }
+
+    public boolean isVerified() {
+        return mVerified;
+    }
+
+    void setSessionId(SessionID sessionId) {
+        mSessionId = sessionId;
+    }
+
+    void setSession(Session session) {
+        mSession = session;
+        mStatus = session.getSessionStatus();
+    }
+
+    void setStatus(SessionStatus status) {
+        mStatus = status;
+    }
+
+    void setVerified(boolean verified) {
+        mVerified = verified;
+    }
+}
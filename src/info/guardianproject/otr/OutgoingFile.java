@@ -0,0 +1,187 @@
+package info.guardianproject.otr;
+
+import info.guardianproject.bouncycastle.util.encoders.Hex;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedList;
+
+/**
+ * A file on offer to the peer. It is opened once for the whole offer and
+ * every chunk is read at its offset, so serving a chunk costs the same
+ * wherever it is in the file. Reads go through a small pool of direct
+ * buffers shared by all offers, which keeps memory use flat however large
+ * the file and however many chunks are requested. The SHA1 for the offer is
+ * computed in one streaming pass when the file is opened.
+ * <p>
+ * The offer holds one reference to the open file and every chunk being
+ * read holds another, so {@link #close()} withdrawing the offer does not
+ * pull the file from under a chunk that is being served.
+ */
+public class OutgoingFile {
+    /** Size of the pooled buffers; larger reads get a buffer of their own. */
+    static final int BUFFER_SIZE = 32768;
+    private static final int MAX_POOLED = 4;
+
+    private static final LinkedList<ByteBuffer> sPool = new LinkedList<ByteBuffer>();
+
+    private final File mFile;
+    private final RandomAccessFile mRaf;
+    private final FileChannel mChannel;
+    private final long mLength;
+    private final String mSum;
+
+    // Guarded by this
+    private int mReferences = 1;
+    private boolean mClosed;
+
+    /** Opens the file and hashes it. */
+    public OutgoingFile(File file) throws IOException {
+        mFile = file;
+        mRaf = new RandomAccessFile(file, "r");
+        mChannel = mRaf.getChannel();
+        try {
+            mLength = mChannel.size();
+            mSum = hash();
+        } catch (IOException e) {
+            mRaf.close();
+            throw e;
+        }
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public long getLength() {
+        return mLength;
+    }
+
+    /** @return the SHA1 of the file as it was opened, in hex. */
+    public String getSum() {
+        return mSum;
+    }
+
+    /**
+     * Takes a reference to the open file; {@link #release()} it when done.
+     *
+     * @return false if the offer is withdrawn already.
+     */
+    public synchronized boolean acquire() {
+        if (mClosed)
+            return false;
+        mReferences++;
+        return true;
+    }
+
+    public void release() {
+        synchronized (this) {
+            if (mReferences == 0)
+                throw new IllegalStateException("Released too often");
+            if (--mReferences > 0)
+                return;
+        }
+        try {
+            mRaf.close();
+        } catch (IOException e) {
+            // Closed anyway
+        }
+    }
+
+    /** Withdraws the offer; the file is closed once the last chunk is out. */
+    public void close() {
+        synchronized (this) {
+            if (mClosed)
+                return;
+            mClosed = true;
+        }
+        release();
+    }
+
+    /**
+     * @return up to length bytes from position, fewer at the end of the file.
+     * @throws IOException if the offer is withdrawn or the file cannot be read.
+     */
+    public byte[] read(long position, int length) throws IOException {
+        if (position < 0 || length < 0)
+            throw new IOException("Invalid range " + position + "+" + length);
+        if (!acquire())
+            throw new IOException("Offer of " + mFile.getName() + " is withdrawn");
+        ByteBuffer buffer = obtainBuffer(length);
+        try {
+            buffer.limit(length);
+            long at = position;
+            while (buffer.hasRemaining()) {
+                int count = mChannel.read(buffer, at);
+                if (count < 0)
+                    break;
+                at += count;
+            }
+            buffer.flip();
+            byte[] result = new byte[buffer.remaining()];
+            buffer.get(result);
+            return result;
+        } finally {
+            recycleBuffer(buffer);
+            release();
+        }
+    }
+
+    private String hash() throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        ByteBuffer buffer = obtainBuffer(BUFFER_SIZE);
+        try {
+            long at = 0;
+            int count;
+            while ((count = mChannel.read(buffer, at)) >= 0) {
+                at += count;
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+            if (at != mLength)
+                throw new IOException(mFile.getName() + " changed while hashing");
+        } finally {
+            recycleBuffer(buffer);
+        }
+        return new String(Hex.encode(digest.digest()));
+    }
+
+    private static ByteBuffer obtainBuffer(int length) {
+        if (length > BUFFER_SIZE)
+            return ByteBuffer.allocate(length);
+        synchronized (sPool) {
+            ByteBuffer buffer = sPool.poll();
+            if (buffer != null)
+                return buffer;
+        }
+        return ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    private static void recycleBuffer(ByteBuffer buffer) {
+        if (!buffer.isDirect())
+            return;
+        buffer.clear();
+        synchronized (sPool) {
+            if (sPool.size() < MAX_POOLED)
+                sPool.add(buffer);
+        }
+    }
+
+    /** @return the number of idle pooled buffers, for tests. */
+    static int getPooledBuffers() {
+        synchronized (sPool) {
+            return sPool.size();
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package info.guardianproject.otr;
+
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Set;
+
+/**
+ * Decides which ranges of an in-band transfer to request, and how many at a
+ * time, much as TCP paces its segments. The number of outstanding requests
+ * grows by one per answer until the first loss (slow start) and by one per
+ * window of answers after that, and is halved when a request times out, so
+ * it settles around what the link between the peers can carry, be it a
+ * link-local network, a fast server or Tor. The round trip time of each
+ * answer sets the timeout, as in RFC 6298. Answers come in the order of
+ * the requests unless one is lost, so a request overtaken by answers to
+ * three later ones is taken as lost without waiting for the timeout, like
+ * TCP's fast retransmit.
+ * <p>
+ * Chunks are halved on loss, since a lost chunk costs its whole length
+ * again, and doubled again after a window's worth of answers without loss,
+ * never beyond what the sender accepts. A request refused as throttled
+ * halves the window and pauses the transfer for a round trip.
+ * <p>
+ * A resumed transfer {@link #skip(BitSet, int) skips} the blocks received
+ * before, and only the gaps between them are requested.
+ * <p>
+ * Times are in milliseconds, on whatever clock the caller uses.
+ */
+class TransferController {
+    static final int MIN_CHUNK_LENGTH = 4096;
+    static final int INITIAL_WINDOW = 3;
+    static final int MAX_WINDOW = 64;
+    static final long INITIAL_TIMEOUT = 10000;
+    static final long MIN_TIMEOUT = 1000;
+    static final long MAX_TIMEOUT = 60000;
+    /** Requests for one chunk before the transfer is given up. */
+    static final int MAX_ATTEMPTS = 6;
+    /* Answers to later requests after which a request is taken as lost */
+    private static final int MAX_OVERTAKEN = 3;
+    private static final int MAX_BACKOFF = 6;
+
+    /** A range of the file, as requested. */
+    static class Chunk {
+        final long start;
+        final int length;
+        long sequence;
+        long sentAt;
+        int attempts;
+        int overtaken;
+
+        Chunk(long start, int length) {
+            this.start = start;
+            this.length = length;
+        }
+
+        long getEnd() {
+            return start + length - 1;
+        }
+    }
+
+    private final long mLength;
+    private final int mMinChunkLength;
+    private final int mMaxChunkLength;
+    private final int mMinWindow;
+    private final int mMaxWindow;
+
+    private double mWindow;
+    private double mThreshold;
+    private int mChunkLength;
+    private int mCleanAnswers;
+
+    private long mSmoothedRtt = -1;
+    private long mRttVariance;
+    private long mTimeout = INITIAL_TIMEOUT;
+    private int mBackoff;
+    private long mResumeAt;
+
+    private long mNext;
+    private long mReceived;
+    private BitSet mSkipped;
+    private int mBlockSize;
+    private long mSequence;
+    /* Requests numbered below this were sent before the window last shrank */
+    private long mRecovery;
+    private boolean mFailed;
+    private final Set<Chunk> mOutstanding = new HashSet<Chunk>();
+    private final LinkedList<Chunk> mLost = new LinkedList<Chunk>();
+
+    /** A controller adapting within the given limits. */
+    TransferController(long length, int minChunkLength, int maxChunkLength, int minWindow,
+            int maxWindow) {
+        if (minChunkLength <= 0 || minChunkLength > maxChunkLength || minWindow <= 0
+            || minWindow > maxWindow)
+            throw new IllegalArgumentException("Illegal transfer limits");
+        mLength = length;
+        mMinChunkLength = minChunkLength;
+        mMaxChunkLength = maxChunkLength;
+        mMinWindow = minWindow;
+        mMaxWindow = maxWindow;
+        mWindow = Math.max(minWindow, Math.min(maxWindow, INITIAL_WINDOW));
+        mThreshold = maxWindow;
+        mChunkLength = maxChunkLength;
+    }
+
+    /** A controller for chunks of at most maxChunkLength. */
+    TransferController(long length, int maxChunkLength) {
+        this(length, Math.min(MIN_CHUNK_LENGTH, maxChunkLength), maxChunkLength, 1, MAX_WINDOW);
+    }
+
+    /**
+     * Takes the blocks set in the bitmap as received already; chunks are
+     * not requested across them. Call before the first {@link #next(long)}.
+     */
+    synchronized void skip(BitSet blocks, int blockSize) {
+        mSkipped = (BitSet) blocks.clone();
+        mBlockSize = blockSize;
+        for (int i = blocks.nextSetBit(0); i >= 0 && (long) i * blockSize < mLength; i = blocks
+                .nextSetBit(i + 1))
+            mReceived += Math.min(blockSize, mLength - (long) i * blockSize);
+    }
+
+    /**
+     * @return the next range to request, or null if the window is full, the
+     *         transfer is paused or there is nothing left to ask for.
+     */
+    synchronized Chunk next(long now) {
+        if (mFailed || now < mResumeAt || mOutstanding.size() >= (int) mWindow)
+            return null;
+        Chunk chunk = mLost.poll();
+        if (chunk == null) {
+            long end = mLength;
+            if (mSkipped != null) {
+                int block = mSkipped.nextClearBit((int) (mNext / mBlockSize));
+                mNext = Math.max(mNext, Math.min(mLength, (long) block * mBlockSize));
+                int received = mSkipped.nextSetBit(block);
+                if (received >= 0)
+                    end = Math.min(end, (long) received * mBlockSize);
+            }
+            if (mNext >= mLength)
+                return null;
+            chunk = new Chunk(mNext, (int) Math.min(mChunkLength, end - mNext));
+            mNext += chunk.length;
+        }
+        chunk.sequence = mSequence++;
+        chunk.sentAt = now;
+        chunk.attempts++;
+        chunk.overtaken = 0;
+        mOutstanding.add(chunk);
+        return chunk;
+    }
+
+    /**
+     * An answer came for the chunk.
+     *
+     * @return false if the chunk was received already.
+     */
+    synchronized boolean onReceived(Chunk chunk, long now) {
+        if (!receive(chunk, now))
+            return false;
+        Chunk[] earlier = mOutstanding.toArray(new Chunk[mOutstanding.size()]);
+        for (Chunk other : earlier)
+            if (other.sequence < chunk.sequence && ++other.overtaken >= MAX_OVERTAKEN)
+                lose(other);
+        return true;
+    }
+
+    private boolean receive(Chunk chunk, long now) {
+        boolean outstanding = mOutstanding.remove(chunk);
+        if (!outstanding && !mLost.remove(chunk))
+            return false;
+        mReceived += chunk.length;
+        mBackoff = 0;
+        // Only answers to a single request tell the round trip time
+        if (outstanding && chunk.attempts == 1)
+            sampleRtt(now - chunk.sentAt);
+
+        if (mWindow < mThreshold)
+            mWindow += 1;
+        else
+            mWindow += 1 / mWindow;
+        mWindow = Math.min(mWindow, mMaxWindow);
+
+        if (++mCleanAnswers >= (int) mWindow && mChunkLength < mMaxChunkLength) {
+            mChunkLength = Math.min(mMaxChunkLength, mChunkLength * 2);
+            mCleanAnswers = 0;
+        }
+        return true;
+    }
+
+    /**
+     * The request for the chunk, numbered sequence, went unanswered for
+     * {@link #getTimeout()}; it is requested again.
+     *
+     * @return false if it was requested too often and the transfer failed.
+     */
+    synchronized boolean onTimeout(Chunk chunk, long sequence) {
+        if (chunk.sequence != sequence || !mOutstanding.contains(chunk))
+            return !mFailed;
+        if (lose(chunk))
+            mBackoff = Math.min(MAX_BACKOFF, mBackoff + 1);
+        return !mFailed;
+    }
+
+    /** The request for the chunk was refused because we are asking too fast. */
+    synchronized boolean onThrottled(Chunk chunk, long now) {
+        if (!mOutstanding.remove(chunk))
+            return !mFailed;
+        if (chunk.attempts >= MAX_ATTEMPTS) {
+            mFailed = true;
+            return false;
+        }
+        mLost.addFirst(chunk);
+        if (chunk.sequence >= mRecovery) {
+            shrink();
+            mResumeAt = now + (mSmoothedRtt < 0 ? mTimeout : mSmoothedRtt);
+        }
+        return true;
+    }
+
+    /** @return true if this is the first loss in the window. */
+    private boolean lose(Chunk chunk) {
+        mOutstanding.remove(chunk);
+        if (chunk.attempts >= MAX_ATTEMPTS) {
+            mFailed = true;
+            return false;
+        }
+        mLost.add(chunk);
+        // One loss per window is enough to react to
+        if (chunk.sequence < mRecovery)
+            return false;
+        shrink();
+        mChunkLength = Math.max(mMinChunkLength, mChunkLength / 2);
+        return true;
+    }
+
+    private void shrink() {
+        mThreshold = Math.max(mMinWindow, mWindow / 2);
+        mWindow = mThreshold;
+        mRecovery = mSequence;
+        mCleanAnswers = 0;
+    }
+
+    private void sampleRtt(long rtt) {
+        if (mSmoothedRtt < 0) {
+            mSmoothedRtt = rtt;
+            mRttVariance = rtt / 2;
+        } else {
+            mRttVariance = (3 * mRttVariance + Math.abs(mSmoothedRtt - rtt)) / 4;
+            mSmoothedRtt = (7 * mSmoothedRtt + rtt) / 8;
+        }
+        mTimeout = Math.max(MIN_TIMEOUT, Math.min(MAX_TIMEOUT, mSmoothedRtt + 4 * mRttVariance));
+    }
+
+    /** @return how long to wait for an answer to a request sent now. */
+    synchronized long getTimeout() {
+        return Math.min(MAX_TIMEOUT, mTimeout << mBackoff);
+    }
+
+    /** @return when a throttled transfer may go on. */
+    synchronized long getResumeTime() {
+        return mResumeAt;
+    }
+
+    synchronized int getWindow() {
+        return (int) mWindow;
+    }
+
+    synchronized int getChunkLength() {
+        return mChunkLength;
+    }
+
+    synchronized int getOutstanding() {
+        return mOutstanding.size();
+    }
+
+    synchronized long getReceived() {
+        return mReceived;
+    }
+
+    synchronized boolean isDone() {
+        return mReceived == mLength;
+    }
+
+    synchronized boolean isFailed() {
+        return mFailed;
+    }
+}
@@ -0,0 +1,41 @@
+package info.guardianproject.otr;
+
+import java.util.List;
+
+/**
+ * Keeps the state of the file transfers with one peer across reconnections
+ * and restarts, so that an interrupted transfer can be resumed instead of
+ * started over.
+ */
+public interface TransferStore {
+    int INCOMING = 0;
+    int OUTGOING = 1;
+
+    /** The state of one transfer, in either direction. */
+    class Record {
+        public int direction;
+        public String url;
+        public String type;
+        public String sum;
+        public long length;
+        /** The partial file being received, or the file on offer. */
+        public String path;
+        /** Where an incoming file goes once it is complete. */
+        public String target;
+        /** The blocks received, see {@link IncomingFile#encodeBlocks}. */
+        public byte[] received;
+        /** When the record was last saved, in milliseconds since the epoch. */
+        public long updated;
+    }
+
+    /** @return all transfers kept for the peer. */
+    List<Record> load();
+
+    /** @return the transfer of the url in the given direction, or null. */
+    Record get(int direction, String url);
+
+    /** Adds the transfer, or replaces the one of the same direction and url. */
+    void save(Record record);
+
+    void delete(int direction, String url);
+}
@@ -18,6 +18,7 @@
 package info.guardianproject.otr.app.im.engine;
 
 import info.guardianproject.otr.OtrChatManager;
+import info.guardianproject.otr.OtrSessionHandle;
 import info.guardianproject.otr.app.im.provider.Imps;
 
 import java.util.Collections;
@@ -25,7 +26,6 @@ import java.util.List;
 import java.util.Vector;
 import java.util.concurrent.CopyOnWriteArrayList;
 
-import net.java.otr4j.session.SessionID;
 import net.java.otr4j.session.SessionStatus;
 import android.util.Log;
 
@@ -39,6 +39,7 @@ public class ChatSession {
     private ChatSessionManager mManager;
 
     private OtrChatManager mOtrChatManager;
+    private volatile OtrSessionHandle mOtrHandle;
 
     private CopyOnWriteArrayList<MessageListener> mListeners;
     private Vector<Message> mHistoryMessages;
@@ -62,16 +63,32 @@ public class ChatSession {
 
     public void setParticipant(ImEntity participant) {
         mParticipant = participant;
+        mOtrHandle = null;
     }
 
     public void setOtrChatManager(OtrChatManager otrChatManager) {
         mOtrChatManager = otrChatManager;
+        mOtrHandle = null;
     }
 
     public OtrChatManager getOtrChatManager() {
         return mOtrChatManager;
     }
 
+    /**
+     * @param us our own address
+     * @return the OTR session of this chat, resolved on first use and kept
+     *         current by the OtrChatManager
+     */
+    public OtrSessionHandle getOtrSessionHandle(Address us) {
+        OtrSessionHandle handle = mOtrHandle;
+        if (handle == null) {
+            handle = mOtrChatManager.getSessionHandle(us.getAddress(), mParticipant.getAddress().getAddress());
+            mOtrHandle = handle;
+        }
+        return handle;
+    }
+
     /**
      * Adds a MessageListener so that it can be notified of any new message in
      * this session.
@@ -119,15 +136,12 @@ public class ChatSession {
           message.setTo(mParticipant.getAddress());
         
      // TODO OTRCHAT setFrom here, therefore add the mConnection in ChatSession - ??? NF 8/2013 still needs to be done?       
-        SessionStatus otrStatus = mOtrChatManager.getSessionStatus(message.getFrom().getAddress(),message.getTo().getAddress());
+        OtrSessionHandle otrHandle = getOtrSessionHandle(message.getFrom());
+        SessionStatus otrStatus = otrHandle.getStatus();
 
         if (otrStatus == SessionStatus.ENCRYPTED)
         {
-            SessionID sId = mOtrChatManager.getSessionId(message.getFrom().getAddress(),message.getTo().getAddress());            
-            boolean verified = mOtrChatManager.getKeyManager().isVerified(sId);
-            
-            
-            if (verified)
+            if (otrHandle.isVerified())
             {
                 message.setType(Imps.MessageType.OUTGOING_ENCRYPTED_VERIFIED);
             }
@@ -138,9 +152,11 @@ public class ChatSession {
          
             mHistoryMessages.add(message);
 
-            mOtrChatManager.transformSending(message);
+            mOtrChatManager.transformSending(otrHandle, message);
 
-            mManager.sendMessageAsync(this, message);
+            // No body if OTR holds the message until the session is secure
+            if (message.getBody() != null)
+                mManager.sendMessageAsync(this, message);
 
         }
         else if (otrStatus == SessionStatus.FINISHED)
@@ -152,9 +168,11 @@ public class ChatSession {
         {
             mHistoryMessages.add(message);
 
-            mOtrChatManager.transformSending(message);
+            mOtrChatManager.transformSending(otrHandle, message);
 
-            mManager.sendMessageAsync(this, message);
+            // No body if OTR holds the message until the session is secure
+            if (message.getBody() != null)
+                mManager.sendMessageAsync(this, message);
 
         }                
         return message.getType();
@@ -170,9 +188,10 @@ public class ChatSession {
         if (message.getTo() == null)
             message.setTo(mParticipant.getAddress());
 
-        mOtrChatManager.transformSending(message, isResponse, data);
+        mOtrChatManager.transformSending(getOtrSessionHandle(message.getFrom()), message, isResponse, data);
 
-        mManager.sendMessageAsync(this, message);
+        if (message.getBody() != null)
+            mManager.sendMessageAsync(this, message);
     }
 
     /**
@@ -187,15 +206,11 @@ public class ChatSession {
     public boolean onReceiveMessage(Message message) {
         mHistoryMessages.add(message);
 
-        SessionStatus otrStatus = mOtrChatManager.getSessionStatus(message.getTo().getAddress(), message.getFrom().getAddress());
-
-        SessionID sId = mOtrChatManager.getSessionId(message.getTo().getAddress(),message.getFrom().getAddress());            
+        OtrSessionHandle otrHandle = getOtrSessionHandle(message.getTo());
 
-        if (otrStatus == SessionStatus.ENCRYPTED)
+        if (otrHandle.getStatus() == SessionStatus.ENCRYPTED)
         {
-            boolean verified = mOtrChatManager.getKeyManager().isVerified(sId);
-            
-            if (verified)
+            if (otrHandle.isVerified())
             {
                 message.setType(Imps.MessageType.INCOMING_ENCRYPTED_VERIFIED);
             }
@@ -248,6 +263,18 @@ public class ChatSession {
         }
     }
 
+    /**
+     * Called by OTR when a message it held until the session was secure has
+     * been sent.
+     * 
+     * @param message
+     */
+    public void onMessageSent(Message message) {
+        for (MessageListener listener : mListeners) {
+            listener.onMessageSent(this, message);
+        }
+    }
+
     public void onSendMessageError(String messageId, ImErrorInfo error) {
         for (Message message : mHistoryMessages) {
             if (messageId.equals(message.getID())) {
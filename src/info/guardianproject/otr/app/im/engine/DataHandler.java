@@ -18,4 +18,11 @@ public interface DataHandler {
     void onIncomingResponse(Address us, byte[] value);
 
     void offerData(Address us, String localUri, Map<String, String> headers);
+
+    /**
+     * Picks up interrupted transfers with the peer, once a new session is up.
+     * 
+     * @param us this is OUR address
+     */
+    void resumeTransfers(Address us);
 }
@@ -1,7 +1,12 @@
 package info.guardianproject.otr.app.im.engine;
 
+import java.io.File;
+
 public interface DataListener {
-    void onTransferComplete(Address from, String url, String type, byte[] data);
+    /** @return where to save a transfer offered by the peer. */
+    File getTransferFile(Address from, String url);
+
+    void onTransferComplete(Address from, String url, String type, File file);
 
     void onTransferFailed(Address from, String url, String reason);
 
@@ -42,6 +42,15 @@ public interface MessageListener {
      */
     public void onSendMessageError(ChatSession ses, Message msg, ImErrorInfo error);
 
+    /**
+     * Called when a message that OTR held back until the session was secure
+     * has been sent.
+     * 
+     * @param ses the ChatSession.
+     * @param msg the message which was sent.
+     */
+    public void onMessageSent(ChatSession ses, Message msg);
+
     /**
      * Called when a message was not transmitted.
      * 
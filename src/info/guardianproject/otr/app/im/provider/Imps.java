@@ -1280,6 +1280,88 @@ public class Imps {
         public static final String CONTENT_TYPE = "vnd.android-dir/imps-sessionCookies";
     }
 
+    /** Columns from the file transfers table. */
+    public static interface FileTransfersColumns {
+        /**
+         * The account the transfer belongs to
+         * <P>Type: INTEGER</P>
+         */
+        String ACCOUNT = "account";
+
+        /**
+         * The username of the peer
+         * <P>Type: TEXT</P>
+         */
+        String CONTACT = "contact";
+
+        /**
+         * Whether we receive or send the file, see TransferStore
+         * <P>Type: INTEGER</P>
+         */
+        String DIRECTION = "direction";
+
+        /**
+         * The url of the offer
+         * <P>Type: TEXT</P>
+         */
+        String URL = "url";
+
+        /**
+         * The mime type of the file
+         * <P>Type: TEXT</P>
+         */
+        String MIME_TYPE = "mime_type";
+
+        /**
+         * The SHA1 of the whole file, in hex
+         * <P>Type: TEXT</P>
+         */
+        String SHA1 = "sha1";
+
+        /**
+         * The length of the file
+         * <P>Type: INTEGER</P>
+         */
+        String LENGTH = "length";
+
+        /**
+         * The partial file being received, or the file on offer
+         * <P>Type: TEXT</P>
+         */
+        String PATH = "path";
+
+        /**
+         * Where a received file goes once complete
+         * <P>Type: TEXT</P>
+         */
+        String TARGET = "target";
+
+        /**
+         * The bitmap of blocks received
+         * <P>Type: BLOB</P>
+         */
+        String RECEIVED = "received";
+
+        /**
+         * When the transfer last made progress
+         * <P>Type: INTEGER</P>
+         */
+        String UPDATED = "updated";
+    }
+
+    /** Keeps the state of interrupted file transfers, to resume them. */
+    public static final class FileTransfers implements FileTransfersColumns, BaseColumns {
+        private FileTransfers() {
+        }
+
+        /** The content:// style URI for this table */
+        public static final Uri CONTENT_URI = Uri
+                .parse("content://info.guardianproject.otr.app.im.provider.Imps/fileTransfers");
+
+        /** The MIME type of {@link #CONTENT_URI} providing a directory of transfers. */
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/imps-fileTransfers";
+    }
+
     /** Columns from ProviderSettings table */
     public static interface ProviderSettingsColumns {
         /**
@@ -1355,6 +1437,12 @@ public class Imps {
          */
         public static final String DO_DNS_SRV = "pref_security_do_dns_srv";
 
+        /**
+         * boolean to allow file transfers straight over the local network,
+         * which reveals our local address to the peer
+         */
+        public static final String ALLOW_DIRECT_TRANSFER = "pref_security_allow_direct_transfer";
+
         // GENERAL PREFERENCES
 
         /** controls whether this provider should show the offline contacts */
@@ -1736,6 +1824,20 @@ public class Imps {
             putBooleanValue(cr, providerId, DO_DNS_SRV, doDnsSrv);
         }
 
+        /**
+         * A convenience method to set whether files may be transferred
+         * directly over the local network
+         * 
+         * @param cr The ContentResolver to use to access the settings table
+         * @param providerId used to identify the set of settings for a given
+         *            provider
+         * @param allowDirectTransfer
+         */
+        public static void setAllowDirectTransfer(ContentResolver cr, long providerId,
+                boolean allowDirectTransfer) {
+            putBooleanValue(cr, providerId, ALLOW_DIRECT_TRANSFER, allowDirectTransfer);
+        }
+
         /**
          * A convenience method to set whether or not the GTalk service should
          * be started automatically.
@@ -2015,6 +2117,14 @@ public class Imps {
                 return getBoolean(DO_DNS_SRV, true /* by default use DNS SRV to find the server */);
             }
 
+            public void setAllowDirectTransfer(boolean value) {
+                ProviderSettings.setAllowDirectTransfer(mContentResolver, mProviderId, value);
+            }
+
+            public boolean getAllowDirectTransfer() {
+                return getBoolean(ALLOW_DIRECT_TRANSFER, false /* by default keep our address to ourselves */);
+            }
+
             /**
              * Set whether or not the offline contacts should be hided.
              * 
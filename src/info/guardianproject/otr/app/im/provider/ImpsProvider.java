@@ -72,6 +72,7 @@ public class ImpsProvider extends ContentProvider implements ICacheWordSubscribe
     private static final String TABLE_CHATS = "chats";
     private static final String TABLE_AVATARS = "avatars";
     private static final String TABLE_SESSION_COOKIES = "sessionCookies";
+    private static final String TABLE_FILE_TRANSFERS = "fileTransfers";
     private static final String TABLE_MESSAGES = "messages";
     private static final String TABLE_IN_MEMORY_MESSAGES = "inMemoryMessages";
     private static final String TABLE_ACCOUNT_STATUS = "accountStatus";
@@ -83,7 +84,7 @@ public class ImpsProvider extends ContentProvider implements ICacheWordSubscribe
     private static final String TABLE_S2D_RMQ_IDS = "s2dRmqIds";
 
     private static final String DATABASE_NAME = "impsenc.db";
-    private static final int DATABASE_VERSION = 102;
+    private static final int DATABASE_VERSION = 103;
 
     protected static final int MATCH_PROVIDERS = 1;
     protected static final int MATCH_PROVIDERS_BY_ID = 2;
@@ -149,6 +150,7 @@ public class ImpsProvider extends ContentProvider implements ICacheWordSubscribe
     protected static final int MATCH_ACCOUNTS_STATUS = 104;
     protected static final int MATCH_ACCOUNT_STATUS = 105;
     protected static final int MATCH_BRANDING_RESOURCE_MAP_CACHE = 106;
+    protected static final int MATCH_FILE_TRANSFERS = 110;
 
     // mcs url matcher
     protected static final int MATCH_OUTGOING_RMQ_MESSAGES = 200;
@@ -318,6 +320,8 @@ public class ImpsProvider extends ContentProvider implements ICacheWordSubscribe
                        + "_id INTEGER PRIMARY KEY," + "provider_id INTEGER,"
                        + "app_res_id INTEGER," + "plugin_res_id INTEGER" + ");");
 
+            createFileTransfersTable(db);
+
             // clean up account specific data when an account is deleted.
             db.execSQL("CREATE TRIGGER account_cleanup " + "DELETE ON " + TABLE_ACCOUNTS
                        + " BEGIN " + "DELETE FROM " + TABLE_AVATARS + " WHERE account_id= OLD._id;"
@@ -483,6 +487,23 @@ public class ImpsProvider extends ContentProvider implements ICacheWordSubscribe
                     db.endTransaction();
                 }
 
+                // fall thru.
+            case 102:
+                if (newVersion <= 102) {
+                    return;
+                }
+
+                db.beginTransaction();
+                try {
+                    createFileTransfersTable(db);
+                    db.setTransactionSuccessful();
+                } catch (Throwable ex) {
+                    LogCleaner.error(LOG_TAG, ex.getMessage(), ex);
+                    break; // force to destroy all old data;
+                } finally {
+                    db.endTransaction();
+                }
+
                 return;
             }
 
@@ -503,6 +524,7 @@ public class ImpsProvider extends ContentProvider implements ICacheWordSubscribe
             db.execSQL("DROP TABLE IF EXISTS " + TABLE_BRANDING_RESOURCE_MAP_CACHE);
             db.execSQL("DROP TABLE IF EXISTS " + TABLE_MESSAGES);
             db.execSQL("DROP TABLE IF EXISTS " + TABLE_CHATS);
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_FILE_TRANSFERS);
 
             // mcs/rmq stuff
             db.execSQL("DROP TABLE IF EXISTS " + TABLE_OUTGOING_RMQ_MESSAGES);
@@ -510,6 +532,19 @@ public class ImpsProvider extends ContentProvider implements ICacheWordSubscribe
             db.execSQL("DROP TABLE IF EXISTS " + TABLE_S2D_RMQ_IDS);
         }
 
+        private void createFileTransfersTable(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_FILE_TRANSFERS + " ("
+                       + "_id INTEGER PRIMARY KEY," + "account INTEGER," + "contact TEXT,"
+                       + "direction INTEGER," + "url TEXT," + "mime_type TEXT," + "sha1 TEXT,"
+                       + "length INTEGER," + "path TEXT," + "target TEXT," + "received BLOB,"
+                       + "updated INTEGER," + "UNIQUE (account, contact, direction, url)" + ");");
+
+            // interrupted transfers go with their account
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS file_transfers_cleanup " + "DELETE ON "
+                       + TABLE_ACCOUNTS + " BEGIN " + "DELETE FROM " + TABLE_FILE_TRANSFERS
+                       + " WHERE account= OLD._id;" + "END");
+        }
+
         private void createContactsTables(SQLiteDatabase db) {
             if (DBG)
                 log("createContactsTables");
@@ -1000,6 +1035,7 @@ public class ImpsProvider extends ContentProvider implements ICacheWordSubscribe
 
         mUrlMatcher.addURI(authority, "sessionCookies", MATCH_SESSIONS);
         mUrlMatcher.addURI(authority, "sessionCookiesBy/#/#", MATCH_SESSIONS_BY_PROVIDER);
+        mUrlMatcher.addURI(authority, "fileTransfers", MATCH_FILE_TRANSFERS);
         mUrlMatcher.addURI(authority, "providerSettings", MATCH_PROVIDER_SETTINGS);
         mUrlMatcher.addURI(authority, "providerSettings/#", MATCH_PROVIDER_SETTINGS_BY_ID);
         mUrlMatcher.addURI(authority, "providerSettings/#/*",
@@ -1480,6 +1516,10 @@ public class ImpsProvider extends ContentProvider implements ICacheWordSubscribe
             appendWhere(whereClause, Imps.SessionCookies.ACCOUNT, "=", url.getPathSegments().get(2));
             break;
 
+        case MATCH_FILE_TRANSFERS:
+            qb.setTables(TABLE_FILE_TRANSFERS);
+            break;
+
         case MATCH_PROVIDER_SETTINGS_BY_ID_AND_NAME:
             appendWhere(whereClause, Imps.ProviderSettings.NAME, "=", url.getPathSegments().get(2));
             // fall through
@@ -1665,6 +1705,9 @@ public class ImpsProvider extends ContentProvider implements ICacheWordSubscribe
         case MATCH_SESSIONS_BY_PROVIDER:
             return Imps.SessionCookies.CONTENT_TYPE;
 
+        case MATCH_FILE_TRANSFERS:
+            return Imps.FileTransfers.CONTENT_TYPE;
+
         case MATCH_PROVIDER_SETTINGS:
             return Imps.ProviderSettings.CONTENT_TYPE;
 
@@ -2440,6 +2483,14 @@ public class ImpsProvider extends ContentProvider implements ICacheWordSubscribe
             }
             break;
 
+        case MATCH_FILE_TRANSFERS:
+            // a transfer saved again replaces its old state
+            rowID = db.replace(TABLE_FILE_TRANSFERS, null, initialValues);
+            if (rowID > 0) {
+                resultUri = Uri.parse(Imps.FileTransfers.CONTENT_URI + "/" + rowID);
+            }
+            break;
+
         case MATCH_PROVIDER_SETTINGS:
             rowID = db.replace(TABLE_PROVIDER_SETTINGS, null, initialValues);
             if (rowID > 0) {
@@ -3093,6 +3144,10 @@ public class ImpsProvider extends ContentProvider implements ICacheWordSubscribe
             idColumnName = Imps.SessionCookies.ACCOUNT;
             break;
 
+        case MATCH_FILE_TRANSFERS:
+            tableToChange = TABLE_FILE_TRANSFERS;
+            break;
+
         case MATCH_PROVIDER_SETTINGS_BY_ID:
             tableToChange = TABLE_PROVIDER_SETTINGS;
             changedItemId = url.getPathSegments().get(1);
@@ -3564,8 +3619,7 @@ public class ImpsProvider extends ContentProvider implements ICacheWordSubscribe
 
     @Override
     public void onCacheWordLocked() {
-        // TODO Auto-generated method stub
-        
+        OtrAndroidKeyManagerImpl.lock();
     }
 
     @Override
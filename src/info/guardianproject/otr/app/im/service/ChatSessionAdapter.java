@@ -44,9 +44,6 @@ import info.guardianproject.otr.app.im.provider.Imps;
 import info.guardianproject.util.SystemServices;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -59,6 +56,7 @@ import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.net.Proxy;
 import android.net.Uri;
 import android.os.Environment;
 import android.os.RemoteCallbackList;
@@ -107,14 +105,23 @@ public class ChatSessionAdapter extends info.guardianproject.otr.app.im.IChatSes
 
     private DataAdapter mDataListener;
 
+    private OtrChatListener mOtrChatListener;
+
+    /* Whether transfers were resumed since the session was last encrypted */
+    private boolean mTransfersResumed;
+
     public ChatSessionAdapter(ChatSession adaptee, ImConnectionAdapter connection) {
         mAdaptee = adaptee;
-        mDataListener = new DataAdapter();
-        mDataHandler = new OtrDataHandler(mAdaptee, mDataListener);
         mConnection = connection;
 
         service = connection.getContext();
         mContentResolver = service.getContentResolver();
+        mDataListener = new DataAdapter();
+        OtrDataHandler dataHandler = new OtrDataHandler(mAdaptee, mDataListener,
+                new ImpsTransferStore(mContentResolver, connection.getAccountId(), mAdaptee
+                        .getParticipant().getAddress().getAddress()));
+        dataHandler.setDirectTransferEnabled(isDirectTransferAllowed(connection.getProviderId()));
+        mDataHandler = dataHandler;
         mStatusBarNotifier = service.getStatusBarNotifier();
         mChatSessionManager = (ChatSessionManagerAdapter) connection.getChatSessionManager();
 
@@ -124,7 +131,8 @@ public class ChatSessionAdapter extends info.guardianproject.otr.app.im.IChatSes
         mListenerAdapter = new ListenerAdapter();
 
         // add OtrChatListener as the intermediary to mListenerAdapter so it can filter OTR msgs
-        mAdaptee.addMessageListener(new OtrChatListener(mOtrChatManager, mListenerAdapter));
+        mOtrChatListener = new OtrChatListener(mOtrChatManager, mListenerAdapter);
+        mAdaptee.addMessageListener(mOtrChatListener);
         mAdaptee.setOtrChatManager(mOtrChatManager);
 
         ImEntity participant = mAdaptee.getParticipant();
@@ -154,6 +162,22 @@ public class ChatSessionAdapter extends info.guardianproject.otr.app.im.IChatSes
         return mOtrChatSession;
     }
 
+    /**
+     * Direct transfers connect outside the XMPP connection, so they are never
+     * allowed when that goes through Tor or another proxy.
+     */
+    private boolean isDirectTransferAllowed(long providerId) {
+        if (Proxy.getDefaultHost() != null)
+            return false;
+        Imps.ProviderSettings.QueryMap settings = new Imps.ProviderSettings.QueryMap(
+                mContentResolver, providerId, false /* don't keep updated */, null /* no handler */);
+        try {
+            return settings.getAllowDirectTransfer() && !settings.getUseTor();
+        } finally {
+            settings.close();
+        }
+    }
+
     private void init(ChatGroup group) {
         mIsGroupChat = true;
         long groupId = insertGroupContactInDb(group);
@@ -269,6 +293,8 @@ public class ChatSessionAdapter extends info.guardianproject.otr.app.im.IChatSes
             getGroupManager().leaveChatGroupAsync((ChatGroup) mAdaptee.getParticipant());
         }
 
+        mOtrChatListener.dispose();
+
         mContentResolver.delete(mMessageURI, null, null);
         mContentResolver.delete(mChatURI, null, null);
         mStatusBarNotifier.dismissChatNotification(mConnection.getProviderId(), getAddress());
@@ -330,6 +356,36 @@ public class ChatSessionAdapter extends info.guardianproject.otr.app.im.IChatSes
      mAdaptee.sendMessageAsync(msg);
     }*/
 
+    /**
+     * Resumes interrupted file transfers after a reconnect, or as soon as the
+     * session is encrypted again.
+     */
+    void resumeTransfers() {
+        synchronized (this) {
+            mTransfersResumed = false;
+        }
+        resumeTransfersIfEncrypted();
+    }
+
+    private void resumeTransfersIfEncrypted() {
+        if (mIsGroupChat)
+            return;
+        boolean encrypted;
+        try {
+            encrypted = mOtrChatSession.isChatEncrypted();
+        } catch (RemoteException e) {
+            return;
+        }
+        synchronized (this) {
+            if (!encrypted)
+                mTransfersResumed = false;
+            if (!encrypted || mTransfersResumed)
+                return;
+            mTransfersResumed = true;
+        }
+        mDataHandler.resumeTransfers(mConnection.getLoginUser().getAddress());
+    }
+
     void sendPostponedMessages() {
         String[] projection = new String[] { BaseColumns._ID, Imps.Messages.BODY,
                                              Imps.Messages.PACKET_ID,
@@ -594,27 +650,23 @@ public class ChatSessionAdapter extends info.guardianproject.otr.app.im.IChatSes
 
     class DataAdapter implements DataListener {
         @Override
-        public void onTransferComplete(Address from, String url, String type, byte[] data) {
-            // TODO have a specific notifier for files / data
-            String username = from.getScreenName();
-            String nickname = getNickName(username);
+        public File getTransferFile(Address from, String url) {
             File sdCard = Environment.getExternalStorageDirectory();
             String[] path = url.split("/"); 
-            String sanitizedPeer = SystemServices.sanitize(username);
+            String sanitizedPeer = SystemServices.sanitize(from.getScreenName());
             String sanitizedPath = SystemServices.sanitize(path[path.length - 1]);
             File dir = new File (sdCard.getAbsolutePath() + "/ChatSecure/peerdata/" + sanitizedPeer);
-            dir.mkdirs();
-            File file = new File(dir, sanitizedPath);
-            try {
-                OutputStream output = new FileOutputStream(file);
-                output.write(data);
-                output.close();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
+            return new File(dir, sanitizedPath);
+        }
+
+        @Override
+        public void onTransferComplete(Address from, String url, String type, File file) {
+            // TODO have a specific notifier for files / data
+            String username = from.getScreenName();
+            String nickname = getNickName(username);
             Uri uri = SystemServices.Scanner.scan(service, file.getPath());
             mStatusBarNotifier.notifyFile(mConnection.getProviderId(), mConnection.getAccountId(),
-                    getId(), username, nickname, sanitizedPath, uri, type, false);
+                    getId(), username, nickname, file.getName(), uri, type, false);
         }
 
         @Override
@@ -775,6 +827,12 @@ public class ChatSessionAdapter extends info.guardianproject.otr.app.im.IChatSes
             mRemoteListeners.finishBroadcast();
         }
 
+        @Override
+        public void onMessageSent(ChatSession ses, Message msg) {
+            // Logged when it was queued; now it went out, and how
+            updateMessageInDb(msg.getID(), msg.getType(), System.currentTimeMillis());
+        }
+
         @Override
         public void onMessagePostponed(ChatSession ses, String id) {
             updateMessageInDb(id, Imps.MessageType.POSTPONED, -1);
@@ -799,6 +857,9 @@ public class ChatSessionAdapter extends info.guardianproject.otr.app.im.IChatSes
                 }
             }
             mRemoteListeners.finishBroadcast();
+
+            // A new AKE, the peer may have lost our requests
+            resumeTransfersIfEncrypted();
         }
 
         @Override
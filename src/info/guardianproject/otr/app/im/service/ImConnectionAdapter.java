@@ -407,6 +407,7 @@ public class ImConnectionAdapter extends info.guardianproject.otr.app.im.IImConn
                 for (ChatSessionAdapter session : mChatSessionManager.mActiveChatSessionAdapters
                         .values()) {
                     session.sendPostponedMessages();
+                    session.resumeTransfers();
                 }
 
                 //                mService.getStatusBarNotifier().notifyLoggedIn(mProviderId, mAccountId);
@@ -0,0 +1,104 @@
+package info.guardianproject.otr.app.im.service;
+
+import info.guardianproject.otr.TransferStore;
+import info.guardianproject.otr.app.im.provider.Imps;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+
+/** Keeps the transfers with one contact in the encrypted IM database. */
+public class ImpsTransferStore implements TransferStore {
+    private static final String[] PROJECTION = { Imps.FileTransfers.DIRECTION,
+                                                Imps.FileTransfers.URL,
+                                                Imps.FileTransfers.MIME_TYPE,
+                                                Imps.FileTransfers.SHA1,
+                                                Imps.FileTransfers.LENGTH,
+                                                Imps.FileTransfers.PATH,
+                                                Imps.FileTransfers.TARGET,
+                                                Imps.FileTransfers.RECEIVED,
+                                                Imps.FileTransfers.UPDATED };
+
+    private static final String CONTACT_SELECTION = Imps.FileTransfers.ACCOUNT + "=? AND "
+                                                    + Imps.FileTransfers.CONTACT + "=?";
+    private static final String TRANSFER_SELECTION = CONTACT_SELECTION + " AND "
+                                                     + Imps.FileTransfers.DIRECTION + "=? AND "
+                                                     + Imps.FileTransfers.URL + "=?";
+
+    private final ContentResolver mResolver;
+    private final long mAccountId;
+    private final String mContact;
+
+    public ImpsTransferStore(ContentResolver resolver, long accountId, String contact) {
+        mResolver = resolver;
+        mAccountId = accountId;
+        mContact = contact;
+    }
+
+    @Override
+    public List<Record> load() {
+        return query(CONTACT_SELECTION, new String[] { String.valueOf(mAccountId), mContact });
+    }
+
+    @Override
+    public Record get(int direction, String url) {
+        List<Record> records = query(TRANSFER_SELECTION, getTransferArgs(direction, url));
+        return records.isEmpty() ? null : records.get(0);
+    }
+
+    @Override
+    public void save(Record record) {
+        ContentValues values = new ContentValues();
+        values.put(Imps.FileTransfers.ACCOUNT, mAccountId);
+        values.put(Imps.FileTransfers.CONTACT, mContact);
+        values.put(Imps.FileTransfers.DIRECTION, record.direction);
+        values.put(Imps.FileTransfers.URL, record.url);
+        values.put(Imps.FileTransfers.MIME_TYPE, record.type);
+        values.put(Imps.FileTransfers.SHA1, record.sum);
+        values.put(Imps.FileTransfers.LENGTH, record.length);
+        values.put(Imps.FileTransfers.PATH, record.path);
+        values.put(Imps.FileTransfers.TARGET, record.target);
+        values.put(Imps.FileTransfers.RECEIVED, record.received);
+        values.put(Imps.FileTransfers.UPDATED, record.updated);
+        mResolver.insert(Imps.FileTransfers.CONTENT_URI, values);
+    }
+
+    @Override
+    public void delete(int direction, String url) {
+        mResolver.delete(Imps.FileTransfers.CONTENT_URI, TRANSFER_SELECTION,
+                getTransferArgs(direction, url));
+    }
+
+    private String[] getTransferArgs(int direction, String url) {
+        return new String[] { String.valueOf(mAccountId), mContact, String.valueOf(direction), url };
+    }
+
+    private List<Record> query(String selection, String[] args) {
+        List<Record> records = new ArrayList<Record>();
+        Cursor c = mResolver.query(Imps.FileTransfers.CONTENT_URI, PROJECTION, selection, args,
+                null);
+        if (c == null)
+            return records;
+        try {
+            while (c.moveToNext()) {
+                Record record = new Record();
+                record.direction = c.getInt(0);
+                record.url = c.getString(1);
+                record.type = c.getString(2);
+                record.sum = c.getString(3);
+                record.length = c.getLong(4);
+                record.path = c.getString(5);
+                record.target = c.getString(6);
+                record.received = c.getBlob(7);
+                record.updated = c.getLong(8);
+                records.add(record);
+            }
+        } finally {
+            c.close();
+        }
+        return records;
+    }
+}
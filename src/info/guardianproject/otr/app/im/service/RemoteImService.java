@@ -49,6 +49,7 @@ import java.util.Vector;
 import net.java.otr4j.OtrEngineListener;
 import net.java.otr4j.OtrKeyManager;
 import net.java.otr4j.OtrPolicy;
+import net.java.otr4j.crypto.DHKeyPairPool;
 import net.java.otr4j.session.SessionID;
 import net.java.otr4j.session.SessionStatus;
 import android.app.Notification;
@@ -406,6 +407,8 @@ public class RemoteImService extends Service implements OtrEngineListener, ImSer
         
         AndroidSystemService.getInstance().shutdown();
 
+        DHKeyPairPool.getInstance().shutdown();
+
         mNetworkConnectivityListener.unregisterHandler(mServiceHandler);
         mNetworkConnectivityListener.stopListening();
         mNetworkConnectivityListener = null;
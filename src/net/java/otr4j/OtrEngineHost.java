@@ -25,4 +25,11 @@ public abstract interface OtrEngineHost {
     public abstract OtrPolicy getSessionPolicy(SessionID sessionID);
 
     public abstract KeyPair getKeyPair(SessionID sessionID);
+
+    /**
+     * @return the longest message, in characters, the transport carries for
+     *         this session. Longer encoded messages are sent as OTR fragments.
+     *         0 or less for no limit.
+     */
+    public abstract int getMaxFragmentSize(SessionID sessionID);
 }
@@ -6,15 +6,22 @@
 
 package net.java.otr4j;
 
-import info.guardianproject.otr.OtrChatListener;
-
 import java.security.PublicKey;
 import java.util.ArrayList;
-import java.util.Hashtable;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
-import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
 
+import net.java.otr4j.session.InstanceTag;
+import net.java.otr4j.session.PendingMessage;
 import net.java.otr4j.session.Session;
 import net.java.otr4j.session.SessionID;
 import net.java.otr4j.session.SessionImpl;
@@ -24,6 +31,15 @@ import net.java.otr4j.session.TLV;
 /** @author George Politis */
 public class OtrEngineImpl implements OtrEngine {
 
+    /** Sessions not encrypted for this long are evicted, in milliseconds. */
+    public static final long DEFAULT_SESSION_IDLE_TIMEOUT = 30 * 60 * 1000;
+    /** Above this many sessions, the least recently used unencrypted ones are evicted. */
+    public static final int DEFAULT_MAX_SESSIONS = 256;
+
+    private static final long SWEEP_INTERVAL = 60 * 1000;
+
+    private static Logger logger = Logger.getLogger(OtrEngineImpl.class.getName());
+
     public OtrEngineImpl(OtrEngineHost host) {
         if (host == null)
             throw new IllegalArgumentException("OtrEgineHost is required.");
@@ -32,30 +48,261 @@ public class OtrEngineImpl implements OtrEngine {
     }
 
     private OtrEngineHost host;
-    private Map<SessionID, Session> sessions;
+    private final ConcurrentMap<SessionID, Session> sessions = new ConcurrentHashMap<SessionID, Session>();
+    /** Our OTR version 3 instance tag, per account. */
+    private final ConcurrentMap<String, InstanceTag> instanceTags = new ConcurrentHashMap<String, InstanceTag>();
+
+    private final OtrEngineListener sessionListener = new OtrEngineListener() {
+
+        public void sessionStatusChanged(SessionID sessionID) {
+            for (OtrEngineListener l : listeners)
+                l.sessionStatusChanged(sessionID);
+        }
+    };
+
+    private volatile PendingMessageListener pendingListener;
+
+    private final PendingMessageListener pendingForwarder = new PendingMessageListener() {
+
+        public void pendingMessageSent(SessionID sessionID, PendingMessage message) {
+            PendingMessageListener l = pendingListener;
+            if (l != null)
+                l.pendingMessageSent(sessionID, message);
+        }
+
+        public void pendingMessageDropped(SessionID sessionID, PendingMessage message, int reason) {
+            PendingMessageListener l = pendingListener;
+            if (l != null)
+                l.pendingMessageDropped(sessionID, message, reason);
+        }
+    };
+
+    private volatile long sessionIdleTimeout = DEFAULT_SESSION_IDLE_TIMEOUT;
+    private volatile int maxSessions = DEFAULT_MAX_SESSIONS;
+    private final AtomicLong lastSweepTime = new AtomicLong(System.currentTimeMillis());
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+    private final AtomicLong evictedSessions = new AtomicLong();
+    private volatile Executor authExecutor;
+    // Limits of the outgoing queue of new sessions, the session defaults while capacity is negative
+    private volatile int pendingCapacity = -1;
+    private volatile long pendingTimeout;
+    private volatile boolean pendingDropOldest;
 
     public Session getSession(SessionID sessionID) {
 
         if (sessionID == null || sessionID.equals(SessionID.Empty))
             throw new IllegalArgumentException();
 
-        if (sessions == null)
-            sessions = new Hashtable<SessionID, Session>();
+        Session session = sessions.get(sessionID);
+        if (session != null)
+            return session;
+
+        // Only the session that wins the race is registered and listened to,
+        // a losing thread drops its own and uses the winner's.
+        SessionImpl created = new SessionImpl(sessionID, getHost(),
+                getInstanceTag(sessionID.getAccountID()));
+        if (authExecutor != null)
+            created.setAuthExecutor(authExecutor);
+        created.setPendingMessageListener(pendingForwarder);
+        if (pendingCapacity >= 0)
+            created.setPendingLimits(pendingCapacity, pendingTimeout, pendingDropOldest);
+        session = sessions.putIfAbsent(sessionID, created);
+        if (session != null)
+            return session;
+
+        created.addOtrEngineListener(sessionListener);
+
+        // New sessions are what grows the registry, so that is when we look
+        // for old ones to drop.
+        long now = System.currentTimeMillis();
+        if (sessions.size() > maxSessions || now - lastSweepTime.get() > SWEEP_INTERVAL)
+            evictIdleSessions(now, created);
+
+        return created;
+    }
+
+    /** @return our instance tag for an account, picked on first use. */
+    public InstanceTag getInstanceTag(String accountID) {
+        String key = String.valueOf(accountID);
+        InstanceTag tag = instanceTags.get(key);
+        if (tag == null) {
+            InstanceTag created = new InstanceTag();
+            tag = instanceTags.putIfAbsent(key, created);
+            if (tag == null)
+                tag = created;
+        }
+        return tag;
+    }
+
+    /**
+     * Sets the executor the AKE of sessions created from now on runs on, the
+     * shared crypto pool by default.
+     */
+    public void setAuthExecutor(Executor executor) {
+        this.authExecutor = executor;
+    }
+
+    /**
+     * Sets who hears about messages that were held while an AKE was under
+     * way, once they are sent or dropped.
+     */
+    public void setPendingMessageListener(PendingMessageListener listener) {
+        this.pendingListener = listener;
+    }
+
+    /**
+     * Bounds the messages sessions created from now on hold while an AKE is
+     * under way.
+     * 
+     * @see SessionImpl#setPendingLimits(int, long, boolean)
+     */
+    public void setPendingLimits(int capacity, long timeout, boolean dropOldest) {
+        if (capacity < 0)
+            throw new IllegalArgumentException("Illegal queue capacity.");
+        this.pendingTimeout = timeout;
+        this.pendingDropOldest = dropOldest;
+        this.pendingCapacity = capacity;
+    }
+
+    /**
+     * @param timeout milliseconds after which a session that is not encrypted
+     *            and has seen no messages is evicted, 0 or less to never
+     *            evict for idleness.
+     */
+    public void setSessionIdleTimeout(long timeout) {
+        this.sessionIdleTimeout = timeout;
+    }
+
+    public long getSessionIdleTimeout() {
+        return sessionIdleTimeout;
+    }
 
-        if (!sessions.containsKey(sessionID)) {
-            Session session = new SessionImpl(sessionID, getHost());
-            sessions.put(sessionID, session);
+    /**
+     * @param maxSessions the number of sessions above which the least recently
+     *            used sessions that are not encrypted are evicted.
+     */
+    public void setMaxSessions(int maxSessions) {
+        if (maxSessions < 0)
+            throw new IllegalArgumentException("Illegal maximum number of sessions.");
+        this.maxSessions = maxSessions;
+    }
 
-            session.addOtrEngineListener(new OtrEngineListener() {
+    public int getMaxSessions() {
+        return maxSessions;
+    }
 
-                public void sessionStatusChanged(SessionID sessionID) {
-                    for (OtrEngineListener l : listeners)
-                        l.sessionStatusChanged(sessionID);
+    /**
+     * Evicts sessions in PLAINTEXT or FINISHED state that have been idle
+     * longer than the idle timeout, then the least recently used of them
+     * while there are more than the maximum number of sessions. Their key
+     * material is wiped. Encrypted sessions are never evicted.
+     * 
+     * @return the number of sessions evicted.
+     */
+    public int evictIdleSessions() {
+        return evictIdleSessions(System.currentTimeMillis(), null);
+    }
+
+    /** @param keep a session that must survive, the one just handed out. */
+    int evictIdleSessions(long now, Session keep) {
+        if (!sweeping.compareAndSet(false, true))
+            return 0;
+
+        try {
+            lastSweepTime.set(now);
+            long timeout = sessionIdleTimeout;
+            int evicted = 0;
+
+            List<Session> candidates = new ArrayList<Session>();
+            for (Map.Entry<SessionID, Session> entry : sessions.entrySet()) {
+                Session session = entry.getValue();
+                if (session == keep || session.getSessionStatus() == SessionStatus.ENCRYPTED)
+                    continue;
+                if (timeout > 0 && now - session.getLastActivityTime() > timeout) {
+                    // An AKE that saw no message for this long is abandoned
+                    if (evict(entry.getKey(), session, now - timeout, false))
+                        evicted++;
+                } else if (!isBusy(session, true)) {
+                    candidates.add(session);
                 }
-            });
-            return session;
-        } else
-            return sessions.get(sessionID);
+            }
+
+            int excess = sessions.size() - maxSessions;
+            if (excess > 0) {
+                Collections.sort(candidates, new Comparator<Session>() {
+                    public int compare(Session a, Session b) {
+                        long x = a.getLastActivityTime();
+                        long y = b.getLastActivityTime();
+                        return x < y ? -1 : (x == y ? 0 : 1);
+                    }
+                });
+                for (int i = 0; i < candidates.size() && excess > 0; i++) {
+                    Session session = candidates.get(i);
+                    if (evict(session.getSessionID(), session, session.getLastActivityTime() + 1,
+                            true)) {
+                        evicted++;
+                        excess--;
+                    }
+                }
+            }
+
+            if (evicted > 0)
+                logger.finest("Evicted " + evicted + " idle sessions, " + sessions.size() + " left.");
+            return evicted;
+        } finally {
+            sweeping.set(false);
+        }
+    }
+
+    /**
+     * A session with messages waiting for the AKE is never evicted, since
+     * that would drop them. With keepAke, neither is one whose AKE is under
+     * way: AKE steps run outside the session lock, so it is checked rather
+     * than excluded by locking.
+     */
+    private static boolean isBusy(Session session, boolean keepAke) {
+        return session.getPendingCount() > 0 || (keepAke && session.isAkeInProgress());
+    }
+
+    /**
+     * Removes and destroys session, unless it has become busy, encrypted or
+     * active again since it was chosen. Busy is checked before taking the
+     * session lock, which instances take in the other order; a message that
+     * starts an AKE or queues behind one after that counts as activity,
+     * which is checked under the lock.
+     */
+    private boolean evict(SessionID sessionID, Session session, long idleBefore, boolean keepAke) {
+        if (isBusy(session, keepAke))
+            return false;
+        synchronized (session) {
+            if (session.getSessionStatus() == SessionStatus.ENCRYPTED
+                || session.getLastActivityTime() >= idleBefore)
+                return false;
+            if (!sessions.remove(sessionID, session))
+                return false;
+            session.removeOtrEngineListener(sessionListener);
+            session.destroy();
+        }
+        evictedSessions.incrementAndGet();
+        return true;
+    }
+
+    /** @return the number of sessions currently held. */
+    public int getLiveSessionCount() {
+        return sessions.size();
+    }
+
+    /** @return the number of sessions evicted since this engine was created. */
+    public long getEvictedSessionCount() {
+        return evictedSessions.get();
+    }
+
+    /** @return an estimate of the memory held by all live sessions, in bytes. */
+    public long getResidentBytes() {
+        long bytes = 0;
+        for (Session session : sessions.values())
+            bytes += session.getResidentBytes();
+        return bytes;
     }
 
     public SessionStatus getSessionStatus(SessionID sessionID) {
@@ -84,7 +331,7 @@ public class OtrEngineImpl implements OtrEngine {
         List<TLV> tlvs = null;
         if (data != null) {
             tlvs = new ArrayList<TLV>(1);
-            tlvs.add(new TLV(isResponse ? OtrChatListener.TLV_DATA_RESPONSE : OtrChatListener.TLV_DATA_REQUEST, data));
+            tlvs.add(new TLV(isResponse ? TLV.DATA_RESPONSE : TLV.DATA_REQUEST, data));
         }
         return this.getSession(sessionID).transformSending(msgText, tlvs);
     }
@@ -113,18 +360,13 @@ public class OtrEngineImpl implements OtrEngine {
         return this.getSession(sessionID).getRemotePublicKey();
     }
 
-    private List<OtrEngineListener> listeners = new Vector<OtrEngineListener>();
+    private final CopyOnWriteArrayList<OtrEngineListener> listeners = new CopyOnWriteArrayList<OtrEngineListener>();
 
     public void addOtrEngineListener(OtrEngineListener l) {
-        synchronized (listeners) {
-            if (!listeners.contains(l))
-                listeners.add(l);
-        }
+        listeners.addIfAbsent(l);
     }
 
     public void removeOtrEngineListener(OtrEngineListener l) {
-        synchronized (listeners) {
-            listeners.remove(l);
-        }
+        listeners.remove(l);
     }
 }
@@ -14,23 +14,27 @@ public interface OtrPolicy {
     public static final int SEND_WHITESPACE_TAG = 0x08;
     public static final int WHITESPACE_START_AKE = 0x10;
     public static final int ERROR_START_AKE = 0x20;
-    public static final int VERSION_MASK = (ALLOW_V1 | ALLOW_V2);
+    public static final int ALLOW_V3 = 0x40;
+    public static final int VERSION_MASK = (ALLOW_V1 | ALLOW_V2 | ALLOW_V3);
 
     // The four old version 1 policies correspond to the following combinations
-    // of flags (adding an allowance for version 2 of the protocol):
+    // of flags (adding an allowance for versions 2 and 3 of the protocol):
 
     public static final int NEVER = 0x00;
-    public static final int OPPORTUNISTIC = (ALLOW_V1 | ALLOW_V2 | SEND_WHITESPACE_TAG
+    public static final int OPPORTUNISTIC = (ALLOW_V1 | ALLOW_V2 | ALLOW_V3 | SEND_WHITESPACE_TAG
                                              | WHITESPACE_START_AKE | ERROR_START_AKE);
-    public static final int OTRL_POLICY_MANUAL = (ALLOW_V1 | ALLOW_V2);
-    public static final int OTRL_POLICY_ALWAYS = (ALLOW_V1 | ALLOW_V2 | REQUIRE_ENCRYPTION
-                                                  | WHITESPACE_START_AKE | ERROR_START_AKE);
+    public static final int OTRL_POLICY_MANUAL = (ALLOW_V1 | ALLOW_V2 | ALLOW_V3);
+    public static final int OTRL_POLICY_ALWAYS = (ALLOW_V1 | ALLOW_V2 | ALLOW_V3
+                                                  | REQUIRE_ENCRYPTION | WHITESPACE_START_AKE
+                                                  | ERROR_START_AKE);
     public static final int OTRL_POLICY_DEFAULT = OPPORTUNISTIC;
 
     public abstract boolean getAllowV1();
 
     public abstract boolean getAllowV2();
 
+    public abstract boolean getAllowV3();
+
     public abstract boolean getRequireEncryption();
 
     public abstract boolean getSendWhitespaceTag();
@@ -45,6 +49,8 @@ public interface OtrPolicy {
 
     public abstract void setAllowV2(boolean value);
 
+    public abstract void setAllowV3(boolean value);
+
     public abstract void setRequireEncryption(boolean value);
 
     public abstract void setSendWhitespaceTag(boolean value);
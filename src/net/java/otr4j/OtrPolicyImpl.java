@@ -28,6 +28,10 @@ public class OtrPolicyImpl implements OtrPolicy {
         return (policy & OtrPolicy.ALLOW_V2) != 0;
     }
 
+    public boolean getAllowV3() {
+        return (policy & OtrPolicy.ALLOW_V3) != 0;
+    }
+
     public boolean getErrorStartAKE() {
         return (policy & OtrPolicy.ERROR_START_AKE) != 0;
     }
@@ -58,6 +62,13 @@ public class OtrPolicyImpl implements OtrPolicy {
             policy &= ~ALLOW_V2;
     }
 
+    public void setAllowV3(boolean value) {
+        if (value)
+            policy |= ALLOW_V3;
+        else
+            policy &= ~ALLOW_V3;
+    }
+
     public void setErrorStartAKE(boolean value) {
         if (value)
             policy |= ERROR_START_AKE;
@@ -108,6 +119,7 @@ public class OtrPolicyImpl implements OtrPolicy {
     public void setEnableManual(boolean value) {
         setAllowV1(value);
         setAllowV2(value);
+        setAllowV3(value);
     }
 
     public boolean equals(Object obj) {
@@ -0,0 +1,25 @@
+package net.java.otr4j;
+
+import net.java.otr4j.session.PendingMessage;
+import net.java.otr4j.session.SessionID;
+
+/**
+ * Notified of the fate of messages that waited for an AKE. Called from
+ * whichever thread completed the AKE or noticed the drop, possibly while the
+ * session is locked, so implementations should only hand the news on.
+ */
+public interface PendingMessageListener {
+    /** The queue was full. */
+    public static final int DROPPED_OVERFLOW = 1;
+    /** The AKE did not complete in time. */
+    public static final int DROPPED_TIMEOUT = 2;
+    /** The session was ended or destroyed first. */
+    public static final int DROPPED_SESSION_ENDED = 3;
+
+    /** The message was encrypted and injected. */
+    public abstract void pendingMessageSent(SessionID sessionID, PendingMessage message);
+
+    /** The message will never be sent; reason is one of the DROPPED constants. */
+    public abstract void pendingMessageDropped(SessionID sessionID, PendingMessage message,
+            int reason);
+}
@@ -0,0 +1,101 @@
+/*
+ * otr4j, the open source java otr library.
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package net.java.otr4j.crypto;
+
+import info.guardianproject.bouncycastle.crypto.Digest;
+import info.guardianproject.bouncycastle.crypto.digests.SHA1Digest;
+import info.guardianproject.bouncycastle.crypto.digests.SHA256Digest;
+import info.guardianproject.bouncycastle.crypto.engines.AESFastEngine;
+import info.guardianproject.bouncycastle.crypto.macs.HMac;
+import info.guardianproject.bouncycastle.crypto.params.KeyParameter;
+
+import java.util.Arrays;
+
+/** The pure Java implementations bundled with the app. */
+public class BouncyCastleBackend implements CryptoBackend {
+
+    public static final String NAME = "bc";
+
+    private static final int BLOCK_SIZE = 16;
+
+    public String getName() {
+        return NAME;
+    }
+
+    public AesCtr createAesCtr(byte[] key) {
+        return new BouncyCastleAesCtr(key);
+    }
+
+    public Hmac createHmac(String algorithm, byte[] key) throws OtrCryptoException {
+        Digest digest;
+        if ("HmacSHA1".equals(algorithm))
+            digest = new SHA1Digest();
+        else if ("HmacSHA256".equals(algorithm))
+            digest = new SHA256Digest();
+        else
+            throw new OtrCryptoException(new IllegalArgumentException(algorithm));
+
+        final HMac mac = new HMac(digest);
+        mac.init(new KeyParameter(key));
+        return new Hmac() {
+            public void update(byte[] in, int inOff, int len) {
+                mac.update(in, inOff, len);
+            }
+
+            public void doFinal(byte[] out, int outOff) {
+                mac.doFinal(out, outOff);
+            }
+
+            public int getMacLength() {
+                return mac.getMacSize();
+            }
+
+            public void rekey(byte[] key) {
+                mac.init(new KeyParameter(key));
+            }
+
+            public void destroy() {
+                mac.init(new KeyParameter(new byte[mac.getMacSize()]));
+            }
+        };
+    }
+
+    private static class BouncyCastleAesCtr implements AesCtr {
+        private final AESFastEngine aes = new AESFastEngine();
+        private final byte[] counter = new byte[BLOCK_SIZE];
+        private final byte[] keyStream = new byte[BLOCK_SIZE];
+
+        BouncyCastleAesCtr(byte[] key) {
+            aes.init(true, new KeyParameter(key));
+        }
+
+        public void process(byte[] ctr, byte[] in, int inOff, int len, byte[] out, int outOff) {
+            // Same counter layout as SICBlockCipher: the supplied counter value
+            // followed by zeros, incremented as a big-endian 128 bit number.
+            Arrays.fill(counter, (byte) 0x00);
+            if (ctr != null)
+                System.arraycopy(ctr, 0, counter, 0, Math.min(ctr.length, BLOCK_SIZE));
+
+            for (int done = 0; done < len; done += BLOCK_SIZE) {
+                aes.processBlock(counter, 0, keyStream, 0);
+                int n = Math.min(BLOCK_SIZE, len - done);
+                for (int i = 0; i < n; i++)
+                    out[outOff + done + i] = (byte) (in[inOff + done + i] ^ keyStream[i]);
+
+                for (int i = BLOCK_SIZE - 1; i >= 0; i--)
+                    if (++counter[i] != 0)
+                        break;
+            }
+        }
+
+        public void destroy() {
+            aes.reset();
+            aes.init(true, new KeyParameter(new byte[OtrCryptoEngine.AES_KEY_BYTE_LENGTH]));
+            Arrays.fill(counter, (byte) 0x00);
+            Arrays.fill(keyStream, (byte) 0x00);
+        }
+    }
+}
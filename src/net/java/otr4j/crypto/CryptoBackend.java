@@ -0,0 +1,53 @@
+/*
+ * otr4j, the open source java otr library.
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package net.java.otr4j.crypto;
+
+/**
+ * A source of the symmetric primitives used for every data message: AES in
+ * counter mode and HMAC. {@link CryptoBackends} picks one implementation per
+ * primitive.
+ */
+public interface CryptoBackend {
+
+    /** AES-CTR keyed once and reused for many messages. */
+    public interface AesCtr {
+        /**
+         * Encrypts or decrypts len bytes of in, starting at inOff, into out at
+         * outOff. in and out may be the same array.
+         *
+         * @param ctr the initial 16 byte counter block, incremented as a
+         *            big-endian 128 bit number. Null for zero.
+         */
+        void process(byte[] ctr, byte[] in, int inOff, int len, byte[] out, int outOff)
+                throws OtrCryptoException;
+
+        /** Forgets the key schedule, as far as the implementation allows. */
+        void destroy();
+    }
+
+    /** An HMAC keyed once and reused for many messages. */
+    public interface Hmac {
+        void update(byte[] in, int inOff, int len);
+
+        /** Writes the MAC into out at outOff and resets for the next message. */
+        void doFinal(byte[] out, int outOff) throws OtrCryptoException;
+
+        int getMacLength();
+
+        /** Starts over with a new key, dropping any data already given. */
+        void rekey(byte[] key) throws OtrCryptoException;
+
+        void destroy();
+    }
+
+    /** @return a short, stable name used to persist and override the choice. */
+    String getName();
+
+    AesCtr createAesCtr(byte[] key) throws OtrCryptoException;
+
+    /** @param algorithm "HmacSHA1" or "HmacSHA256". */
+    Hmac createHmac(String algorithm, byte[] key) throws OtrCryptoException;
+}
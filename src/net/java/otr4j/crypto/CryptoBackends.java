@@ -0,0 +1,308 @@
+/*
+ * otr4j, the open source java otr library.
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package net.java.otr4j.crypto;
+
+import info.guardianproject.bouncycastle.util.encoders.Hex;
+
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+/**
+ * Chooses a {@link CryptoBackend} for AES-CTR and one for HMAC. On first use
+ * each backend is checked against known answers and timed, and the fastest
+ * correct one is taken. The choice is saved to the {@link Store}, if there is
+ * one, so later runs on the same platform skip the timing.
+ * <p>
+ * A choice can be forced with {@link #setOverride(String, String)} or the
+ * system properties otr4j.crypto.aes and otr4j.crypto.hmac, set to "bc" or
+ * "jce". Forced backends still have to pass the known answer tests.
+ */
+public final class CryptoBackends {
+
+    public static final String AES = "aes";
+    public static final String HMAC = "hmac";
+
+    /** Where the calibrated choice is kept between runs. */
+    public interface Store {
+        /** @return the value saved under key, or null. */
+        String load(String key);
+
+        void save(String key, String value);
+    }
+
+    private static Logger logger = Logger.getLogger(CryptoBackends.class.getName());
+
+    private static final String PROPERTY_PREFIX = "otr4j.crypto.";
+    private static final String STORE_PREFIX = "otr4j.crypto.backend.";
+
+    private static final int BENCHMARK_MESSAGE_BYTES = 1024;
+    private static final long BENCHMARK_ROUND_NANOS = 5 * 1000 * 1000;
+    private static final int BENCHMARK_ROUNDS = 3;
+
+    private static final CryptoBackend[] BACKENDS = { new BouncyCastleBackend(),
+            new JceBackend() };
+
+    private static volatile CryptoBackend aes;
+    private static volatile CryptoBackend hmac;
+    private static Store store;
+    private static String aesOverride;
+    private static String hmacOverride;
+
+    /** @return the backend to use for AES-CTR, selected on first call. */
+    public static CryptoBackend getAes() {
+        CryptoBackend b = aes;
+        if (b == null) {
+            synchronized (CryptoBackends.class) {
+                if (aes == null)
+                    aes = select(AES, aesOverride);
+                b = aes;
+            }
+        }
+        return b;
+    }
+
+    /** @return the backend to use for HMAC, selected on first call. */
+    public static CryptoBackend getHmac() {
+        CryptoBackend b = hmac;
+        if (b == null) {
+            synchronized (CryptoBackends.class) {
+                if (hmac == null)
+                    hmac = select(HMAC, hmacOverride);
+                b = hmac;
+            }
+        }
+        return b;
+    }
+
+    /** Sets where the choice is saved. Takes effect at the next selection. */
+    public static synchronized void setStore(Store store) {
+        CryptoBackends.store = store;
+    }
+
+    /**
+     * Forces the backend for primitive ({@link #AES} or {@link #HMAC}) to the
+     * one called name, or with null goes back to calibrating. Contexts already
+     * created keep their backend.
+     */
+    public static synchronized void setOverride(String primitive, String name) {
+        if (name != null && getBackend(name) == null)
+            throw new IllegalArgumentException("Unknown crypto backend: " + name);
+        if (AES.equals(primitive)) {
+            aesOverride = name;
+            aes = null;
+        } else if (HMAC.equals(primitive)) {
+            hmacOverride = name;
+            hmac = null;
+        } else
+            throw new IllegalArgumentException("Unknown primitive: " + primitive);
+    }
+
+    /** Forgets the current choice, so the next use selects again. */
+    public static synchronized void reset() {
+        aes = null;
+        hmac = null;
+    }
+
+    /** @return every backend known, in order of preference when equally fast. */
+    public static CryptoBackend[] getBackends() {
+        return BACKENDS.clone();
+    }
+
+    /** @return the backend called name, or null. */
+    public static CryptoBackend getBackend(String name) {
+        for (CryptoBackend b : BACKENDS)
+            if (b.getName().equals(name))
+                return b;
+        return null;
+    }
+
+    private static CryptoBackend select(String primitive, String override) {
+        if (override == null)
+            override = System.getProperty(PROPERTY_PREFIX + primitive);
+        if (override != null) {
+            CryptoBackend b = getBackend(override);
+            if (b != null && selfTest(primitive, b)) {
+                logger.info("Using forced " + override + " backend for " + primitive);
+                return b;
+            }
+            logger.warning("Ignoring unusable " + primitive + " backend " + override);
+        }
+
+        // The saved choice is only good for the platform it was measured on.
+        String platform = getPlatform();
+        Store store = CryptoBackends.store;
+        if (store != null) {
+            String saved = store.load(STORE_PREFIX + primitive);
+            if (saved != null && saved.endsWith("@" + platform)) {
+                CryptoBackend b = getBackend(saved.substring(0, saved.indexOf('@')));
+                if (b != null && selfTest(primitive, b))
+                    return b;
+            }
+        }
+
+        long[] nanos = new long[BACKENDS.length];
+        for (int i = 0; i < BACKENDS.length; i++) {
+            nanos[i] = Long.MAX_VALUE;
+            if (!selfTest(primitive, BACKENDS[i])) {
+                logger.warning(BACKENDS[i].getName() + " backend failed the " + primitive
+                               + " self test");
+                nanos[i] = -1;
+            }
+        }
+        // Rounds alternate between backends so that neither is favoured by
+        // the JIT warming up.
+        for (int round = 0; round < BENCHMARK_ROUNDS; round++)
+            for (int i = 0; i < BACKENDS.length; i++)
+                if (nanos[i] >= 0)
+                    nanos[i] = Math.min(nanos[i], benchmark(primitive, BACKENDS[i]));
+
+        CryptoBackend best = null;
+        long bestNanos = Long.MAX_VALUE;
+        for (int i = 0; i < BACKENDS.length; i++) {
+            if (nanos[i] < 0)
+                continue;
+            logger.info(BACKENDS[i].getName() + " " + primitive + ": " + nanos[i] + "ns per "
+                        + BENCHMARK_MESSAGE_BYTES + " bytes");
+            if (best == null || nanos[i] < bestNanos) {
+                best = BACKENDS[i];
+                bestNanos = nanos[i];
+            }
+        }
+        if (best == null)
+            throw new IllegalStateException("No working crypto backend for " + primitive);
+
+        if (store != null)
+            store.save(STORE_PREFIX + primitive, best.getName() + "@" + platform);
+        return best;
+    }
+
+    static String getPlatform() {
+        return System.getProperty("java.vm.name") + " " + System.getProperty("java.vm.version")
+               + " " + System.getProperty("os.version");
+    }
+
+    /** @return whether b gives the published answers for primitive. */
+    static boolean selfTest(String primitive, CryptoBackend b) {
+        try {
+            if (AES.equals(primitive))
+                return selfTestAes(b);
+            else
+                return selfTestHmac(b);
+        } catch (Throwable t) {
+            // Missing algorithms and broken providers both mean no.
+            return false;
+        }
+    }
+
+    private static boolean selfTestAes(CryptoBackend b) throws OtrCryptoException {
+        // NIST SP 800-38A, F.5.1 CTR-AES128.Encrypt, first two blocks.
+        byte[] key = Hex.decode("2b7e151628aed2a6abf7158809cf4f3c");
+        byte[] ctr = Hex.decode("f0f1f2f3f4f5f6f7f8f9fafbfcfdfeff");
+        byte[] plain = Hex.decode("6bc1bee22e409f96e93d7e117393172aae2d8a571e03ac9c9eb76fac45af8e51");
+        byte[] cipher = Hex.decode("874d6191b620e3261bef6864990db6ce9806f66b7970fdff8617187bb9fffdff");
+
+        CryptoBackend.AesCtr aes = b.createAesCtr(key);
+        CryptoBackend.AesCtr referenceAes = null;
+        try {
+            byte[] out = new byte[plain.length];
+            aes.process(ctr, plain, 0, plain.length, out, 0);
+            if (!Arrays.equals(cipher, out))
+                return false;
+
+            // OTR counters only fill the top half; the rest counts up from
+            // zero, carrying into the top half. A single odd-sized call
+            // covers both.
+            byte[] top = Hex.decode("0102030405060708ffffffffffffffff");
+            byte[] buf = new byte[40];
+            aes.process(top, buf, 0, buf.length, buf, 0);
+            CryptoBackend reference = BACKENDS[0];
+            if (reference != b) {
+                byte[] expected = new byte[40];
+                referenceAes = reference.createAesCtr(key);
+                referenceAes.process(top, expected, 0, expected.length, expected, 0);
+                if (!Arrays.equals(expected, buf))
+                    return false;
+            }
+            return true;
+        } finally {
+            aes.destroy();
+            if (referenceAes != null)
+                referenceAes.destroy();
+        }
+    }
+
+    private static boolean selfTestHmac(CryptoBackend b) throws OtrCryptoException {
+        // RFC 2202 and RFC 4231, test case 2.
+        byte[] key = "Jefe".getBytes();
+        byte[] data = "what do ya want for nothing?".getBytes();
+        return Arrays.equals(Hex.decode("effcdf6ae5eb2fa2d27416d5f184df9c259a7c79"),
+                hmac(b, "HmacSHA1", key, data))
+               && Arrays.equals(
+                       Hex.decode("5bdcc146bf60754e6a042426089575c75a003f089d2739839dec58b964ec3843"),
+                       hmac(b, "HmacSHA256", key, data));
+    }
+
+    private static byte[] hmac(CryptoBackend b, String algorithm, byte[] key, byte[] data)
+            throws OtrCryptoException {
+        CryptoBackend.Hmac mac = b.createHmac(algorithm, key);
+        try {
+            // Twice, to check the MAC resets after doFinal.
+            byte[] out = new byte[mac.getMacLength()];
+            for (int i = 0; i < 2; i++) {
+                mac.update(data, 0, data.length);
+                mac.doFinal(out, 0);
+            }
+            return out;
+        } finally {
+            mac.destroy();
+        }
+    }
+
+    /** @return the average time, in nanoseconds, to process one message. */
+    private static long benchmark(String primitive, CryptoBackend b) {
+        byte[] key = new byte[AES.equals(primitive) ? OtrCryptoEngine.AES_KEY_BYTE_LENGTH : 20];
+        byte[] buf = new byte[BENCHMARK_MESSAGE_BYTES];
+        byte[] ctr = new byte[16];
+        CryptoBackend.AesCtr aes = null;
+        CryptoBackend.Hmac mac = null;
+        try {
+            byte[] macOut = null;
+            if (AES.equals(primitive)) {
+                aes = b.createAesCtr(key);
+            } else {
+                mac = b.createHmac("HmacSHA1", key);
+                macOut = new byte[mac.getMacLength()];
+            }
+
+            long start = System.nanoTime();
+            long now = start;
+            int n = 0;
+            do {
+                // A fresh counter per message, as for data messages.
+                ctr[7] = (byte) n;
+                if (aes != null) {
+                    aes.process(ctr, buf, 0, buf.length, buf, 0);
+                } else {
+                    mac.update(buf, 0, buf.length);
+                    mac.doFinal(macOut, 0);
+                }
+                n++;
+                now = System.nanoTime();
+            } while (now - start < BENCHMARK_ROUND_NANOS);
+            return (now - start) / n;
+        } catch (OtrCryptoException e) {
+            return Long.MAX_VALUE;
+        } finally {
+            if (aes != null)
+                aes.destroy();
+            if (mac != null)
+                mac.destroy();
+        }
+    }
+
+    private CryptoBackends() {
+    }
+}
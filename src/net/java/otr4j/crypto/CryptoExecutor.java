@@ -0,0 +1,62 @@
+/*
+ * otr4j, the open source java otr library.
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package net.java.otr4j.crypto;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The shared pool on which public key operations are run ahead of need or
+ * off the messaging threads, one worker per core.
+ */
+public class CryptoExecutor {
+
+    /** Runs tasks in the calling thread, for callers that want the work done synchronously. */
+    public static final Executor SAME_THREAD = new Executor() {
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private static ExecutorService instance;
+
+    /** @return the shared crypto pool, started on first use. */
+    public static synchronized Executor getInstance() {
+        if (instance == null) {
+            int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+            instance = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "otr4j-crypto-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return instance;
+    }
+
+    /**
+     * Stops the shared crypto pool. Work that has not started is dropped;
+     * later calls to {@link #getInstance()} start a new pool.
+     */
+    public static void shutdown() {
+        ExecutorService e;
+        synchronized (CryptoExecutor.class) {
+            e = instance;
+            instance = null;
+        }
+        if (e != null)
+            e.shutdownNow();
+    }
+
+    private CryptoExecutor() {
+    }
+}
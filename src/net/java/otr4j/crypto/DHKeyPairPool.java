@@ -0,0 +1,199 @@
+/*
+ * otr4j, the open source java otr library.
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package net.java.otr4j.crypto;
+
+import java.security.KeyPair;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * A bounded pool of D-H key pairs generated ahead of time on a low priority
+ * background thread, so that key rotation and the AKE do not have to pay for a
+ * 1536-bit key generation on the message path. When the pool is empty, a key
+ * pair is generated synchronously.
+ */
+public class DHKeyPairPool {
+
+    public static final int DEFAULT_CAPACITY = 4;
+    public static final int DEFAULT_LOW_WATER_MARK = 1;
+
+    private static Logger logger = Logger.getLogger(DHKeyPairPool.class.getName());
+
+    private static DHKeyPairPool instance;
+
+    public static synchronized DHKeyPairPool getInstance() {
+        if (instance == null)
+            instance = new DHKeyPairPool(DEFAULT_CAPACITY, DEFAULT_LOW_WATER_MARK);
+        return instance;
+    }
+
+    private final LinkedList<KeyPair> pool = new LinkedList<KeyPair>();
+    private final OtrCryptoEngine cryptoEngine = new OtrCryptoEngineImpl();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private int capacity;
+    private int lowWaterMark;
+    private boolean refilling;
+    private boolean shutdown;
+    /* Counts shutdowns, a refill from before the last one stops */
+    private int generation;
+    private ExecutorService executor;
+
+    public DHKeyPairPool(int capacity, int lowWaterMark) {
+        setLimits(capacity, lowWaterMark);
+    }
+
+    /**
+     * @param capacity the maximum number of key pairs kept ready.
+     * @param lowWaterMark the pool is refilled once it holds this many key
+     *            pairs or fewer.
+     */
+    public synchronized void setLimits(int capacity, int lowWaterMark) {
+        if (capacity < 0 || lowWaterMark < 0 || lowWaterMark > capacity)
+            throw new IllegalArgumentException("Illegal pool limits.");
+
+        this.capacity = capacity;
+        this.lowWaterMark = lowWaterMark;
+        while (pool.size() > capacity)
+            pool.removeFirst();
+    }
+
+    public synchronized int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized int getLowWaterMark() {
+        return lowWaterMark;
+    }
+
+    /**
+     * Returns a fresh D-H key pair. Each key pair is handed out only once.
+     */
+    public KeyPair take() throws OtrCryptoException {
+        KeyPair pair;
+        synchronized (this) {
+            pair = pool.poll();
+            scheduleRefill();
+        }
+
+        if (pair != null) {
+            hits.incrementAndGet();
+            return pair;
+        }
+
+        misses.incrementAndGet();
+        logger.finest("D-H key pair pool is empty, generating key pair synchronously.");
+        return cryptoEngine.generateDHKeyPair();
+    }
+
+    /**
+     * Starts filling the pool in the background, if it is below capacity.
+     * After {@link #shutdown()}, this starts the background generator again.
+     */
+    public synchronized void prefill() {
+        shutdown = false;
+        if (pool.size() < capacity)
+            startRefill();
+    }
+
+    private void scheduleRefill() {
+        if (pool.size() <= lowWaterMark)
+            startRefill();
+    }
+
+    private void startRefill() {
+        if (refilling || shutdown || capacity == 0)
+            return;
+
+        refilling = true;
+        final int started = generation;
+        getExecutor().execute(new Runnable() {
+            public void run() {
+                refill(started);
+            }
+        });
+    }
+
+    private void refill(int started) {
+        try {
+            while (true) {
+                synchronized (this) {
+                    if (generation != started || pool.size() >= capacity)
+                        return;
+                }
+
+                KeyPair pair = cryptoEngine.generateDHKeyPair();
+
+                synchronized (this) {
+                    if (generation != started || pool.size() >= capacity)
+                        return;
+                    pool.add(pair);
+                }
+            }
+        } catch (OtrCryptoException e) {
+            logger.warning("Could not pre-generate D-H key pair: " + e.getMessage());
+        } finally {
+            synchronized (this) {
+                if (generation == started)
+                    refilling = false;
+            }
+        }
+    }
+
+    private ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "otr4j-dh-pool");
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Stops the background generator and forgets all pooled key pairs. Later
+     * calls to {@link #take()} generate key pairs synchronously, until
+     * {@link #prefill()} starts the generator again.
+     */
+    public void shutdown() {
+        ExecutorService e;
+        synchronized (this) {
+            shutdown = true;
+            generation++;
+            refilling = false;
+            // The private exponents are immutable BigIntegers, dropping the
+            // only references is as close to wiping them as we can get.
+            pool.clear();
+            e = executor;
+            executor = null;
+        }
+        if (e != null)
+            e.shutdownNow();
+    }
+
+    public synchronized int size() {
+        return pool.size();
+    }
+
+    /** @return the number of key pairs served from the pool. */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /** @return the number of key pairs that had to be generated synchronously. */
+    public long getMisses() {
+        return misses.get();
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * otr4j, the open source java otr library.
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package net.java.otr4j.crypto;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * Modular exponentiation of the fixed OTR generator (2) over the fixed 1536-bit
+ * OTR modulus, shared by D-H key generation and the socialist millionaire
+ * protocol.
+ * <p>
+ * The powers g^(2^(w*i)) are computed once, on first use, and kept in
+ * Montgomery form. An exponentiation then takes one Montgomery multiplication
+ * per non-zero w-bit digit of the exponent plus 2^w - 1 more (Yao's method),
+ * instead of one squaring per exponent bit.
+ */
+public class FixedBaseExponentiator {
+
+    /** Window width in bits. */
+    static final int WINDOW = 5;
+
+    private static final int MAX_EXPONENT_BITS = 1536;
+    private static final long MASK = 0xFFFFFFFFL;
+
+    private static class Holder {
+        static final FixedBaseExponentiator GENERATOR = new FixedBaseExponentiator(
+                OtrCryptoEngine.GENERATOR, OtrCryptoEngine.MODULUS, MAX_EXPONENT_BITS);
+    }
+
+    /** @return the shared exponentiator for the OTR generator and modulus. */
+    public static FixedBaseExponentiator getGenerator() {
+        return Holder.GENERATOR;
+    }
+
+    /**
+     * Computes base^exponent mod modulus, using the precomputed tables when
+     * base and modulus are the OTR generator and modulus and falling back to
+     * {@link BigInteger#modPow} otherwise.
+     */
+    public static BigInteger modPow(BigInteger base, BigInteger exponent, BigInteger modulus) {
+        if (OtrCryptoEngine.GENERATOR.equals(base) && OtrCryptoEngine.MODULUS.equals(modulus)
+            && exponent.signum() >= 0 && exponent.bitLength() <= MAX_EXPONENT_BITS)
+            return getGenerator().pow(exponent);
+        return base.modPow(exponent, modulus);
+    }
+
+    private final BigInteger base;
+    private final BigInteger modulus;
+    private final int limbs;
+    private final int windows;
+    /** Little-endian 32-bit limbs of the modulus. */
+    private final int[] m;
+    /** -m^-1 mod 2^32. */
+    private final int mInv;
+    /** R mod m, i.e. one in Montgomery form. */
+    private final int[] montOne;
+    /** base^(2^(WINDOW*i)) in Montgomery form. */
+    private final int[][] table;
+
+    FixedBaseExponentiator(BigInteger base, BigInteger modulus, int maxExponentBits) {
+        if (!modulus.testBit(0))
+            throw new IllegalArgumentException("Modulus must be odd.");
+
+        this.base = base;
+        this.modulus = modulus;
+        this.limbs = (modulus.bitLength() + 31) / 32;
+        this.windows = (maxExponentBits + WINDOW - 1) / WINDOW;
+        this.m = toLimbs(modulus);
+        this.mInv = BigInteger.valueOf(m[0] & MASK).modInverse(BigInteger.ONE.shiftLeft(32))
+                .negate().intValue();
+
+        BigInteger r = BigInteger.ONE.shiftLeft(32 * limbs).mod(modulus);
+        this.montOne = toLimbs(r);
+
+        this.table = new int[windows][];
+        BigInteger power = base.mod(modulus);
+        for (int i = 0; i < windows; i++) {
+            table[i] = toLimbs(power.multiply(r).mod(modulus));
+            for (int j = 0; j < WINDOW; j++)
+                power = power.multiply(power).mod(modulus);
+        }
+    }
+
+    public BigInteger getBase() {
+        return base;
+    }
+
+    public BigInteger getModulus() {
+        return modulus;
+    }
+
+    /** @return base^exponent mod modulus. */
+    public BigInteger pow(BigInteger exponent) {
+        if (exponent.signum() < 0 || exponent.bitLength() > windows * WINDOW)
+            return base.modPow(exponent, modulus);
+
+        int[] digits = new int[windows];
+        for (int i = 0; i < windows; i++) {
+            int digit = 0;
+            for (int j = WINDOW - 1; j >= 0; j--) {
+                digit <<= 1;
+                if (exponent.testBit(i * WINDOW + j))
+                    digit |= 1;
+            }
+            digits[i] = digit;
+        }
+
+        long[] scratch = new long[limbs + 2];
+        int[] a = montOne.clone();
+        int[] b = montOne.clone();
+        boolean started = false;
+        for (int d = (1 << WINDOW) - 1; d > 0; d--) {
+            for (int i = 0; i < windows; i++) {
+                if (digits[i] == d) {
+                    montgomeryMultiply(b, table[i], b, scratch);
+                    started = true;
+                }
+            }
+            // Until b picks up its first factor it is one, and so is a.
+            if (started)
+                montgomeryMultiply(a, b, a, scratch);
+        }
+
+        // Leave Montgomery form.
+        int[] one = new int[limbs];
+        one[0] = 1;
+        montgomeryMultiply(a, one, a, scratch);
+
+        Arrays.fill(digits, 0);
+        Arrays.fill(b, 0);
+        return fromLimbs(a);
+    }
+
+    /**
+     * out = x * y * R^-1 mod m, word-by-word Montgomery multiplication (CIOS).
+     * out may be the same array as x or y.
+     */
+    private void montgomeryMultiply(int[] x, int[] y, int[] out, long[] t) {
+        int n = limbs;
+        Arrays.fill(t, 0);
+        long m0 = m[0] & MASK;
+        long inv = mInv & MASK;
+
+        for (int i = 0; i < n; i++) {
+            long yi = y[i] & MASK;
+            long c = 0;
+            for (int j = 0; j < n; j++) {
+                long s = t[j] + (x[j] & MASK) * yi + c;
+                t[j] = s & MASK;
+                c = s >>> 32;
+            }
+            long s = t[n] + c;
+            t[n] = s & MASK;
+            t[n + 1] = s >>> 32;
+
+            long u = (t[0] * inv) & MASK;
+            s = t[0] + u * m0;
+            c = s >>> 32;
+            for (int j = 1; j < n; j++) {
+                s = t[j] + u * (m[j] & MASK) + c;
+                t[j - 1] = s & MASK;
+                c = s >>> 32;
+            }
+            s = t[n] + c;
+            t[n - 1] = s & MASK;
+            t[n] = t[n + 1] + (s >>> 32);
+        }
+
+        boolean subtract = t[n] != 0;
+        if (!subtract) {
+            subtract = true;
+            for (int j = n - 1; j >= 0; j--) {
+                long mj = m[j] & MASK;
+                if (t[j] != mj) {
+                    subtract = t[j] > mj;
+                    break;
+                }
+            }
+        }
+
+        if (subtract) {
+            long borrow = 0;
+            for (int j = 0; j < n; j++) {
+                long s = t[j] - (m[j] & MASK) - borrow;
+                out[j] = (int) s;
+                borrow = s >>> 63;
+            }
+        } else {
+            for (int j = 0; j < n; j++)
+                out[j] = (int) t[j];
+        }
+    }
+
+    private int[] toLimbs(BigInteger x) {
+        int[] r = new int[limbs];
+        byte[] b = x.toByteArray();
+        for (int i = 0; i < b.length && i < limbs * 4; i++)
+            r[i / 4] |= (b[b.length - 1 - i] & 0xFF) << (8 * (i % 4));
+        return r;
+    }
+
+    private BigInteger fromLimbs(int[] r) {
+        byte[] b = new byte[limbs * 4];
+        for (int i = 0; i < b.length; i++)
+            b[b.length - 1 - i] = (byte) (r[i / 4] >>> (8 * (i % 4)));
+        return new BigInteger(1, b);
+    }
+}
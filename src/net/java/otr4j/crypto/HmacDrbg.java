@@ -0,0 +1,144 @@
+/*
+ * otr4j, the open source java otr library.
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package net.java.otr4j.crypto;
+
+import java.util.Arrays;
+
+/**
+ * HMAC_DRBG with SHA-256, as specified in NIST SP 800-90A section 10.1.2, on
+ * whichever {@link CryptoBackend} it is given. Not thread safe;
+ * {@link OtrRandom} gives each thread its own.
+ * <p>
+ * Each output block is compared with the one before it, and a repeat fails
+ * the generator, as in the continuous test of FIPS 140-2. Backend errors
+ * fail it too; they are reported as {@link IllegalStateException} because
+ * callers of a random source have no way to handle them.
+ */
+class HmacDrbg {
+
+    static final int OUTLEN = 32;
+
+    private final CryptoBackend.Hmac hmac;
+    private final byte[] k = new byte[OUTLEN];
+    private final byte[] v = new byte[OUTLEN];
+    private final byte[] previous = new byte[OUTLEN];
+    private final byte[] separator = new byte[1];
+    private boolean havePrevious;
+    private long reseedCounter;
+    private boolean failed;
+
+    HmacDrbg(CryptoBackend backend, byte[] entropy, byte[] nonce, byte[] personalization) {
+        Arrays.fill(k, (byte) 0x00);
+        Arrays.fill(v, (byte) 0x01);
+        try {
+            hmac = backend.createHmac("HmacSHA256", k);
+        } catch (OtrCryptoException e) {
+            throw new IllegalStateException(e);
+        }
+        update(entropy, nonce, personalization);
+        reseedCounter = 1;
+    }
+
+    /** Mixes fresh entropy and optional additional input into the state. */
+    void reseed(byte[] entropy, byte[] additional) {
+        update(entropy, additional, null);
+        reseedCounter = 1;
+    }
+
+    /** Fills len bytes of out, starting at off. */
+    void generate(byte[] out, int off, int len, byte[] additional) {
+        if (failed)
+            throw new IllegalStateException("DRBG failed its health test.");
+        if (additional != null && additional.length > 0)
+            update(additional, null, null);
+
+        // The HMAC is already keyed with K, which is fixed until the update below.
+        for (int done = 0; done < len; done += OUTLEN) {
+            nextV();
+            if (havePrevious && Arrays.equals(previous, v)) {
+                wipe();
+                throw new IllegalStateException("DRBG repeated an output block.");
+            }
+            System.arraycopy(v, 0, previous, 0, OUTLEN);
+            havePrevious = true;
+            System.arraycopy(v, 0, out, off + done, Math.min(OUTLEN, len - done));
+        }
+
+        update(additional, null, null);
+        reseedCounter++;
+    }
+
+    /** @return the number of generate calls since the last (re)seed, plus one. */
+    long getReseedCounter() {
+        return reseedCounter;
+    }
+
+    /** Forgets the state. The generator cannot be used afterwards. */
+    void wipe() {
+        Arrays.fill(k, (byte) 0x00);
+        Arrays.fill(v, (byte) 0x00);
+        Arrays.fill(previous, (byte) 0x00);
+        hmac.destroy();
+        failed = true;
+    }
+
+    /** The HMAC_DRBG update function, with data being the concatenation of a, b and c. */
+    private void update(byte[] a, byte[] b, byte[] c) {
+        boolean empty = isEmpty(a) && isEmpty(b) && isEmpty(c);
+        updateK((byte) 0x00, a, b, c);
+        nextV();
+        if (empty)
+            return;
+        updateK((byte) 0x01, a, b, c);
+        nextV();
+    }
+
+    /** K = HMAC(K, V || sep || a || b || c), leaving the HMAC keyed with the new K. */
+    private void updateK(byte sep, byte[] a, byte[] b, byte[] c) {
+        rekey();
+        hmac.update(v, 0, OUTLEN);
+        separator[0] = sep;
+        hmac.update(separator, 0, 1);
+        updateIfPresent(a);
+        updateIfPresent(b);
+        updateIfPresent(c);
+        doFinal(k);
+        rekey();
+    }
+
+    /** V = HMAC(K, V), with the HMAC already keyed with K. */
+    private void nextV() {
+        hmac.update(v, 0, OUTLEN);
+        doFinal(v);
+    }
+
+    private void rekey() {
+        try {
+            hmac.rekey(k);
+        } catch (OtrCryptoException e) {
+            wipe();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void doFinal(byte[] out) {
+        try {
+            hmac.doFinal(out, 0);
+        } catch (OtrCryptoException e) {
+            wipe();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void updateIfPresent(byte[] b) {
+        if (b != null)
+            hmac.update(b, 0, b.length);
+    }
+
+    private static boolean isEmpty(byte[] b) {
+        return b == null || b.length == 0;
+    }
+}
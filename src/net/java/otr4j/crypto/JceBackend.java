@@ -0,0 +1,111 @@
+/*
+ * otr4j, the open source java otr library.
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package net.java.otr4j.crypto;
+
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The platform's JCE providers. On Android these are usually backed by
+ * OpenSSL and may use hardware AES.
+ */
+public class JceBackend implements CryptoBackend {
+
+    public static final String NAME = "jce";
+
+    private static final int BLOCK_SIZE = 16;
+
+    public String getName() {
+        return NAME;
+    }
+
+    public AesCtr createAesCtr(byte[] key) throws OtrCryptoException {
+        return new JceAesCtr(key);
+    }
+
+    public Hmac createHmac(final String algorithm, byte[] key) throws OtrCryptoException {
+        final Mac mac;
+        try {
+            mac = Mac.getInstance(algorithm);
+            mac.init(new SecretKeySpec(key, algorithm));
+        } catch (Exception e) {
+            throw new OtrCryptoException(e);
+        }
+        return new Hmac() {
+            public void update(byte[] in, int inOff, int len) {
+                mac.update(in, inOff, len);
+            }
+
+            public void doFinal(byte[] out, int outOff) throws OtrCryptoException {
+                try {
+                    mac.doFinal(out, outOff);
+                } catch (Exception e) {
+                    throw new OtrCryptoException(e);
+                }
+            }
+
+            public int getMacLength() {
+                return mac.getMacLength();
+            }
+
+            public void rekey(byte[] key) throws OtrCryptoException {
+                try {
+                    mac.init(new SecretKeySpec(key, algorithm));
+                } catch (Exception e) {
+                    throw new OtrCryptoException(e);
+                }
+            }
+
+            public void destroy() {
+                mac.reset();
+            }
+        };
+    }
+
+    private static class JceAesCtr implements AesCtr {
+        private final Cipher cipher;
+        private SecretKeySpec key;
+        private final byte[] counter = new byte[BLOCK_SIZE];
+
+        JceAesCtr(byte[] key) throws OtrCryptoException {
+            this.key = new SecretKeySpec(key, "AES");
+            try {
+                cipher = Cipher.getInstance("AES/CTR/NoPadding");
+            } catch (Exception e) {
+                throw new OtrCryptoException(e);
+            }
+        }
+
+        public void process(byte[] ctr, byte[] in, int inOff, int len, byte[] out, int outOff)
+                throws OtrCryptoException {
+            Arrays.fill(counter, (byte) 0x00);
+            if (ctr != null)
+                System.arraycopy(ctr, 0, counter, 0, Math.min(ctr.length, BLOCK_SIZE));
+            try {
+                cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(counter));
+                if (len > 0)
+                    cipher.doFinal(in, inOff, len, out, outOff);
+            } catch (Exception e) {
+                throw new OtrCryptoException(e);
+            }
+        }
+
+        public void destroy() {
+            // The provider keeps its own copy of the key schedule; the best we
+            // can do is rekey it with zeros.
+            key = new SecretKeySpec(new byte[OtrCryptoEngine.AES_KEY_BYTE_LENGTH], "AES");
+            try {
+                cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(new byte[BLOCK_SIZE]));
+            } catch (Exception e) {
+                // Nothing more we can do.
+            }
+        }
+    }
+}
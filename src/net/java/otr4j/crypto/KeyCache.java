@@ -0,0 +1,260 @@
+/*
+ * otr4j, the open source java otr library.
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package net.java.otr4j.crypto;
+
+import java.io.IOException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.java.otr4j.io.SerializationUtils;
+
+/**
+ * A bounded, least recently used cache of long term keys, keyed by their
+ * encoded bytes. Holds the decoded {@link PublicKey} or {@link KeyPair} and
+ * the OTR fingerprint, so that fingerprint and trust lookups do not have to
+ * go through {@link KeyFactory} and SHA-1 every time.
+ * <p>
+ * Entries depend only on the key bytes, so they never go stale; callers that
+ * replace a key just stop asking for the old one. {@link #invalidate} is there
+ * to drop secrets early, and {@link #clear()} to drop all of them when the key
+ * store is locked.
+ */
+public class KeyCache {
+
+    public static final int DEFAULT_CAPACITY = 128;
+
+    private static final String KEY_ALGORITHM = "DSA";
+
+    private static KeyCache instance;
+
+    public static synchronized KeyCache getInstance() {
+        if (instance == null)
+            instance = new KeyCache(DEFAULT_CAPACITY);
+        return instance;
+    }
+
+    /** Wraps encoded key bytes so they can be compared by value. */
+    private static final class EncodedKey {
+        private final byte[] encoded;
+        private final int hash;
+
+        EncodedKey(byte[] encoded) {
+            this.encoded = encoded;
+            this.hash = Arrays.hashCode(encoded);
+        }
+
+        public boolean equals(Object obj) {
+            return obj instanceof EncodedKey && Arrays.equals(encoded, ((EncodedKey) obj).encoded);
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class CachedKey {
+        PublicKey publicKey;
+        KeyPair keyPair;
+        byte[] fingerprint;
+        String fingerprintHex;
+    }
+
+    private final Map<EncodedKey, CachedKey> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public KeyCache(final int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Illegal cache capacity.");
+
+        this.entries = new LinkedHashMap<EncodedKey, CachedKey>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<EncodedKey, CachedKey> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /** @return the public key with the given X.509 encoding. */
+    public PublicKey getPublicKey(byte[] encoded) throws OtrCryptoException {
+        EncodedKey key = new EncodedKey(encoded.clone());
+        synchronized (this) {
+            CachedKey entry = entries.get(key);
+            if (entry != null && entry.publicKey != null) {
+                hits.incrementAndGet();
+                return entry.publicKey;
+            }
+        }
+
+        misses.incrementAndGet();
+        PublicKey publicKey;
+        try {
+            publicKey = KeyFactory.getInstance(KEY_ALGORITHM).generatePublic(
+                    new X509EncodedKeySpec(encoded));
+        } catch (Exception e) {
+            throw new OtrCryptoException(e);
+        }
+
+        synchronized (this) {
+            getOrCreate(key).publicKey = publicKey;
+        }
+        return publicKey;
+    }
+
+    /**
+     * @return the key pair with the given PKCS#8 private and X.509 public
+     *         encodings.
+     */
+    public KeyPair getKeyPair(byte[] encodedPrivate, byte[] encodedPublic)
+            throws OtrCryptoException {
+        // Both halves go into the key, so a changed public key is a miss.
+        byte[] both = new byte[encodedPrivate.length + encodedPublic.length];
+        System.arraycopy(encodedPrivate, 0, both, 0, encodedPrivate.length);
+        System.arraycopy(encodedPublic, 0, both, encodedPrivate.length, encodedPublic.length);
+        EncodedKey key = new EncodedKey(both);
+        synchronized (this) {
+            CachedKey entry = entries.get(key);
+            if (entry != null && entry.keyPair != null) {
+                hits.incrementAndGet();
+                return entry.keyPair;
+            }
+        }
+
+        misses.incrementAndGet();
+        KeyPair keyPair;
+        try {
+            KeyFactory keyFactory = KeyFactory.getInstance(KEY_ALGORITHM);
+            PrivateKey privateKey = keyFactory.generatePrivate(new PKCS8EncodedKeySpec(
+                    encodedPrivate));
+            PublicKey publicKey = keyFactory.generatePublic(new X509EncodedKeySpec(encodedPublic));
+            keyPair = new KeyPair(publicKey, privateKey);
+        } catch (Exception e) {
+            throw new OtrCryptoException(e);
+        }
+
+        synchronized (this) {
+            getOrCreate(key).keyPair = keyPair;
+        }
+        return keyPair;
+    }
+
+    /** @return the 20 byte OTR fingerprint of pubKey. */
+    public byte[] getFingerprintRaw(PublicKey pubKey) throws OtrCryptoException {
+        return getFingerprintEntry(pubKey).fingerprint.clone();
+    }
+
+    /** @return the OTR fingerprint of pubKey in upper case hex. */
+    public String getFingerprint(PublicKey pubKey) throws OtrCryptoException {
+        return getFingerprintEntry(pubKey).fingerprintHex;
+    }
+
+    private CachedKey getFingerprintEntry(PublicKey pubKey) throws OtrCryptoException {
+        byte[] encoded = pubKey.getEncoded();
+        if (encoded == null) {
+            // Not encodable, nothing to key the cache on.
+            CachedKey entry = new CachedKey();
+            entry.fingerprint = computeFingerprint(pubKey);
+            entry.fingerprintHex = toHex(entry.fingerprint);
+            return entry;
+        }
+
+        EncodedKey key = new EncodedKey(encoded);
+        synchronized (this) {
+            CachedKey entry = entries.get(key);
+            if (entry != null && entry.fingerprint != null) {
+                hits.incrementAndGet();
+                return entry;
+            }
+        }
+
+        misses.incrementAndGet();
+        byte[] fingerprint = computeFingerprint(pubKey);
+        String fingerprintHex = toHex(fingerprint);
+        synchronized (this) {
+            CachedKey entry = getOrCreate(key);
+            entry.fingerprint = fingerprint;
+            entry.fingerprintHex = fingerprintHex;
+            return entry;
+        }
+    }
+
+    /** Forgets everything cached for the key with the given encoding. */
+    public synchronized void invalidate(byte[] encoded) {
+        entries.remove(new EncodedKey(encoded));
+    }
+
+    /** Forgets the key pair with the given encodings. */
+    public void invalidate(byte[] encodedPrivate, byte[] encodedPublic) {
+        byte[] both = new byte[encodedPrivate.length + encodedPublic.length];
+        System.arraycopy(encodedPrivate, 0, both, 0, encodedPrivate.length);
+        System.arraycopy(encodedPublic, 0, both, encodedPrivate.length, encodedPublic.length);
+        invalidate(both);
+        Arrays.fill(both, (byte) 0x00);
+    }
+
+    /** Forgets every cached key, private keys included. */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private CachedKey getOrCreate(EncodedKey key) {
+        CachedKey entry = entries.get(key);
+        if (entry == null) {
+            entry = new CachedKey();
+            entries.put(key, entry);
+        }
+        return entry;
+    }
+
+    private static byte[] computeFingerprint(PublicKey pubKey) throws OtrCryptoException {
+        try {
+            byte[] bRemotePubKey = SerializationUtils.writePublicKey(pubKey);
+
+            if (pubKey.getAlgorithm().equals("DSA")) {
+                // Fingerprints leave out the two byte public key type.
+                byte[] trimmed = new byte[bRemotePubKey.length - 2];
+                System.arraycopy(bRemotePubKey, 2, trimmed, 0, trimmed.length);
+                return new OtrCryptoEngineImpl().sha1Hash(trimmed);
+            } else
+                return new OtrCryptoEngineImpl().sha1Hash(bRemotePubKey);
+        } catch (IOException e) {
+            throw new OtrCryptoException(e);
+        }
+    }
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private static String toHex(byte[] b) {
+        char[] out = new char[b.length * 2];
+        for (int i = 0; i < b.length; i++) {
+            out[2 * i] = HEX[(b[i] >> 4) & 0x0F];
+            out[2 * i + 1] = HEX[b[i] & 0x0F];
+        }
+        return new String(out);
+    }
+}
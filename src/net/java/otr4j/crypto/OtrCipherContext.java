@@ -0,0 +1,91 @@
+/*
+ * otr4j, the open source java otr library.
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package net.java.otr4j.crypto;
+
+import java.util.Arrays;
+
+/**
+ * AES-CTR and HMAC-SHA1 state for one direction of one set of session keys.
+ * The AES key schedule and the initialised HMAC are kept and reused for every
+ * message until the session keys are rotated, at which point the context is
+ * destroyed and replaced.
+ */
+public class OtrCipherContext {
+
+    private final CryptoBackend.AesCtr aes;
+    private final CryptoBackend.Hmac mac;
+    private boolean destroyed;
+
+    /** Creates a context on the backends {@link CryptoBackends} selected. */
+    public OtrCipherContext(byte[] aesKey, byte[] macKey) throws OtrCryptoException {
+        this(aesKey, macKey, CryptoBackends.getAes(), CryptoBackends.getHmac());
+    }
+
+    public OtrCipherContext(byte[] aesKey, byte[] macKey, CryptoBackend aesBackend,
+            CryptoBackend macBackend) throws OtrCryptoException {
+        aes = aesBackend.createAesCtr(aesKey);
+        mac = macBackend.createHmac("HmacSHA1", macKey);
+    }
+
+    /**
+     * Encrypts len bytes of in, starting at inOff, into out at outOff. in and
+     * out may be the same array.
+     *
+     * @param ctr the initial 16 byte counter block, null for zero.
+     */
+    public synchronized void aesEncrypt(byte[] ctr, byte[] in, int inOff, int len, byte[] out,
+            int outOff) throws OtrCryptoException {
+        checkDestroyed();
+        aes.process(ctr, in, inOff, len, out, outOff);
+    }
+
+    /** AES-CTR is symmetric, see {@link #aesEncrypt}. */
+    public synchronized void aesDecrypt(byte[] ctr, byte[] in, int inOff, int len, byte[] out,
+            int outOff) throws OtrCryptoException {
+        checkDestroyed();
+        aes.process(ctr, in, inOff, len, out, outOff);
+    }
+
+    public byte[] aesEncrypt(byte[] ctr, byte[] b) throws OtrCryptoException {
+        byte[] out = new byte[b.length];
+        aesEncrypt(ctr, b, 0, b.length, out, 0);
+        return out;
+    }
+
+    public byte[] aesDecrypt(byte[] ctr, byte[] b) throws OtrCryptoException {
+        byte[] out = new byte[b.length];
+        aesDecrypt(ctr, b, 0, b.length, out, 0);
+        return out;
+    }
+
+    /** Writes the full 20 byte HmacSHA1 of the given range into out at outOff. */
+    public synchronized void sha1Hmac(byte[] in, int inOff, int len, byte[] out, int outOff)
+            throws OtrCryptoException {
+        checkDestroyed();
+        mac.update(in, inOff, len);
+        mac.doFinal(out, outOff);
+    }
+
+    public byte[] sha1Hmac(byte[] in, int inOff, int len) throws OtrCryptoException {
+        byte[] out = new byte[mac.getMacLength()];
+        sha1Hmac(in, inOff, len, out, 0);
+        return out;
+    }
+
+    /** Forgets the key schedule and any key stream left in this context. */
+    public synchronized void destroy() {
+        if (destroyed)
+            return;
+        destroyed = true;
+        aes.destroy();
+        mac.destroy();
+    }
+
+    private void checkDestroyed() {
+        if (destroyed)
+            throw new IllegalStateException("Cipher context has been destroyed.");
+    }
+}
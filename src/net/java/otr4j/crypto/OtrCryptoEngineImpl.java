@@ -5,34 +5,20 @@
  */
 package net.java.otr4j.crypto;
 
-import info.guardianproject.bouncycastle.crypto.AsymmetricCipherKeyPair;
-import info.guardianproject.bouncycastle.crypto.BufferedBlockCipher;
-import info.guardianproject.bouncycastle.crypto.engines.AESFastEngine;
-import info.guardianproject.bouncycastle.crypto.generators.DHKeyPairGenerator;
-import info.guardianproject.bouncycastle.crypto.modes.SICBlockCipher;
-import info.guardianproject.bouncycastle.crypto.params.DHKeyGenerationParameters;
-import info.guardianproject.bouncycastle.crypto.params.DHParameters;
-import info.guardianproject.bouncycastle.crypto.params.DHPrivateKeyParameters;
-import info.guardianproject.bouncycastle.crypto.params.DHPublicKeyParameters;
 import info.guardianproject.bouncycastle.crypto.params.DSAParameters;
 import info.guardianproject.bouncycastle.crypto.params.DSAPrivateKeyParameters;
 import info.guardianproject.bouncycastle.crypto.params.DSAPublicKeyParameters;
-import info.guardianproject.bouncycastle.crypto.params.KeyParameter;
-import info.guardianproject.bouncycastle.crypto.params.ParametersWithIV;
+import info.guardianproject.bouncycastle.crypto.params.ParametersWithRandom;
 import info.guardianproject.bouncycastle.crypto.signers.DSASigner;
 import info.guardianproject.bouncycastle.util.BigIntegers;
 
-import java.io.IOException;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
-import java.security.InvalidKeyException;
 import java.security.KeyFactory;
 import java.security.KeyPair;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
-import java.security.SecureRandom;
 import java.security.interfaces.DSAParams;
 import java.security.interfaces.DSAPrivateKey;
 import java.security.interfaces.DSAPublicKey;
@@ -42,38 +28,25 @@ import javax.crypto.interfaces.DHPrivateKey;
 import javax.crypto.interfaces.DHPublicKey;
 import javax.crypto.spec.DHPrivateKeySpec;
 import javax.crypto.spec.DHPublicKeySpec;
-import javax.crypto.spec.SecretKeySpec;
-
-import net.java.otr4j.io.SerializationUtils;
 
 /** @author George Politis */
 public class OtrCryptoEngineImpl implements OtrCryptoEngine {
 
     public KeyPair generateDHKeyPair() throws OtrCryptoException {
 
-        // Generate a AsymmetricCipherKeyPair using BC.
-        DHParameters dhParams = new DHParameters(MODULUS, GENERATOR, null,
-                DH_PRIVATE_KEY_MINIMUM_BIT_LENGTH);
-        DHKeyGenerationParameters params = new DHKeyGenerationParameters(new SecureRandom(),
-                dhParams);
-        DHKeyPairGenerator kpGen = new DHKeyPairGenerator();
-
-        kpGen.init(params);
-        AsymmetricCipherKeyPair pair = kpGen.generateKeyPair();
-
-        // Convert this AsymmetricCipherKeyPair to a standard JCE KeyPair.
-        DHPublicKeyParameters pub = (DHPublicKeyParameters) pair.getPublic();
-        DHPrivateKeyParameters priv = (DHPrivateKeyParameters) pair.getPrivate();
+        // Same private exponent as BC's DHKeyPairGenerator for a 320 bit
+        // limit, the public value comes from the precomputed generator tables.
+        BigInteger x = new BigInteger(DH_PRIVATE_KEY_MINIMUM_BIT_LENGTH, OtrRandom.getInstance())
+                .setBit(DH_PRIVATE_KEY_MINIMUM_BIT_LENGTH - 1);
+        BigInteger y = FixedBaseExponentiator.modPow(GENERATOR, x, MODULUS);
 
         try {
             KeyFactory keyFac = KeyFactory.getInstance("DH");
 
-            DHPublicKeySpec pubKeySpecs = new DHPublicKeySpec(pub.getY(), MODULUS, GENERATOR);
+            DHPublicKeySpec pubKeySpecs = new DHPublicKeySpec(y, MODULUS, GENERATOR);
             DHPublicKey pubKey = (DHPublicKey) keyFac.generatePublic(pubKeySpecs);
 
-            DHParameters dhParameters = priv.getParameters();
-            DHPrivateKeySpec privKeySpecs = new DHPrivateKeySpec(priv.getX(), dhParameters.getP(),
-                    dhParameters.getG());
+            DHPrivateKeySpec privKeySpecs = new DHPrivateKeySpec(x, MODULUS, GENERATOR);
             DHPrivateKey privKey = (DHPrivateKey) keyFac.generatePrivate(privKeySpecs);
 
             return new KeyPair(pubKey, privKey);
@@ -101,21 +74,19 @@ public class OtrCryptoEngineImpl implements OtrCryptoEngine {
     }
 
     public byte[] sha256Hmac(byte[] b, byte[] key, int length) throws OtrCryptoException {
+        return hmac("HmacSHA256", b, key, length);
+    }
 
-        SecretKeySpec keyspec = new SecretKeySpec(key, "HmacSHA256");
-        javax.crypto.Mac mac;
-        try {
-            mac = javax.crypto.Mac.getInstance("HmacSHA256");
-        } catch (NoSuchAlgorithmException e) {
-            throw new OtrCryptoException(e);
-        }
-        try {
-            mac.init(keyspec);
-        } catch (InvalidKeyException e) {
-            throw new OtrCryptoException(e);
-        }
+    public byte[] sha1Hmac(byte[] b, byte[] key, int length) throws OtrCryptoException {
+        return hmac("HmacSHA1", b, key, length);
+    }
 
-        byte[] macBytes = mac.doFinal(b);
+    private static byte[] hmac(String algorithm, byte[] b, byte[] key, int length)
+            throws OtrCryptoException {
+        CryptoBackend.Hmac mac = CryptoBackends.getHmac().createHmac(algorithm, key);
+        mac.update(b, 0, b.length);
+        byte[] macBytes = new byte[mac.getMacLength()];
+        mac.doFinal(macBytes, 0);
 
         if (length > 0) {
             byte[] bytes = new byte[length];
@@ -127,28 +98,6 @@ public class OtrCryptoEngineImpl implements OtrCryptoEngine {
         }
     }
 
-    public byte[] sha1Hmac(byte[] b, byte[] key, int length) throws OtrCryptoException {
-
-        try {
-            SecretKeySpec keyspec = new SecretKeySpec(key, "HmacSHA1");
-            javax.crypto.Mac mac = javax.crypto.Mac.getInstance("HmacSHA1");
-            mac.init(keyspec);
-
-            byte[] macBytes = mac.doFinal(b);
-
-            if (length > 0) {
-                byte[] bytes = new byte[length];
-                ByteBuffer buff = ByteBuffer.wrap(macBytes);
-                buff.get(bytes);
-                return bytes;
-            } else {
-                return macBytes;
-            }
-        } catch (Exception e) {
-            throw new OtrCryptoException(e);
-        }
-    }
-
     public byte[] sha256Hmac160(byte[] b, byte[] key) throws OtrCryptoException {
         return sha256Hmac(b, key, 20);
     }
@@ -174,44 +123,19 @@ public class OtrCryptoEngineImpl implements OtrCryptoEngine {
     }
 
     public byte[] aesDecrypt(byte[] key, byte[] ctr, byte[] b) throws OtrCryptoException {
-
-        AESFastEngine aesDec = new AESFastEngine();
-        SICBlockCipher sicAesDec = new SICBlockCipher(aesDec);
-        BufferedBlockCipher bufSicAesDec = new BufferedBlockCipher(sicAesDec);
-
-        // Create initial counter value 0.
-        if (ctr == null)
-            ctr = ZERO_CTR;
-        bufSicAesDec.init(false, new ParametersWithIV(new KeyParameter(key), ctr));
-        byte[] aesOutLwDec = new byte[b.length];
-        int done = bufSicAesDec.processBytes(b, 0, b.length, aesOutLwDec, 0);
-        try {
-            bufSicAesDec.doFinal(aesOutLwDec, done);
-        } catch (Exception e) {
-            throw new OtrCryptoException(e);
-        }
-
-        return aesOutLwDec;
+        // AES-CTR is symmetric.
+        return aesEncrypt(key, ctr, b);
     }
 
     public byte[] aesEncrypt(byte[] key, byte[] ctr, byte[] b) throws OtrCryptoException {
-
-        AESFastEngine aesEnc = new AESFastEngine();
-        SICBlockCipher sicAesEnc = new SICBlockCipher(aesEnc);
-        BufferedBlockCipher bufSicAesEnc = new BufferedBlockCipher(sicAesEnc);
-
+        CryptoBackend.AesCtr aes = CryptoBackends.getAes().createAesCtr(key);
         // Create initial counter value 0.
         if (ctr == null)
             ctr = ZERO_CTR;
-        bufSicAesEnc.init(true, new ParametersWithIV(new KeyParameter(key), ctr));
-        byte[] aesOutLwEnc = new byte[b.length];
-        int done = bufSicAesEnc.processBytes(b, 0, b.length, aesOutLwEnc, 0);
-        try {
-            bufSicAesEnc.doFinal(aesOutLwEnc, done);
-        } catch (Exception e) {
-            throw new OtrCryptoException(e);
-        }
-        return aesOutLwEnc;
+        byte[] out = new byte[b.length];
+        aes.process(ctr, b, 0, b.length, out, 0);
+        aes.destroy();
+        return out;
     }
 
     public BigInteger generateSecret(PrivateKey privKey, PublicKey pubKey)
@@ -243,7 +167,8 @@ public class OtrCryptoEngineImpl implements OtrCryptoEngine {
                 dsaPrivateKey.getX(), bcDSAParameters);
 
         DSASigner dsaSigner = new DSASigner();
-        dsaSigner.init(true, bcDSAPrivateKeyParms);
+        dsaSigner.init(true, new ParametersWithRandom(bcDSAPrivateKeyParms,
+                OtrRandom.getInstance()));
 
         BigInteger q = dsaParams.getQ();
 
@@ -333,47 +258,10 @@ public class OtrCryptoEngineImpl implements OtrCryptoEngine {
     }
 
     public String getFingerprint(PublicKey pubKey) throws OtrCryptoException {
-        byte[] b = getFingerprintRaw(pubKey);
-        return this.byteArrayToHexString(b);
+        return KeyCache.getInstance().getFingerprint(pubKey);
     }
 
     public byte[] getFingerprintRaw(PublicKey pubKey) throws OtrCryptoException {
-        byte[] b;
-        try {
-            byte[] bRemotePubKey = SerializationUtils.writePublicKey(pubKey);
-
-            if (pubKey.getAlgorithm().equals("DSA")) {
-                byte[] trimmed = new byte[bRemotePubKey.length - 2];
-                System.arraycopy(bRemotePubKey, 2, trimmed, 0, trimmed.length);
-                b = new OtrCryptoEngineImpl().sha1Hash(trimmed);
-            } else
-                b = new OtrCryptoEngineImpl().sha1Hash(bRemotePubKey);
-        } catch (IOException e) {
-            throw new OtrCryptoException(e);
-        }
-        return b;
-    }
-
-    private String byteArrayToHexString(byte in[]) {
-        byte ch = 0x00;
-        int i = 0;
-        if (in == null || in.length <= 0)
-            return null;
-        String pseudo[] = { "0", "1", "2", "3", "4", "5", "6", "7", "8", "9", "A", "B", "C", "D",
-                           "E", "F" };
-        StringBuffer out = new StringBuffer(in.length * 2);
-        while (i < in.length) {
-            ch = (byte) (in[i] & 0xF0);
-            ch = (byte) (ch >>> 4);
-            ch = (byte) (ch & 0x0F);
-            out.append(pseudo[(int) ch]);
-            ch = (byte) (in[i] & 0x0F);
-            out.append(pseudo[(int) ch]);
-            i++;
-        }
-
-        String rslt = new String(out);
-        return rslt;
-
+        return KeyCache.getInstance().getFingerprintRaw(pubKey);
     }
 }
@@ -0,0 +1,258 @@
+/*
+ * otr4j, the open source java otr library.
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package net.java.otr4j.crypto;
+
+import info.guardianproject.bouncycastle.crypto.digests.SHA256Digest;
+import info.guardianproject.bouncycastle.util.encoders.Hex;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.security.SecureRandomSpi;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The one source of random bytes for OTR: D-H and SMP exponents, AKE keys,
+ * DSA signatures. Every thread gets its own {@link HmacDrbg}, on the HMAC
+ * backend {@link CryptoBackends} picked, seeded from the platform
+ * {@link SecureRandom} (which PRNGFixes points at /dev/urandom on Android). It
+ * serves small requests from a buffer of its output.
+ * <p>
+ * A thread's generator is reseeded after {@link #RESEED_BYTES} bytes or
+ * {@link #RESEED_INTERVAL} milliseconds, when the process id changes, and
+ * after {@link #reseedAll()}, which the host should call on anything else
+ * that might have duplicated the process state, such as restoring a
+ * snapshot.
+ */
+public class OtrRandom extends SecureRandom {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final long RESEED_BYTES = 1024 * 1024;
+    public static final long RESEED_INTERVAL = 10 * 60 * 1000;
+
+    private static final int BUFFER_SIZE = 1024;
+    /** Requests this size and up bypass the buffer. */
+    private static final int DIRECT_SIZE = 256;
+    private static final int SEED_BYTES = 48;
+
+    private static OtrRandom instance;
+    private static volatile SecureRandom seedSource;
+
+    private static final AtomicInteger epoch = new AtomicInteger();
+    private static final AtomicLong reseeds = new AtomicLong();
+    private static final AtomicLong threadIds = new AtomicLong();
+
+    private static final ThreadLocal<State> state = new ThreadLocal<State>() {
+        @Override
+        protected State initialValue() {
+            return new State();
+        }
+    };
+
+    /** @return the shared generator, checked against a known answer first. */
+    public static synchronized OtrRandom getInstance() {
+        if (instance == null) {
+            if (!selfTest(CryptoBackends.getHmac()))
+                throw new IllegalStateException("HMAC_DRBG failed its known answer test.");
+            instance = new OtrRandom();
+        }
+        return instance;
+    }
+
+    /**
+     * Replaces where seeds come from. For tests; the default is a platform
+     * {@link SecureRandom}. Every thread reseeds from the new source.
+     */
+    public static void setSeedSource(SecureRandom source) {
+        seedSource = source;
+        reseedAll();
+    }
+
+    /** Makes every thread reseed before it next produces output. */
+    public static void reseedAll() {
+        epoch.incrementAndGet();
+    }
+
+    /** @return how many times a generator has been seeded or reseeded. */
+    public static long getReseedCount() {
+        return reseeds.get();
+    }
+
+    /**
+     * Runs the NIST CAVP HMAC_DRBG SHA-256 vector (no prediction resistance,
+     * no personalization or additional input, count 0).
+     */
+    static boolean selfTest(CryptoBackend backend) {
+        HmacDrbg drbg = new HmacDrbg(backend,
+                Hex.decode("ca851911349384bffe89de1cbdc46e6831e44d34a4fb935ee285dd14b71a7488"),
+                Hex.decode("659ba96c601dc69fc902940805ec0ca8"), null);
+        byte[] out = new byte[128];
+        drbg.generate(out, 0, out.length, null);
+        drbg.generate(out, 0, out.length, null);
+        drbg.wipe();
+        return Arrays.equals(out, Hex.decode("e528e9abf2dece54d47c7e75e5fe302149f817ea9fb4bee6"
+                                             + "f4199697d04d5b89d54fbb978a15b5c443c9ec21036d2460"
+                                             + "b6f73ebad0dc2aba6e624abf07745bc107694bb7547bb099"
+                                             + "5f70de25d6b29e2d3011bb19d27676c07162c8b5ccde0668"
+                                             + "961df86803482cb37ed6d5c0bb8d50cf1f50d476aa0458bd"
+                                             + "aba806f48be9dcb8"));
+    }
+
+    private OtrRandom() {
+        super(new Spi(), null);
+    }
+
+    private static SecureRandom getSeedSource() {
+        SecureRandom s = seedSource;
+        if (s == null) {
+            synchronized (OtrRandom.class) {
+                if (seedSource == null)
+                    seedSource = new SecureRandom();
+                s = seedSource;
+            }
+        }
+        return s;
+    }
+
+    private static byte[] readSeed() {
+        byte[] seed = new byte[SEED_BYTES];
+        getSeedSource().nextBytes(seed);
+        return seed;
+    }
+
+    /** @return the process id on Linux and Android, or null. */
+    private static String getProcessId() {
+        try {
+            return new File("/proc/self").getCanonicalFile().getName();
+        } catch (IOException e) {
+            return null;
+        } catch (SecurityException e) {
+            return null;
+        }
+    }
+
+    /** One thread's generator and its buffered output. */
+    private static final class State {
+        private HmacDrbg drbg;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private int pos = BUFFER_SIZE;
+        private int seededEpoch;
+        private long seededAt;
+        private long bytesSinceSeed;
+        private String processId;
+        /** Hash of the last seed, for the stuck source check. */
+        private byte[] lastSeedHash;
+
+        void nextBytes(byte[] bytes) {
+            if (needsReseed())
+                seed(null);
+
+            if (bytes.length >= DIRECT_SIZE) {
+                checkProcess();
+                drbg.generate(bytes, 0, bytes.length, null);
+                bytesSinceSeed += bytes.length;
+                return;
+            }
+
+            int done = 0;
+            while (done < bytes.length) {
+                if (pos == BUFFER_SIZE)
+                    refill();
+                int n = Math.min(bytes.length - done, BUFFER_SIZE - pos);
+                System.arraycopy(buffer, pos, bytes, done, n);
+                // Bytes handed out are not kept.
+                Arrays.fill(buffer, pos, pos + n, (byte) 0x00);
+                pos += n;
+                done += n;
+            }
+        }
+
+        /** Mixes caller supplied bytes in, on top of a fresh seed. */
+        void addSeed(byte[] additional) {
+            seed(additional);
+        }
+
+        private boolean needsReseed() {
+            return drbg == null || seededEpoch != epoch.get()
+                   || bytesSinceSeed >= RESEED_BYTES
+                   || System.currentTimeMillis() - seededAt >= RESEED_INTERVAL;
+        }
+
+        /**
+         * Reseeds if the process was forked since the last seed. Checked per
+         * refill or direct request rather than per call, it costs a system
+         * call.
+         */
+        private void checkProcess() {
+            String pid = getProcessId();
+            if (pid != null && !pid.equals(processId))
+                seed(null);
+        }
+
+        private void refill() {
+            checkProcess();
+            drbg.generate(buffer, 0, BUFFER_SIZE, null);
+            bytesSinceSeed += BUFFER_SIZE;
+            pos = 0;
+        }
+
+        private void seed(byte[] additional) {
+            byte[] entropy = readSeed();
+            // Health test on the seed source: a stuck source repeats itself.
+            SHA256Digest digest = new SHA256Digest();
+            digest.update(entropy, 0, entropy.length);
+            byte[] seedHash = new byte[digest.getDigestSize()];
+            digest.doFinal(seedHash, 0);
+            if (Arrays.equals(lastSeedHash, seedHash))
+                throw new IllegalStateException("Seed source repeated itself.");
+            lastSeedHash = seedHash;
+
+            if (drbg == null) {
+                // Personalize with something unique to this thread.
+                String personalization = threadIds.incrementAndGet() + "/"
+                                         + Thread.currentThread().getName() + "/"
+                                         + System.nanoTime();
+                drbg = new HmacDrbg(CryptoBackends.getHmac(), entropy, additional,
+                        personalization.getBytes());
+            } else {
+                drbg.reseed(entropy, additional);
+            }
+            Arrays.fill(entropy, (byte) 0x00);
+
+            // Whatever was buffered came from the old state.
+            Arrays.fill(buffer, (byte) 0x00);
+            pos = BUFFER_SIZE;
+            seededEpoch = epoch.get();
+            seededAt = System.currentTimeMillis();
+            bytesSinceSeed = 0;
+            processId = getProcessId();
+            reseeds.incrementAndGet();
+        }
+    }
+
+    private static final class Spi extends SecureRandomSpi {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void engineSetSeed(byte[] seed) {
+            // Adds to the entropy, never replaces it.
+            state.get().addSeed(seed);
+        }
+
+        @Override
+        protected void engineNextBytes(byte[] bytes) {
+            state.get().nextBytes(bytes);
+        }
+
+        @Override
+        protected byte[] engineGenerateSeed(int numBytes) {
+            return getSeedSource().generateSeed(numBytes);
+        }
+    }
+}
@@ -26,7 +26,7 @@ import java.io.IOException;
 import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
+import java.util.Arrays;
 
 import net.java.otr4j.io.OtrInputStream;
 import net.java.otr4j.io.OtrOutputStream;
@@ -117,10 +117,11 @@ public class SM {
 
     /** Generate a random exponent */
     public static BigInteger randomExponent() {
-        SecureRandom sr = new SecureRandom();
         byte[] sb = new byte[MOD_LEN_BYTES];
-        sr.nextBytes(sb);
-        return new BigInteger(1, sb);
+        OtrRandom.getInstance().nextBytes(sb);
+        BigInteger exponent = new BigInteger(1, sb);
+        Arrays.fill(sb, (byte) 0x00);
+        return exponent;
     }
 
     /**
@@ -200,7 +201,7 @@ public class SM {
     public static BigInteger[] proofKnowLog(BigInteger g, BigInteger x, int version)
             throws SMException {
         BigInteger r = randomExponent();
-        BigInteger temp = g.modPow(r, SM.MODULUS_S);
+        BigInteger temp = FixedBaseExponentiator.modPow(g, r, MODULUS_S);
         BigInteger c = hash(version, temp, null);
         temp = x.multiply(c).mod(ORDER_S);
         BigInteger d = r.subtract(temp).mod(ORDER_S);
@@ -219,7 +220,7 @@ public class SM {
     public static int checkKnowLog(BigInteger c, BigInteger d, BigInteger g, BigInteger x,
             int version) throws SMException {
 
-        BigInteger gd = g.modPow(d, MODULUS_S);
+        BigInteger gd = FixedBaseExponentiator.modPow(g, d, MODULUS_S);
         BigInteger xc = x.modPow(c, MODULUS_S);
         BigInteger gdxc = gd.multiply(xc).mod(MODULUS_S);
         BigInteger hgdxc = hash(version, gdxc, null);
@@ -238,7 +239,7 @@ public class SM {
         BigInteger r2 = randomExponent();
 
         /* Compute the value of c, as c = h(g3^r1, g1^r1 g2^r2) */
-        BigInteger temp1 = state.g1.modPow(r1, MODULUS_S);
+        BigInteger temp1 = FixedBaseExponentiator.modPow(state.g1, r1, MODULUS_S);
         BigInteger temp2 = state.g2.modPow(r2, MODULUS_S);
         temp2 = temp1.multiply(temp2).mod(MODULUS_S);
         temp1 = state.g3.modPow(r1, MODULUS_S);
@@ -281,7 +282,7 @@ public class SM {
         BigInteger temp3 = p.modPow(c, MODULUS_S);
         BigInteger temp1 = temp2.multiply(temp3).mod(MODULUS_S);
 
-        temp2 = state.g1.modPow(d1, MODULUS_S);
+        temp2 = FixedBaseExponentiator.modPow(state.g1, d1, MODULUS_S);
         temp3 = state.g2.modPow(d2, MODULUS_S);
         temp2 = temp2.multiply(temp3).mod(MODULUS_S);
         temp3 = q.modPow(c, MODULUS_S);
@@ -301,7 +302,7 @@ public class SM {
         BigInteger r = randomExponent();
 
         /* Compute the value of c, as c = h(g1^r, (Qa/Qb)^r) */
-        BigInteger temp1 = state.g1.modPow(r, MODULUS_S);
+        BigInteger temp1 = FixedBaseExponentiator.modPow(state.g1, r, MODULUS_S);
         BigInteger temp2 = state.qab.modPow(r, MODULUS_S);
         BigInteger c = hash(version, temp1, temp2);
 
@@ -337,7 +338,7 @@ public class SM {
          * = c
          */
 
-        BigInteger temp2 = state.g1.modPow(d, MODULUS_S);
+        BigInteger temp2 = FixedBaseExponentiator.modPow(state.g1, d, MODULUS_S);
         BigInteger temp3 = state.g3o.modPow(c, MODULUS_S);
         BigInteger temp1 = temp2.multiply(temp3).mod(MODULUS_S);
 
@@ -372,12 +373,12 @@ public class SM {
         astate.x3 = randomExponent();
 
         BigInteger[] msg1 = new BigInteger[6];
-        msg1[0] = astate.g1.modPow(astate.x2, MODULUS_S);
+        msg1[0] = FixedBaseExponentiator.modPow(astate.g1, astate.x2, MODULUS_S);
         BigInteger[] res = proofKnowLog(astate.g1, astate.x2, 1);
         msg1[1] = res[0];
         msg1[2] = res[1];
 
-        msg1[3] = astate.g1.modPow(astate.x3, MODULUS_S);
+        msg1[3] = FixedBaseExponentiator.modPow(astate.g1, astate.x3, MODULUS_S);
         res = proofKnowLog(astate.g1, astate.x3, 2);
         msg1[4] = res[0];
         msg1[5] = res[1];
@@ -453,12 +454,12 @@ public class SM {
         bstate.secret = secret_mpi;
 
         BigInteger[] msg2 = new BigInteger[11];
-        msg2[0] = bstate.g1.modPow(bstate.x2, MODULUS_S);
+        msg2[0] = FixedBaseExponentiator.modPow(bstate.g1, bstate.x2, MODULUS_S);
         BigInteger[] res = proofKnowLog(bstate.g1, bstate.x2, 3);
         msg2[1] = res[0];
         msg2[2] = res[1];
 
-        msg2[3] = bstate.g1.modPow(bstate.x3, MODULUS_S);
+        msg2[3] = FixedBaseExponentiator.modPow(bstate.g1, bstate.x3, MODULUS_S);
         res = proofKnowLog(bstate.g1, bstate.x3, 4);
         msg2[4] = res[0];
         msg2[5] = res[1];
@@ -470,7 +471,7 @@ public class SM {
         bstate.p = bstate.g3.modPow(r, MODULUS_S);
         //Util.checkBytes("Pb", bstate.p.getValue());
         msg2[6] = bstate.p;
-        BigInteger qb1 = bstate.g1.modPow(r, MODULUS_S);
+        BigInteger qb1 = FixedBaseExponentiator.modPow(bstate.g1, r, MODULUS_S);
         //Util.checkBytes("Qb1", qb1.getValue());
         BigInteger qb2 = bstate.g2.modPow(bstate.secret, MODULUS_S);
         //Util.checkBytes("Qb2", qb2.getValue());
@@ -540,7 +541,7 @@ public class SM {
         astate.p = astate.g3.modPow(r, MODULUS_S);
         //Util.checkBytes("Pa", astate.p.getValue());
         msg3[0] = astate.p;
-        BigInteger qa1 = astate.g1.modPow(r, MODULUS_S);
+        BigInteger qa1 = FixedBaseExponentiator.modPow(astate.g1, r, MODULUS_S);
         //Util.checkBytes("Qa1", qa1.getValue());
         BigInteger qa2 = astate.g2.modPow(astate.secret, MODULUS_S);
         //Util.checkBytes("Qa2", qa2.getValue());
@@ -0,0 +1,169 @@
+/*
+ * otr4j, the open source java otr library.
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package net.java.otr4j.io;
+
+import java.util.logging.Logger;
+
+/**
+ * Reassembles OTR version 2 fragments, <code>?OTR,k,n,piece,</code>, and
+ * version 3 fragments, <code>?OTR|sender|receiver,k,n,piece,</code>, for one
+ * session; the session routes version 3 fragments by their instance tags
+ * before they get here, see {@link #getInstanceTags(String)}. Fragments must
+ * arrive in order; anything out of sequence, too large or too old discards
+ * the partial message, as libotr does.
+ * <p>
+ * Pieces are appended straight into one buffer that is handed to
+ * {@link SerializationUtils#toMessage(CharSequence)} when complete, so the
+ * only other copy of the message is the decoded binary.
+ * <p>
+ * Not thread safe, the owning session serializes access.
+ */
+public class OtrAssembler {
+
+    public static final int DEFAULT_MAX_MESSAGE_LENGTH = 1024 * 1024;
+    public static final long DEFAULT_TIMEOUT = 2 * 60 * 1000;
+
+    private static Logger logger = Logger.getLogger(OtrAssembler.class.getName());
+
+    private final int maxMessageLength;
+    private final long timeout;
+
+    private StringBuilder buffer;
+    private int received;
+    private int total;
+    private long lastFragmentTime;
+
+    public OtrAssembler() {
+        this(DEFAULT_MAX_MESSAGE_LENGTH, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * @param maxMessageLength the longest reassembled message kept, in chars.
+     * @param timeout milliseconds after which a partial message with no new
+     *            fragments is dropped.
+     */
+    public OtrAssembler(int maxMessageLength, long timeout) {
+        this.maxMessageLength = maxMessageLength;
+        this.timeout = timeout;
+    }
+
+    public static boolean isFragment(String msg) {
+        return msg != null
+               && (msg.startsWith(OtrFragmenter.HEAD_FRAGMENT) || msg
+                       .startsWith(OtrFragmenter.HEAD_FRAGMENT_V3));
+    }
+
+    /**
+     * @return the sender and receiver instance tags of a version 3 fragment,
+     *         or null for a version 2 or malformed fragment.
+     */
+    public static int[] getInstanceTags(String fragment) {
+        if (fragment == null || !fragment.startsWith(OtrFragmenter.HEAD_FRAGMENT_V3))
+            return null;
+        int senderStart = OtrFragmenter.HEAD_FRAGMENT_V3.length();
+        int senderEnd = fragment.indexOf('|', senderStart);
+        int receiverEnd = senderEnd < 0 ? -1 : fragment.indexOf(',', senderEnd + 1);
+        if (receiverEnd < 0)
+            return null;
+        try {
+            return new int[] {
+                    (int) Long.parseLong(fragment.substring(senderStart, senderEnd), 16),
+                    (int) Long.parseLong(fragment.substring(senderEnd + 1, receiverEnd), 16) };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Adds a fragment.
+     *
+     * @return the complete message once the last fragment has arrived,
+     *         otherwise null.
+     */
+    public CharSequence accumulate(String fragment) {
+        return accumulate(fragment, System.currentTimeMillis());
+    }
+
+    CharSequence accumulate(String fragment, long now) {
+        if (buffer != null && now - lastFragmentTime > timeout) {
+            logger.finest("Dropping stale partial message.");
+            discard();
+        }
+
+        // ?OTR,k,n,piece, or ?OTR|sender|receiver,k,n,piece,
+        int kStart = OtrFragmenter.HEAD_FRAGMENT.length();
+        if (fragment.startsWith(OtrFragmenter.HEAD_FRAGMENT_V3))
+            kStart = fragment.indexOf(',') + 1;
+        int kEnd = kStart == 0 ? -1 : fragment.indexOf(',', kStart);
+        int nEnd = kEnd < 0 ? -1 : fragment.indexOf(',', kEnd + 1);
+        if (nEnd < 0 || fragment.charAt(fragment.length() - 1) != ',') {
+            logger.finest("Ignoring malformed fragment.");
+            return null;
+        }
+
+        int k;
+        int n;
+        try {
+            k = Integer.parseInt(fragment.substring(kStart, kEnd));
+            n = Integer.parseInt(fragment.substring(kEnd + 1, nEnd));
+        } catch (NumberFormatException e) {
+            logger.finest("Ignoring malformed fragment.");
+            return null;
+        }
+
+        int pieceStart = nEnd + 1;
+        int pieceEnd = fragment.length() - 1;
+        if (k < 1 || n < 1 || k > n || n > OtrFragmenter.MAX_FRAGMENTS || pieceStart > pieceEnd) {
+            logger.finest("Ignoring malformed fragment.");
+            return null;
+        }
+
+        if (k == 1) {
+            // Size the buffer from the first piece, the others are the same
+            // length or shorter.
+            int expected = (int) Math.min((long) (pieceEnd - pieceStart) * n, maxMessageLength);
+            buffer = new StringBuilder(expected);
+            total = n;
+            received = 0;
+        } else if (buffer == null || n != total || k != received + 1) {
+            discard();
+            return null;
+        }
+
+        if (buffer.length() + pieceEnd - pieceStart > maxMessageLength) {
+            logger.finest("Dropping partial message longer than " + maxMessageLength);
+            discard();
+            return null;
+        }
+
+        buffer.append(fragment, pieceStart, pieceEnd);
+        received = k;
+        lastFragmentTime = now;
+
+        if (k < n)
+            return null;
+
+        CharSequence complete = buffer;
+        buffer = null;
+        return complete;
+    }
+
+    /** @return true while a partial message is buffered. */
+    public boolean isPending() {
+        return buffer != null;
+    }
+
+    /** @return the number of chars buffered for the partial message. */
+    public int getPendingLength() {
+        return buffer == null ? 0 : buffer.length();
+    }
+
+    public void discard() {
+        buffer = null;
+        received = 0;
+        total = 0;
+    }
+}
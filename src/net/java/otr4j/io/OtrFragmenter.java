@@ -0,0 +1,93 @@
+/*
+ * otr4j, the open source java otr library.
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package net.java.otr4j.io;
+
+/**
+ * Splits encoded OTR messages into OTR version 2 fragments,
+ * <code>?OTR,k,n,piece,</code>, or version 3 fragments,
+ * <code>?OTR|sender|receiver,k,n,piece,</code> with the instance tags in hex,
+ * none of them longer than a given size.
+ */
+public class OtrFragmenter {
+
+    public static final String HEAD_FRAGMENT = SerializationConstants.HEAD + ",";
+    public static final String HEAD_FRAGMENT_V3 = SerializationConstants.HEAD + "|";
+
+    /** OTR version 2 fragment numbers are unsigned shorts. */
+    public static final int MAX_FRAGMENTS = 65535;
+
+    /**
+     * @param msg the message to send.
+     * @param maxSize the largest fragment the transport takes, 0 or less for
+     *            no limit.
+     * @return the fragments of msg in sending order, or msg itself if it is
+     *         not an encoded message, fits in maxSize, or cannot be split
+     *         that small.
+     */
+    public static String[] fragment(String msg, int maxSize) {
+        return fragment(msg, maxSize, null);
+    }
+
+    /**
+     * Same as {@link #fragment(String, int)}, with version 3 fragment headers
+     * carrying the given instance tags.
+     */
+    public static String[] fragment(String msg, int maxSize, int senderInstanceTag,
+            int receiverInstanceTag) {
+        return fragment(msg, maxSize, HEAD_FRAGMENT_V3 + toHex(senderInstanceTag) + "|"
+                                      + toHex(receiverInstanceTag) + ",");
+    }
+
+    /** @param head everything ahead of k, null for the version 2 header. */
+    private static String[] fragment(String msg, int maxSize, String head) {
+        if (head == null)
+            head = HEAD_FRAGMENT;
+        if (msg == null || maxSize <= 0 || msg.length() <= maxSize
+            || !msg.startsWith(SerializationConstants.HEAD + SerializationConstants.HEAD_ENCODED))
+            return new String[] { msg };
+
+        // The overhead depends on the number of digits in n, which depends
+        // on the piece size, so settle on a count first.
+        int count = 1;
+        int pieceLength;
+        while (true) {
+            pieceLength = maxSize - overhead(head, count);
+            if (pieceLength <= 0)
+                return new String[] { msg };
+
+            int needed = (msg.length() + pieceLength - 1) / pieceLength;
+            if (needed > MAX_FRAGMENTS)
+                return new String[] { msg };
+            if (needed <= count)
+                break;
+            count = needed;
+        }
+        count = (msg.length() + pieceLength - 1) / pieceLength;
+
+        String[] fragments = new String[count];
+        String n = Integer.toString(count);
+        for (int k = 0; k < count; k++) {
+            int start = k * pieceLength;
+            int end = Math.min(start + pieceLength, msg.length());
+            StringBuilder sb = new StringBuilder(overhead(head, count) + end - start);
+            sb.append(head).append(k + 1).append(',').append(n).append(',');
+            sb.append(msg, start, end).append(',');
+            fragments[k] = sb.toString();
+        }
+        return fragments;
+    }
+
+    /** The length of the header and k,n,, for the largest k. */
+    private static int overhead(String head, int count) {
+        return head.length() + 2 * Integer.toString(count).length() + 3;
+    }
+
+    /** Instance tags are written as 8 hex digits, as libotr does. */
+    private static String toHex(int tag) {
+        String hex = Integer.toHexString(tag);
+        return "00000000".substring(hex.length()) + hex;
+    }
+}
@@ -24,13 +24,12 @@ public class OtrInputStream extends FilterInputStream implements SerializationCo
     }
 
     private int readNumber(int length) throws IOException {
-        byte[] b = new byte[length];
-        read(b);
-
         int value = 0;
-        for (int i = 0; i < b.length; i++) {
-            int shift = (b.length - 1 - i) * 8;
-            value += (b[i] & 0x000000FF) << shift;
+        for (int i = 0; i < length; i++) {
+            int b = in.read();
+            if (b < 0)
+                b = 0;
+            value = (value << 8) | b;
         }
 
         return value;
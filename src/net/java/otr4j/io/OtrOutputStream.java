@@ -23,12 +23,16 @@ public class OtrOutputStream extends FilterOutputStream implements Serialization
     }
 
     private void writeNumber(int value, int length) throws IOException {
-        byte[] b = new byte[length];
         for (int i = 0; i < length; i++) {
-            int offset = (b.length - 1 - i) * 8;
-            b[i] = (byte) ((value >>> offset) & 0xFF);
+            int offset = (length - 1 - i) * 8;
+            out.write((value >>> offset) & 0xFF);
         }
-        write(b);
+    }
+
+    /** Passes arrays on in one call, FilterOutputStream writes them byte by byte. */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
     }
 
     public void writeBigInt(BigInteger bi) throws IOException {
@@ -68,11 +72,7 @@ public class OtrOutputStream extends FilterOutputStream implements Serialization
         if (ctr == null || ctr.length < 1)
             return;
 
-        int i = 0;
-        while (i < TYPE_LEN_CTR && i < ctr.length) {
-            write(ctr[i]);
-            i++;
-        }
+        write(ctr, 0, Math.min(TYPE_LEN_CTR, ctr.length));
     }
 
     public void writeDHPublicKey(DHPublicKey dhPublicKey) throws IOException {
@@ -126,6 +126,10 @@ public class OtrOutputStream extends FilterOutputStream implements Serialization
     public void writeMysteriousT(MysteriousT t) throws IOException {
         writeShort(t.protocolVersion);
         writeByte(t.messageType);
+        if (t.protocolVersion == 3) {
+            writeInt(t.senderInstanceTag);
+            writeInt(t.receiverInstanceTag);
+        }
         writeByte(t.flags);
 
         writeInt(t.senderKeyID);
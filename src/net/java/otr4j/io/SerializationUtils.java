@@ -5,16 +5,17 @@
  */
 package net.java.otr4j.io;
 
-import info.guardianproject.bouncycastle.util.encoders.Base64;
+import info.guardianproject.bouncycastle.util.BigIntegers;
 import info.guardianproject.otr.OtrConstants;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.StringReader;
-import java.io.StringWriter;
 import java.math.BigInteger;
 import java.security.PublicKey;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Vector;
 import java.util.regex.Matcher;
@@ -116,205 +117,343 @@ public class SerializationUtils {
 
     // Message IO.
     public static String toString(AbstractMessage m) throws IOException {
-        StringWriter writer = new StringWriter();
-        writer.write(SerializationConstants.HEAD);
-
         switch (m.messageType) {
         case AbstractMessage.MESSAGE_ERROR:
             ErrorMessage error = (ErrorMessage) m;
-            writer.write(SerializationConstants.HEAD_ERROR);
-            writer.write(error.error);
-            break;
+            return SerializationConstants.HEAD + SerializationConstants.HEAD_ERROR + error.error;
         case AbstractMessage.MESSAGE_PLAINTEXT:
             PlainTextMessage plaintxt = (PlainTextMessage) m;
-            writer.write(plaintxt.cleanText);
+            StringBuilder plain = new StringBuilder(SerializationConstants.HEAD);
+            plain.append(plaintxt.cleanText);
             if (plaintxt.versions != null && plaintxt.versions.size() > 0) {
-                writer.write(" \\t  \\t\\t\\t\\t \\t \\t \\t  ");
+                plain.append(WHITESPACE_TAG_BASE);
                 for (int version : plaintxt.versions) {
                     if (version == 1)
-                        writer.write("  \\t\\t  \\t ");
+                        plain.append(WHITESPACE_TAG_V1);
 
                     if (version == 2)
-                        writer.write(" \\t \\t  \\t ");
+                        plain.append(WHITESPACE_TAG_V2);
+
+                    if (version == 3)
+                        plain.append(WHITESPACE_TAG_V3);
                 }
             }
-            break;
+            return plain.toString();
         case AbstractMessage.MESSAGE_QUERY:
             QueryMessage query = (QueryMessage) m;
+            StringBuilder q = new StringBuilder(SerializationConstants.HEAD);
             if (query.versions.size() == 1 && query.versions.get(0) == 1) {
-                writer.write(SerializationConstants.HEAD_QUERY_Q);
+                q.append(SerializationConstants.HEAD_QUERY_Q);
             } else {
-                writer.write(SerializationConstants.HEAD_QUERY_V);
+                q.append(SerializationConstants.HEAD_QUERY_V);
                 for (int version : query.versions)
-                    writer.write(String.valueOf(version));
+                    q.append(version);
 
-                writer.write(SerializationConstants.HEAD_QUERY_Q);
+                q.append(SerializationConstants.HEAD_QUERY_Q);
             }
-            writer.write(OtrConstants.CommonRequest);
-            break;
+            q.append(OtrConstants.CommonRequest);
+            return q.toString();
         case AbstractEncodedMessage.MESSAGE_DHKEY:
         case AbstractEncodedMessage.MESSAGE_REVEALSIG:
         case AbstractEncodedMessage.MESSAGE_SIGNATURE:
         case AbstractEncodedMessage.MESSAGE_DH_COMMIT:
         case AbstractEncodedMessage.MESSAGE_DATA:
-            ByteArrayOutputStream o = new ByteArrayOutputStream();
-            OtrOutputStream s = new OtrOutputStream(o);
-
-            switch (m.messageType) {
-            case AbstractEncodedMessage.MESSAGE_DHKEY:
-                DHKeyMessage dhkey = (DHKeyMessage) m;
-                s.writeShort(dhkey.protocolVersion);
-                s.writeByte(dhkey.messageType);
-                s.writeDHPublicKey(dhkey.dhPublicKey);
-                break;
-            case AbstractEncodedMessage.MESSAGE_REVEALSIG:
-                RevealSignatureMessage revealsig = (RevealSignatureMessage) m;
-                s.writeShort(revealsig.protocolVersion);
-                s.writeByte(revealsig.messageType);
-                s.writeData(revealsig.revealedKey);
-                s.writeData(revealsig.xEncrypted);
-                s.writeMac(revealsig.xEncryptedMAC);
-                break;
-            case AbstractEncodedMessage.MESSAGE_SIGNATURE:
-                SignatureMessage sig = (SignatureMessage) m;
-                s.writeShort(sig.protocolVersion);
-                s.writeByte(sig.messageType);
-                s.writeData(sig.xEncrypted);
-                s.writeMac(sig.xEncryptedMAC);
-                break;
-            case AbstractEncodedMessage.MESSAGE_DH_COMMIT:
-                DHCommitMessage dhcommit = (DHCommitMessage) m;
-                s.writeShort(dhcommit.protocolVersion);
-                s.writeByte(dhcommit.messageType);
-                s.writeData(dhcommit.dhPublicKeyEncrypted);
-                s.writeData(dhcommit.dhPublicKeyHash);
-                break;
-            case AbstractEncodedMessage.MESSAGE_DATA:
-                DataMessage data = (DataMessage) m;
-                s.writeShort(data.protocolVersion);
-                s.writeByte(data.messageType);
-                s.writeByte(data.flags);
-                s.writeInt(data.senderKeyID);
-                s.writeInt(data.recipientKeyID);
-                s.writeDHPublicKey(data.nextDH);
-                s.writeCtr(data.ctr);
-                s.writeData(data.encryptedMessage);
-                s.writeMac(data.mac);
-                s.writeData(data.oldMACKeys);
-                break;
-            }
+            byte[] body = toByteArray((AbstractEncodedMessage) m);
 
-            writer.write(SerializationConstants.HEAD_ENCODED);
-            writer.write(new String(Base64.encode(o.toByteArray())));
-            writer.write(".");
+            // Everything goes into one exactly sized buffer, the only other
+            // copy is the final String.
+            StringBuilder writer = new StringBuilder(SerializationConstants.HEAD.length() + 2
+                                                     + base64Length(body.length));
+            writer.append(SerializationConstants.HEAD);
+            writer.append(SerializationConstants.HEAD_ENCODED);
+            appendBase64(writer, body);
+            writer.append('.');
+            return writer.toString();
+        default:
+            throw new IOException("Illegal message type.");
+        }
+    }
+
+    /**
+     * Serializes the binary part of an encoded message into an array of
+     * exactly the right length.
+     */
+    private static byte[] toByteArray(AbstractEncodedMessage m) throws IOException {
+        int length = SerializationConstants.TYPE_LEN_SHORT + SerializationConstants.TYPE_LEN_BYTE;
+        if (m.protocolVersion == 3)
+            length += 2 * SerializationConstants.TYPE_LEN_INT;
+        byte[] y = null;
+
+        switch (m.messageType) {
+        case AbstractEncodedMessage.MESSAGE_DHKEY:
+            y = BigIntegers.asUnsignedByteArray(((DHKeyMessage) m).dhPublicKey.getY());
+            length += dataLength(y);
+            break;
+        case AbstractEncodedMessage.MESSAGE_REVEALSIG:
+            RevealSignatureMessage revealsig = (RevealSignatureMessage) m;
+            length += dataLength(revealsig.revealedKey) + dataLength(revealsig.xEncrypted)
+                      + SerializationConstants.TYPE_LEN_MAC;
+            break;
+        case AbstractEncodedMessage.MESSAGE_SIGNATURE:
+            length += dataLength(((SignatureMessage) m).xEncrypted)
+                      + SerializationConstants.TYPE_LEN_MAC;
+            break;
+        case AbstractEncodedMessage.MESSAGE_DH_COMMIT:
+            DHCommitMessage dhcommit = (DHCommitMessage) m;
+            length += dataLength(dhcommit.dhPublicKeyEncrypted)
+                      + dataLength(dhcommit.dhPublicKeyHash);
+            break;
+        case AbstractEncodedMessage.MESSAGE_DATA:
+            DataMessage data = (DataMessage) m;
+            y = BigIntegers.asUnsignedByteArray(data.nextDH.getY());
+            length += SerializationConstants.TYPE_LEN_BYTE + 2 * SerializationConstants.TYPE_LEN_INT
+                      + dataLength(y) + ctrLength(data.ctr) + dataLength(data.encryptedMessage)
+                      + SerializationConstants.TYPE_LEN_MAC + dataLength(data.oldMACKeys);
             break;
         default:
             throw new IOException("Illegal message type.");
         }
 
-        return writer.toString();
+        FixedByteArrayOutputStream o = new FixedByteArrayOutputStream(length);
+        OtrOutputStream s = new OtrOutputStream(o);
+        s.writeShort(m.protocolVersion);
+        s.writeByte(m.messageType);
+        if (m.protocolVersion == 3) {
+            s.writeInt(m.senderInstanceTag);
+            s.writeInt(m.receiverInstanceTag);
+        }
+
+        switch (m.messageType) {
+        case AbstractEncodedMessage.MESSAGE_DHKEY:
+            s.writeData(y);
+            break;
+        case AbstractEncodedMessage.MESSAGE_REVEALSIG:
+            RevealSignatureMessage revealsig = (RevealSignatureMessage) m;
+            s.writeData(revealsig.revealedKey);
+            s.writeData(revealsig.xEncrypted);
+            s.writeMac(revealsig.xEncryptedMAC);
+            break;
+        case AbstractEncodedMessage.MESSAGE_SIGNATURE:
+            SignatureMessage sig = (SignatureMessage) m;
+            s.writeData(sig.xEncrypted);
+            s.writeMac(sig.xEncryptedMAC);
+            break;
+        case AbstractEncodedMessage.MESSAGE_DH_COMMIT:
+            DHCommitMessage dhcommit = (DHCommitMessage) m;
+            s.writeData(dhcommit.dhPublicKeyEncrypted);
+            s.writeData(dhcommit.dhPublicKeyHash);
+            break;
+        case AbstractEncodedMessage.MESSAGE_DATA:
+            DataMessage data = (DataMessage) m;
+            s.writeByte(data.flags);
+            s.writeInt(data.senderKeyID);
+            s.writeInt(data.recipientKeyID);
+            s.writeData(y);
+            s.writeCtr(data.ctr);
+            s.writeData(data.encryptedMessage);
+            s.writeMac(data.mac);
+            s.writeData(data.oldMACKeys);
+            break;
+        }
+
+        return o.getBuffer();
+    }
+
+    private static int dataLength(byte[] b) {
+        return SerializationConstants.DATA_LEN + (b == null ? 0 : b.length);
+    }
+
+    private static int ctrLength(byte[] ctr) {
+        return ctr == null ? 0 : Math.min(ctr.length, SerializationConstants.TYPE_LEN_CTR);
+    }
+
+    /** An output stream over a buffer that must be filled exactly. */
+    private static class FixedByteArrayOutputStream extends OutputStream {
+        private final byte[] buf;
+        private int count;
+
+        FixedByteArrayOutputStream(int length) {
+            buf = new byte[length];
+        }
+
+        public void write(int b) throws IOException {
+            if (count == buf.length)
+                throw new IOException("Encoded message is longer than expected.");
+            buf[count++] = (byte) b;
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > buf.length - count)
+                throw new IOException("Encoded message is longer than expected.");
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+        }
+
+        byte[] getBuffer() throws IOException {
+            if (count != buf.length)
+                throw new IOException("Encoded message is shorter than expected.");
+            return buf;
+        }
+    }
+
+    // Base64, see RFC 4648. Encodes into and decodes from the message text
+    // directly instead of going through intermediate byte arrays and strings.
+    private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+            .toCharArray();
+    private static final byte[] BASE64_INVERSE = new byte[128];
+
+    static {
+        Arrays.fill(BASE64_INVERSE, (byte) -1);
+        for (int i = 0; i < BASE64.length; i++)
+            BASE64_INVERSE[BASE64[i]] = (byte) i;
+    }
+
+    private static int base64Length(int length) {
+        return (length + 2) / 3 * 4;
     }
 
-    static final Pattern patternWhitespace = Pattern
-            .compile("( \\t  \\t\\t\\t\\t \\t \\t \\t  )(  \\t\\t  \\t )?( \\t \\t  \\t )?");
+    private static void appendBase64(StringBuilder sb, byte[] b) {
+        int i = 0;
+        int full = b.length - b.length % 3;
+        while (i < full) {
+            int v = (b[i++] & 0xFF) << 16 | (b[i++] & 0xFF) << 8 | (b[i++] & 0xFF);
+            sb.append(BASE64[v >>> 18]).append(BASE64[(v >>> 12) & 0x3F])
+                    .append(BASE64[(v >>> 6) & 0x3F]).append(BASE64[v & 0x3F]);
+        }
+
+        int rest = b.length - full;
+        if (rest == 1) {
+            int v = (b[i] & 0xFF) << 16;
+            sb.append(BASE64[v >>> 18]).append(BASE64[(v >>> 12) & 0x3F]).append("==");
+        } else if (rest == 2) {
+            int v = (b[i] & 0xFF) << 16 | (b[i + 1] & 0xFF) << 8;
+            sb.append(BASE64[v >>> 18]).append(BASE64[(v >>> 12) & 0x3F])
+                    .append(BASE64[(v >>> 6) & 0x3F]).append('=');
+        }
+    }
+
+    /**
+     * Decodes the Base64 text in s from start up to end, or up to the first
+     * '.', whichever comes first. Whitespace is skipped.
+     */
+    private static byte[] decodeBase64(CharSequence s, int start, int end) throws IOException {
+        for (int i = start; i < end; i++) {
+            if (s.charAt(i) == '.') {
+                end = i;
+                break;
+            }
+        }
+
+        int symbols = 0;
+        int padding = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c == '=')
+                padding++;
+            else if (c < 128 && BASE64_INVERSE[c] >= 0) {
+                if (padding > 0)
+                    throw new IOException("Illegal Base64 padding.");
+                symbols++;
+            } else if (!Character.isWhitespace(c))
+                throw new IOException("Illegal Base64 character.");
+        }
+        if (symbols % 4 == 1 || padding > 2)
+            throw new IOException("Illegal Base64 length.");
+
+        byte[] out = new byte[symbols * 3 / 4];
+        int bits = 0;
+        int buffer = 0;
+        int pos = 0;
+        for (int i = start; i < end && pos < out.length; i++) {
+            char c = s.charAt(i);
+            if (c >= 128 || BASE64_INVERSE[c] < 0)
+                continue;
+            buffer = buffer << 6 | BASE64_INVERSE[c];
+            bits += 6;
+            if (bits >= 8) {
+                bits -= 8;
+                out[pos++] = (byte) (buffer >>> bits);
+            }
+        }
+        return out;
+    }
+
+    /** The fixed start of every whitespace tag, ahead of the version tags. */
+    private static final String WHITESPACE_TAG_BASE = " \t  \t\t\t\t \t \t \t  ";
+    private static final String WHITESPACE_TAG_V1 = " \t \t  \t ";
+    private static final String WHITESPACE_TAG_V2 = "  \t\t  \t ";
+    private static final String WHITESPACE_TAG_V3 = "  \t\t  \t\t";
+    private static final int WHITESPACE_TAG_VERSION_LENGTH = 8;
+
+    /** The base tag followed by any number of version tags, in any order. */
+    static final Pattern patternWhitespace = Pattern.compile("(" + WHITESPACE_TAG_BASE + ")((?:"
+                                                             + WHITESPACE_TAG_V1 + "|"
+                                                             + WHITESPACE_TAG_V2 + "|"
+                                                             + WHITESPACE_TAG_V3 + ")*)");
 
     public static AbstractMessage toMessage(String s) throws IOException {
         if (s == null || s.length() <= 1)
             return null;
 
-        if (s.indexOf(SerializationConstants.HEAD) != 0
+        if (!s.startsWith(SerializationConstants.HEAD)
             || s.length() <= SerializationConstants.HEAD.length()) {
+            // Most plain text carries no whitespace tag, only run the regex
+            // when the fixed part of the tag is there.
+            if (s.indexOf(WHITESPACE_TAG_BASE) < 0)
+                return new PlainTextMessage(null, s);
+
             // Try to detect whitespace tag.
             final Matcher matcher = patternWhitespace.matcher(s);
 
             boolean v1 = false;
             boolean v2 = false;
+            boolean v3 = false;
             while (matcher.find()) {
-                if (!v1 && matcher.start(2) > -1)
-                    v1 = true;
-
-                if (!v2 && matcher.start(3) > -1)
-                    v2 = true;
-
-                if (v1 && v2)
-                    break;
+                String tags = matcher.group(2);
+                for (int i = 0; i < tags.length(); i += WHITESPACE_TAG_VERSION_LENGTH) {
+                    String tag = tags.substring(i, i + WHITESPACE_TAG_VERSION_LENGTH);
+                    if (tag.equals(WHITESPACE_TAG_V1))
+                        v1 = true;
+                    else if (tag.equals(WHITESPACE_TAG_V2))
+                        v2 = true;
+                    else if (tag.equals(WHITESPACE_TAG_V3))
+                        v3 = true;
+                }
             }
 
             String cleanText = matcher.replaceAll("");
-            List<Integer> versions;
-            if (v1 && v2) {
-                versions = new Vector<Integer>(2);
-                versions.add(0, 1);
-                versions.add(0, 2);
-            } else if (v1) {
-                versions = new Vector<Integer>(1);
-                versions.add(0, 1);
-            } else if (v2) {
-                versions = new Vector<Integer>(1);
-                versions.add(2);
-            } else
-                versions = null;
+            List<Integer> versions = null;
+            if (v1 || v2 || v3) {
+                // Highest version first.
+                versions = new Vector<Integer>(3);
+                if (v3)
+                    versions.add(3);
+                if (v2)
+                    versions.add(2);
+                if (v1)
+                    versions.add(1);
+            }
 
             return new PlainTextMessage(versions, cleanText);
         } else {
             char contentType = s.charAt(SerializationConstants.HEAD.length());
-            String content = s.substring(SerializationConstants.HEAD.length() + 1);
+            int contentStart = SerializationConstants.HEAD.length() + 1;
             switch (contentType) {
             case SerializationConstants.HEAD_ENCODED:
-                ByteArrayInputStream bin = new ByteArrayInputStream(Base64.decode(content
-                        .getBytes()));
-                OtrInputStream otr = new OtrInputStream(bin);
-                // We have an encoded message.
-                int protocolVersion = otr.readShort();
-                int messageType = otr.readByte();
-                switch (messageType) {
-                case AbstractEncodedMessage.MESSAGE_DATA:
-                    int flags = otr.readByte();
-                    int senderKeyID = otr.readInt();
-                    int recipientKeyID = otr.readInt();
-                    DHPublicKey nextDH = otr.readDHPublicKey();
-                    byte[] ctr = otr.readCtr();
-                    byte[] encryptedMessage = otr.readData();
-                    byte[] mac = otr.readMac();
-                    byte[] oldMacKeys = otr.readMac();
-                    return new DataMessage(protocolVersion, flags, senderKeyID, recipientKeyID,
-                            nextDH, ctr, encryptedMessage, mac, oldMacKeys);
-                case AbstractEncodedMessage.MESSAGE_DH_COMMIT:
-                    byte[] dhPublicKeyEncrypted = otr.readData();
-                    byte[] dhPublicKeyHash = otr.readData();
-                    return new DHCommitMessage(protocolVersion, dhPublicKeyHash,
-                            dhPublicKeyEncrypted);
-                case AbstractEncodedMessage.MESSAGE_DHKEY:
-                    DHPublicKey dhPublicKey = otr.readDHPublicKey();
-                    return new DHKeyMessage(protocolVersion, dhPublicKey);
-                case AbstractEncodedMessage.MESSAGE_REVEALSIG: {
-                    byte[] revealedKey = otr.readData();
-                    byte[] xEncrypted = otr.readData();
-                    byte[] xEncryptedMac = otr.readMac();
-                    return new RevealSignatureMessage(protocolVersion, xEncrypted, xEncryptedMac,
-                            revealedKey);
-                }
-                case AbstractEncodedMessage.MESSAGE_SIGNATURE: {
-                    byte[] xEncryted = otr.readData();
-                    byte[] xEncryptedMac = otr.readMac();
-                    return new SignatureMessage(protocolVersion, xEncryted, xEncryptedMac);
-                }
-                default:
-                    throw new IOException("Illegal message type.");
-                }
+                return toEncodedMessage(s, contentStart);
             case SerializationConstants.HEAD_MESSAGE:
-                return new ErrorMessage(AbstractMessage.MESSAGE_ERROR, content);
+                return new ErrorMessage(AbstractMessage.MESSAGE_ERROR, s.substring(contentStart));
             case SerializationConstants.HEAD_QUERY_V:
             case SerializationConstants.HEAD_QUERY_Q:
                 List<Integer> versions = new Vector<Integer>();
                 String versionString = null;
                 if (SerializationConstants.HEAD_QUERY_Q == contentType) {
                     versions.add(1);
-                    if (content.charAt(0) == 'v') {
-                        versionString = content.substring(1, content.indexOf('?'));
+                    if (s.length() > contentStart && s.charAt(contentStart) == 'v') {
+                        versionString = s.substring(contentStart + 1, s.indexOf('?', contentStart));
                     }
                 } else if (SerializationConstants.HEAD_QUERY_V == contentType) {
-                    versionString = content.substring(0, content.indexOf('?'));
+                    versionString = s.substring(contentStart, s.indexOf('?', contentStart));
                 }
 
                 if (versionString != null) {
@@ -331,4 +470,87 @@ public class SerializationUtils {
             }
         }
     }
+
+    /**
+     * Parses a message held in any CharSequence, such as the buffer of a
+     * reassembled fragmented message. Encoded messages are decoded straight
+     * from the sequence, without converting it to a String first.
+     */
+    public static AbstractMessage toMessage(CharSequence s) throws IOException {
+        if (s instanceof String)
+            return toMessage((String) s);
+
+        String head = SerializationConstants.HEAD + SerializationConstants.HEAD_ENCODED;
+        if (s.length() > head.length() && head.contentEquals(s.subSequence(0, head.length())))
+            return toEncodedMessage(s, head.length());
+
+        return toMessage(s.toString());
+    }
+
+    private static AbstractMessage toEncodedMessage(CharSequence s, int contentStart)
+            throws IOException {
+        byte[] decoded = decodeBase64(s, contentStart, s.length());
+        ByteArrayInputStream bin = new ByteArrayInputStream(decoded);
+        OtrInputStream otr = new OtrInputStream(bin);
+        // We have an encoded message.
+        int protocolVersion = otr.readShort();
+        int messageType = otr.readByte();
+        int senderInstanceTag = 0;
+        int receiverInstanceTag = 0;
+        if (protocolVersion == 3) {
+            senderInstanceTag = otr.readInt();
+            receiverInstanceTag = otr.readInt();
+        }
+
+        AbstractEncodedMessage m;
+        switch (messageType) {
+        case AbstractEncodedMessage.MESSAGE_DATA:
+            int flags = otr.readByte();
+            int senderKeyID = otr.readInt();
+            int recipientKeyID = otr.readInt();
+            DHPublicKey nextDH = otr.readDHPublicKey();
+            byte[] ctr = otr.readCtr();
+            byte[] encryptedMessage = otr.readData();
+            // T runs from the start of the message up to the MAC.
+            int authenticatedLength = decoded.length - bin.available();
+            byte[] mac = otr.readMac();
+            byte[] oldMacKeys = otr.readData();
+            DataMessage data = new DataMessage(protocolVersion, flags, senderKeyID,
+                    recipientKeyID, nextDH, ctr, encryptedMessage, mac, oldMacKeys);
+            data.authenticatedBuffer = decoded;
+            data.authenticatedOffset = 0;
+            data.authenticatedLength = authenticatedLength;
+            m = data;
+            break;
+        case AbstractEncodedMessage.MESSAGE_DH_COMMIT:
+            byte[] dhPublicKeyEncrypted = otr.readData();
+            byte[] dhPublicKeyHash = otr.readData();
+            m = new DHCommitMessage(protocolVersion, dhPublicKeyHash, dhPublicKeyEncrypted);
+            break;
+        case AbstractEncodedMessage.MESSAGE_DHKEY:
+            DHPublicKey dhPublicKey = otr.readDHPublicKey();
+            m = new DHKeyMessage(protocolVersion, dhPublicKey);
+            break;
+        case AbstractEncodedMessage.MESSAGE_REVEALSIG: {
+            byte[] revealedKey = otr.readData();
+            byte[] xEncrypted = otr.readData();
+            byte[] xEncryptedMac = otr.readMac();
+            m = new RevealSignatureMessage(protocolVersion, xEncrypted, xEncryptedMac,
+                    revealedKey);
+            break;
+        }
+        case AbstractEncodedMessage.MESSAGE_SIGNATURE: {
+            byte[] xEncryted = otr.readData();
+            byte[] xEncryptedMac = otr.readMac();
+            m = new SignatureMessage(protocolVersion, xEncryted, xEncryptedMac);
+            break;
+        }
+        default:
+            throw new IOException("Illegal message type.");
+        }
+
+        m.senderInstanceTag = senderInstanceTag;
+        m.receiverInstanceTag = receiverInstanceTag;
+        return m;
+    }
 }
@@ -9,6 +9,9 @@ package net.java.otr4j.io.messages;
 public abstract class AbstractEncodedMessage extends AbstractMessage {
     // Fields.
     public int protocolVersion;
+    /** Version 3 only, 0 in earlier versions. */
+    public int senderInstanceTag;
+    public int receiverInstanceTag;
 
     // Ctor.
     public AbstractEncodedMessage(int messageType, int protocolVersion) {
@@ -22,6 +25,8 @@ public abstract class AbstractEncodedMessage extends AbstractMessage {
         final int prime = 31;
         int result = super.hashCode();
         result = prime * result + protocolVersion;
+        result = prime * result + senderInstanceTag;
+        result = prime * result + receiverInstanceTag;
         return result;
     }
 
@@ -36,6 +41,10 @@ public abstract class AbstractEncodedMessage extends AbstractMessage {
         AbstractEncodedMessage other = (AbstractEncodedMessage) obj;
         if (protocolVersion != other.protocolVersion)
             return false;
+        if (senderInstanceTag != other.senderInstanceTag)
+            return false;
+        if (receiverInstanceTag != other.receiverInstanceTag)
+            return false;
         return true;
     }
 
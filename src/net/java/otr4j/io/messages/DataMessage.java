@@ -23,6 +23,15 @@ public class DataMessage extends AbstractEncodedMessage {
     public byte[] ctr;
     public byte[] encryptedMessage;
 
+    /**
+     * For received messages, the decoded wire bytes the MAC is computed over
+     * (T), as a region of a larger buffer. Null for messages built locally.
+     * Not part of equals and hashCode.
+     */
+    public byte[] authenticatedBuffer;
+    public int authenticatedOffset;
+    public int authenticatedLength;
+
     // Ctor.
     public DataMessage(int protocolVersion, int flags, int senderKeyID, int recipientKeyID,
             DHPublicKey nextDH, byte[] ctr, byte[] encryptedMessage, byte[] mac, byte[] oldMacKeys) {
@@ -41,12 +50,14 @@ public class DataMessage extends AbstractEncodedMessage {
     public DataMessage(MysteriousT t, byte[] mac, byte[] oldMacKeys) {
         this(t.protocolVersion, t.flags, t.senderKeyID, t.recipientKeyID, t.nextDH, t.ctr,
                 t.encryptedMessage, mac, oldMacKeys);
+        this.senderInstanceTag = t.senderInstanceTag;
+        this.receiverInstanceTag = t.receiverInstanceTag;
     }
 
     // Methods.
     public MysteriousT getT() {
-        return new MysteriousT(protocolVersion, flags, senderKeyID, recipientKeyID, nextDH, ctr,
-                encryptedMessage);
+        return new MysteriousT(protocolVersion, senderInstanceTag, receiverInstanceTag, flags,
+                senderKeyID, recipientKeyID, nextDH, ctr, encryptedMessage);
     }
 
     @Override
@@ -8,6 +8,8 @@ public class MysteriousT {
     // Fields.
     public int protocolVersion;
     public int messageType;
+    public int senderInstanceTag;
+    public int receiverInstanceTag;
     public int flags;
     public int senderKeyID;
     public int recipientKeyID;
@@ -29,6 +31,14 @@ public class MysteriousT {
         this.encryptedMessage = encryptedMessage;
     }
 
+    public MysteriousT(int protocolVersion, int senderInstanceTag, int receiverInstanceTag,
+            int flags, int senderKeyID, int recipientKeyID, DHPublicKey nextDH, byte[] ctr,
+            byte[] encryptedMessage) {
+        this(protocolVersion, flags, senderKeyID, recipientKeyID, nextDH, ctr, encryptedMessage);
+        this.senderInstanceTag = senderInstanceTag;
+        this.receiverInstanceTag = receiverInstanceTag;
+    }
+
     // Methods.
     @Override
     public int hashCode() {
@@ -41,6 +51,8 @@ public class MysteriousT {
         result = prime * result + messageType;
         result = prime * result + ((nextDH == null) ? 0 : nextDH.hashCode());
         result = prime * result + protocolVersion;
+        result = prime * result + senderInstanceTag;
+        result = prime * result + receiverInstanceTag;
         result = prime * result + recipientKeyID;
         result = prime * result + senderKeyID;
         return result;
@@ -71,6 +83,10 @@ public class MysteriousT {
             return false;
         if (protocolVersion != other.protocolVersion)
             return false;
+        if (senderInstanceTag != other.senderInstanceTag)
+            return false;
+        if (receiverInstanceTag != other.receiverInstanceTag)
+            return false;
         if (recipientKeyID != other.recipientKeyID)
             return false;
         if (senderKeyID != other.senderKeyID)
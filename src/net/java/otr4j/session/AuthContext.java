@@ -8,6 +8,7 @@ package net.java.otr4j.session;
 import java.math.BigInteger;
 import java.security.KeyPair;
 import java.security.PublicKey;
+import java.util.List;
 
 import javax.crypto.interfaces.DHPublicKey;
 
@@ -33,6 +34,8 @@ interface AuthContext {
 
     public abstract boolean getIsSecure();
 
+    public abstract int getAuthenticationState();
+
     public abstract DHPublicKey getRemoteDHPublicKey();
 
     public abstract KeyPair getLocalDHKeyPair() throws OtrException;
@@ -41,9 +44,14 @@ interface AuthContext {
 
     public abstract void handleReceivingMessage(AbstractMessage m) throws OtrException;
 
-    public abstract void startV2Auth() throws OtrException;
+    /** Sends a query for the versions the policy allows. */
+    public abstract void startAuth() throws OtrException;
+
+    /** Starts the AKE with a D-H Commit, in the given protocol version. */
+    public abstract void respondAuth(int version) throws OtrException;
 
-    public abstract void respondV2Auth() throws OtrException;
+    /** @return the AKE messages to send in reply, in order, since the last call. */
+    public abstract List<AbstractMessage> drainOutgoingMessages();
 
     public abstract PublicKey getRemoteLongTermPublicKey();
 
@@ -10,16 +10,20 @@ import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.security.KeyPair;
 import java.security.PublicKey;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Random;
+import java.util.List;
 import java.util.Vector;
 import java.util.logging.Logger;
 
 import javax.crypto.interfaces.DHPublicKey;
 
 import net.java.otr4j.OtrException;
+import net.java.otr4j.OtrPolicy;
+import net.java.otr4j.crypto.DHKeyPairPool;
 import net.java.otr4j.crypto.OtrCryptoEngine;
 import net.java.otr4j.crypto.OtrCryptoEngineImpl;
+import net.java.otr4j.crypto.OtrRandom;
 import net.java.otr4j.io.SerializationUtils;
 import net.java.otr4j.io.messages.AbstractEncodedMessage;
 import net.java.otr4j.io.messages.AbstractMessage;
@@ -39,6 +43,23 @@ class AuthContextImpl implements AuthContext {
         this.reset();
     }
 
+    /**
+     * Takes over the D-H Commit other sent, for the instance that answered
+     * it. A version 3 commit sent before the peer's instance was known goes
+     * out to all its instances, and each answers on its own.
+     */
+    AuthContextImpl(Session session, AuthContextImpl other) throws OtrException {
+        this(session);
+        this.authenticationState = other.authenticationState;
+        this.protocolVersion = other.protocolVersion;
+        this.r = other.getR().clone();
+        this.localDHKeyPair = other.getLocalDHKeyPair();
+        this.localDHPrivateKeyID = other.localDHPrivateKeyID;
+        this.localDHPublicKeyBytes = other.getLocalDHPublicKeyBytes();
+        this.localDHPublicKeyHash = other.getLocalDHPublicKeyHash();
+        this.localDHPublicKeyEncrypted = other.getLocalDHPublicKeyEncrypted();
+    }
+
     private Session session;
 
     private int authenticationState;
@@ -64,6 +85,7 @@ class AuthContextImpl implements AuthContext {
 
     private KeyPair localLongTermKeyPair;
     private Boolean isSecure = false;
+    private List<AbstractMessage> outgoingMessages = new ArrayList<AbstractMessage>();
     private int protocolVersion;
 
     private int getProtocolVersion() {
@@ -81,6 +103,8 @@ class AuthContextImpl implements AuthContext {
         private QueryMessage getQueryMessage() {
             Vector<Integer> versions = new Vector<Integer>();
             versions.add(2);
+            if (getSession().getSessionPolicy().getAllowV3())
+                versions.add(3);
             return new QueryMessage(versions);
         }
 
@@ -157,6 +181,9 @@ class AuthContextImpl implements AuthContext {
     public void reset() {
         logger.finest("Resetting authentication state.");
         authenticationState = AuthContext.NONE;
+        // Messages are serialized as soon as they are built, nothing else
+        // holds on to these arrays.
+        wipe(r, c, m1, m2, cp, m1p, m2p);
         r = null;
 
         remoteDHPublicKey = null;
@@ -175,6 +202,27 @@ class AuthContextImpl implements AuthContext {
         localLongTermKeyPair = null;
         protocolVersion = 0;
         setIsSecure(false);
+        outgoingMessages.clear();
+    }
+
+    private static void wipe(byte[]... keys) {
+        for (byte[] key : keys)
+            if (key != null)
+                Arrays.fill(key, (byte) 0x00);
+    }
+
+    /**
+     * Replies are held until the session collects them, so that a reply
+     * computed for an AKE that has since been restarted is never sent.
+     */
+    private void send(AbstractMessage m) {
+        outgoingMessages.add(m);
+    }
+
+    public List<AbstractMessage> drainOutgoingMessages() {
+        List<AbstractMessage> messages = outgoingMessages;
+        outgoingMessages = new ArrayList<AbstractMessage>();
+        return messages;
     }
 
     private void setIsSecure(Boolean isSecure) {
@@ -189,7 +237,7 @@ class AuthContextImpl implements AuthContext {
         this.authenticationState = authenticationState;
     }
 
-    private int getAuthenticationState() {
+    public int getAuthenticationState() {
         return authenticationState;
     }
 
@@ -197,7 +245,7 @@ class AuthContextImpl implements AuthContext {
         if (r == null) {
             logger.finest("Picking random key r.");
             r = new byte[OtrCryptoEngine.AES_KEY_BYTE_LENGTH];
-            new Random().nextBytes(r);
+            OtrRandom.getInstance().nextBytes(r);
         }
         return r;
     }
@@ -238,7 +286,7 @@ class AuthContextImpl implements AuthContext {
 
     public KeyPair getLocalDHKeyPair() throws OtrException {
         if (localDHKeyPair == null) {
-            localDHKeyPair = new OtrCryptoEngineImpl().generateDHKeyPair();
+            localDHKeyPair = DHKeyPairPool.getInstance().take();
             logger.finest("Generated local D-H key pair.");
         }
         return localDHKeyPair;
@@ -419,8 +467,8 @@ class AuthContextImpl implements AuthContext {
         SessionID sessionID = session.getSessionID();
         logger.finest(sessionID.getAccountID() + " received a signature message from "
                       + sessionID.getUserID() + " throught " + sessionID.getProtocolName() + ".");
-        if (!session.getSessionPolicy().getAllowV2()) {
-            logger.finest("Policy does not allow OTRv2, ignoring message.");
+        if (!isVersionAllowed(m.protocolVersion)) {
+            logger.finest("Policy does not allow OTRv" + m.protocolVersion + ", ignoring message.");
             return;
         }
 
@@ -474,8 +522,8 @@ class AuthContextImpl implements AuthContext {
         logger.finest(sessionID.getAccountID() + " received a reveal signature message from "
                       + sessionID.getUserID() + " throught " + sessionID.getProtocolName() + ".");
 
-        if (!session.getSessionPolicy().getAllowV2()) {
-            logger.finest("Policy does not allow OTRv2, ignoring message.");
+        if (!isVersionAllowed(m.protocolVersion)) {
+            logger.finest("Policy does not allow OTRv" + m.protocolVersion + ", ignoring message.");
             return;
         }
 
@@ -559,7 +607,7 @@ class AuthContextImpl implements AuthContext {
             this.setAuthenticationState(AuthContext.NONE);
             this.setIsSecure(true);
             this.setRemoteLongTermPublicKey(remoteLongTermPublicKey);
-            getSession().injectMessage(messageFactory.getSignatureMessage());
+            send(messageFactory.getSignatureMessage());
             break;
         default:
             logger.finest("Ignoring message.");
@@ -573,8 +621,8 @@ class AuthContextImpl implements AuthContext {
         logger.finest(sessionID.getAccountID() + " received a D-H key message from "
                       + sessionID.getUserID() + " throught " + sessionID.getProtocolName() + ".");
 
-        if (!session.getSessionPolicy().getAllowV2()) {
-            logger.finest("If ALLOW_V2 is not set, ignore this message.");
+        if (!isVersionAllowed(m.protocolVersion)) {
+            logger.finest("Policy does not allow OTRv" + m.protocolVersion + ", ignoring message.");
             return;
         }
 
@@ -585,7 +633,7 @@ class AuthContextImpl implements AuthContext {
             // AUTHSTATE_AWAITING_SIG
             this.setRemoteDHPublicKey(m.dhPublicKey);
             this.setAuthenticationState(AuthContext.AWAITING_SIG);
-            getSession().injectMessage(messageFactory.getRevealSignatureMessage());
+            send(messageFactory.getRevealSignatureMessage());
             logger.finest("Sent Reveal Signature.");
             break;
         case AWAITING_SIG:
@@ -595,7 +643,7 @@ class AuthContextImpl implements AuthContext {
                 // earlier (when you entered AUTHSTATE_AWAITING_SIG):
                 // Retransmit
                 // your Reveal Signature Message.
-                getSession().injectMessage(messageFactory.getRevealSignatureMessage());
+                send(messageFactory.getRevealSignatureMessage());
                 logger.finest("Resent Reveal Signature.");
             } else {
                 // Otherwise: Ignore the message.
@@ -614,8 +662,8 @@ class AuthContextImpl implements AuthContext {
         logger.finest(sessionID.getAccountID() + " received a D-H commit message from "
                       + sessionID.getUserID() + " throught " + sessionID.getProtocolName() + ".");
 
-        if (!session.getSessionPolicy().getAllowV2()) {
-            logger.finest("ALLOW_V2 is not set, ignore this message.");
+        if (!isVersionAllowed(m.protocolVersion)) {
+            logger.finest("Policy does not allow OTRv" + m.protocolVersion + ", ignoring message.");
             return;
         }
 
@@ -624,11 +672,11 @@ class AuthContextImpl implements AuthContext {
             // Reply with a D-H Key Message, and transition authstate to
             // AUTHSTATE_AWAITING_REVEALSIG.
             this.reset();
-            this.setProtocolVersion(2);
+            this.setProtocolVersion(m.protocolVersion);
             this.setRemoteDHPublicKeyEncrypted(m.dhPublicKeyEncrypted);
             this.setRemoteDHPublicKeyHash(m.dhPublicKeyHash);
             this.setAuthenticationState(AuthContext.AWAITING_REVEALSIG);
-            getSession().injectMessage(messageFactory.getDHKeyMessage());
+            send(messageFactory.getDHKeyMessage());
             logger.finest("Sent D-H key.");
             break;
 
@@ -651,7 +699,7 @@ class AuthContextImpl implements AuthContext {
                 // Ignore the incoming D-H Commit message, but resend your
                 // D-H
                 // Commit message.
-                getSession().injectMessage(messageFactory.getDHCommitMessage());
+                send(messageFactory.getDHCommitMessage());
                 logger.finest("Ignored the incoming D-H Commit message, but resent our D-H Commit message.");
             } else {
                 // *Forget* your old gx value that you sent (encrypted)
@@ -661,11 +709,11 @@ class AuthContextImpl implements AuthContext {
                 // Key Message, and transition authstate to
                 // AUTHSTATE_AWAITING_REVEALSIG.
                 this.reset();
-                this.setProtocolVersion(2);
+                this.setProtocolVersion(m.protocolVersion);
                 this.setRemoteDHPublicKeyEncrypted(m.dhPublicKeyEncrypted);
                 this.setRemoteDHPublicKeyHash(m.dhPublicKeyHash);
                 this.setAuthenticationState(AuthContext.AWAITING_REVEALSIG);
-                getSession().injectMessage(messageFactory.getDHKeyMessage());
+                send(messageFactory.getDHKeyMessage());
                 logger.finest("Forgot our old gx value that we sent (encrypted) earlier, and pretended we're in AUTHSTATE_NONE -> Sent D-H key.");
             }
             break;
@@ -677,17 +725,18 @@ class AuthContextImpl implements AuthContext {
             // Commit message, and use this new one instead.
             this.setRemoteDHPublicKeyEncrypted(m.dhPublicKeyEncrypted);
             this.setRemoteDHPublicKeyHash(m.dhPublicKeyHash);
-            getSession().injectMessage(messageFactory.getDHKeyMessage());
+            send(messageFactory.getDHKeyMessage());
             logger.finest("Sent D-H key.");
             break;
         case AWAITING_SIG:
             // Reply with a new D-H Key message, and transition authstate to
             // AUTHSTATE_AWAITING_REVEALSIG
             this.reset();
+            this.setProtocolVersion(m.protocolVersion);
             this.setRemoteDHPublicKeyEncrypted(m.dhPublicKeyEncrypted);
             this.setRemoteDHPublicKeyHash(m.dhPublicKeyHash);
             this.setAuthenticationState(AuthContext.AWAITING_REVEALSIG);
-            getSession().injectMessage(messageFactory.getDHKeyMessage());
+            send(messageFactory.getDHKeyMessage());
             logger.finest("Sent D-H key.");
             break;
         case V1_SETUP:
@@ -695,18 +744,31 @@ class AuthContextImpl implements AuthContext {
         }
     }
 
-    public void startV2Auth() throws OtrException {
+    public void startAuth() throws OtrException {
         logger.finest("Starting Authenticated Key Exchange, sending query message");
+        // The query carries no state of ours, send it straight away.
         getSession().injectMessage(messageFactory.getQueryMessage());
     }
 
-    public void respondV2Auth() throws OtrException {
+    public void respondAuth(int version) throws OtrException {
         logger.finest("Responding to Query Message");
         this.reset();
-        this.setProtocolVersion(2);
+        this.setProtocolVersion(version);
         this.setAuthenticationState(AuthContext.AWAITING_DHKEY);
         logger.finest("Sending D-H Commit.");
-        getSession().injectMessage(messageFactory.getDHCommitMessage());
+        send(messageFactory.getDHCommitMessage());
+    }
+
+    private boolean isVersionAllowed(int version) {
+        OtrPolicy policy = getSession().getSessionPolicy();
+        switch (version) {
+        case 2:
+            return policy.getAllowV2();
+        case 3:
+            return policy.getAllowV3();
+        default:
+            return false;
+        }
     }
 
     private void setSession(Session session) {
@@ -0,0 +1,59 @@
+/*
+ * otr4j, the open source java otr library.
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package net.java.otr4j.session;
+
+import net.java.otr4j.crypto.OtrRandom;
+
+/**
+ * An OTR version 3 instance tag, identifying one client of an account. Tags
+ * are unsigned 32 bit values; 0 means no particular instance, and values
+ * below 0x100 are reserved.
+ */
+public final class InstanceTag {
+
+    public static final int ZERO_VALUE = 0;
+    public static final int SMALLEST_VALUE = 0x100;
+
+    public static final InstanceTag ZERO_TAG = new InstanceTag(ZERO_VALUE);
+
+    private final int value;
+
+    /** Picks a random tag. */
+    public InstanceTag() {
+        int v;
+        do {
+            v = OtrRandom.getInstance().nextInt();
+        } while (!isValidInstanceTag(v) || v == ZERO_VALUE);
+        this.value = v;
+    }
+
+    public InstanceTag(int value) {
+        if (!isValidInstanceTag(value))
+            throw new IllegalArgumentException("Illegal instance tag " + Integer.toHexString(value));
+        this.value = value;
+    }
+
+    /** @return true for 0 and for values from {@link #SMALLEST_VALUE} up, as unsigned. */
+    public static boolean isValidInstanceTag(int value) {
+        return value == ZERO_VALUE || (value & 0xFFFFFF00) != 0;
+    }
+
+    public int getValue() {
+        return value;
+    }
+
+    public boolean equals(Object obj) {
+        return obj == this || (obj instanceof InstanceTag && ((InstanceTag) obj).value == value);
+    }
+
+    public int hashCode() {
+        return value;
+    }
+
+    public String toString() {
+        return Integer.toHexString(value);
+    }
+}
@@ -9,6 +9,11 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.java.otr4j.OtrEngineHost;
 import net.java.otr4j.OtrException;
@@ -22,6 +27,49 @@ import net.java.otr4j.io.OtrOutputStream;
 public class OtrSm implements OtrTlvHandler {
     public static interface OtrSmEngineHost extends OtrEngineHost {
         void askForSecret(SessionID sessionID, String question);
+
+        /** Reports how far the current exchange has got, from 0 to 100. */
+        void smpProgress(SessionID sessionID, int percent);
+
+        /** Reports the end of an exchange, with one of the RESULT_ constants. */
+        void smpFinished(SessionID sessionID, int result);
+    }
+
+    public static final int RESULT_SUCCEEDED = 0;
+    public static final int RESULT_FAILED = 1;
+    public static final int RESULT_CHEATED = 2;
+    public static final int RESULT_ABORTED = 3;
+    public static final int RESULT_TIMED_OUT = 4;
+    public static final int RESULT_ERROR = 5;
+
+    /** How long to wait for the peer's next message, in milliseconds. */
+    public static final long DEFAULT_TIMEOUT = 2 * 60 * 1000;
+
+    private static SerialSessionExecutor sharedExecutor;
+    private static ScheduledExecutorService scheduler;
+
+    /**
+     * @return the executor SMP steps of all sessions share. It is separate
+     *         from the message workers, so a conversation's chat traffic does
+     *         not wait for its SMP steps.
+     */
+    public static synchronized SerialSessionExecutor getSharedExecutor() {
+        if (sharedExecutor == null) {
+            scheduler = Executors.newScheduledThreadPool(Math.max(1, Runtime.getRuntime()
+                    .availableProcessors()), SerialSessionExecutor.createThreadFactory("otr4j-smp-"));
+            sharedExecutor = new SerialSessionExecutor(scheduler);
+        }
+        return sharedExecutor;
+    }
+
+    private static synchronized ScheduledExecutorService getScheduler() {
+        getSharedExecutor();
+        return scheduler;
+    }
+
+    /** One SMP computation, returning the TLVs to send to the peer. */
+    private interface SmpStep {
+        List<TLV> run() throws OtrException, SMException;
     }
 
     SMState smstate;
@@ -31,6 +79,14 @@ public class OtrSm implements OtrTlvHandler {
     private Session session;
     private List<TLV> pendingTlvs;
 
+    private volatile SerialSessionExecutor executor;
+    private volatile long timeout = DEFAULT_TIMEOUT;
+    /** Bumped on abort; steps queued or running for an older value are dropped. */
+    private final AtomicInteger generation = new AtomicInteger();
+    // Only touched by steps, which run one at a time.
+    private int stepCount;
+    private ScheduledFuture<?> pendingTimeout;
+
     /**
      * Construct an OTR Socialist Millionaire handler object.
      * 
@@ -49,6 +105,27 @@ public class OtrSm implements OtrTlvHandler {
         this.engineHost = engineHost;
     }
 
+    /**
+     * Moves SMP computations onto executor. Incoming SMP messages are then
+     * processed in the background and the replies injected when ready, rather
+     * than left for {@link #getPendingTlvs()}; the exchange is aborted if the
+     * peer does not answer within the timeout. With null, the default,
+     * everything runs in the calling thread.
+     */
+    public void setExecutor(SerialSessionExecutor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Sets how long to wait for the peer's next message when running on an
+     * executor, in milliseconds. 0 waits forever.
+     */
+    public void setTimeout(long timeout) {
+        if (timeout < 0)
+            throw new IllegalArgumentException("Illegal timeout.");
+        this.timeout = timeout;
+    }
+
     /* Compute secret session ID as hash of agreed secret */
     private static byte[] computeSessionId(BigInteger s) throws SMException {
         byte[] sdata;
@@ -133,8 +210,10 @@ public class OtrSm implements OtrTlvHandler {
         try {
             if (initiating) {
                 smpmsg = SM.step1(smstate, combined_secret);
+                engineHost.smpProgress(sessionID, 20);
             } else {
                 smpmsg = SM.step2b(smstate, combined_secret);
+                engineHost.smpProgress(sessionID, 40);
             }
         } catch (SMException ex) {
             throw new OtrException(ex);
@@ -165,16 +244,189 @@ public class OtrSm implements OtrTlvHandler {
         return makeTlvList(sendtlv);
     }
 
+    /**
+     * Starts an exchange, like {@link #initRespondSmp(String, String, boolean)}
+     * with initiating set, and sends the result to the peer.
+     */
+    public void startSmp(final String question, final String secret) throws OtrException {
+        submit(new SmpStep() {
+            public List<TLV> run() throws OtrException {
+                return initRespondSmp(question, secret, true);
+            }
+        });
+    }
+
+    /** Answers the peer's request for secret and sends the result to the peer. */
+    public void respondSmp(final String secret) throws OtrException {
+        submit(new SmpStep() {
+            public List<TLV> run() throws OtrException {
+                return initRespondSmp(null, secret, false);
+            }
+        });
+    }
+
+    /**
+     * Abandons the current exchange, including any step still being computed,
+     * and tells the peer.
+     */
+    public void abort() throws OtrException {
+        generation.incrementAndGet();
+        submit(new SmpStep() {
+            public List<TLV> run() throws OtrException {
+                boolean inProgress = smstate.nextExpected != SM.EXPECT1;
+                List<TLV> tlvs = abortSmp();
+                if (inProgress)
+                    engineHost.smpFinished(sessionID, RESULT_ABORTED);
+                return tlvs;
+            }
+        });
+    }
+
+    /**
+     * Abandons the current exchange without telling the peer, for when the
+     * encrypted session is gone.
+     */
+    public void cancel() {
+        generation.incrementAndGet();
+        try {
+            submit(new SmpStep() {
+                public List<TLV> run() {
+                    smstate.nextExpected = SM.EXPECT1;
+                    smstate.smProgState = SM.PROG_OK;
+                    return null;
+                }
+            });
+        } catch (OtrException e) {
+            // Nothing is sent.
+        }
+    }
+
     public List<TLV> getPendingTlvs() {
         return pendingTlvs;
     }
 
     /** Process an incoming TLV and optionally send back TLVs to peer. */
-    public void processTlv(TLV tlv) throws OtrException {
+    public void processTlv(final TLV tlv) throws OtrException {
+        if (executor == null) {
+            try {
+                pendingTlvs = doProcessTlv(tlv);
+            } catch (SMException ex) {
+                throw new OtrException(ex);
+            }
+            return;
+        }
+
+        if (tlv.getType() < TLV.SMP1 || tlv.getType() > TLV.SMP1Q)
+            return;
+        if (tlv.getType() == TLV.SMP_ABORT)
+            generation.incrementAndGet();
+        submit(new SmpStep() {
+            public List<TLV> run() throws SMException {
+                return doProcessTlv(tlv);
+            }
+        });
+    }
+
+    /**
+     * Runs step now, or in its turn on the executor unless the exchange is
+     * aborted first, and sends its result to the peer.
+     */
+    private void submit(final SmpStep step) throws OtrException {
+        final int gen = generation.get();
+        SerialSessionExecutor executor = this.executor;
+        if (executor == null) {
+            try {
+                send(step.run());
+            } catch (SMException ex) {
+                throw new OtrException(ex);
+            }
+            return;
+        }
+
+        executor.execute(sessionID, new Runnable() {
+            public void run() {
+                runStep(step, gen);
+            }
+        });
+    }
+
+    private void runStep(SmpStep step, int gen) {
+        if (gen != generation.get())
+            return;
+        cancelTimeout();
+        stepCount++;
+
+        List<TLV> tlvs;
         try {
-            pendingTlvs = doProcessTlv(tlv);
-        } catch (SMException ex) {
-            throw new OtrException(ex);
+            tlvs = step.run();
+        } catch (Exception e) {
+            engineHost.showError(sessionID, "Error during verification");
+            smstate.nextExpected = SM.EXPECT1;
+            smstate.smProgState = SM.PROG_OK;
+            engineHost.smpFinished(sessionID, RESULT_ERROR);
+            return;
+        }
+
+        // modPow cannot be interrupted, so an abort that came in while we
+        // were computing only stops us sending the result.
+        if (gen != generation.get())
+            return;
+        try {
+            send(tlvs);
+        } catch (OtrException e) {
+            engineHost.showError(sessionID, "Could not send verification message");
+            smstate.nextExpected = SM.EXPECT1;
+            engineHost.smpFinished(sessionID, RESULT_ERROR);
+            return;
+        }
+        if (smstate.nextExpected != SM.EXPECT1)
+            scheduleTimeout(gen);
+    }
+
+    private void send(List<TLV> tlvs) throws OtrException {
+        if (tlvs == null)
+            return;
+        if (session.getSessionStatus() != SessionStatus.ENCRYPTED)
+            throw new OtrException(new IllegalStateException("Session is not encrypted."));
+        String msg = session.transformSending("", tlvs);
+        if (msg != null)
+            engineHost.injectMessage(sessionID, msg);
+    }
+
+    private void scheduleTimeout(final int gen) {
+        final SerialSessionExecutor executor = this.executor;
+        long timeout = this.timeout;
+        if (executor == null || timeout == 0)
+            return;
+
+        final int step = stepCount;
+        final Runnable expire = new Runnable() {
+            public void run() {
+                if (gen != generation.get() || step != stepCount)
+                    return;
+                generation.incrementAndGet();
+                pendingTimeout = null;
+                smstate.nextExpected = SM.EXPECT1;
+                smstate.smProgState = SM.PROG_OK;
+                try {
+                    send(abortSmp());
+                } catch (OtrException e) {
+                    // The peer will time out too.
+                }
+                engineHost.smpFinished(sessionID, RESULT_TIMED_OUT);
+            }
+        };
+        pendingTimeout = getScheduler().schedule(new Runnable() {
+            public void run() {
+                executor.execute(sessionID, expire);
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelTimeout() {
+        if (pendingTimeout != null) {
+            pendingTimeout.cancel(false);
+            pendingTimeout = null;
         }
     }
 
@@ -204,42 +456,51 @@ public class OtrSm implements OtrTlvHandler {
             byte[] plainq = new byte[qlen];
             System.arraycopy(question, 0, plainq, 0, qlen);
             if (smstate.smProgState != SM.PROG_CHEATED) {
+                engineHost.smpProgress(sessionID, 20);
                 engineHost.askForSecret(sessionID, new String(plainq));
             } else {
                 engineHost.showError(sessionID, "Peer attempted to cheat during verification");
                 smstate.nextExpected = SM.EXPECT1;
                 smstate.smProgState = SM.PROG_OK;
+                engineHost.smpFinished(sessionID, RESULT_CHEATED);
             }
         } else if (tlvType == TLV.SMP1Q) {
             engineHost.showError(sessionID, "Error during verification (step 1q)");
+            engineHost.smpFinished(sessionID, RESULT_ERROR);
         } else if (tlvType == TLV.SMP1 && nextMsg == SM.EXPECT1) {
             /* We can only do the verification half now.
              * We must wait for the secret to be entered
              * to continue. */
             SM.step2a(smstate, tlv.getValue(), false);
             if (smstate.smProgState != SM.PROG_CHEATED) {
+                engineHost.smpProgress(sessionID, 20);
                 engineHost.askForSecret(sessionID, null);
             } else {
                 engineHost.showError(sessionID, "Peer attempted to cheat during verification");
                 smstate.nextExpected = SM.EXPECT1;
                 smstate.smProgState = SM.PROG_OK;
+                engineHost.smpFinished(sessionID, RESULT_CHEATED);
             }
         } else if (tlvType == TLV.SMP1) {
             engineHost.showError(sessionID, "Error during verification (step 1)");
+            engineHost.smpFinished(sessionID, RESULT_ERROR);
         } else if (tlvType == TLV.SMP2 && nextMsg == SM.EXPECT2) {
             byte[] nextmsg = SM.step3(smstate, tlv.getValue());
             if (smstate.smProgState != SM.PROG_CHEATED) {
                 /* Send msg with next smp msg content */
                 TLV sendtlv = new TLV(TLV.SMP3, nextmsg);
                 smstate.nextExpected = SM.EXPECT4;
+                engineHost.smpProgress(sessionID, 60);
                 return makeTlvList(sendtlv);
             } else {
                 engineHost.showError(sessionID, "Peer attempted to cheat during verification");
                 smstate.nextExpected = SM.EXPECT1;
                 smstate.smProgState = SM.PROG_OK;
+                engineHost.smpFinished(sessionID, RESULT_CHEATED);
             }
         } else if (tlvType == TLV.SMP2) {
             engineHost.showError(sessionID, "Error during verification (step 2)");
+            engineHost.smpFinished(sessionID, RESULT_ERROR);
         } else if (tlvType == TLV.SMP3 && nextMsg == SM.EXPECT3) {
             byte[] nextmsg = SM.step4(smstate, tlv.getValue());
             notifyKeyManager();
@@ -252,9 +513,11 @@ public class OtrSm implements OtrTlvHandler {
                 engineHost.showError(sessionID, "Peer attempted to cheat during verification");
                 smstate.nextExpected = SM.EXPECT1;
                 smstate.smProgState = SM.PROG_OK;
+                engineHost.smpFinished(sessionID, RESULT_CHEATED);
             }
         } else if (tlvType == TLV.SMP3) {
             engineHost.showError(sessionID, "Error during verification (step 3)");
+            engineHost.smpFinished(sessionID, RESULT_ERROR);
         } else if (tlvType == TLV.SMP4 && nextMsg == SM.EXPECT4) {
             SM.step5(smstate, tlv.getValue());
             notifyKeyManager();
@@ -264,12 +527,16 @@ public class OtrSm implements OtrTlvHandler {
                 engineHost.showError(sessionID, "Peer attempted to cheat during verification");
                 smstate.nextExpected = SM.EXPECT1;
                 smstate.smProgState = SM.PROG_OK;
+                engineHost.smpFinished(sessionID, RESULT_CHEATED);
             }
 
         } else if (tlvType == TLV.SMP4) {
             engineHost.showError(sessionID, "Error during verification (step 4)");
+            engineHost.smpFinished(sessionID, RESULT_ERROR);
         } else if (tlvType == TLV.SMP_ABORT) {
             smstate.nextExpected = SM.EXPECT1;
+            if (nextMsg != SM.EXPECT1)
+                engineHost.smpFinished(sessionID, RESULT_ABORTED);
         }
 
         // Nothing to send
@@ -282,9 +549,14 @@ public class OtrSm implements OtrTlvHandler {
                 keyManager.remoteVerifiedUs(sessionID);
             else
                 keyManager.verify(sessionID);
+            engineHost.smpProgress(sessionID, 100);
+            engineHost.smpFinished(sessionID, RESULT_SUCCEEDED);
         } else {
             engineHost.showError(sessionID, "verification failed - check answer");
             keyManager.unverify(sessionID);
+            // Cheating is reported by the caller.
+            if (smstate.smProgState != SM.PROG_CHEATED)
+                engineHost.smpFinished(sessionID, RESULT_FAILED);
         }
     }
 
@@ -0,0 +1,192 @@
+/*
+ * otr4j, the open source java otr library.
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package net.java.otr4j.session;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import net.java.otr4j.PendingMessageListener;
+
+/**
+ * Messages waiting for a session to go secure, oldest first. Bounded in
+ * number and in age: when full either the oldest message or the new one is
+ * dropped, and a shared timer drops messages older than the timeout.
+ * <p>
+ * The queue has its own lock and never calls out while holding it, so an
+ * instance session may drain its master's queue whatever locks it holds.
+ */
+final class OutgoingQueue {
+
+    /** Messages kept per session by default. */
+    static final int DEFAULT_CAPACITY = 50;
+    /** How long a message waits for the AKE by default, in milliseconds. */
+    static final long DEFAULT_TIMEOUT = 2 * 60 * 1000;
+
+    private static ScheduledExecutorService timer;
+
+    private final SessionImpl session;
+    private final LinkedList<PendingMessage> messages = new LinkedList<PendingMessage>();
+    private int capacity = DEFAULT_CAPACITY;
+    private long timeout = DEFAULT_TIMEOUT;
+    private boolean dropOldest = true;
+    private ScheduledFuture<?> expiry;
+
+    private final Runnable expireTask = new Runnable() {
+        public void run() {
+            expire();
+        }
+    };
+
+    OutgoingQueue(SessionImpl session) {
+        this.session = session;
+    }
+
+    private static synchronized ScheduledExecutorService getTimer() {
+        if (timer == null)
+            timer = Executors.newSingleThreadScheduledExecutor(SerialSessionExecutor
+                    .createThreadFactory("otr4j-queue-"));
+        return timer;
+    }
+
+    /**
+     * @param timeout milliseconds, 0 or less to wait for the AKE forever.
+     * @param dropOldest whether a full queue drops its oldest message to make
+     *            room, rather than the new one.
+     */
+    synchronized void setLimits(int capacity, long timeout, boolean dropOldest) {
+        if (capacity < 0)
+            throw new IllegalArgumentException("Illegal queue capacity.");
+        this.capacity = capacity;
+        this.timeout = timeout;
+        this.dropOldest = dropOldest;
+        cancelExpiry();
+        scheduleExpiry();
+    }
+
+    /** Takes the limits of another queue. */
+    void setLimits(OutgoingQueue other) {
+        int capacity;
+        long timeout;
+        boolean dropOldest;
+        synchronized (other) {
+            capacity = other.capacity;
+            timeout = other.timeout;
+            dropOldest = other.dropOldest;
+        }
+        setLimits(capacity, timeout, dropOldest);
+    }
+
+    void add(String text, List<TLV> tlvs, Object tag) {
+        PendingMessage message = new PendingMessage(text, tlvs, tag, System.currentTimeMillis());
+        PendingMessage dropped = null;
+        synchronized (this) {
+            if (messages.size() >= capacity)
+                dropped = dropOldest && !messages.isEmpty() ? messages.removeFirst() : message;
+            if (dropped != message) {
+                messages.addLast(message);
+                scheduleExpiry();
+            }
+        }
+        if (dropped != null)
+            session.firePendingDropped(dropped, PendingMessageListener.DROPPED_OVERFLOW);
+    }
+
+    /** Queues a retransmission ahead of everything else, whatever the limits. */
+    synchronized void addFirst(String text) {
+        messages.addFirst(new PendingMessage(text, null, null, System.currentTimeMillis()));
+        scheduleExpiry();
+    }
+
+    synchronized boolean isEmpty() {
+        return messages.isEmpty();
+    }
+
+    synchronized int size() {
+        return messages.size();
+    }
+
+    /** Removes and returns all messages, oldest first. */
+    synchronized List<PendingMessage> drain() {
+        List<PendingMessage> result = new ArrayList<PendingMessage>(messages);
+        messages.clear();
+        cancelExpiry();
+        return result;
+    }
+
+    /**
+     * Merges two drained queues into one, oldest first. Each keeps its own
+     * order, and of messages queued at once those of first go first.
+     */
+    static List<PendingMessage> merge(List<PendingMessage> first, List<PendingMessage> second) {
+        List<PendingMessage> result = new ArrayList<PendingMessage>(first.size() + second.size());
+        int i = 0, j = 0;
+        while (i < first.size() && j < second.size()) {
+            if (second.get(j).getQueuedTime() < first.get(i).getQueuedTime())
+                result.add(second.get(j++));
+            else
+                result.add(first.get(i++));
+        }
+        result.addAll(first.subList(i, first.size()));
+        result.addAll(second.subList(j, second.size()));
+        return result;
+    }
+
+    /** Puts back messages taken by {@link #drain()}, ahead of any queued since. */
+    synchronized void restore(List<PendingMessage> unsent) {
+        messages.addAll(0, unsent);
+        scheduleExpiry();
+    }
+
+    /** Drops every message, for the given PendingMessageListener reason. */
+    void dropAll(int reason) {
+        for (PendingMessage message : drain())
+            session.firePendingDropped(message, reason);
+    }
+
+    private void expire() {
+        List<PendingMessage> expired = new ArrayList<PendingMessage>();
+        synchronized (this) {
+            expiry = null;
+            if (timeout <= 0)
+                return;
+            long deadline = System.currentTimeMillis() - timeout;
+            for (Iterator<PendingMessage> i = messages.iterator(); i.hasNext();) {
+                PendingMessage message = i.next();
+                if (message.getQueuedTime() <= deadline) {
+                    i.remove();
+                    expired.add(message);
+                }
+            }
+            scheduleExpiry();
+        }
+        for (PendingMessage message : expired)
+            session.firePendingDropped(message, PendingMessageListener.DROPPED_TIMEOUT);
+    }
+
+    /** Arms the timer for the oldest message, unless it is armed already. */
+    private void scheduleExpiry() {
+        if (expiry != null || timeout <= 0 || messages.isEmpty())
+            return;
+        long oldest = Long.MAX_VALUE;
+        for (PendingMessage message : messages)
+            oldest = Math.min(oldest, message.getQueuedTime());
+        long delay = Math.max(0, oldest + timeout - System.currentTimeMillis());
+        expiry = getTimer().schedule(expireTask, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelExpiry() {
+        if (expiry != null) {
+            expiry.cancel(false);
+            expiry = null;
+        }
+    }
+}
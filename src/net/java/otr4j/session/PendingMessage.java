@@ -0,0 +1,46 @@
+/*
+ * otr4j, the open source java otr library.
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package net.java.otr4j.session;
+
+import java.util.List;
+
+/**
+ * A message sent while its session was not yet encrypted, held until the AKE
+ * completes. The tag is whatever the application passed to
+ * {@link Session#transformSending(String, List, Object)}, for it to tell its
+ * messages apart.
+ */
+public final class PendingMessage {
+
+    private final String text;
+    private final List<TLV> tlvs;
+    private final Object tag;
+    private final long queuedTime;
+
+    PendingMessage(String text, List<TLV> tlvs, Object tag, long queuedTime) {
+        this.text = text;
+        this.tlvs = tlvs;
+        this.tag = tag;
+        this.queuedTime = queuedTime;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public List<TLV> getTlvs() {
+        return tlvs;
+    }
+
+    public Object getTag() {
+        return tag;
+    }
+
+    /** @return when the message was queued, in milliseconds since the epoch. */
+    public long getQueuedTime() {
+        return queuedTime;
+    }
+}
@@ -0,0 +1,28 @@
+/*
+ * otr4j, the open source java otr library.
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package net.java.otr4j.session;
+
+import java.util.List;
+
+import net.java.otr4j.OtrException;
+
+/**
+ * Gets the outcome of a received message that had to wait for the AKE steps
+ * that arrived before it, see
+ * {@link Session#transformReceiving(String, List, ReceiveCallback)}. Called
+ * on the AKE executor, in the order the messages arrived.
+ */
+public interface ReceiveCallback {
+    /**
+     * @param plaintext what transformReceiving would have returned.
+     * @param tlvs the TLVs the message carried, null if the caller passed
+     *        none.
+     */
+    public abstract void messageReceived(SessionID sessionID, String plaintext, List<TLV> tlvs);
+
+    /** The message could not be handled. */
+    public abstract void messageFailed(SessionID sessionID, OtrException e);
+}
@@ -0,0 +1,227 @@
+/*
+ * otr4j, the open source java otr library.
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package net.java.otr4j.session;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs tasks for many conversations on a shared pool of worker threads. Tasks
+ * submitted for the same {@link SessionID} run one at a time, in submission
+ * order; tasks for different sessions run in parallel.
+ * <p>
+ * Each session has a queue only while it has work. A queue that drains is
+ * retired and removed from the registry, so idle conversations cost nothing.
+ */
+public class SerialSessionExecutor {
+
+    private static Logger logger = Logger.getLogger(SerialSessionExecutor.class.getName());
+
+    private static SerialSessionExecutor instance;
+
+    /** @return the executor shared by all sessions, backed by one worker per core. */
+    public static synchronized SerialSessionExecutor getInstance() {
+        if (instance == null)
+            instance = new SerialSessionExecutor(createPool(Runtime.getRuntime()
+                    .availableProcessors()));
+        return instance;
+    }
+
+    private static ExecutorService createPool(int threads) {
+        return Executors.newFixedThreadPool(Math.max(1, threads),
+                createThreadFactory("otr4j-worker-"));
+    }
+
+    /** @return a factory of daemon threads named prefix followed by a number. */
+    static ThreadFactory createThreadFactory(final String prefix) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, prefix + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    private final ThreadLocal<SessionID> currentSession = new ThreadLocal<SessionID>();
+
+    private final Executor pool;
+    private final ConcurrentMap<SessionID, SerialQueue> queues = new ConcurrentHashMap<SessionID, SerialQueue>();
+
+    public SerialSessionExecutor(Executor pool) {
+        if (pool == null)
+            throw new IllegalArgumentException("A worker pool is required.");
+        this.pool = pool;
+    }
+
+    /** Queues task to run after all tasks previously queued for sessionID. */
+    public void execute(SessionID sessionID, Runnable task) {
+        if (sessionID == null || task == null)
+            throw new IllegalArgumentException();
+
+        while (true) {
+            SerialQueue queue = queues.get(sessionID);
+            if (queue == null) {
+                SerialQueue created = new SerialQueue(sessionID);
+                queue = queues.putIfAbsent(sessionID, created);
+                if (queue == null)
+                    queue = created;
+            }
+            if (queue.offer(task))
+                return;
+            // The queue drained and retired between get and offer.
+            queues.remove(sessionID, queue);
+        }
+    }
+
+    /**
+     * Queues task like {@link #execute(SessionID, Runnable)}, returning a
+     * future for its result.
+     */
+    public <T> FutureTask<T> submit(SessionID sessionID, Callable<T> task) {
+        FutureTask<T> future = new SessionTask<T>(task);
+        execute(sessionID, future);
+        return future;
+    }
+
+    /**
+     * Runs task in its turn for sessionID and waits for its result. Called from
+     * a task already running for sessionID, it runs task directly instead of
+     * queueing behind itself.
+     */
+    public <T> T invoke(SessionID sessionID, Callable<T> task) throws InterruptedException,
+            ExecutionException {
+        if (sessionID.equals(currentSession.get())) {
+            try {
+                return task.call();
+            } catch (Exception e) {
+                throw new ExecutionException(e);
+            }
+        }
+        return submit(sessionID, task).get();
+    }
+
+    /** @return the number of sessions with queued or running tasks. */
+    public int getActiveSessionCount() {
+        return queues.size();
+    }
+
+    /**
+     * Stops the shared worker pool. Tasks already queued do not run, and
+     * those submitted for a result fail with a
+     * {@link RejectedExecutionException}; later calls to
+     * {@link #getInstance()} start a new pool.
+     */
+    public static void shutdownInstance() {
+        SerialSessionExecutor e;
+        synchronized (SerialSessionExecutor.class) {
+            e = instance;
+            instance = null;
+        }
+        if (e != null && e.pool instanceof ExecutorService) {
+            List<Runnable> dropped = ((ExecutorService) e.pool).shutdownNow();
+            for (Runnable queue : dropped)
+                if (queue instanceof SerialQueue)
+                    ((SerialQueue) queue).reject();
+        }
+    }
+
+    /** A task submitted for its result, which fails if it cannot be run. */
+    private static class SessionTask<T> extends FutureTask<T> {
+        SessionTask(Callable<T> task) {
+            super(task);
+        }
+
+        void reject() {
+            setException(new RejectedExecutionException("Worker pool is shut down."));
+        }
+    }
+
+    private class SerialQueue implements Runnable {
+        private final SessionID sessionID;
+        private final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+        private boolean scheduled;
+        private boolean retired;
+
+        SerialQueue(SessionID sessionID) {
+            this.sessionID = sessionID;
+        }
+
+        synchronized boolean offer(Runnable task) {
+            if (retired)
+                return false;
+            tasks.add(task);
+            if (!scheduled) {
+                scheduled = true;
+                schedule();
+            }
+            return true;
+        }
+
+        /** Runs one task, then yields the worker so other sessions get a turn. */
+        public void run() {
+            Runnable task;
+            synchronized (this) {
+                task = tasks.poll();
+            }
+
+            currentSession.set(sessionID);
+            try {
+                if (task != null)
+                    task.run();
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Task for " + sessionID + " failed.", e);
+            } finally {
+                currentSession.remove();
+            }
+
+            synchronized (this) {
+                if (!tasks.isEmpty()) {
+                    schedule();
+                    return;
+                }
+                scheduled = false;
+                retired = true;
+            }
+            queues.remove(sessionID, this);
+        }
+
+        private void schedule() {
+            try {
+                pool.execute(this);
+            } catch (RejectedExecutionException e) {
+                logger.warning("Worker pool rejected tasks for " + sessionID);
+                reject();
+            }
+        }
+
+        /** Drops the queued tasks, failing those a caller may be waiting for. */
+        synchronized void reject() {
+            scheduled = false;
+            retired = true;
+            for (Runnable task : tasks)
+                if (task instanceof SessionTask)
+                    ((SessionTask<?>) task).reject();
+            tasks.clear();
+            queues.remove(sessionID, this);
+        }
+    }
+}
@@ -27,8 +27,24 @@ public interface Session {
 
     public abstract String transformReceiving(String content) throws OtrException;
 
+    /**
+     * As {@link #transformReceiving(String, List)}, without waiting for the
+     * AKE steps still being computed. A message that depends on them is
+     * queued behind them and null returned; its outcome goes to callback.
+     */
+    public abstract String transformReceiving(String content, List<TLV> tlvs,
+            ReceiveCallback callback) throws OtrException;
+
     public abstract String transformSending(String content, List<TLV> tlvs) throws OtrException;
 
+    /**
+     * As {@link #transformSending(String, List)}. A message that has to wait
+     * for the AKE is queued and null returned; tag then identifies it to the
+     * PendingMessageListener when it is sent or dropped.
+     */
+    public abstract String transformSending(String content, List<TLV> tlvs, Object tag)
+            throws OtrException;
+
     public abstract void startSession() throws OtrException;
 
     public abstract void endSession() throws OtrException;
@@ -48,6 +64,47 @@ public interface Session {
     public abstract BigInteger getS();
     
     public abstract void showWarning(String warning);
-    
+
+    /**
+     * @return a copy of the extra symmetric key of the current AKE, for use
+     *         outside OTR, or null when the session is not encrypted.
+     */
     public byte[] getExtraKey();
+
+    /** @return our instance tag. */
+    public abstract InstanceTag getSenderInstanceTag();
+
+    /** @return the peer instance this session talks to, zero for a master session. */
+    public abstract InstanceTag getReceiverInstanceTag();
+
+    /** @return the protocol version data messages are sent with. */
+    public abstract int getProtocolVersion();
+
+    /** @return the per instance sessions of a version 3 conversation. */
+    public abstract List<Session> getInstances();
+
+    /** @return the session messages are sent through, this one or an instance. */
+    public abstract Session getOutgoingInstance();
+
+    /** @return when this session last sent or received a message, in milliseconds. */
+    public abstract long getLastActivityTime();
+
+    /** @return a rough estimate of the memory held by this session's state, in bytes. */
+    public abstract long getResidentBytes();
+
+    /** @return true while an AKE of this session or one of its instances is under way. */
+    public abstract boolean isAkeInProgress();
+
+    /** @return the number of messages waiting for the AKE. */
+    public abstract int getPendingCount();
+
+    /**
+     * Overwrites and forgets all key material and returns the session to a
+     * fresh plaintext state, without notifying listeners. Used when an idle
+     * session is evicted.
+     */
+    public abstract void destroy();
+
+    /** @return true once {@link #destroy()} was called. */
+    public abstract boolean isDestroyed();
 }
\ No newline at end of file
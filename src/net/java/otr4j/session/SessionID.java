@@ -5,25 +5,36 @@
  */
 package net.java.otr4j.session;
 
-import info.guardianproject.otr.app.im.engine.Address;
-
-/** @author George Politis */
+/**
+ * Identifies a conversation by account, contact and protocol. Two IDs that
+ * differ only in the contact's resource are equal: the conversation follows
+ * the contact across resources, and OTR version 3 instance tags tell its
+ * clients apart.
+ * 
+ * @author George Politis
+ */
 public final class SessionID {
 
-    private String fullUserID;
+    private final String fullUserID;
 
     public SessionID(String accountID, String fullUserID, String protocolName) {
         this.accountID = accountID;
-        this.userID = fullUserID == null ? null : Address.stripResource(fullUserID);
+        this.userID = fullUserID == null ? null : stripResource(fullUserID);
         this.fullUserID = fullUserID;
         this.protocolName = protocolName;
+        // Session IDs key the session registries, build the key once.
+        this.sessionId = accountID + '_' + protocolName + '_' + fullUserID;
+        this.key = accountID + '_' + protocolName + '_' + userID;
+        this.hash = key.hashCode();
     }
 
-    private String accountID;
-    private String userID;
-    private String protocolName;
+    private final String accountID;
+    private final String userID;
+    private final String protocolName;
 
-    private String sessionId;
+    private final String sessionId;
+    private final String key;
+    private final int hash;
 
     public static final SessionID Empty = new SessionID(null, null, null);
 
@@ -43,12 +54,8 @@ public final class SessionID {
         return protocolName;
     }
 
-    public synchronized String toString() {
-
-        sessionId = getAccountID() + '_' + this.getProtocolName() + '_' + this.getFullUserID();
-
+    public String toString() {
         return sessionId;
-
     }
 
     public boolean equals(Object obj) {
@@ -60,10 +67,16 @@ public final class SessionID {
 
         SessionID sessionID = (SessionID) obj;
 
-        return this.toString().equals(sessionID.toString());
+        return hash == sessionID.hash && key.equals(sessionID.key);
     }
 
     public int hashCode() {
-        return this.toString().hashCode();
+        return hash;
+    }
+
+    /** Same as Address.stripResource, kept here so otr4j has no Android dependency. */
+    private static String stripResource(String address) {
+        int slash = address.indexOf('/');
+        return slash < 0 ? address : address.substring(0, slash);
     }
 }
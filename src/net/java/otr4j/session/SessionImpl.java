@@ -16,8 +16,15 @@ import java.security.KeyPair;
 import java.security.PublicKey;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.crypto.interfaces.DHPublicKey;
@@ -26,9 +33,13 @@ import net.java.otr4j.OtrEngineHost;
 import net.java.otr4j.OtrEngineListener;
 import net.java.otr4j.OtrException;
 import net.java.otr4j.OtrPolicy;
-import net.java.otr4j.crypto.OtrCryptoEngine;
-import net.java.otr4j.crypto.OtrCryptoEngineImpl;
+import net.java.otr4j.PendingMessageListener;
+import net.java.otr4j.crypto.CryptoExecutor;
+import net.java.otr4j.crypto.DHKeyPairPool;
+import net.java.otr4j.crypto.OtrCipherContext;
 import net.java.otr4j.crypto.OtrTlvHandler;
+import net.java.otr4j.io.OtrAssembler;
+import net.java.otr4j.io.OtrFragmenter;
 import net.java.otr4j.io.OtrInputStream;
 import net.java.otr4j.io.OtrOutputStream;
 import net.java.otr4j.io.SerializationConstants;
@@ -41,27 +52,85 @@ import net.java.otr4j.io.messages.MysteriousT;
 import net.java.otr4j.io.messages.PlainTextMessage;
 import net.java.otr4j.io.messages.QueryMessage;
 
-/** @author George Politis */
+/**
+ * A conversation with one contact, over their bare address.
+ * <p>
+ * With protocol version 3 this is the master session: every client of the
+ * contact gets its own instance session, keyed by its instance tag, and the
+ * master routes received messages to them by tag and sends through the one
+ * most recently active. A contact whose address or resource changes keeps
+ * its instance tag, and so its keys, without another AKE. Version 2
+ * conversations are carried by the master session itself.
+ * <p>
+ * Instance sessions lock only themselves, never the master, so that the
+ * master may call into them while holding its own lock.
+ * 
+ * @author George Politis
+ */
 public class SessionImpl implements Session {
 
     private SessionID sessionID;
     private OtrEngineHost host;
-    private SessionStatus sessionStatus;
+    private volatile SessionStatus sessionStatus;
+    private volatile boolean destroyed;
     private AuthContext authContext;
     private SessionKeys[][] sessionKeys;
     private Vector<byte[]> oldMacKeys;
     private static Logger logger = Logger.getLogger(SessionImpl.class.getName());
-    private List<OtrTlvHandler> tlvHandlers = new ArrayList<OtrTlvHandler>();
+    private final List<OtrTlvHandler> tlvHandlers;
     private BigInteger ess;
+    /** The last message sent encrypted, resent if an error restarts the AKE. */
     private String lastSentMessage;
-    private boolean doTransmitLastMessage = false;
-    private boolean isLastMessageRetransmit = false;
+    private final OutgoingQueue pending = new OutgoingQueue(this);
+    private volatile PendingMessageListener pendingListener;
     private byte[] extraKey;
+    private OtrAssembler assembler;
+    private volatile long lastActivityTime = System.currentTimeMillis();
+
+    private final InstanceTag senderTag;
+    /** The peer instance, {@link InstanceTag#ZERO_TAG} for the master. */
+    private final InstanceTag receiverTag;
+    /** Null for the master session itself. */
+    private final SessionImpl master;
+    private final ConcurrentMap<InstanceTag, SessionImpl> instances;
+    /** The instance messages are sent through, null for the master itself. */
+    private volatile SessionImpl outgoingInstance;
+
+    /** An AKE operation, run on the auth executor against the current auth context. */
+    private interface AuthStep {
+        void run(AuthContext auth) throws OtrException;
+    }
+
+    // AKE steps run one at a time, in arrival order, off the caller's
+    // thread. All of this is guarded by the session lock.
+    private Executor authExecutor;
+    private final LinkedList<AuthStep> authSteps = new LinkedList<AuthStep>();
+    private boolean authStepScheduled;
+    private AuthContext runningAuth;
+    private long authStepsQueued;
+    private long authStepsDone;
+
+    private final Runnable authRunner = new Runnable() {
+        public void run() {
+            runNextAuthStep();
+        }
+    };
 
     public SessionImpl(SessionID sessionID, OtrEngineHost listener) {
+        this(sessionID, listener, new InstanceTag());
+    }
+
+    /** @param senderTag our instance tag, shared by all sessions of the account. */
+    public SessionImpl(SessionID sessionID, OtrEngineHost listener, InstanceTag senderTag) {
 
         this.setSessionID(sessionID);
         this.setHost(listener);
+        this.senderTag = senderTag;
+        this.receiverTag = InstanceTag.ZERO_TAG;
+        this.master = null;
+        this.instances = new ConcurrentHashMap<InstanceTag, SessionImpl>();
+        this.tlvHandlers = new CopyOnWriteArrayList<OtrTlvHandler>();
+        this.listeners = new Vector<OtrEngineListener>();
 
         // client application calls OtrEngine.getSessionStatus()
         // -> create new session if it does not exist, end up here
@@ -70,18 +139,85 @@ public class SessionImpl implements Session {
         this.sessionStatus = SessionStatus.PLAINTEXT;
     }
 
+    /** An instance session, sharing the master's handlers and listeners. */
+    private SessionImpl(SessionImpl master, InstanceTag receiverTag) {
+        this.setSessionID(master.getSessionID());
+        this.setHost(master.getHost());
+        this.senderTag = master.senderTag;
+        this.receiverTag = receiverTag;
+        this.master = master;
+        this.instances = null;
+        this.tlvHandlers = master.tlvHandlers;
+        this.listeners = master.listeners;
+        this.authExecutor = master.authExecutor;
+        this.pending.setLimits(master.pending);
+        this.sessionStatus = SessionStatus.PLAINTEXT;
+    }
+
     @Override
-    public synchronized void addTlvHandler(OtrTlvHandler handler) {
+    public void addTlvHandler(OtrTlvHandler handler) {
         tlvHandlers.add(handler);
     }
 
     @Override
-    public synchronized void removeTlvHandler(OtrTlvHandler handler) {
+    public void removeTlvHandler(OtrTlvHandler handler) {
         tlvHandlers.remove(handler);
     }
 
-    public synchronized BigInteger getS() {
-        return ess;
+    public BigInteger getS() {
+        SessionImpl out = getOutgoingInstance();
+        if (out != this)
+            return out.getS();
+        synchronized (this) {
+            return ess;
+        }
+    }
+
+    public InstanceTag getSenderInstanceTag() {
+        return senderTag;
+    }
+
+    public InstanceTag getReceiverInstanceTag() {
+        return receiverTag;
+    }
+
+    public int getProtocolVersion() {
+        return master == null ? 2 : 3;
+    }
+
+    /** @return the instance sessions of a master session, empty for an instance. */
+    public List<Session> getInstances() {
+        List<Session> result = new ArrayList<Session>();
+        if (instances != null)
+            result.addAll(instances.values());
+        return result;
+    }
+
+    /**
+     * @return the session messages are sent through: the instance that most
+     *         recently went secure or sent us a message, or this session.
+     */
+    public SessionImpl getOutgoingInstance() {
+        SessionImpl out = outgoingInstance;
+        return out == null ? this : out;
+    }
+
+    private boolean isMasterSession() {
+        return master == null;
+    }
+
+    /** Returns the instance session for tag, creating it on first use. */
+    private SessionImpl getInstance(InstanceTag tag) {
+        SessionImpl instance = instances.get(tag);
+        if (instance != null)
+            return instance;
+
+        SessionImpl created = new SessionImpl(this, tag);
+        instance = instances.putIfAbsent(tag, created);
+        if (instance != null)
+            return instance;
+        logger.finest("New instance " + tag + " of " + getSessionID());
+        return created;
     }
 
     private SessionKeys getEncryptionSessionKeys() {
@@ -143,6 +279,8 @@ public class SessionImpl implements Session {
 
         sess3.setRemoteDHPublicKey(pubKey, sess3.getRemoteKeyID() + 1);
         sess4.setRemoteDHPublicKey(pubKey, sess4.getRemoteKeyID() + 1);
+
+        precomputeNextSessionKeys();
     }
 
     private void rotateLocalSessionKeys() throws OtrException {
@@ -165,9 +303,23 @@ public class SessionImpl implements Session {
         SessionKeys sess4 = getSessionKeysByIndex(SessionKeys.Current, SessionKeys.Previous);
         sess2.setLocalPair(sess4.getLocalPair(), sess4.getLocalKeyID());
 
-        KeyPair newPair = new OtrCryptoEngineImpl().generateDHKeyPair();
+        KeyPair newPair = DHKeyPairPool.getInstance().take();
         sess3.setLocalPair(newPair, sess3.getLocalKeyID() + 1);
         sess4.setLocalPair(newPair, sess4.getLocalKeyID() + 1);
+
+        precomputeNextSessionKeys();
+    }
+
+    /**
+     * After a rotation the next message we send uses the (previous local,
+     * current remote) keys and the next one we receive most likely uses the
+     * (current local, current remote) keys. Their D-H agreement is started in
+     * the background so that neither message has to wait for it.
+     */
+    private void precomputeNextSessionKeys() {
+        Executor executor = CryptoExecutor.getInstance();
+        getEncryptionSessionKeys().precompute(executor);
+        getMostRecentSessionKeys().precompute(executor);
     }
 
     private byte[] collectOldMacKeys() {
@@ -198,7 +350,7 @@ public class SessionImpl implements Session {
                 current.setS(auth.getS());
             }
 
-            KeyPair nextDH = new OtrCryptoEngineImpl().generateDHKeyPair();
+            KeyPair nextDH = DHKeyPairPool.getInstance().take();
             for (int i = 0; i < this.getSessionKeys()[1].length; i++) {
                 SessionKeys current = getSessionKeysByIndex(1, i);
                 current.setRemoteDHPublicKey(auth.getRemoteDHPublicKey(), 1);
@@ -207,6 +359,10 @@ public class SessionImpl implements Session {
 
             this.setRemotePublicKey(auth.getRemoteLongTermPublicKey());
 
+            if (extraKey != null)
+                Arrays.fill(extraKey, (byte) 0x00);
+            extraKey = auth.getExtraSymmetricKey();
+
             auth.reset();
             
             break;
@@ -216,15 +372,16 @@ public class SessionImpl implements Session {
         
         // This must be set correctly for transformSending
         this.sessionStatus = sessionStatus;
-        
-        if (sessionStatus == SessionStatus.ENCRYPTED && doTransmitLastMessage && lastSentMessage != null) {
-            String msg = this.transformSending((isLastMessageRetransmit ? "[resent] " : "") + lastSentMessage, null);
-            getHost().injectMessage(getSessionID(), msg);
-        }
 
-        doTransmitLastMessage = false;
-        isLastMessageRetransmit = false;
+        // The instance that went secure last is the one we talk to.
+        if (master != null && sessionStatus == SessionStatus.ENCRYPTED)
+            master.outgoingInstance = this;
+        
         lastSentMessage = null;
+        if (sessionStatus == SessionStatus.ENCRYPTED)
+            flushPending();
+        else if (sessionStatus == SessionStatus.FINISHED)
+            pending.dropAll(PendingMessageListener.DROPPED_SESSION_ENDED);
         
         if (sessionStatus != oldSessionStatus) {
             for (OtrEngineListener l : this.listeners)
@@ -238,7 +395,10 @@ public class SessionImpl implements Session {
      * @see net.java.otr4j.session.ISession#getSessionStatus()
      */
 
-    public synchronized SessionStatus getSessionStatus() {
+    public SessionStatus getSessionStatus() {
+        SessionImpl out = getOutgoingInstance();
+        if (out != this)
+            return out.getSessionStatus();
         return sessionStatus;
     }
 
@@ -275,6 +435,239 @@ public class SessionImpl implements Session {
         return authContext;
     }
 
+    /**
+     * Sets the executor AKE steps run on, {@link CryptoExecutor} by default.
+     * An executor that runs tasks in the calling thread makes the AKE
+     * synchronous again.
+     */
+    public void setAuthExecutor(Executor executor) {
+        synchronized (this) {
+            this.authExecutor = executor;
+        }
+        if (instances != null)
+            for (SessionImpl instance : instances.values())
+                instance.setAuthExecutor(executor);
+    }
+
+    /** Sets who hears about messages that waited for the AKE. */
+    public void setPendingMessageListener(PendingMessageListener listener) {
+        this.pendingListener = listener;
+    }
+
+    /**
+     * Bounds the messages held while the AKE is under way, by default 50
+     * messages for two minutes each, the oldest dropped to make room.
+     * 
+     * @param timeout milliseconds a message may wait, 0 or less for ever.
+     * @param dropOldest whether a full queue drops its oldest message rather
+     *            than the new one.
+     */
+    public void setPendingLimits(int capacity, long timeout, boolean dropOldest) {
+        pending.setLimits(capacity, timeout, dropOldest);
+        if (instances != null)
+            for (SessionImpl instance : instances.values())
+                instance.setPendingLimits(capacity, timeout, dropOldest);
+    }
+
+    public boolean isAkeInProgress() {
+        synchronized (this) {
+            if (authStepScheduled || runningAuth != null || !authSteps.isEmpty())
+                return true;
+            if (authContext != null && authContext.getAuthenticationState() != AuthContext.NONE)
+                return true;
+        }
+        if (instances != null)
+            for (SessionImpl instance : instances.values())
+                if (instance.isAkeInProgress())
+                    return true;
+        return false;
+    }
+
+    public int getPendingCount() {
+        int count = pending.size();
+        if (instances != null)
+            for (SessionImpl instance : instances.values())
+                count += instance.pending.size();
+        return count;
+    }
+
+    void firePendingSent(PendingMessage message) {
+        PendingMessageListener listener = getPendingMessageListener();
+        if (listener != null)
+            listener.pendingMessageSent(getSessionID(), message);
+    }
+
+    void firePendingDropped(PendingMessage message, int reason) {
+        logger.finest("Dropped a message that waited for the AKE, reason " + reason + ".");
+        PendingMessageListener listener = getPendingMessageListener();
+        if (listener != null)
+            listener.pendingMessageDropped(getSessionID(), message, reason);
+    }
+
+    private PendingMessageListener getPendingMessageListener() {
+        return master != null ? master.pendingListener : pendingListener;
+    }
+
+    /**
+     * Encrypts and injects, oldest first, the messages that waited for the
+     * AKE: this session's and, for an instance, those its master queued
+     * before it knew which instance would answer. Messages that fail to
+     * encrypt wait for the next AKE.
+     */
+    private synchronized void flushPending() throws OtrException {
+        if (sessionStatus != SessionStatus.ENCRYPTED)
+            return;
+        // The master's messages were mostly queued before this instance
+        // existed, both queues go out in the order they were written.
+        List<PendingMessage> batch = pending.drain();
+        if (master != null)
+            batch = OutgoingQueue.merge(master.pending.drain(), batch);
+        if (batch.isEmpty())
+            return;
+
+        logger.finest("Sending " + batch.size() + " messages that waited for the AKE.");
+        int sent = 0;
+        try {
+            for (; sent < batch.size(); sent++) {
+                PendingMessage message = batch.get(sent);
+                String msg = send(message.getText(), message.getTlvs(), null);
+                getHost().injectMessage(getSessionID(), msg);
+            }
+        } finally {
+            if (sent < batch.size())
+                pending.restore(new ArrayList<PendingMessage>(batch.subList(sent, batch.size())));
+            for (int i = 0; i < sent; i++)
+                firePendingSent(batch.get(i));
+        }
+    }
+
+    private void enqueueAuthStep(AuthStep step) {
+        authSteps.add(step);
+        authStepsQueued++;
+        if (!authStepScheduled) {
+            authStepScheduled = true;
+            scheduleAuthStep();
+        }
+    }
+
+    private void scheduleAuthStep() {
+        Executor executor = authExecutor != null ? authExecutor : CryptoExecutor.getInstance();
+        try {
+            executor.execute(authRunner);
+        } catch (RejectedExecutionException e) {
+            logger.warning("AKE executor rejected the step, running it in place.");
+            authRunner.run();
+        }
+    }
+
+    /**
+     * Runs the oldest queued AKE step against the current auth context,
+     * outside the session lock. Its replies are sent, and the session goes
+     * secure, only if the AKE was not restarted in the meantime.
+     */
+    private void runNextAuthStep() {
+        AuthStep step;
+        AuthContext auth;
+        synchronized (this) {
+            step = authSteps.poll();
+            if (step == null) {
+                authStepScheduled = false;
+                return;
+            }
+            auth = getAuthContext();
+            runningAuth = auth;
+        }
+
+        Exception failure = null;
+        try {
+            step.run(auth);
+        } catch (OtrException e) {
+            failure = e;
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+
+        synchronized (this) {
+            try {
+                if (auth == authContext) {
+                    for (AbstractMessage m : auth.drainOutgoingMessages())
+                        injectMessage(m);
+
+                    if (failure == null && auth.getIsSecure()) {
+                        this.setSessionStatus(SessionStatus.ENCRYPTED);
+                        logger.finest("Gone Secure.");
+                    }
+                } else {
+                    logger.finest("AKE was restarted, discarding the result of the last step.");
+                    auth.reset();
+                }
+            } catch (OtrException e) {
+                if (failure == null)
+                    failure = e;
+            } finally {
+                runningAuth = null;
+                authStepsDone++;
+                notifyAll();
+
+                if (authSteps.isEmpty())
+                    authStepScheduled = false;
+                else
+                    scheduleAuthStep();
+            }
+        }
+
+        if (failure != null)
+            logger.log(Level.WARNING, "AKE step failed for " + getSessionID(), failure);
+    }
+
+    /**
+     * Waits, releasing the session lock, for the AKE steps queued so far.
+     * Only for callers of transformReceiving that gave no callback.
+     */
+    private void awaitAuthSteps() throws OtrException {
+        long queued = authStepsQueued;
+        try {
+            while (authStepsDone < queued)
+                wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OtrException(e);
+        }
+    }
+
+    /**
+     * Abandons the AKE in progress: queued steps are dropped, and the result
+     * of a running step is discarded when it finishes.
+     */
+    private void abandonAuth() {
+        authStepsDone += authSteps.size();
+        authSteps.clear();
+        if (authContext != null) {
+            if (authContext != runningAuth)
+                authContext.reset();
+            authContext = null;
+        }
+        notifyAll();
+    }
+
+    private void respondAuth(final int version) {
+        enqueueAuthStep(new AuthStep() {
+            public void run(AuthContext auth) throws OtrException {
+                auth.respondAuth(version);
+            }
+        });
+    }
+
+    /** @return the highest version in versions that the policy allows, or 0. */
+    private int pickVersion(List<Integer> versions) {
+        OtrPolicy policy = getSessionPolicy();
+        if (versions.contains(3) && policy.getAllowV3())
+            return 3;
+        if (versions.contains(2) && policy.getAllowV2())
+            return 2;
+        return 0;
+    }
+
     private Vector<byte[]> getOldMacKeys() {
         if (oldMacKeys == null)
             oldMacKeys = new Vector<byte[]>();
@@ -291,13 +684,29 @@ public class SessionImpl implements Session {
      * @see
      * net.java.otr4j.session.ISession#handleReceivingMessage(java.lang.String)
      */
-    public synchronized String transformReceiving(String msgText, List<TLV> tlvs) throws OtrException {
+    public String transformReceiving(String msgText, List<TLV> tlvs) throws OtrException {
+        return transformReceiving(msgText, tlvs, null);
+    }
+
+    public String transformReceiving(String msgText, List<TLV> tlvs, ReceiveCallback callback)
+            throws OtrException {
+        lastActivityTime = System.currentTimeMillis();
         OtrPolicy policy = getSessionPolicy();
-        if (!policy.getAllowV1() && !policy.getAllowV2()) {
-            logger.finest("Policy does not allow neither V1 not V2, ignoring message.");
+        if (!policy.getAllowV1() && !policy.getAllowV2() && !policy.getAllowV3()) {
+            logger.finest("Policy does not allow any version, ignoring message.");
             return msgText;
         }
 
+        // Version 3 fragments are reassembled by the instance they came from.
+        int[] fragmentTags = OtrAssembler.getInstanceTags(msgText);
+        if (fragmentTags != null) {
+            SessionImpl instance = route(fragmentTags[0], fragmentTags[1], null);
+            return instance == null ? null : instance.receiveFragment(msgText, tlvs, callback);
+        }
+
+        if (OtrAssembler.isFragment(msgText))
+            return receiveFragment(msgText, tlvs, callback);
+
         AbstractMessage m;
         try {
             m = SerializationUtils.toMessage(msgText);
@@ -308,6 +717,164 @@ public class SessionImpl implements Session {
         if (m == null)
             return msgText; // Propably null or empty.
 
+        return dispatch(m, tlvs, callback);
+    }
+
+    /** Hands version 3 messages to their instance, everything else to this session. */
+    private String dispatch(AbstractMessage m, List<TLV> tlvs, ReceiveCallback callback)
+            throws OtrException {
+        if (m instanceof AbstractEncodedMessage
+            && ((AbstractEncodedMessage) m).protocolVersion == 3) {
+            // Reassembled fragments get here on their instance, the master
+            // still checks the tags inside and hands over AKE state.
+            AbstractEncodedMessage encoded = (AbstractEncodedMessage) m;
+            SessionImpl router = isMasterSession() ? this : master;
+            SessionImpl instance = router.route(encoded.senderInstanceTag,
+                    encoded.receiverInstanceTag, encoded);
+            if (instance == null || (!isMasterSession() && instance != this))
+                return null;
+            return instance.handleMessage(m, tlvs, callback);
+        }
+
+        return handleMessage(m, tlvs, callback);
+    }
+
+    /**
+     * Picks the instance session a version 3 message is for.
+     * 
+     * @param m the message, null for a fragment.
+     * @return null if the message is for another instance of ours, or
+     *         malformed.
+     */
+    private SessionImpl route(int senderInstanceTag, int receiverInstanceTag,
+            AbstractEncodedMessage m) throws OtrException {
+        if (!isMasterSession() && m == null) {
+            // Already routed.
+            return this;
+        }
+        if (!getSessionPolicy().getAllowV3()) {
+            logger.finest("ALLOW_V3 is not set, ignoring message.");
+            return null;
+        }
+        if (senderInstanceTag == InstanceTag.ZERO_VALUE
+            || !InstanceTag.isValidInstanceTag(senderInstanceTag)
+            || !InstanceTag.isValidInstanceTag(receiverInstanceTag)) {
+            logger.finest("Illegal instance tag, ignoring message.");
+            return null;
+        }
+
+        // Only a D-H Commit may be addressed to no instance in particular,
+        // anything else sent to another instance of ours is not for us.
+        boolean anyInstance = m == null || m.messageType == AbstractEncodedMessage.MESSAGE_DH_COMMIT;
+        if (receiverInstanceTag != senderTag.getValue()
+            && !(anyInstance && receiverInstanceTag == InstanceTag.ZERO_VALUE)) {
+            logger.finest("Message for instance "
+                          + Integer.toHexString(receiverInstanceTag) + ", ignoring it.");
+            return null;
+        }
+
+        SessionImpl instance = getInstance(new InstanceTag(senderInstanceTag));
+        if (m != null && m.messageType == AbstractEncodedMessage.MESSAGE_DHKEY)
+            instance.adoptCommit(takeCommitState(instance));
+        return instance;
+    }
+
+    /**
+     * @return a copy of the D-H Commit we sent before we knew which instance
+     *         would answer, for that instance, or null.
+     */
+    private synchronized AuthContext takeCommitState(SessionImpl instance) throws OtrException {
+        if (authContext == null || !authSteps.isEmpty() || runningAuth != null
+            || authContext.getAuthenticationState() != AuthContext.AWAITING_DHKEY)
+            return null;
+        return new AuthContextImpl(instance, (AuthContextImpl) authContext);
+    }
+
+    /** Takes over the D-H Commit the master sent, unless an AKE of our own is under way. */
+    private synchronized void adoptCommit(AuthContext commit) {
+        if (commit == null || !authSteps.isEmpty() || runningAuth != null)
+            return;
+        if (authContext != null && authContext.getAuthenticationState() != AuthContext.NONE)
+            return;
+        authContext = commit;
+    }
+
+    private String receiveFragment(String msgText, List<TLV> tlvs, ReceiveCallback callback)
+            throws OtrException {
+        AbstractMessage m;
+        synchronized (this) {
+            lastActivityTime = System.currentTimeMillis();
+            CharSequence assembled = getAssembler().accumulate(msgText);
+            if (assembled == null)
+                return null; // Wait for the remaining fragments.
+
+            try {
+                m = SerializationUtils.toMessage(assembled);
+            } catch (IOException e) {
+                throw new OtrException(e);
+            }
+        }
+        if (m == null)
+            return null;
+        return dispatch(m, tlvs, callback);
+    }
+
+    private synchronized String handleMessage(AbstractMessage m, List<TLV> tlvs,
+            ReceiveCallback callback) throws OtrException {
+        lastActivityTime = System.currentTimeMillis();
+        switch (m.messageType) {
+        case AbstractEncodedMessage.MESSAGE_DH_COMMIT:
+        case AbstractEncodedMessage.MESSAGE_DHKEY:
+        case AbstractEncodedMessage.MESSAGE_REVEALSIG:
+        case AbstractEncodedMessage.MESSAGE_SIGNATURE:
+            // D-H agreement, signatures and their encryption are slow, the
+            // caller gets its thread back and replies are injected later.
+            final AbstractMessage akeMessage = m;
+            enqueueAuthStep(new AuthStep() {
+                public void run(AuthContext auth) throws OtrException {
+                    auth.handleReceivingMessage(akeMessage);
+                }
+            });
+            return null;
+        }
+
+        // Anything else may depend on the outcome of the AKE steps that
+        // arrived before it, so it goes after them.
+        if (authStepsDone < authStepsQueued) {
+            if (callback != null) {
+                deferMessage(m, tlvs, callback);
+                return null;
+            }
+            awaitAuthSteps();
+        }
+        return handleOtherMessage(m, tlvs);
+    }
+
+    /**
+     * Queues a message behind the AKE steps before it. It is handled on the
+     * AKE executor, and the session lock held only while it is.
+     */
+    private void deferMessage(final AbstractMessage m, List<TLV> tlvs,
+            final ReceiveCallback callback) {
+        // The caller goes on to read its list, the step fills its own.
+        final List<TLV> received = tlvs == null ? null : new ArrayList<TLV>();
+        enqueueAuthStep(new AuthStep() {
+            public void run(AuthContext auth) {
+                String plaintext;
+                try {
+                    synchronized (SessionImpl.this) {
+                        plaintext = handleOtherMessage(m, received);
+                    }
+                } catch (OtrException e) {
+                    callback.messageFailed(getSessionID(), e);
+                    return;
+                }
+                callback.messageReceived(getSessionID(), plaintext, received);
+            }
+        });
+    }
+
+    private String handleOtherMessage(AbstractMessage m, List<TLV> tlvs) throws OtrException {
         switch (m.messageType) {
         case AbstractEncodedMessage.MESSAGE_DATA:
             return handleDataMessage((DataMessage) m, tlvs);
@@ -319,18 +886,6 @@ public class SessionImpl implements Session {
         case AbstractMessage.MESSAGE_QUERY:
             handleQueryMessage((QueryMessage) m);
             return null;
-        case AbstractEncodedMessage.MESSAGE_DH_COMMIT:
-        case AbstractEncodedMessage.MESSAGE_DHKEY:
-        case AbstractEncodedMessage.MESSAGE_REVEALSIG:
-        case AbstractEncodedMessage.MESSAGE_SIGNATURE:
-            AuthContext auth = this.getAuthContext();
-            auth.handleReceivingMessage(m);
-
-            if (auth.getIsSecure()) {
-                this.setSessionStatus(SessionStatus.ENCRYPTED);
-                logger.finest("Gone Secure.");
-            }
-            return null;
         default:
             throw new UnsupportedOperationException("Received an uknown message type.");
         }
@@ -344,9 +899,10 @@ public class SessionImpl implements Session {
         setSessionStatus(SessionStatus.PLAINTEXT);
 
         OtrPolicy policy = getSessionPolicy();
-        if (queryMessage.versions.contains(2) && policy.getAllowV2()) {
-            logger.finest("Query message with V2 support found.");
-            getAuthContext().respondV2Auth();
+        int version = pickVersion(queryMessage.versions);
+        if (version > 0) {
+            logger.finest("Query message with V" + version + " support found.");
+            respondAuth(version);
         } else if (queryMessage.versions.contains(1) && policy.getAllowV1()) {
             throw new UnsupportedOperationException();
         }
@@ -363,8 +919,10 @@ public class SessionImpl implements Session {
             showWarning(errorMessage.error + " Initiating encryption.");
 
             logger.finest("Error message starts AKE.");
-            doTransmitLastMessage = true;
-            isLastMessageRetransmit = true;
+            synchronized (this) {
+                if (lastSentMessage != null)
+                    pending.addFirst("[resent] " + lastSentMessage);
+            }
 
             Vector<Integer> versions = new Vector<Integer>();
             if (policy.getAllowV1())
@@ -373,6 +931,9 @@ public class SessionImpl implements Session {
             if (policy.getAllowV2())
                 versions.add(2);
 
+            if (policy.getAllowV3())
+                versions.add(3);
+
             logger.finest("Sending Query");
             injectMessage(new QueryMessage(versions));
         } else {
@@ -384,7 +945,7 @@ public class SessionImpl implements Session {
         logger.finest(getSessionID().getAccountID() + " received a data message from "
                       + getSessionID().getUserID() + ".");
 
-        switch (this.getSessionStatus()) {
+        switch (sessionStatus) {
         case ENCRYPTED:
             logger.finest("Message state is ENCRYPTED. Trying to decrypt message.");
 
@@ -397,20 +958,26 @@ public class SessionImpl implements Session {
                 throw new OtrException("no matching keys found");
             }
 
-            // Verify received MAC with a locally calculated MAC.
-            logger.finest("Transforming T to byte[] to calculate it's HmacSHA1.");
-
-            byte[] serializedT;
-            try {
-                serializedT = SerializationUtils.toByteArray(data.getT());
-            } catch (IOException e) {
-                throw new OtrException(e);
+            // Verify received MAC with a locally calculated MAC, over the
+            // bytes that arrived on the wire when we have them.
+            byte[] serializedT = data.authenticatedBuffer;
+            int serializedTOffset = data.authenticatedOffset;
+            int serializedTLength = data.authenticatedLength;
+            if (serializedT == null) {
+                logger.finest("Transforming T to byte[] to calculate it's HmacSHA1.");
+                try {
+                    serializedT = SerializationUtils.toByteArray(data.getT());
+                } catch (IOException e) {
+                    throw new OtrException(e);
+                }
+                serializedTOffset = 0;
+                serializedTLength = serializedT.length;
             }
 
-            OtrCryptoEngine otrCryptoEngine = new OtrCryptoEngineImpl();
+            OtrCipherContext receivingContext = matchingKeys.getReceivingCipherContext();
 
-            byte[] computedMAC = otrCryptoEngine.sha1Hmac(serializedT,
-                    matchingKeys.getReceivingMACKey(), SerializationConstants.TYPE_LEN_MAC);
+            byte[] computedMAC = receivingContext.sha1Hmac(serializedT, serializedTOffset,
+                    serializedTLength);
 
             if (!Arrays.equals(computedMAC, data.mac)) {
                 throw new OtrException("MAC verification failed, ignoring message");
@@ -423,8 +990,8 @@ public class SessionImpl implements Session {
 
             matchingKeys.setReceivingCtr(data.ctr);
 
-            byte[] dmc = otrCryptoEngine.aesDecrypt(matchingKeys.getReceivingAESKey(),
-                    matchingKeys.getReceivingCtr(), data.encryptedMessage);
+            byte[] dmc = receivingContext.aesDecrypt(matchingKeys.getReceivingCtr(),
+                    data.encryptedMessage);
             String decryptedMsgContent;
             try {
                 // Expect bytes to be text encoded in UTF-8.
@@ -434,7 +1001,8 @@ public class SessionImpl implements Session {
             }
 
             logger.finest("Decrypted message: \"" + decryptedMsgContent + "\"");
-            // FIXME extraKey = authContext.getExtraSymmetricKey();
+            if (master != null)
+                master.outgoingInstance = this;
 
             // Rotate keys if necessary.
             SessionKeys mostRecent = this.getMostRecentSessionKeys();
@@ -501,13 +1069,45 @@ public class SessionImpl implements Session {
     }
 
     public void injectMessage(AbstractMessage m) throws OtrException {
+        boolean v3 = false;
+        if (m instanceof AbstractEncodedMessage
+            && ((AbstractEncodedMessage) m).protocolVersion == 3) {
+            AbstractEncodedMessage encoded = (AbstractEncodedMessage) m;
+            encoded.senderInstanceTag = senderTag.getValue();
+            encoded.receiverInstanceTag = receiverTag.getValue();
+            v3 = true;
+        }
+
         String msg;
         try {
             msg = SerializationUtils.toString(m);
         } catch (IOException e) {
             throw new OtrException(e);
         }
-        getHost().injectMessage(getSessionID(), msg);
+        getHost().injectMessage(getSessionID(), injectLeadingFragments(msg, v3));
+    }
+
+    /**
+     * Splits msg to the host's maximum message size, injects all fragments
+     * but the last and returns the last one, or msg itself if it fits.
+     * Callers send the result themselves, after the injected fragments.
+     * 
+     * @param v3 whether to write version 3 fragment headers, with our
+     *            instance tags.
+     */
+    private String injectLeadingFragments(String msg, boolean v3) {
+        int maxSize = getHost().getMaxFragmentSize(getSessionID());
+        String[] fragments = v3 ? OtrFragmenter.fragment(msg, maxSize, senderTag.getValue(),
+                receiverTag.getValue()) : OtrFragmenter.fragment(msg, maxSize);
+        for (int i = 0; i < fragments.length - 1; i++)
+            getHost().injectMessage(getSessionID(), fragments[i]);
+        return fragments[fragments.length - 1];
+    }
+
+    private OtrAssembler getAssembler() {
+        if (assembler == null)
+            assembler = new OtrAssembler();
+        return assembler;
     }
 
     private String handlePlainTextMessage(PlainTextMessage plainTextMessage) throws OtrException {
@@ -557,9 +1157,10 @@ public class SessionImpl implements Session {
             if (policy.getWhitespaceStartAKE()) {
                 logger.finest("WHITESPACE_START_AKE is set");
 
-                if (plainTextMessage.versions.contains(2) && policy.getAllowV2()) {
-                    logger.finest("V2 tag found.");
-                    getAuthContext().respondV2Auth();
+                int version = pickVersion(plainTextMessage.versions);
+                if (version > 0) {
+                    logger.finest("V" + version + " tag found.");
+                    respondAuth(version);
                 } else if (plainTextMessage.versions.contains(1) && policy.getAllowV1()) {
                     throw new UnsupportedOperationException();
                 }
@@ -572,14 +1173,47 @@ public class SessionImpl implements Session {
     // Retransmit last sent message. Spec document does not mention where or
     // when that should happen, must check libotr code.
 
+    // Encrypted messages longer than the host's maximum fragment size are
+    // fragmented, all fragments but the last are injected and the last one
+    // is returned for the caller to send. Synchronized, as an AKE step may
+    // replace the session keys from another thread.
     public String transformSending(String msgText, List<TLV> tlvs) throws OtrException {
+        return transformSending(msgText, tlvs, null);
+    }
+
+    public String transformSending(String msgText, List<TLV> tlvs, Object tag)
+            throws OtrException {
+        lastActivityTime = System.currentTimeMillis();
+        SessionImpl out = getOutgoingInstance();
+        if (out != this)
+            return out.transformSending(msgText, tlvs, tag);
+        String result = send(msgText, tlvs, tag);
+
+        // An instance that went secure while we queued has drained this
+        // queue already, it has to look again.
+        out = getOutgoingInstance();
+        if (out != this && !pending.isEmpty())
+            out.flushPending();
+        return result;
+    }
 
-        switch (this.getSessionStatus()) {
+    private String send(String msgText, List<TLV> tlvs) throws OtrException {
+        return send(msgText, tlvs, null);
+    }
+
+    private synchronized String send(String msgText, List<TLV> tlvs, Object tag)
+            throws OtrException {
+        lastActivityTime = System.currentTimeMillis();
+
+        switch (sessionStatus) {
         case PLAINTEXT:
             if (getSessionPolicy().getRequireEncryption()) {
-                lastSentMessage = msgText;
-                doTransmitLastMessage = true;
-                this.startSession();
+                // Held in order until the AKE completes. Only the first
+                // message sends a query, more would restart the peer's AKE.
+                boolean start = pending.isEmpty();
+                pending.add(msgText, tlvs, tag);
+                if (start)
+                    this.startSession();
                 return null;
             } else
                 // TODO this does not precisly behave according to
@@ -623,26 +1257,24 @@ public class SessionImpl implements Session {
                 }
             }
 
-            OtrCryptoEngine otrCryptoEngine = new OtrCryptoEngineImpl();
+            OtrCipherContext sendingContext = encryptionKeys.getSendingCipherContext();
 
-            byte[] data = out.toByteArray();
-            // Encrypt message.
+            // Encrypt message in place, the array is a private copy.
+            byte[] encryptedMsg = out.toByteArray();
             logger.finest("Encrypting message with keyids (localKeyID, remoteKeyID) = ("
                           + senderKeyID + ", " + receipientKeyID + ")");
-            byte[] encryptedMsg = otrCryptoEngine.aesEncrypt(encryptionKeys.getSendingAESKey(),
-                    ctr, data);
+            sendingContext.aesEncrypt(ctr, encryptedMsg, 0, encryptedMsg.length, encryptedMsg, 0);
 
             // Get most recent keys to get the next D-H public key.
             SessionKeys mostRecentKeys = this.getMostRecentSessionKeys();
             DHPublicKey nextDH = (DHPublicKey) mostRecentKeys.getLocalPair().getPublic();
 
             // Calculate T.
-            MysteriousT t = new MysteriousT(2, 0, senderKeyID, receipientKeyID, nextDH, ctr,
+            MysteriousT t = new MysteriousT(getProtocolVersion(), senderTag.getValue(),
+                    receiverTag.getValue(), 0, senderKeyID, receipientKeyID, nextDH, ctr,
                     encryptedMsg);
 
             // Calculate T hash.
-            byte[] sendingMACKey = encryptionKeys.getSendingMACKey();
-
             logger.finest("Transforming T to byte[] to calculate it's HmacSHA1.");
             byte[] serializedT;
             try {
@@ -651,18 +1283,19 @@ public class SessionImpl implements Session {
                 throw new OtrException(e);
             }
 
-            byte[] mac = otrCryptoEngine.sha1Hmac(serializedT, sendingMACKey,
-                    SerializationConstants.TYPE_LEN_MAC);
+            byte[] mac = sendingContext.sha1Hmac(serializedT, 0, serializedT.length);
 
             // Get old MAC keys to be revealed.
             byte[] oldKeys = this.collectOldMacKeys();
             DataMessage m = new DataMessage(t, mac, oldKeys);
 
+            String encoded;
             try {
-                return SerializationUtils.toString(m);
+                encoded = SerializationUtils.toString(m);
             } catch (IOException e) {
                 throw new OtrException(e);
             }
+            return injectLeadingFragments(encoded, getProtocolVersion() == 3);
         case FINISHED:
             this.lastSentMessage = msgText;
             showError("Your message to "
@@ -681,13 +1314,14 @@ public class SessionImpl implements Session {
      * @see net.java.otr4j.session.ISession#startSession()
      */
     public synchronized void startSession() throws OtrException {
+        lastActivityTime = System.currentTimeMillis();
         if (this.getSessionStatus() == SessionStatus.ENCRYPTED)
             return;
 
-        if (!getSessionPolicy().getAllowV2())
+        if (!getSessionPolicy().getAllowV2() && !getSessionPolicy().getAllowV3())
             throw new UnsupportedOperationException();
 
-        this.getAuthContext().startV2Auth();
+        this.getAuthContext().startAuth();
     }
 
     /*
@@ -695,14 +1329,26 @@ public class SessionImpl implements Session {
      * 
      * @see net.java.otr4j.session.ISession#endSession()
      */
-    public synchronized void endSession() throws OtrException {
-        SessionStatus status = this.getSessionStatus();
+    public void endSession() throws OtrException {
+        if (instances != null) {
+            for (SessionImpl instance : instances.values())
+                instance.endSession();
+            outgoingInstance = null;
+        }
+        endThisSession();
+    }
+
+    private synchronized void endThisSession() throws OtrException {
+        abandonAuth();
+        pending.dropAll(PendingMessageListener.DROPPED_SESSION_ENDED);
+
+        SessionStatus status = sessionStatus;
         switch (status) {
         case ENCRYPTED:
             Vector<TLV> tlvs = new Vector<TLV>();
             tlvs.add(new TLV(1, null));
 
-            String msg = this.transformSending(null, tlvs);
+            String msg = this.send(null, tlvs);
             getHost().injectMessage(getSessionID(), msg);
             this.setSessionStatus(SessionStatus.PLAINTEXT);
             break;
@@ -732,10 +1378,13 @@ public class SessionImpl implements Session {
     }
 
     public PublicKey getRemotePublicKey() {
+        SessionImpl out = getOutgoingInstance();
+        if (out != this)
+            return out.getRemotePublicKey();
         return remotePublicKey;
     }
 
-    private List<OtrEngineListener> listeners = new Vector<OtrEngineListener>();
+    private final List<OtrEngineListener> listeners;
 
     public void addOtrEngineListener(OtrEngineListener l) {
         synchronized (listeners) {
@@ -767,6 +1416,98 @@ public class SessionImpl implements Session {
     }
 
     public byte[] getExtraKey() {
-        return extraKey;
+        SessionImpl out = getOutgoingInstance();
+        if (out != this)
+            return out.getExtraKey();
+        return getOwnExtraKey();
+    }
+
+    private synchronized byte[] getOwnExtraKey() {
+        return sessionStatus == SessionStatus.ENCRYPTED && extraKey != null ? extraKey.clone()
+                : null;
+    }
+
+    public long getLastActivityTime() {
+        long time = lastActivityTime;
+        if (instances != null)
+            for (SessionImpl instance : instances.values())
+                time = Math.max(time, instance.getLastActivityTime());
+        return time;
+    }
+
+    // Per session keys: four 16 byte AES keys, four 20 byte MAC keys and two
+    // counters, plus a D-H key pair (two 192 byte numbers) per local key.
+    private static final int SESSION_KEYS_BYTES = 4 * 16 + 4 * 20 + 2 * 16;
+    private static final int DH_KEY_PAIR_BYTES = 2 * 192;
+    private static final int BASE_BYTES = 512;
+
+    public long getResidentBytes() {
+        long bytes = getOwnResidentBytes();
+        if (instances != null)
+            for (SessionImpl instance : instances.values())
+                bytes += instance.getOwnResidentBytes();
+        return bytes;
+    }
+
+    private synchronized long getOwnResidentBytes() {
+        long bytes = BASE_BYTES;
+        if (sessionKeys != null)
+            bytes += 4 * SESSION_KEYS_BYTES + 3 * DH_KEY_PAIR_BYTES;
+        if (authContext != null)
+            bytes += DH_KEY_PAIR_BYTES;
+        if (oldMacKeys != null)
+            for (byte[] key : oldMacKeys)
+                bytes += key.length;
+        if (assembler != null)
+            bytes += 2L * assembler.getPendingLength();
+        return bytes;
+    }
+
+    public void destroy() {
+        destroyed = true;
+        if (instances != null) {
+            for (SessionImpl instance : instances.values())
+                instance.destroy();
+            instances.clear();
+            outgoingInstance = null;
+        }
+        destroyThisSession();
+    }
+
+    public boolean isDestroyed() {
+        return destroyed;
+    }
+
+    private synchronized void destroyThisSession() {
+        logger.finest("Destroying session " + getSessionID() + " instance " + receiverTag);
+        if (sessionKeys != null) {
+            for (SessionKeys[] row : sessionKeys)
+                for (SessionKeys keys : row)
+                    if (keys != null)
+                        keys.destroy();
+            sessionKeys = null;
+        }
+
+        if (oldMacKeys != null) {
+            for (byte[] key : oldMacKeys)
+                Arrays.fill(key, (byte) 0x00);
+            oldMacKeys.clear();
+        }
+
+        abandonAuth();
+
+        if (extraKey != null) {
+            Arrays.fill(extraKey, (byte) 0x00);
+            extraKey = null;
+        }
+
+        if (assembler != null)
+            assembler.discard();
+
+        ess = null;
+        remotePublicKey = null;
+        lastSentMessage = null;
+        pending.dropAll(PendingMessageListener.DROPPED_SESSION_ENDED);
+        sessionStatus = SessionStatus.PLAINTEXT;
     }
 }
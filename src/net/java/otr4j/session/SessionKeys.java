@@ -2,10 +2,12 @@ package net.java.otr4j.session;
 
 import java.math.BigInteger;
 import java.security.KeyPair;
+import java.util.concurrent.Executor;
 
 import javax.crypto.interfaces.DHPublicKey;
 
 import net.java.otr4j.OtrException;
+import net.java.otr4j.crypto.OtrCipherContext;
 
 public interface SessionKeys {
 
@@ -36,6 +38,10 @@ public interface SessionKeys {
 
     public abstract byte[] getReceivingMACKey() throws OtrException;
 
+    public abstract OtrCipherContext getSendingCipherContext() throws OtrException;
+
+    public abstract OtrCipherContext getReceivingCipherContext() throws OtrException;
+
     public abstract void setS(BigInteger s);
 
     public abstract void setIsUsedReceivingMACKey(Boolean isUsedReceivingMACKey);
@@ -50,4 +56,15 @@ public interface SessionKeys {
 
     public abstract KeyPair getLocalPair();
 
+    /**
+     * Starts computing the shared secret and the keys derived from it on
+     * executor, if they are not known yet, so that they are ready when the
+     * next message needs them. Replacing either D-H key discards and wipes
+     * the result.
+     */
+    public abstract void precompute(Executor executor);
+
+    /** Overwrites the derived keys and counters and forgets the D-H keys. */
+    public abstract void destroy();
+
 }
\ No newline at end of file
@@ -9,11 +9,19 @@ import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.security.KeyPair;
 import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import javax.crypto.interfaces.DHPublicKey;
 
 import net.java.otr4j.OtrException;
+import net.java.otr4j.crypto.OtrCipherContext;
 import net.java.otr4j.crypto.OtrCryptoEngine;
 import net.java.otr4j.crypto.OtrCryptoEngineImpl;
 import net.java.otr4j.io.SerializationUtils;
@@ -83,12 +91,21 @@ class SessionKeysImpl implements SessionKeys {
 
     private void reset() {
         logger.finest("Resetting " + keyDescription + " session keys.");
+        discardPrecomputed();
         Arrays.fill(this.sendingCtr, (byte) 0x00);
         Arrays.fill(this.receivingCtr, (byte) 0x00);
         this.sendingAESKey = null;
         this.receivingAESKey = null;
         this.sendingMACKey = null;
         this.receivingMACKey = null;
+        if (this.sendingCipherContext != null) {
+            this.sendingCipherContext.destroy();
+            this.sendingCipherContext = null;
+        }
+        if (this.receivingCipherContext != null) {
+            this.receivingCipherContext.destroy();
+            this.receivingCipherContext = null;
+        }
         this.setIsUsedReceivingMACKey(false);
         this.s = null;
         if (getLocalPair() != null && getRemoteKey() != null) {
@@ -98,16 +115,145 @@ class SessionKeysImpl implements SessionKeys {
 
     }
 
-    private byte[] h1(byte b) throws OtrException {
+    public void destroy() {
+        // The derived key arrays are only ever handed to the owning session,
+        // which is being destroyed as well, so they can be wiped in place.
+        wipe(sendingAESKey);
+        wipe(receivingAESKey);
+        wipe(sendingMACKey);
+        wipe(receivingMACKey);
+        this.reset();
+        this.localPair = null;
+        this.remoteKey = null;
+        this.localKeyID = 0;
+        this.remoteKeyID = 0;
+    }
+
+    private static void wipe(byte[] b) {
+        if (b != null)
+            Arrays.fill(b, (byte) 0x00);
+    }
+
+    /** Keys derived from one shared secret, computed ahead of use. */
+    private static class DerivedKeys {
+        final BigInteger s;
+        final byte[] sendingAESKey;
+        final byte[] receivingAESKey;
+        final byte[] sendingMACKey;
+        final byte[] receivingMACKey;
+
+        DerivedKeys(KeyPair localPair, DHPublicKey remoteKey, boolean isHigh) throws OtrException {
+            OtrCryptoEngine otrCryptoEngine = new OtrCryptoEngineImpl();
+            s = otrCryptoEngine.generateSecret(localPair.getPrivate(), remoteKey);
+            sendingAESKey = aesKey(s, isHigh ? HIGH_SEND_BYTE : LOW_SEND_BYTE);
+            receivingAESKey = aesKey(s, isHigh ? HIGH_RECEIVE_BYTE : LOW_RECEIVE_BYTE);
+            sendingMACKey = otrCryptoEngine.sha1Hash(sendingAESKey);
+            receivingMACKey = otrCryptoEngine.sha1Hash(receivingAESKey);
+        }
+
+        void wipe() {
+            SessionKeysImpl.wipe(sendingAESKey);
+            SessionKeysImpl.wipe(receivingAESKey);
+            SessionKeysImpl.wipe(sendingMACKey);
+            SessionKeysImpl.wipe(receivingMACKey);
+        }
+    }
+
+    private FutureTask<DerivedKeys> precomputed;
+    // Bumped whenever the D-H keys change, so a background computation that
+    // finishes after its keys were replaced knows to wipe its result.
+    private final AtomicInteger generation = new AtomicInteger();
+
+    public void precompute(Executor executor) {
+        if (s != null || precomputed != null || getLocalPair() == null || getRemoteKey() == null)
+            return;
+
+        final KeyPair localPair = getLocalPair();
+        final DHPublicKey remoteKey = getRemoteKey();
+        final boolean high = isHigh;
+        final int expected = generation.get();
+        precomputed = new FutureTask<DerivedKeys>(new Callable<DerivedKeys>() {
+            public DerivedKeys call() throws OtrException {
+                DerivedKeys keys = new DerivedKeys(localPair, remoteKey, high);
+                if (generation.get() != expected) {
+                    keys.wipe();
+                    throw new CancellationException("Session keys were replaced.");
+                }
+                return keys;
+            }
+        });
+
+        logger.finest("Precomputing " + keyDescription + " session keys.");
+        try {
+            executor.execute(precomputed);
+        } catch (RejectedExecutionException e) {
+            // Computed on first use instead.
+        }
+    }
+
+    /**
+     * Takes over keys computed in the background. If the worker has not got
+     * to them yet they are computed here, if it is busy with them we wait.
+     */
+    private void adoptPrecomputed() {
+        FutureTask<DerivedKeys> task = precomputed;
+        if (task == null)
+            return;
+        precomputed = null;
+
+        task.run();
+        try {
+            DerivedKeys keys = task.get();
+            s = keys.s;
+            sendingAESKey = keys.sendingAESKey;
+            receivingAESKey = keys.receivingAESKey;
+            sendingMACKey = keys.sendingMACKey;
+            receivingMACKey = keys.receivingMACKey;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            logger.finest("Precomputing session keys failed: " + e.getCause());
+        } catch (CancellationException e) {
+            logger.finest("Precomputed session keys were discarded.");
+        }
+    }
+
+    private void discardPrecomputed() {
+        generation.incrementAndGet();
+        FutureTask<DerivedKeys> task = precomputed;
+        if (task == null)
+            return;
+        precomputed = null;
+
+        if (!task.cancel(false) && task.isDone()) {
+            try {
+                task.get().wipe();
+            } catch (Exception e) {
+                // Nothing was computed.
+            }
+        }
+    }
+
+    private static byte[] aesKey(BigInteger s, byte b) throws OtrException {
+        byte[] h1 = h1(s, b);
+        byte[] key = new byte[OtrCryptoEngine.AES_KEY_BYTE_LENGTH];
+        System.arraycopy(h1, 0, key, 0, key.length);
+        wipe(h1);
+        return key;
+    }
+
+    private static byte[] h1(BigInteger s, byte b) throws OtrException {
 
         try {
-            byte[] secbytes = SerializationUtils.writeMpi(getS());
+            byte[] secbytes = SerializationUtils.writeMpi(s);
 
             int len = secbytes.length + 1;
             ByteBuffer buff = ByteBuffer.allocate(len);
             buff.put(b);
             buff.put(secbytes);
             byte[] result = new OtrCryptoEngineImpl().sha1Hash(buff.array());
+            wipe(secbytes);
+            wipe(buff.array());
             return result;
         } catch (Exception e) {
             throw new OtrException(e);
@@ -115,6 +261,7 @@ class SessionKeysImpl implements SessionKeys {
     }
 
     public byte[] getSendingAESKey() throws OtrException {
+        adoptPrecomputed();
         if (sendingAESKey != null)
             return sendingAESKey;
 
@@ -122,17 +269,14 @@ class SessionKeysImpl implements SessionKeys {
         if (this.isHigh)
             sendbyte = HIGH_SEND_BYTE;
 
-        byte[] h1 = h1(sendbyte);
-
-        byte[] key = new byte[OtrCryptoEngine.AES_KEY_BYTE_LENGTH];
-        ByteBuffer buff = ByteBuffer.wrap(h1);
-        buff.get(key);
+        byte[] key = aesKey(getS(), sendbyte);
         logger.finest("Calculated sending AES key.");
         this.sendingAESKey = key;
         return sendingAESKey;
     }
 
     public byte[] getReceivingAESKey() throws OtrException {
+        adoptPrecomputed();
         if (receivingAESKey != null)
             return receivingAESKey;
 
@@ -140,11 +284,7 @@ class SessionKeysImpl implements SessionKeys {
         if (this.isHigh)
             receivebyte = HIGH_RECEIVE_BYTE;
 
-        byte[] h1 = h1(receivebyte);
-
-        byte[] key = new byte[OtrCryptoEngine.AES_KEY_BYTE_LENGTH];
-        ByteBuffer buff = ByteBuffer.wrap(h1);
-        buff.get(key);
+        byte[] key = aesKey(getS(), receivebyte);
         logger.finest("Calculated receiving AES key.");
         this.receivingAESKey = key;
 
@@ -168,7 +308,25 @@ class SessionKeysImpl implements SessionKeys {
         return receivingMACKey;
     }
 
+    public OtrCipherContext getSendingCipherContext() throws OtrException {
+        if (sendingCipherContext == null) {
+            sendingCipherContext = new OtrCipherContext(getSendingAESKey(), getSendingMACKey());
+            logger.finest("Initialised sending cipher context.");
+        }
+        return sendingCipherContext;
+    }
+
+    public OtrCipherContext getReceivingCipherContext() throws OtrException {
+        if (receivingCipherContext == null) {
+            receivingCipherContext = new OtrCipherContext(getReceivingAESKey(),
+                    getReceivingMACKey());
+            logger.finest("Initialised receiving cipher context.");
+        }
+        return receivingCipherContext;
+    }
+
     private BigInteger getS() throws OtrException {
+        adoptPrecomputed();
         if (s == null) {
             s = new OtrCryptoEngineImpl().generateSecret(getLocalPair().getPrivate(),
                     getRemoteKey());
@@ -178,6 +336,7 @@ class SessionKeysImpl implements SessionKeys {
     }
 
     public void setS(BigInteger s) {
+        discardPrecomputed();
         this.s = s;
     }
 
@@ -226,6 +385,8 @@ class SessionKeysImpl implements SessionKeys {
     private byte[] receivingAESKey;
     private byte[] sendingMACKey;
     private byte[] receivingMACKey;
+    private OtrCipherContext sendingCipherContext;
+    private OtrCipherContext receivingCipherContext;
     private Boolean isUsedReceivingMACKey;
     private BigInteger s;
     private Boolean isHigh;
@@ -15,6 +15,9 @@ public class TLV {
     /* Like OTRL_TLV_SMP1, but there's a question for the buddy at the
      * beginning */
     public static final int SMP1Q = 0x0007;
+    /* Application data request and response, see OtrDataHandler */
+    public static final int DATA_REQUEST = 0x0100;
+    public static final int DATA_RESPONSE = 0x0101;
 
     public TLV(int type, byte[] value) {
         this.setType(type);